@@ -0,0 +1,64 @@
+package dnsTools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Benchmark input built from the sample passive-DNS log (Shell_scrips/log).
+ * The lines are kept in their original order, malformed ones included, so
+ * the mapper sees the same mix of records as in the sample.
+ *
+ */
+
+public class Corpus {
+
+	// Class path location of the sample log.
+	private static final String SAMPLE_LOG = "/log";
+
+	private final List<Text> lines;
+	private int next = 0;
+
+	private Corpus(List<Text> lines) {
+		this.lines = lines;
+	}
+
+	/**
+	 * Load the sample log from the class path.
+	 */
+
+	public static Corpus load() throws IOException {
+		List<Text> lines = new ArrayList<Text>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				Corpus.class.getResourceAsStream(SAMPLE_LOG),
+				StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(new Text(line));
+		} finally {
+			reader.close();
+		}
+		return new Corpus(Collections.unmodifiableList(lines));
+	}
+
+	public List<Text> getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return The next line of the corpus, wrapping around at the end.
+	 */
+
+	public Text next() {
+		Text line = lines.get(next);
+		next = next + 1 == lines.size() ? 0 : next + 1;
+		return line;
+	}
+}
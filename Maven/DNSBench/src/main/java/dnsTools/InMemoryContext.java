@@ -0,0 +1,151 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+
+/**
+ * Mapper context stub that keeps counters in memory and tallies the emitted
+ * key-values instead of handing them to the MR framework, so the mapper can
+ * be driven without a Hadoop cluster.
+ *
+ */
+
+public class InMemoryContext {
+
+	private final Counters counters = new Counters();
+
+	private long records = 0;
+	private long bytes = 0;
+
+	/**
+	 * Create a context for the given mapper.
+	 *
+	 * @param mapper
+	 *            The mapper that is going to be driven with the context.
+	 *
+	 * @param conf
+	 *            The job configuration seen by the mapper.
+	 */
+
+	public Mapper<Writable, Writable, ImmutableBytesWritable, KeyValue>.Context create(
+			Mapper<Writable, Writable, ImmutableBytesWritable, KeyValue> mapper,
+			Configuration conf) throws IOException, InterruptedException {
+		return create(mapper, conf, null);
+	}
+
+	/**
+	 * Create a context whose input split is the given lines, so the mapper
+	 * can be driven through Mapper.run().
+	 */
+
+	public Mapper<Writable, Writable, ImmutableBytesWritable, KeyValue>.Context create(
+			Mapper<Writable, Writable, ImmutableBytesWritable, KeyValue> mapper,
+			Configuration conf, final List<Text> lines) throws IOException,
+			InterruptedException {
+		RecordReader<Writable, Writable> reader = lines == null ? null
+				: new RecordReader<Writable, Writable>() {
+					private final LongWritable key = new LongWritable(-1);
+
+					@Override
+					public void initialize(InputSplit split,
+							TaskAttemptContext context) {
+					}
+
+					@Override
+					public boolean nextKeyValue() {
+						key.set(key.get() + 1);
+						return key.get() < lines.size();
+					}
+
+					@Override
+					public Writable getCurrentKey() {
+						return key;
+					}
+
+					@Override
+					public Writable getCurrentValue() {
+						return lines.get((int) key.get());
+					}
+
+					@Override
+					public float getProgress() {
+						return (float) key.get() / lines.size();
+					}
+
+					@Override
+					public void close() {
+					}
+				};
+		return mapper.new Context(conf, new TaskAttemptID(), reader,
+				new RecordWriter<ImmutableBytesWritable, KeyValue>() {
+					@Override
+					public void write(ImmutableBytesWritable key, KeyValue value) {
+						records++;
+						bytes += key.getLength() + value.getLength();
+					}
+
+					@Override
+					public void close(TaskAttemptContext context) {
+					}
+				}, null, new StatusReporter() {
+					@Override
+					public Counter getCounter(Enum<?> name) {
+						return counters.findCounter(name);
+					}
+
+					@Override
+					public Counter getCounter(String group, String name) {
+						return counters.findCounter(group, name);
+					}
+
+					@Override
+					public void progress() {
+					}
+
+					@Override
+					public float getProgress() {
+						return 0;
+					}
+
+					@Override
+					public void setStatus(String status) {
+					}
+				}, null);
+	}
+
+	public Counters getCounters() {
+		return counters;
+	}
+
+	/**
+	 * @return The number of key-values written so far.
+	 */
+
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return The total size of the keys and key-values written so far.
+	 */
+
+	public long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,162 @@
+package dnsTools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.Message;
+
+/**
+ * Benchmarks of the BulkLoaderMapper parse-and-emit pipeline. Every
+ * invocation handles one line of the corpus, so the reported throughput is
+ * in records/sec. Run with "-prof gc" to get the bytes allocated per record
+ * (gc.alloc.rate.norm).
+ *
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+	// Lines of the input split mapped by each invocation of mapSplit.
+	private final static int SPLIT_LINES = 10000;
+
+	@State(Scope.Thread)
+	public static class Lines {
+		Corpus corpus;
+		LogLineParser parser;
+
+		@Setup
+		public void setup() throws Exception {
+			corpus = Corpus.load();
+			parser = new LogLineParser();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class MapTask {
+
+		@Param({ BulkLoaderMapper.ANSWER_PARSER_RECORD,
+				BulkLoaderMapper.ANSWER_PARSER_TEXT })
+		String parser;
+
+		Corpus corpus;
+		BulkLoaderMapper mapper;
+		InMemoryContext output;
+		Mapper<Writable, Writable, ImmutableBytesWritable, KeyValue>.Context context;
+		LongWritable key = new LongWritable();
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			Configuration conf = new Configuration();
+			conf.set(BulkLoaderMapper.ANSWER_PARSER_KEY, parser);
+
+			corpus = Corpus.load();
+			mapper = new BulkLoaderMapper();
+			output = new InMemoryContext();
+			context = output.create(mapper, conf);
+			mapper.setup(context);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Split {
+
+		// Number of decoding threads, see BulkLoaderMapper.THREADS_KEY.
+		@Param({ "1", "2", "4", "8" })
+		int threads;
+
+		Configuration conf;
+		List<Text> lines;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			conf = new Configuration();
+			conf.setInt(BulkLoaderMapper.THREADS_KEY, threads);
+
+			Corpus corpus = Corpus.load();
+			lines = new ArrayList<Text>(SPLIT_LINES);
+			for (int i = 0; i < SPLIT_LINES; i++)
+				lines.add(corpus.next());
+		}
+	}
+
+	/**
+	 * Line splitting and hex decoding as done before LogLineParser.
+	 */
+
+	@Benchmark
+	public byte[] splitAndDecodeHex(Lines lines) throws Exception {
+		String[] lineSegs = lines.corpus.next().toString().split("[ \t]+");
+		if (lineSegs.length != LogLineParser.LINE_SEG_FIELDS)
+			return null;
+		return Hex.decodeHex(lineSegs[3].toCharArray());
+	}
+
+	@Benchmark
+	public byte[] lineParser(Lines lines) {
+		Text line = lines.corpus.next();
+		if (lines.parser.parse(line.getBytes(), line.getLength()) != LogLineParser.Status.OK)
+			return null;
+		return lines.parser.getPacket();
+	}
+
+	@Benchmark
+	public Message messageParse(Lines lines) throws Exception {
+		Text line = lines.corpus.next();
+		if (lines.parser.parse(line.getBytes(), line.getLength()) != LogLineParser.Status.OK)
+			return null;
+		return new Message(lines.parser.getPacket());
+	}
+
+	/**
+	 * The whole map() call: line parsing, packet decoding, answer extraction
+	 * and the rdata packing done when emitting the key-values.
+	 */
+
+	@Benchmark
+	public long map(MapTask task) throws Exception {
+		task.mapper.map(task.key, task.corpus.next(), task.context);
+		return task.output.getRecords();
+	}
+
+	/**
+	 * A whole map task: Mapper.run() over an input split, decoding the
+	 * packets on the number of threads of the Split state. Comparing the
+	 * throughput at 1, 2, 4 and 8 threads gives the scaling curve of the
+	 * multithreaded mode. The throughput is in records/sec.
+	 */
+
+	@Benchmark
+	@OperationsPerInvocation(SPLIT_LINES)
+	public long mapSplit(Split split) throws Exception {
+		BulkLoaderMapper mapper = new BulkLoaderMapper();
+		InMemoryContext output = new InMemoryContext();
+		mapper.run(output.create(mapper, split.conf, split.lines));
+		return output.getRecords();
+	}
+}
@@ -0,0 +1,181 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * Benchmark of the client-side aggregation QueryTool does on the rows of a
+ * Hive query result. The result rows are (timestamp, rdata) pairs made
+ * from the answers in the corpus, with a new timestamp for every replayed
+ * message. Throughput is reported in result rows/sec.
+ *
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryToolBenchmark {
+
+	// Number of result rows aggregated per invocation.
+	static final int ROWS = 10000;
+
+	// Memory budget of the spilling aggregation, a few dozen rdata sets.
+	static final long SPILL_BUDGET = 8 << 10;
+
+	@State(Scope.Thread)
+	public static class Rows {
+		String[] timeStamps = new String[ROWS];
+		String[] rrname = new String[ROWS];
+		String[] rdata = new String[ROWS];
+
+		// The rows sorted by rrname, as the Hive rdata query returns them.
+		String[] rrnameSorted = new String[ROWS];
+		String[] timeStampsByName = new String[ROWS];
+
+		@Setup
+		public void setup() throws Exception {
+			List<Record[]> answers = new ArrayList<Record[]>();
+			LogLineParser parser = new LogLineParser();
+			for (Text line : Corpus.load().getLines()) {
+				if (parser.parse(line.getBytes(), line.getLength()) != LogLineParser.Status.OK)
+					continue;
+				Record[] records = new Message(parser.getPacket())
+						.getSectionArray(Section.ANSWER);
+				if (records.length > 0)
+					answers.add(records);
+			}
+
+			int row = 0;
+			for (long ts = 1000000; row < ROWS; ts++) {
+				Record[] records = answers.get((int) ts % answers.size());
+				for (int i = 0; i < records.length && row < ROWS; i++, row++) {
+					timeStamps[row] = String.valueOf(ts);
+					rrname[row] = records[i].getName().toString();
+					rdata[row] = records[i].rdataToString();
+				}
+			}
+
+			Integer[] order = new Integer[ROWS];
+			for (int i = 0; i < ROWS; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return rrname[a].compareTo(rrname[b]);
+				}
+			});
+			for (int i = 0; i < ROWS; i++) {
+				rrnameSorted[i] = rrname[order[i]];
+				timeStampsByName[i] = timeStamps[order[i]];
+			}
+		}
+	}
+
+	/**
+	 * Collect the rdata set of each timestamp and aggregate the sets as
+	 * HiveQueryBackend.processRRsetQuery does, with the rows sorted by
+	 * timestamp and everything kept in memory.
+	 */
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long aggregateRRsets(Rows rows) throws IOException {
+		return aggregateRRsets(rows, Long.MAX_VALUE);
+	}
+
+	/**
+	 * The same aggregation with a memory budget small enough to spill the
+	 * aggregates to disk several times.
+	 */
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long aggregateRRsetsSpilling(Rows rows) throws IOException {
+		return aggregateRRsets(rows, SPILL_BUDGET);
+	}
+
+	private static long aggregateRRsets(Rows rows, long memoryBudget)
+			throws IOException {
+		ObservationAggregator aggregator = new ObservationAggregator(
+				memoryBudget, null);
+		LinkedList<String> rdataList = new LinkedList<String>();
+		String timeStamp = null;
+		for (int i = 0; i < ROWS; i++) {
+			if (timeStamp != null && !timeStamp.equals(rows.timeStamps[i])) {
+				Collections.sort(rdataList);
+				aggregator.add(rdataList.toString(), timeStamp);
+				rdataList.clear();
+			}
+			timeStamp = rows.timeStamps[i];
+			rdataList.add(rows.rdata[i]);
+		}
+		Collections.sort(rdataList);
+		aggregator.add(rdataList.toString(), timeStamp);
+
+		final long[] total = new long[1];
+		aggregator.finish(new ObservationAggregator.Handler() {
+			@Override
+			public void aggregate(String key, String firstSeen,
+					String lastSeen, long count) {
+				total[0] += count;
+			}
+		});
+		return total[0];
+	}
+
+	/**
+	 * Aggregate the rows of each rrname as processRdataQuery does, with the
+	 * rows sorted by rrname so each group is complete when the next starts.
+	 */
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long groupByRRName(Rows rows) {
+		long groups = 0;
+		String rrname = null;
+		String firstSeen = null;
+		String lastSeen = null;
+		long count = 0;
+		for (int i = 0; i < ROWS; i++) {
+			String name = rows.rrnameSorted[i];
+			String ts = rows.timeStampsByName[i];
+			if (!name.equals(rrname)) {
+				groups += count;
+				rrname = name;
+				firstSeen = ts;
+				lastSeen = ts;
+				count = 0;
+			}
+			if (ts.compareTo(firstSeen) < 0)
+				firstSeen = ts;
+			if (ts.compareTo(lastSeen) > 0)
+				lastSeen = ts;
+			count++;
+		}
+		return groups + count + firstSeen.length() + lastSeen.length();
+	}
+}
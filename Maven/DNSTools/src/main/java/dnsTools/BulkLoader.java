@@ -1,12 +1,13 @@
 package dnsTools;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
-import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
 import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -22,9 +23,57 @@ import org.apache.hadoop.util.GenericOptionsParser;
  * args[1]: hdfs output path
  * args[2]: HBase table name
  * 
+ * The reverse (rdata to rrname) index is loaded in the same job into the
+ * table named by dnstools.rdata.table, args[2] + "_rdata" by default, and
+ * the rrsets of the AUTHORITY and ADDITIONAL sections into args[2] +
+ * "_authority" and args[2] + "_additional", see BulkLoaderMapper.
+ * 
+ * Tables that do not exist are created pre-split from a sample of the
+ * input, see TableSplitter, with the row-key layout named by
+ * dnstools.rowkey.layout (reversed by default, see PdnsSchema). Existing
+ * tables are loaded in their own layout.
+ * 
+ * With dnstools.input.format=binary the input is the output of
+ * LogConverter instead of the text logs.
+ * 
+ * The loaded files are recorded in the LoadManifest of the table. With
+ * dnstools.incremental=true only the input files missing from it are
+ * loaded, into the existing tables, and those whose length or
+ * modification time changed since. New observations are added as new cell
+ * versions, which the readers combine with the stored ones, so nothing
+ * already loaded is read or rewritten.
+ * 
+ * The same job builds the LoadFilter of the table, which a load starting
+ * from an empty manifest creates and an incremental load updates. Setting
+ * dnstools.filter.bits to 0 disables it.
+ * 
+ * After the load, RollupJob computes again the hourly and daily roll-ups
+ * of the days the new cells fall in. The roll-up tables are created by a
+ * load starting from an empty manifest, and kept up to date by the next
+ * loads if they exist. Setting dnstools.rollup to false disables them. A
+ * load whose roll-ups are skipped or fail lowers the RollupWatermark of
+ * the table to its first cell, so the queries from then on are not served
+ * from roll-ups missing it.
+ * SketchJob then adds the same days to the distinct count sketches of the
+ * rrsets and rdata values, kept in the same way and disabled by setting
+ * dnstools.sketch to false.
+ * 
  */
 
 public class BulkLoader {
+
+	// Configuration key enabling incremental loads.
+	public final static String INCREMENTAL_KEY = "dnstools.incremental";
+
+	// Configuration key selecting the format of the input files.
+	public final static String INPUT_FORMAT_KEY = "dnstools.input.format";
+
+	// Text lines of the DNS log (default).
+	public final static String INPUT_FORMAT_TEXT = "text";
+
+	// LogRecords converted by LogConverter.
+	public final static String INPUT_FORMAT_BINARY = "binary";
+
 	public static void main(String[] args) throws Exception {
 		Configuration conf = new Configuration();
 		args = new GenericOptionsParser(conf, args).getRemainingArgs();
@@ -38,23 +87,133 @@ public class BulkLoader {
 		job.setJarByClass(BulkLoaderMapper.class);
 
 		job.setMapperClass(BulkLoaderMapper.class);
-		job.setMapOutputKeyClass(ImmutableBytesWritable.class);
-		job.setMapOutputValueClass(KeyValue.class);
 
-		job.setInputFormatClass(TextInputFormat.class);
+		if (INPUT_FORMAT_BINARY.equals(conf.get(INPUT_FORMAT_KEY,
+				INPUT_FORMAT_TEXT)))
+			job.setInputFormatClass(LogRecordInputFormat.class);
+		else
+			job.setInputFormatClass(TextInputFormat.class);
 
-		HTable hTable = new HTable(conf, args[2]);
+		// Only the files not loaded yet in incremental mode, all of them
+		// otherwise.
+		LoadManifest manifest = LoadManifest.open(conf, args[2]);
+		boolean incremental = conf.getBoolean(INCREMENTAL_KEY, false);
+		if (!incremental)
+			manifest.clear();
+		boolean fresh = manifest.isEmpty();
+		List<FileStatus> inputFiles = manifest.newFiles(conf, new Path(
+				args[0]));
+		if (inputFiles.isEmpty()) {
+			System.out.println("No new input files.");
+			return;
+		}
+		for (FileStatus file : inputFiles)
+			FileInputFormat.addInputPath(job, file.getPath());
 
-		// Auto configure partitioner and reducer.
-		HFileOutputFormat.configureIncrementalLoad(job, hTable);
+		// Output tables in the order of the table indexes used by the mapper.
+		List<String> tableNames = BulkLoaderMapper.outputTables(conf, args[2]);
 
-		FileInputFormat.addInputPath(job, new Path(args[0]));
-		FileOutputFormat.setOutputPath(job, new Path(args[1]));
+		// Write the row-keys of an existing table in its own layout.
+		TableSplitter.configureLayout(job.getConfiguration(), args[2]);
 
-		job.waitForCompletion(true);
+		// Create the missing tables pre-split from a sample of the input.
+		List<List<byte[]>> sampledKeys = TableSplitter.sampleRowKeys(job);
+		TableSplitter.createTables(job.getConfiguration(), tableNames,
+				sampledKeys);
 
-		// Load generated HFiles into HBase table.
+		List<HTable> tables = new ArrayList<HTable>();
+		for (String tableName : tableNames)
+			tables.add(new HTable(conf, tableName));
+
+		// Auto configure partitioner and reducer. An incremental load only
+		// gets reducers for the regions its sample falls into.
+		MultiTableHFileOutputFormat.configureIncrementalLoad(job, tables,
+				incremental ? sampledKeys : null);
+
+		Path outputPath = new Path(args[1]);
+		FileOutputFormat.setOutputPath(job, outputPath);
+
+		// The map tasks write the filters of their splits next to the
+		// HFiles.
+		boolean filtered = LoadFilter.configureLoad(job.getConfiguration(),
+				args[2], fresh, new Path(outputPath, "_filter"));
+
+		if (!job.waitForCompletion(true))
+			System.exit(1);
+
+		// The time range of the new cells, read from the HFiles before they
+		// are moved into the regions.
+		Path rrsetPath = MultiTableHFileOutputFormat.getTableOutputPath(
+				outputPath, args[2]);
+		long[] timeRange = RollupJob.timeRange(conf, rrsetPath);
+
+		// Load generated HFiles into HBase tables.
 		LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
-		loader.doBulkLoad(new Path(args[1]), hTable);
+		for (HTable hTable : tables) {
+			Path tablePath = MultiTableHFileOutputFormat.getTableOutputPath(
+					outputPath, hTable.getTableDescriptor().getNameAsString());
+			if (!tablePath.getFileSystem(conf).exists(tablePath))
+				continue;
+
+			// Drop what is left of the task attempt directories.
+			tablePath.getFileSystem(conf).delete(
+					new Path(tablePath, "_temporary"), true);
+			loader.doBulkLoad(tablePath, hTable);
+		}
+
+		// Before the manifest, whose new generation tells readers to drop
+		// what they have cached. The filter and the manifest are saved
+		// even if the roll-ups fail, since the cells are loaded.
+		boolean rolledUp = true;
+		boolean rollupSkipped = false;
+		if (timeRange != null
+				&& conf.getBoolean(RollupJob.ENABLED_KEY, true)
+				&& (fresh || RollupJob.exists(conf, args[2]))) {
+			// A fresh table has no older cells missing from the roll-ups.
+			if (fresh)
+				RollupWatermark.open(conf, args[2]).start(timeRange[0]);
+			rolledUp = RollupJob.run(conf, args[2], timeRange[0],
+					timeRange[1] + 1);
+		} else if (timeRange != null && RollupJob.exists(conf, args[2])) {
+			rollupSkipped = true;
+		}
+		// The queries read the time of the new cells from the passive-DNS
+		// table until RollupJob is run over it, from the watermark on so
+		// the run moves it past the new cells and back to where it was.
+		long rollupStart = 0;
+		long rollupEnd = 0;
+		if (!rolledUp || rollupSkipped) {
+			RollupWatermark watermark = RollupWatermark.open(conf, args[2]);
+			long recorded = watermark.getRecorded();
+			rollupStart = Math.min(timeRange[0], recorded);
+			rollupEnd = Math.max(timeRange[1] + 1, recorded);
+			watermark.lower(timeRange[0]);
+		}
+		boolean sketched = true;
+		if (timeRange != null
+				&& conf.getBoolean(SketchJob.ENABLED_KEY, true)
+				&& (fresh || SketchJob.exists(conf, args[2])))
+			sketched = SketchJob.run(conf, args[2], timeRange[0],
+					timeRange[1] + 1);
+
+		if (filtered)
+			LoadFilter.finishLoad(job.getConfiguration(), args[2], fresh);
+
+		for (FileStatus file : inputFiles)
+			manifest.add(file);
+		manifest.save();
+
+		if (!rolledUp)
+			System.err.println("The roll-ups failed, run: java dnsTools.RollupJob "
+					+ args[2] + " " + rollupStart + " " + rollupEnd);
+		if (rollupSkipped)
+			System.err.println("The roll-ups were skipped, they are not read "
+					+ "from " + rollupStart + " on until: java dnsTools.RollupJob "
+					+ args[2] + " " + rollupStart + " " + rollupEnd);
+		if (!sketched)
+			System.err.println("The sketches failed, run: java dnsTools.SketchJob "
+					+ args[2] + " " + timeRange[0] + " " + (timeRange[1] + 1));
+		if (!rolledUp || !sketched)
+			System.exit(1);
 	}
-}
\ No newline at end of file
+}
@@ -1,288 +1,315 @@
 package dnsTools;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.util.LinkedList;
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
-import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.HTableDescriptor;
-import org.apache.hadoop.hbase.HColumnDescriptor;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.hbase.client.HBaseAdmin;
-import org.xbill.DNS.Message;
-import org.xbill.DNS.utils.hexdump;
-import org.apache.commons.codec.binary.Hex;
 
 /**
  * Main mapper class. This class parses the input file and decodes the embedded
- * DNS packet. It Then looks for the ANSWER section in the packet to find the
- * DNS resource records. Then for each resouce record, it emits four key-value
- * pairs corresponding to the timestamp, rrname, rrtype, and rdata fields of the
- * resource record.
+ * DNS packet with ObservationParser. It Then groups the DNS resource records
+ * of each section of the packet into rrsets. Each rrset of the ANSWER
+ * section, e.g. both links of a CNAME chain, is emitted as one observation
+ * in the layout described by PdnsSchema: the row-key holds the rrname and
+ * rrtype, the qualifier the rdata set and the cell version the timestamp of
+ * the log line.
+ * 
+ * Every rdata of these rrsets is also emitted to the reverse index
+ * described by RdataIndex. The rrsets of the AUTHORITY and ADDITIONAL
+ * sections go to tables of their own in the same layout, see
+ * sectionTableName(), when dnstools.sections is set to all. The
+ * key-values of all the tables are routed through
+ * MultiTableHFileOutputFormat, so one job and one decode of each packet
+ * write the HFiles of all of them.
+ * 
+ * The ANSWER section is read directly from the decoded Record objects by
+ * default. Setting dnstools.answer.parser=text in the job configuration
+ * switches back to the older path which renders the whole message with
+ * Message.toString() and re-tokenizes it, so the outputs of the two can be
+ * compared. That path only reads the ANSWER section, and drops the answers
+ * holding more than one rrset.
+ * 
+ * The rdata sets are packed as text by default. Setting
+ * dnstools.rdata.encoding=compact packs them with the typed binary encoding
+ * of CompactRdata instead.
+ * 
+ * Repeated observations of a cell are combined in the mapper by
+ * ObservationCombiner before they go to the shuffle. Its memory budget is
+ * set with dnstools.mapper.combine.memory, 0 emits one cell per
+ * observation as before.
+ * 
+ * Setting dnstools.mapper.threads to N > 1 decodes the packets of a split
+ * on N threads with ParallelObservationParser, in batches of
+ * dnstools.mapper.batch.lines lines. The observations are still combined
+ * and written on the task thread, in input order.
+ * 
+ * The input is either the text lines of the log, read with TextInputFormat,
+ * or the LogRecords written by LogConverter, read with
+ * LogRecordInputFormat.
+ * 
+ * Progress and parse failures are reported through the counters of
+ * MapperMetrics. Records are only logged in its sampled debug mode.
+ * 
+ * When the driver names a directory in dnstools.filter.parts, the keys of
+ * the rows are also added to a LoadFilter written there by each task.
  * 
  */
 
 public class BulkLoaderMapper extends
-		Mapper<LongWritable, Text, ImmutableBytesWritable, KeyValue> {
+		Mapper<Writable, Writable, ImmutableBytesWritable, KeyValue> {
 
-	// Mininum numer of fields in a DNS resouce record.
-	private final static int MIN_RR_LENGTH = 4;
+	// Configuration key selecting how the ANSWER section is extracted.
+	public final static String ANSWER_PARSER_KEY = "dnstools.answer.parser";
 
-	// Number of fields in each line of text file.
-	private final static int LINE_SEG_FIELDS = 4;
+	// Read the answers from the decoded Record objects (default).
+	public final static String ANSWER_PARSER_RECORD = "record";
 
-	/**
-	 * HBase table columns and column families enumeration.
-	 */
-	private enum ColumnEnum {
-		COL_RRNAME("rrname".getBytes(), "cf".getBytes(), 0), COL_RRTYPE("rrtype"
-				.getBytes(), "cf".getBytes(), 3), COL_RDATA(
-				"rdata".getBytes(), "cf".getBytes(), 4);
-
-		private final byte[] columnName;
-		private final byte[] columnFamily;
-		private final int fieldNum;
-
-		ColumnEnum(byte[] columnName, byte[] columnFamily, int fieldNum) {
-			this.columnName = columnName;
-			this.columnFamily = columnFamily;
-			this.fieldNum = fieldNum;
-		}
+	// Read the answers by re-parsing the text form of the message.
+	public final static String ANSWER_PARSER_TEXT = "text";
 
-		private byte[] getColumnName() {
-			return this.columnName;
-		}
+	// Configuration key selecting how the rdata sets are packed.
+	public final static String RDATA_ENCODING_KEY = "dnstools.rdata.encoding";
 
-		private byte[] getColumnFamily() {
-			return this.columnFamily;
-		}
+	// Length-prefixed text, see PdnsSchema.packRdata() (default).
+	public final static String RDATA_ENCODING_TEXT = "text";
 
-		private int getFieldNum() {
-			return this.fieldNum;
-		}
-	}
+	// Typed binary encoding, see CompactRdata.
+	public final static String RDATA_ENCODING_COMPACT = "compact";
 
-	private byte[] intToByteArray(int i) {
-		byte[] result = new byte[4];
+	// Configuration key of the memory budget of the combiner, in bytes.
+	public final static String COMBINE_MEMORY_KEY = "dnstools.mapper.combine.memory";
 
-		result[0] = (byte) (i >> 24);
-		result[1] = (byte) (i >> 16);
-		result[2] = (byte) (i >> 8);
-		result[3] = (byte) i;
+	public final static long DEFAULT_COMBINE_MEMORY = 16L << 20;
 
-		return result;
-	}
+	// Configuration key of the number of packet decoding threads.
+	public final static String THREADS_KEY = "dnstools.mapper.threads";
 
-	private static Message parsePacket(String packet, Context context) {
-		try {
-			byte[] decodedPacket = Hex.decodeHex(packet.toCharArray());
-			return new Message(decodedPacket);
-		} catch (Exception e) {
-			context.getCounter("HBaseKVMapper", "PARSE_ERRORS").increment(1);
-			return null;
-		}
-	}
+	// Configuration key of the number of lines a decoding thread takes at
+	// once.
+	public final static String BATCH_LINES_KEY = "dnstools.mapper.batch.lines";
 
-	private void hbase_write(LinkedList<String> rrecord_list, Context context) throws IOException, InterruptedException {
-		
-		if (rrecord_list.isEmpty())
-			return;
+	public final static int DEFAULT_BATCH_LINES = 256;
 
-		int rrname_field = ColumnEnum.COL_RRNAME.getFieldNum();
-		int rrtype_field = ColumnEnum.COL_RRTYPE.getFieldNum();
-		int rdata_field = ColumnEnum.COL_RDATA.getFieldNum();
+	// Null when combining is disabled.
+	private ObservationCombiner combiner;
 
-		String rrtype = null;
-		String rdata = null;
-		String rrname = null;
-		
-		String[] rrFields = null;
-		LinkedList<byte[]> rdata_list = new LinkedList<>();
-		for (String rrecord: rrecord_list) {
-			rrFields = rrecord.trim().split("[ \t]+");
+	// Null when the load builds no filter.
+	private LoadFilter filter;
 
-			System.out.println("Line segments:" + rrFields.length
-				+ "\n");
+	private ObservationParser parser;
 
-			if (rrFields.length < MIN_RR_LENGTH)
-				return;
+	private MapperMetrics metrics;
 
-			if (rrname != null) {
-				if (!rrFields[rrname_field].equals(rrname))
-					return;
-			}
-			else
-				rrname = rrFields[rrname_field];
+	// Indexes of the output tables in MultiTableHFileOutputFormat.
+	public final static int RRSET_TABLE = 0;
+	public final static int RDATA_TABLE = 1;
+	public final static int AUTHORITY_TABLE = 2;
+	public final static int ADDITIONAL_TABLE = 3;
 
-			if (rrtype != null) {
-				if (!rrFields[rrtype_field].equals(rrtype))
-					return;
-			}
-			else
-				rrtype = rrFields[rrtype_field];
-			
-			rdata_list.add(rrFields[rdata_field].getBytes());
+	// Configuration key selecting the sections of the packets loaded.
+	public final static String SECTIONS_KEY = "dnstools.sections";
 
-			for (int i = 0; i < rrFields.length; i++) {
-				System.out.println(rrFields[i] + "\n");
-			}
+	// All the sections.
+	public final static String SECTIONS_ALL = "all";
+
+	// The ANSWER section only (default), as loaded before the other
+	// sections were.
+	public final static String SECTIONS_ANSWER = "answer";
+
+	/**
+	 * @return True if the AUTHORITY and ADDITIONAL sections are loaded.
+	 */
+
+	public static boolean allSections(Configuration conf) {
+		return SECTIONS_ALL.equals(conf.get(SECTIONS_KEY, SECTIONS_ANSWER));
+	}
+
+	/**
+	 * @return The name of the table of the rrsets of the AUTHORITY or
+	 *         ADDITIONAL section, e.g. table1_authority.
+	 */
+
+	public static String sectionTableName(String tableName, int table) {
+		return tableName
+				+ (table == AUTHORITY_TABLE ? "_authority" : "_additional");
+	}
+
+	/**
+	 * @return The names of the output tables of a load into a passive-DNS
+	 *         table, in the order of the table indexes.
+	 */
+
+	public static List<String> outputTables(Configuration conf,
+			String tableName) {
+		List<String> tableNames = new ArrayList<String>();
+		tableNames.add(RRSET_TABLE, tableName);
+		tableNames.add(RDATA_TABLE, conf.get(RdataIndex.TABLE_KEY,
+				RdataIndex.tableName(tableName)));
+		if (allSections(conf)) {
+			tableNames.add(AUTHORITY_TABLE, sectionTableName(tableName,
+					AUTHORITY_TABLE));
+			tableNames.add(ADDITIONAL_TABLE, sectionTableName(tableName,
+					ADDITIONAL_TABLE));
 		}
-		
-		ImmutableBytesWritable hKey = new ImmutableBytesWritable();
-		KeyValue kv;
-		byte[] column_name = null;
-		byte[] column_family = null;
-		
-		// Set row-key using an increasing counter.
-		//hKey.set(intToByteArray((int) context.getCounter(
-		//		"HBaseKVMapper", "NUM_MSGS").getValue()));
-
-		hKey.set(rrname.getBytes());
-
-		column_name = ColumnEnum.COL_RRTYPE.getColumnName();
-		column_family = ColumnEnum.COL_RRTYPE.getColumnFamily();
-		if (!rrtype.equals("")) {
-			kv = new KeyValue(hKey.get(), column_family, column_name,
-					rrtype);
-			context.write(hKey, kv);
+		return tableNames;
+	}
+
+	/**
+	 * Hand an observation of a cell over to the combiner, or write it right
+	 * away if combining is disabled.
+	 */
+
+	private void observe(int table, byte[] row, byte[] family,
+			byte[] qualifier, long timestamp, Context context)
+			throws IOException, InterruptedException {
+		metrics.observation();
+		if (filter != null)
+			filter.addRow(table, row);
+		if (combiner != null) {
+			combiner.add(table, row, family, qualifier, timestamp);
+			return;
 		}
-		
-		int total_len = 0;
-		for (byte[] rdata_: rdata_list) {
-			total_len += rdata_.length;
+		write(table, new KeyValue(row, family, qualifier, timestamp,
+				PdnsSchema.SINGLE_OBSERVATION), context);
+	}
+
+	private void write(int table, KeyValue kv, Context context)
+			throws IOException, InterruptedException {
+		metrics.cell();
+		context.write(MultiTableHFileOutputFormat.tableKey(table, kv.getRow()),
+				kv);
+	}
+	
+	@Override
+	protected void setup(Context context) throws IOException,
+			InterruptedException {
+		metrics = new MapperMetrics(context);
+		final Context output = context;
+		parser = new ObservationParser(context.getConfiguration(), metrics,
+				new ObservationParser.Sink() {
+					@Override
+					public void observe(int table, byte[] row, byte[] family,
+							byte[] qualifier, long timestamp)
+							throws IOException, InterruptedException {
+						BulkLoaderMapper.this.observe(table, row, family,
+								qualifier, timestamp, output);
+					}
+				});
+
+		filter = null;
+		if (context.getConfiguration().get(LoadFilter.PARTS_KEY) != null)
+			filter = LoadFilter.create(context.getConfiguration());
+
+		long combineMemory = context.getConfiguration().getLong(
+				COMBINE_MEMORY_KEY, DEFAULT_COMBINE_MEMORY);
+		combiner = null;
+		if (combineMemory > 0) {
+			combiner = new ObservationCombiner(combineMemory,
+					new ObservationCombiner.Output() {
+						@Override
+						public void write(int table, KeyValue kv)
+								throws IOException, InterruptedException {
+							BulkLoaderMapper.this.write(table, kv, output);
+						}
+					});
 		}
-		byte[] rdata_byte_array = new byte[4 * (1 + rdata_list.size()) + total_len];
-		int pos = 0;
-		System.arraycopy(intToByteArray(rdata_list.size()), 0, rdata_byte_array, pos, 4);
-		pos += 4;
-		for (byte[] rdata_: rdata_list) {
-			System.arraycopy(intToByteArray(rdata_.length), 0, rdata_byte_array, pos, 4);
-			pos += 4;
-			System.arraycopy(rdata_, 0, rdata_byte_array, pos, rdata_.length);
-			pos += rdata_.length;
+	}
+
+	/**
+	 * Run the map task on a single thread, or hand the lines over to a
+	 * ParallelObservationParser when dnstools.mapper.threads is above 1.
+	 */
+
+	@Override
+	public void run(Context context) throws IOException, InterruptedException {
+		int threads = context.getConfiguration().getInt(THREADS_KEY, 1);
+		if (threads <= 1) {
+			super.run(context);
+			return;
 		}
 
-		column_name = ColumnEnum.COL_RDATA.getColumnName();
-		column_family = ColumnEnum.COL_RDATA.getColumnFamily();
-		if (!rdata.equals("")) {
-			kv = new KeyValue(hKey.get(), column_family, column_name,
-					rdata_byte_array);
-			context.write(hKey, kv);
+		setup(context);
+		final Context output = context;
+		ParallelObservationParser parallelParser = new ParallelObservationParser(
+				context.getConfiguration(), threads, context.getConfiguration()
+						.getInt(BATCH_LINES_KEY, DEFAULT_BATCH_LINES),
+				new ObservationParser.Sink() {
+					@Override
+					public void observe(int table, byte[] row, byte[] family,
+							byte[] qualifier, long timestamp)
+							throws IOException, InterruptedException {
+						BulkLoaderMapper.this.observe(table, row, family,
+								qualifier, timestamp, output);
+					}
+				});
+		try {
+			while (context.nextKeyValue()) {
+				Writable value = context.getCurrentValue();
+				if (value instanceof LogRecord) {
+					parallelParser.parse((LogRecord) value);
+				} else {
+					Text line = (Text) value;
+					parallelParser.parse(line.getBytes(), line.getLength());
+				}
+			}
+			parallelParser.flush();
+		} finally {
+			parallelParser.close();
 		}
 
+		for (CounterGroup group : parallelParser.getCounters()) {
+			for (Counter counter : group)
+				context.getCounter(group.getName(), counter.getName())
+						.increment(counter.getValue());
+		}
+		cleanup(context);
 	}
-	
-	private enum ParseState {
-		PARSE_START, ANSWER_START, ANSWER_END;
+
+	@Override
+	protected void cleanup(Context context) throws IOException,
+			InterruptedException {
+		if (combiner != null)
+			combiner.flush();
+		if (filter != null)
+			filter.writePart(context.getConfiguration(), context
+					.getTaskAttemptID().toString());
 	}
 
 	/**
 	 * Parse a line of the input file and decode the embedded DNS packet. Emit
-	 * four key-value pairs corresponding to the timestamp, rrname, rrtype, and
-	 * rdata fields for each resouce record in the ANSWERS section of the
-	 * decoded packet.
+	 * the key-values of every rrset of the decoded packet: those of the
+	 * ANSWER section to the rrset table and the reverse index, and those of
+	 * the AUTHORITY and ADDITIONAL sections to their own tables when
+	 * dnstools.sections is all.
 	 * 
 	 * @param key
-	 *            Long key corresponding to each line of input. This value is
-	 *            not used in this function.
+	 *            The key of the input record. This value is not used in this
+	 *            function.
 	 * 
 	 * @param value
-	 *            A single line of the input file to MR.
+	 *            A single line of the input file to MR as Text, or a line
+	 *            converted by LogConverter as a LogRecord.
 	 * 
 	 * @param context
 	 *            The context passed by the MR framework.
 	 */
 
 	@Override
-	protected void map(LongWritable key, Text value, Context context)
+	protected void map(Writable key, Writable value, Context context)
 			throws IOException, InterruptedException {
-
-		String[] lineSegs = null;
-
-		// Parse the input file by splitting each line assuming that
-		// each line is an array of space or tab seperated fields.
-		try {
-			lineSegs = value.toString().split("[ \t]+");
-		} catch (Exception ex) {
-			context.getCounter("HBaseKVMapper", "PARSE_ERRORS").increment(1);
+		if (value instanceof LogRecord) {
+			parser.parse((LogRecord) value);
 			return;
 		}
-
-		// Skip mal-formed lines.
-		if (lineSegs.length != LINE_SEG_FIELDS)
-			return;
-
-		String timeStamp = lineSegs[0].substring(1);
-		String logVersion = lineSegs[1];
-		String srcIP = lineSegs[2];
-
-		// Decode the DNS packet.
-		Message packet = null;
-		packet = parsePacket(lineSegs[3], context);
-		ParseState state = ParseState.PARSE_START;
-		LinkedList<String> rrecord_list = null;
-		if (packet != null) {
-
-			StringTokenizer st = new StringTokenizer(packet.toString(), "\n");
-			while (st.hasMoreTokens()) {
-
-				// The resouce record.
-				String rrecord = st.nextToken();
-
-				if (rrecord.trim().equals(""))
-					continue;
-
-				// Parse the resource record looking for the ANSWERS section.
-				// For each resource record in this section emit the
-				// corresponding
-				// key-value pairs.
-				switch (state) {
-				case PARSE_START:
-					if (rrecord.trim().startsWith(";; ANSWERS")) {
-						state = ParseState.ANSWER_START;
-						System.out.println("answer start\n");
-						rrecord_list = new LinkedList<String>();
-					}
-					break;
-
-				case ANSWER_START:
-					if (rrecord.trim().startsWith(";;")) {
-						state = ParseState.ANSWER_END;
-						hbase_write(rrecord_list, context);
-						System.out.println("answer end\n");
-						break;
-					}
-
-					rrecord_list.add(rrecord);
-
-					System.out.println("context counter: "
-							+ context.getCounter("HBaseKVMapper", "NUM_MSGS")
-									.getValue() + "\n");
-
-					context.getCounter("HBaseKVMapper", "NUM_MSGS")
-							.increment(1);
-
-					break;
-
-				case ANSWER_END:
-				default:
-					break;
-				}
-
-				if (state == ParseState.ANSWER_END)
-					break;
-
-			}
-
-		}
+		Text line = (Text) value;
+		parser.parse(line.getBytes(), line.getLength());
 	}
-}
\ No newline at end of file
+}
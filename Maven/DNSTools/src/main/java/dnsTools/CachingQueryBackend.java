@@ -0,0 +1,146 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A QueryBackend answering repeated queries from a QueryCache. A query not
+ * in the cache is run on the wrapped backend, its lines printed as they
+ * come and kept for the next time.
+ *
+ * The wrapped backend may be opened on the first miss, so a QueryTool run
+ * answered from the cache does not connect to HBase at all.
+ *
+ */
+
+public class CachingQueryBackend implements QueryBackend {
+
+	/**
+	 * Copies what is printed to the wrapped stream and, up to the largest
+	 * result kept by the cache, to a buffer.
+	 */
+
+	private static class TeeStream extends OutputStream {
+		private final OutputStream out;
+		private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		private boolean overflow = false;
+
+		TeeStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (!overflow && copy.size() < QueryCache.MAX_RESULT_SIZE)
+				copy.write(b);
+			else
+				overflow = true;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (!overflow && copy.size() + len <= QueryCache.MAX_RESULT_SIZE)
+				copy.write(b, off, len);
+			else
+				overflow = true;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		/**
+		 * @return The bytes written, or null if there were too many.
+		 */
+
+		byte[] getCopy() {
+			return overflow ? null : copy.toByteArray();
+		}
+	}
+
+	private final QueryCache cache;
+	private final QueryBackend.Opener opener;
+	private QueryBackend backend;
+
+	/**
+	 * @param opener
+	 *            Opens the wrapped backend on the first miss.
+	 */
+
+	public CachingQueryBackend(QueryCache cache, QueryBackend.Opener opener) {
+		this.cache = cache;
+		this.opener = opener;
+	}
+
+	public CachingQueryBackend(QueryCache cache, QueryBackend backend) {
+		this.cache = cache;
+		this.opener = null;
+		this.backend = backend;
+	}
+
+	private QueryBackend backend() throws IOException {
+		if (backend == null)
+			backend = opener.open();
+		return backend;
+	}
+
+	@Override
+	public void processRRsetQuery(String rrname, String rrtype,
+			PrintStream out) throws IOException {
+		String key = QueryCache.key("rrset", rrtype, rrname);
+		if (replay(key, out))
+			return;
+		TeeStream tee = new TeeStream(out);
+		PrintStream teeOut = new PrintStream(tee, false, "UTF-8");
+		backend().processRRsetQuery(rrname, rrtype, teeOut);
+		store(key, tee, teeOut);
+	}
+
+	@Override
+	public void processRdataQuery(String rdata, String rdataType,
+			PrintStream out) throws IOException {
+		String key = QueryCache.key("rdata", rdataType, rdata);
+		if (replay(key, out))
+			return;
+		TeeStream tee = new TeeStream(out);
+		PrintStream teeOut = new PrintStream(tee, false, "UTF-8");
+		backend().processRdataQuery(rdata, rdataType, teeOut);
+		store(key, tee, teeOut);
+	}
+
+	/**
+	 * Print the cached result of a query.
+	 *
+	 * @return False if the query is not in the cache.
+	 */
+
+	private boolean replay(String key, PrintStream out) throws IOException {
+		byte[] result = cache.get(key);
+		if (result == null)
+			return false;
+		out.write(result);
+		out.flush();
+		return true;
+	}
+
+	private void store(String key, TeeStream tee, PrintStream teeOut)
+			throws IOException {
+		teeOut.flush();
+		if (teeOut.checkError())
+			throw new IOException("Could not write the results of " + key);
+		byte[] result = tee.getCopy();
+		if (result != null)
+			cache.put(key, result);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (backend != null)
+			backend.close();
+	}
+}
@@ -0,0 +1,163 @@
+package dnsTools;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Type;
+
+/**
+ * Compact typed encoding of an rdata set, written as the qualifier of the
+ * passive-DNS table when BulkLoader runs with dnstools.rdata.encoding set
+ * to compact.
+ *
+ * The set starts with the FORMAT byte. The text layout of
+ * PdnsSchema.packRdata() always starts with a 0 byte, the high byte of its
+ * 4-byte count, so the two can be told apart and tables loaded either way
+ * are read with PdnsSchema.unpackRdata(). Each rdata follows as a varint
+ * header and its bytes. The header is the length shifted left by one, with
+ * the low bit set when the bytes are the raw 4 or 16 address bytes of an A
+ * or AAAA rdata. Any other rdata, and any address whose raw form would not
+ * decode back to the same text, is kept as UTF-8 text. Names stay text too:
+ * their uncompressed wire format, a length byte per label and the root
+ * label, is no shorter. The rdata are sorted by their encoded bytes, so the
+ * same set always gives the same qualifier.
+ *
+ */
+
+public class CompactRdata {
+
+	// First byte of a compact rdata set.
+	public final static byte FORMAT = 1;
+
+	/**
+	 * @return True if the packed rdata set is in the compact encoding.
+	 */
+
+	public static boolean isCompact(byte[] packed) {
+		return packed.length > 0 && packed[0] == FORMAT;
+	}
+
+	/**
+	 * Pack the text form of the rdata of an rrset.
+	 */
+
+	public static byte[] pack(int rrtype, List<byte[]> rdata_list) {
+		List<byte[]> encoded = new ArrayList<byte[]>(rdata_list.size());
+		int total_len = 1;
+		for (byte[] rdata : rdata_list) {
+			byte[] element = encode(rrtype, Bytes.toString(rdata));
+			encoded.add(element);
+			total_len += element.length;
+		}
+		Collections.sort(encoded, Bytes.BYTES_COMPARATOR);
+
+		byte[] packed = new byte[total_len];
+		packed[0] = FORMAT;
+		int pos = 1;
+		for (byte[] element : encoded)
+			pos = Bytes.putBytes(packed, pos, element, 0, element.length);
+		return packed;
+	}
+
+	/**
+	 * Encode a single rdata with its header, as it appears inside a packed
+	 * set.
+	 */
+
+	public static byte[] encode(int rrtype, String rdata) {
+		byte[] binary = toBinary(rrtype, rdata);
+		if (binary != null && rdata.equals(fromBinary(rrtype, binary, 0,
+				binary.length)))
+			return withHeader(binary, 1);
+		return withHeader(rdata.getBytes(StandardCharsets.UTF_8), 0);
+	}
+
+	/**
+	 * Unpack an rdata set packed by pack().
+	 */
+
+	public static List<String> unpack(byte[] packed, int rrtype) {
+		List<String> rdata_list = new ArrayList<String>();
+		int pos = 1;
+		while (pos < packed.length) {
+			long header = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = packed[pos++];
+				header |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+
+			int length = (int) (header >>> 1);
+			if ((header & 1) != 0)
+				rdata_list.add(fromBinary(rrtype, packed, pos, length));
+			else
+				rdata_list.add(new String(packed, pos, length,
+						StandardCharsets.UTF_8));
+			pos += length;
+		}
+		return rdata_list;
+	}
+
+	private static byte[] withHeader(byte[] bytes, int binary) {
+		long header = ((long) bytes.length << 1) | binary;
+		byte[] element = new byte[varintLength(header) + bytes.length];
+		int pos = 0;
+		while ((header & ~0x7fL) != 0) {
+			element[pos++] = (byte) ((header & 0x7f) | 0x80);
+			header >>>= 7;
+		}
+		element[pos++] = (byte) header;
+		System.arraycopy(bytes, 0, element, pos, bytes.length);
+		return element;
+	}
+
+	private static int varintLength(long value) {
+		int length = 1;
+		while ((value & ~0x7fL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * @return The binary form of an rdata, or null if the rrtype has none
+	 *         or the rdata does not parse.
+	 */
+
+	private static byte[] toBinary(int rrtype, String rdata) {
+		switch (rrtype) {
+		case Type.A:
+			return Address.toByteArray(rdata, Address.IPv4);
+		case Type.AAAA:
+			return Address.toByteArray(rdata, Address.IPv6);
+		default:
+			return null;
+		}
+	}
+
+	private static String fromBinary(int rrtype, byte[] b, int offset,
+			int length) {
+		if ((rrtype == Type.A && length == 4)
+				|| (rrtype == Type.AAAA && length == 16)) {
+			try {
+				return InetAddress.getByAddress(
+						Arrays.copyOfRange(b, offset, offset + length))
+						.getHostAddress();
+			} catch (UnknownHostException e) {
+				// Fall through.
+			}
+		}
+		throw new IllegalArgumentException("Corrupt " + Type.string(rrtype)
+				+ " rdata");
+	}
+}
@@ -0,0 +1,72 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * A QueryBackend answering the queries for names and rdata values that
+ * were never loaded from the LoadFilter of the table, which prints no
+ * results as the wrapped backend would. The other queries, including the
+ * false positives of the filter, are run on the wrapped backend, which is
+ * opened on the first of them.
+ *
+ * The rdata queries are filtered as HBaseQueryBackend runs them, so the
+ * wrapped backend must be an HBaseQueryBackend, possibly behind a
+ * CachingQueryBackend.
+ *
+ */
+
+public class FilteringQueryBackend implements QueryBackend {
+
+	private final LoadFilterMirror filter;
+	private final QueryBackend.Opener opener;
+	private QueryBackend backend;
+
+	/**
+	 * @param opener
+	 *            Opens the wrapped backend on the first query the filter
+	 *            cannot answer.
+	 */
+
+	public FilteringQueryBackend(LoadFilterMirror filter,
+			QueryBackend.Opener opener) {
+		this.filter = filter;
+		this.opener = opener;
+	}
+
+	public FilteringQueryBackend(LoadFilterMirror filter, QueryBackend backend) {
+		this.filter = filter;
+		this.opener = null;
+		this.backend = backend;
+	}
+
+	private QueryBackend backend() throws IOException {
+		if (backend == null)
+			backend = opener.open();
+		return backend;
+	}
+
+	@Override
+	public void processRRsetQuery(String rrname, String rrtype,
+			PrintStream out) throws IOException {
+		LoadFilter current = filter.get();
+		if (current != null && !current.mightHaveRRset(rrname))
+			return;
+		backend().processRRsetQuery(rrname, rrtype, out);
+	}
+
+	@Override
+	public void processRdataQuery(String rdata, String rdataType,
+			PrintStream out) throws IOException {
+		LoadFilter current = filter.get();
+		if (current != null && !current.mightHaveRdata(rdata, rdataType))
+			return;
+		backend().processRdataQuery(rdata, rdataType, out);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (backend != null)
+			backend.close();
+	}
+}
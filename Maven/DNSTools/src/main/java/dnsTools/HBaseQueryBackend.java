@@ -0,0 +1,554 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
+import org.apache.hadoop.hbase.filter.RegexStringComparator;
+import org.apache.hadoop.hbase.filter.SubstringComparator;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Runs the rrset and rdata queries of QueryTool with direct HBase Get and
+ * Scan calls, so no HiveServer2 or MapReduce job is involved. The results
+ * are printed in the same JSON format as the Hive queries, with first_seen
+ * and last_seen in milliseconds. Each result line is printed as soon as it
+ * is complete, and the cells are read in bounded batches.
+ *
+ * Rdata queries use the reverse index table when it exists. Otherwise the
+ * passive-DNS table is scanned with a qualifier filter on the rdata, in
+ * either of the encodings described by PdnsSchema.
+ *
+ * When the tables have PdnsAggregateEndpoint loaded, first_seen, last_seen
+ * and count are computed in the region servers and only the summaries are
+ * read back.
+ *
+ * With a time range, see setTimeRange(), the rrsets are read from the
+ * coarsest roll-up table (see Rollup) whose buckets fall on both ends of
+ * the range, if it ends by the RollupWatermark of the table, and from the
+ * passive-DNS table otherwise.
+ *
+ * The distinct counts of the cardinality queries are estimated from the
+ * sketches written by SketchJob, with one or a few reads whatever the
+ * number of rows behind them.
+ *
+ */
+
+public class HBaseQueryBackend implements QueryBackend {
+
+	private static final Log LOG = LogFactory.getLog(HBaseQueryBackend.class);
+
+	// Number of rows fetched per scanner round trip of the fallback scan.
+	private final static int SCANNER_CACHING = 1000;
+
+	// Maximum number of cells per Result of the fallback scan.
+	private final static int SCANNER_BATCH = 1000;
+
+	private final HTableInterface table;
+	private final HTableInterface indexTable;
+
+	// Aggregate in the region servers with PdnsAggregateEndpoint.
+	private final boolean aggregateOnServer;
+
+	// Row-key layout of the tables, see PdnsSchema.
+	private final boolean reversed;
+
+	// The roll-up tables in the order of Rollup.GRANULARITIES, null if
+	// missing.
+	private final HTableInterface[] rollupTables = new HTableInterface[Rollup.GRANULARITIES.length];
+
+	// Time before which the roll-up tables hold every cell.
+	private long rollupWatermark = 0;
+
+	// The sketch table, null if missing.
+	private HTableInterface sketchTable;
+
+	// Time range of the observations read.
+	private long minTime = 0;
+	private long maxTime = Long.MAX_VALUE;
+
+	/**
+	 * @param table
+	 *            The passive-DNS table written by BulkLoader.
+	 *
+	 * @param indexTable
+	 *            The reverse index table, or null if it was not loaded.
+	 *
+	 * @param aggregateOnServer
+	 *            True if both tables have PdnsAggregateEndpoint loaded.
+	 */
+
+	public HBaseQueryBackend(HTableInterface table, HTableInterface indexTable,
+			boolean aggregateOnServer) {
+		this(table, indexTable, aggregateOnServer, false);
+	}
+
+	/**
+	 * @param reversed
+	 *            True if the tables use the reversed row-key layout, which
+	 *            wildcard rrset queries need.
+	 */
+
+	public HBaseQueryBackend(HTableInterface table, HTableInterface indexTable,
+			boolean aggregateOnServer, boolean reversed) {
+		this.table = table;
+		this.indexTable = indexTable;
+		this.aggregateOnServer = aggregateOnServer;
+		this.reversed = reversed;
+	}
+
+	public HBaseQueryBackend(HTableInterface table, HTableInterface indexTable) {
+		this(table, indexTable, false);
+	}
+
+	/**
+	 * Read the rrsets of a time range from the roll-up tables of the given
+	 * granularities, when it falls on their buckets.
+	 *
+	 * @param tables
+	 *            The roll-up tables in the order of Rollup.GRANULARITIES,
+	 *            null for a missing one. They are closed with the backend.
+	 *
+	 * @param watermark
+	 *            The time ranges ending after it are read from the
+	 *            passive-DNS table, see RollupWatermark.get().
+	 */
+
+	public void setRollupTables(HTableInterface[] tables, long watermark) {
+		System.arraycopy(tables, 0, rollupTables, 0, rollupTables.length);
+		this.rollupWatermark = watermark;
+	}
+
+	/**
+	 * Answer the cardinality queries from a sketch table, closed with the
+	 * backend.
+	 */
+
+	public void setSketchTable(HTableInterface table) {
+		this.sketchTable = table;
+	}
+
+	/**
+	 * Only read the observations of a time range.
+	 *
+	 * @param minTime
+	 *            Start of the time range in milliseconds, inclusive.
+	 *
+	 * @param maxTime
+	 *            End of the time range in milliseconds, exclusive.
+	 */
+
+	public void setTimeRange(long minTime, long maxTime) {
+		this.minTime = minTime;
+		this.maxTime = maxTime;
+	}
+
+	/**
+	 * Open the passive-DNS table, its reverse index and its roll-up tables,
+	 * if any.
+	 *
+	 * @param aggregateOnServer
+	 *            Aggregate in the region servers if the endpoint is loaded
+	 *            on the tables.
+	 */
+
+	public static HBaseQueryBackend open(Configuration conf, String tableName,
+			boolean aggregateOnServer) throws IOException {
+		String indexTableName = conf.get(RdataIndex.TABLE_KEY,
+				RdataIndex.tableName(tableName));
+		HBaseAdmin admin = new HBaseAdmin(conf);
+		boolean indexed;
+		HTableInterface[] rollupTables = new HTableInterface[Rollup.GRANULARITIES.length];
+		HTableInterface sketchTable = null;
+		try {
+			indexed = admin.tableExists(indexTableName);
+			for (int i = 0; i < rollupTables.length; i++) {
+				String name = Rollup.tableName(tableName,
+						Rollup.GRANULARITIES[i]);
+				if (admin.tableExists(name))
+					rollupTables[i] = new HTable(conf, name);
+			}
+			if (admin.tableExists(SketchJob.tableName(tableName)))
+				sketchTable = new HTable(conf, SketchJob.tableName(tableName));
+		} finally {
+			admin.close();
+		}
+
+		HTable table = new HTable(conf, tableName);
+		HTable indexTable = indexed ? new HTable(conf, indexTableName) : null;
+		String endpoint = PdnsAggregateEndpoint.class.getName();
+		boolean loaded = table.getTableDescriptor().hasCoprocessor(endpoint)
+				&& (indexTable == null || indexTable.getTableDescriptor()
+						.hasCoprocessor(endpoint));
+		if (aggregateOnServer && !loaded) {
+			LOG.warn(endpoint + " is not loaded on " + tableName
+					+ (indexTable == null ? "" : " and " + indexTableName)
+					+ ", aggregating on the client. Load the tables with "
+					+ TableSplitter.COPROCESSOR_JAR_KEY + " set.");
+			aggregateOnServer = false;
+		}
+
+		HBaseQueryBackend backend = new HBaseQueryBackend(table, indexTable,
+				aggregateOnServer, PdnsSchema.isReversed(table
+						.getTableDescriptor()));
+		boolean rollups = false;
+		for (HTableInterface rollupTable : rollupTables)
+			rollups |= rollupTable != null;
+		backend.setRollupTables(rollupTables, rollups ? RollupWatermark
+				.open(conf, tableName).get() : 0);
+		backend.setSketchTable(sketchTable);
+		return backend;
+	}
+
+	/**
+	 * @return True if the tables use the reversed row-key layout.
+	 */
+
+	public boolean isReversed() {
+		return reversed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		table.close();
+		if (indexTable != null)
+			indexTable.close();
+		for (HTableInterface rollupTable : rollupTables) {
+			if (rollupTable != null)
+				rollupTable.close();
+		}
+		if (sketchTable != null)
+			sketchTable.close();
+	}
+
+	/**
+	 * @return The coarsest roll-up table holding the rrsets of the time
+	 *         range, or null if they are read from the passive-DNS table.
+	 */
+
+	private HTableInterface rollupTable() {
+		if (minTime == 0 && maxTime == Long.MAX_VALUE
+				|| maxTime > rollupWatermark)
+			return null;
+		for (int i = 0; i < rollupTables.length; i++) {
+			if (rollupTables[i] != null
+					&& Rollup.covers(Rollup.GRANULARITIES[i], minTime, maxTime))
+				return rollupTables[i];
+		}
+		return null;
+	}
+
+	/**
+	 * An rrname starting with "*." prints the rrsets of every subdomain of
+	 * the zone, each line with its own rrname.
+	 */
+
+	@Override
+	public void processRRsetQuery(final String rrname, String rrtype,
+			final PrintStream out) throws IOException {
+		// The roll-up tables have no endpoint.
+		HTableInterface rollupTable = rollupTable();
+		PdnsTableReader reader = new PdnsTableReader(
+				rollupTable != null ? rollupTable : table, minTime, maxTime,
+				Integer.MAX_VALUE, reversed);
+		final boolean wildcard = rrname.startsWith(PdnsSchema.WILDCARD);
+		ObservationHandler handler = new ObservationHandler() {
+			@Override
+			public void observation(Observation observation) {
+				// Without the trailing dot, as the rrname of a query.
+				String name = observation.getRRName();
+				printRRset(wildcard ? name.substring(0, name.length() - 1)
+						: rrname, observation, out);
+			}
+		};
+		if (aggregateOnServer && rollupTable == null)
+			reader.summarizeRRset(rrname + ".", rrtype, handler);
+		else
+			reader.scanRRset(rrname + ".", rrtype, handler);
+	}
+
+	/**
+	 * Run a chunk of the queries of a QueryBatch, sorted by key. The rrsets
+	 * of known rrtype are read together with one multi-get, and their
+	 * versions combined on the client even when the endpoint is loaded, as
+	 * one call per rrset would cost more round trips than it saves. The
+	 * other queries are run one after the other.
+	 */
+
+	public void processBatch(List<QueryBatch.Query> queries, PrintStream out)
+			throws IOException {
+		List<byte[]> rows = new ArrayList<byte[]>();
+		for (QueryBatch.Query query : queries) {
+			if (query.isGet())
+				rows.add(query.getKey());
+		}
+		Iterator<List<Observation>> rrsets = Collections
+				.<List<Observation>> emptyList().iterator();
+		if (!rows.isEmpty()) {
+			HTableInterface rollupTable = rollupTable();
+			rrsets = new PdnsTableReader(rollupTable != null ? rollupTable
+					: table, minTime, maxTime, Integer.MAX_VALUE, reversed)
+					.getRRsets(rows).iterator();
+		}
+
+		for (QueryBatch.Query query : queries) {
+			if (query.isGet()) {
+				for (Observation observation : rrsets.next())
+					printRRset(query.getQuery(), observation, out);
+			} else if (query.isRRset()) {
+				processRRsetQuery(query.getQuery(), query.getType(), out);
+			} else {
+				processRdataQuery(query.getQuery(), query.getType(), out);
+			}
+		}
+	}
+
+	private HTableInterface sketchTable() throws IOException {
+		if (sketchTable == null)
+			throw new IOException("No sketches, run dnsTools.SketchJob.");
+		return sketchTable;
+	}
+
+	/**
+	 * Print the estimated number of distinct rdata values of an rrname,
+	 * nothing if it was never loaded.
+	 *
+	 * @param rrtype
+	 *            The rrtype mnemonic, or "" for all rrtypes of the name.
+	 */
+
+	public void processRRsetCardinalityQuery(String rrname, String rrtype,
+			PrintStream out) throws IOException {
+		long count = SketchJob.rdataCount(sketchTable(), rrname + ".",
+				rrtype, reversed);
+		if (count >= 0)
+			out.println(String.format(
+					"{\"rrname\":\"%s\" ,\"rrtype\":\"%s\", \"distinct_rdata\":%d}",
+					rrname, rrtype, count));
+	}
+
+	/**
+	 * Print the estimated number of distinct rrnames seen with an rdata
+	 * value, nothing if it was never loaded.
+	 *
+	 * @param rdataType
+	 *            As for processRdataQuery().
+	 */
+
+	public void processRdataCardinalityQuery(String rdata, String rdataType,
+			PrintStream out) throws IOException {
+		int[] rrtypes = RdataIndex.queryTypes(rdata, rdataType);
+		String value = rdataType.equals("dn") ? rdata + "." : rdata;
+		long count = SketchJob.rrnameCount(sketchTable(), value, rrtypes);
+		if (count >= 0)
+			out.println(String.format(
+					"{\"rdata\":\"%s\", \"distinct_rrnames\":%d}", value,
+					count));
+	}
+
+	private static void printRRset(String rrname, Observation observation,
+			PrintStream out) {
+		out.println(String.format("{\"rrname\":\"%s\" ,\"rrtype\":\"%s\","
+				+ " \"first_seen\":%s, \"count\":%d, \"last_seen\":%s, \"rdata\":\"%s\"}",
+				rrname, observation.getRRTypeString(),
+				observation.getFirstSeen(), observation.getCount(),
+				observation.getLastSeen(), observation.getRdata()));
+	}
+
+	/**
+	 * An empty rdataType looks the rdata up in the rrtypes whose rdata is an
+	 * address or a name, see RdataIndex.queryTypes().
+	 */
+
+	@Override
+	public void processRdataQuery(String rdata, String rdataType,
+			final PrintStream out) throws IOException {
+		int[] rrtypes = RdataIndex.queryTypes(rdata, rdataType);
+		if (rdataType.equals("dn"))
+			rdata = rdata + ".";
+
+		if (indexTable == null) {
+			scanRdata(rdata, rrtypes, out);
+			return;
+		}
+
+		final String value = rdata;
+		ObservationHandler handler = new ObservationHandler() {
+			@Override
+			public void observation(Observation observation) {
+				printRdata(value, observation, out);
+			}
+		};
+
+		RdataIndexReader reader = new RdataIndexReader(indexTable, minTime,
+				maxTime, Integer.MAX_VALUE, reversed);
+		for (int type : rrtypes) {
+			if (type < 0)
+				continue;
+			if (aggregateOnServer)
+				reader.summarizeNames(type, rdata, handler);
+			else
+				reader.scanNames(type, rdata, handler);
+		}
+	}
+
+	/**
+	 * Answer an rdata query without the index. The region servers only
+	 * return the cells whose packed rdata contains the query, and the match
+	 * is checked exactly here.
+	 */
+
+	private void scanRdata(String rdata, int[] rrtypes, PrintStream out)
+			throws IOException {
+		Scan scan = new Scan();
+		scan.addFamily(PdnsSchema.FAMILY);
+		scan.setMaxVersions();
+		scan.setTimeRange(minTime, maxTime);
+		scan.setCaching(SCANNER_CACHING);
+		scan.setBatch(SCANNER_BATCH);
+		scan.setFilter(rdataFilter(rdata, rrtypes));
+
+		if (aggregateOnServer) {
+			summarizeRdata(scan, rdata, rrtypes, out);
+			return;
+		}
+
+		ResultScanner scanner = table.getScanner(scan);
+		try {
+			// A row may be split over several batches.
+			byte[] row = null;
+			long firstSeen = Long.MAX_VALUE;
+			long lastSeen = Long.MIN_VALUE;
+			long count = 0;
+			for (Result result : scanner) {
+				if (result.isEmpty())
+					continue;
+
+				if (row != null && !Bytes.equals(row, result.getRow())) {
+					printRdata(rdata, row, firstSeen, lastSeen, count, out);
+					firstSeen = Long.MAX_VALUE;
+					lastSeen = Long.MIN_VALUE;
+					count = 0;
+				}
+				row = result.getRow();
+				if (!contains(rrtypes, PdnsSchema.rrtype(row)))
+					continue;
+
+				for (KeyValue kv : result.raw()) {
+					if (!PdnsSchema.unpackRdata(kv.getQualifier(),
+							PdnsSchema.rrtype(row)).contains(rdata))
+						continue;
+					firstSeen = Math.min(firstSeen, PdnsSchema.firstSeen(kv));
+					lastSeen = Math.max(lastSeen,
+							PdnsSchema.lastSeen(kv));
+					count += PdnsSchema.count(kv);
+				}
+			}
+			if (row != null)
+				printRdata(rdata, row, firstSeen, lastSeen, count, out);
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Select the qualifiers holding the rdata as text, or as the compact
+	 * element of one of the rrtypes, see CompactRdata.
+	 */
+
+	private static Filter rdataFilter(String rdata, int[] rrtypes) {
+		FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+		filters.addFilter(new QualifierFilter(CompareFilter.CompareOp.EQUAL,
+				new SubstringComparator(rdata)));
+		for (int type : rrtypes) {
+			// Each byte maps to one character in ISO-8859-1.
+			RegexStringComparator element = new RegexStringComparator(
+					Pattern.quote(new String(CompactRdata.encode(type, rdata),
+							StandardCharsets.ISO_8859_1)));
+			element.setCharset(StandardCharsets.ISO_8859_1);
+			filters.addFilter(new QualifierFilter(
+					CompareFilter.CompareOp.EQUAL, element));
+		}
+		return filters;
+	}
+
+	/**
+	 * Same as scanRdata(), with one tuple per matching rdata set sent back
+	 * by the endpoint instead of every version.
+	 */
+
+	private void summarizeRdata(Scan scan, String rdata, int[] rrtypes,
+			PrintStream out) throws IOException {
+		byte[] row = null;
+		long firstSeen = Long.MAX_VALUE;
+		long lastSeen = Long.MIN_VALUE;
+		long count = 0;
+		for (ObservationSummaries summaries : PdnsAggregateEndpoint.summarize(
+				table, scan)) {
+			for (int i = 0; i < summaries.size(); i++) {
+				if (row != null && !Bytes.equals(row, summaries.getRow(i))) {
+					printRdata(rdata, row, firstSeen, lastSeen, count, out);
+					firstSeen = Long.MAX_VALUE;
+					lastSeen = Long.MIN_VALUE;
+					count = 0;
+				}
+				row = summaries.getRow(i);
+				if (!contains(rrtypes, PdnsSchema.rrtype(row))
+						|| !PdnsSchema.unpackRdata(summaries.getQualifier(i),
+								PdnsSchema.rrtype(row)).contains(rdata))
+					continue;
+
+				firstSeen = Math.min(firstSeen, summaries.getFirstSeen(i));
+				lastSeen = Math.max(lastSeen, summaries.getLastSeen(i));
+				count += summaries.getCount(i);
+			}
+		}
+		if (row != null)
+			printRdata(rdata, row, firstSeen, lastSeen, count, out);
+	}
+
+	private void printRdata(String rdata, byte[] row, long firstSeen,
+			long lastSeen, long count, PrintStream out) {
+		if (count > 0)
+			printRdata(rdata, new Observation(PdnsSchema.rrname(row, reversed),
+					PdnsSchema.rrtype(row), null, firstSeen, lastSeen, count),
+					out);
+	}
+
+	private static boolean contains(int[] values, int value) {
+		for (int v : values) {
+			if (v == value)
+				return true;
+		}
+		return false;
+	}
+
+	private static void printRdata(String rdata, Observation observation,
+			PrintStream out) {
+		out.println(String.format(
+				"{\"rdata\":\"%s\", \"rrname\":\"%s\" ,\"rrtype\":\"%s\", \"first_seen\":%s,"
+						+ " \"count\":%d, \"last_seen\":%s}", rdata,
+				observation.getRRName(), observation.getRRTypeString(),
+				observation.getFirstSeen(), observation.getCount(),
+				observation.getLastSeen()));
+	}
+}
@@ -0,0 +1,203 @@
+package dnsTools;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable estimate of the number of distinct values added to it, with a
+ * standard error of about 0.8%. The 2^14 registers hold the longest run of
+ * leading zeros of the hashes of their values. A sketch starts sparse,
+ * with one int per register set, and turns into one byte per register once
+ * that would take less room, so the sketch of an address seen with a few
+ * names takes a few bytes and the largest one 16 KB.
+ *
+ * Serialized form: a format byte, followed for a sparse sketch by its
+ * sorted entries (register index << 8 | value) and for a dense one by the
+ * registers.
+ *
+ */
+
+public class HyperLogLog {
+
+	public final static int PRECISION = 14;
+
+	private final static int REGISTERS = 1 << PRECISION;
+
+	// Entries of a sparse sketch at which it turns dense.
+	private final static int SPARSE_MAX = REGISTERS / 8;
+
+	private final static byte SPARSE = 0;
+	private final static byte DENSE = 1;
+
+	private final static double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+	// Sorted entries of a sparse sketch, null once dense.
+	private int[] entries = new int[4];
+	private int size = 0;
+
+	// Null while sparse.
+	private byte[] registers = null;
+
+	/**
+	 * Add the value held by len bytes of an array.
+	 */
+
+	public void add(byte[] bytes, int offset, int length) {
+		addHash(hash(bytes, offset, length));
+	}
+
+	public void add(byte[] bytes) {
+		add(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Add a value by its 64-bit hash.
+	 */
+
+	public void addHash(long hash) {
+		int index = (int) (hash >>> (64 - PRECISION));
+		// The remaining bits, with a stop bit so the run ends.
+		long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+		set(index, Long.numberOfLeadingZeros(rest) + 1);
+	}
+
+	private void set(int index, int value) {
+		if (registers != null) {
+			if (registers[index] < value)
+				registers[index] = (byte) value;
+			return;
+		}
+
+		int i = Arrays.binarySearch(entries, 0, size, index << 8);
+		if (i < 0)
+			i = -i - 1;
+		if (i < size && entries[i] >>> 8 == index) {
+			if ((entries[i] & 0xff) < value)
+				entries[i] = index << 8 | value;
+			return;
+		}
+		if (size == SPARSE_MAX) {
+			toDense();
+			registers[index] = (byte) value;
+			return;
+		}
+		if (size == entries.length)
+			entries = Arrays.copyOf(entries, Math.min(2 * size, SPARSE_MAX));
+		System.arraycopy(entries, i, entries, i + 1, size - i);
+		entries[i] = index << 8 | value;
+		size++;
+	}
+
+	private void toDense() {
+		registers = new byte[REGISTERS];
+		for (int i = 0; i < size; i++)
+			registers[entries[i] >>> 8] = (byte) entries[i];
+		entries = null;
+		size = 0;
+	}
+
+	/**
+	 * Add the values of another sketch to this one.
+	 */
+
+	public void merge(HyperLogLog other) {
+		if (other.registers == null) {
+			for (int i = 0; i < other.size; i++)
+				set(other.entries[i] >>> 8, other.entries[i] & 0xff);
+			return;
+		}
+		if (registers == null)
+			toDense();
+		for (int i = 0; i < REGISTERS; i++) {
+			if (registers[i] < other.registers[i])
+				registers[i] = other.registers[i];
+		}
+	}
+
+	/**
+	 * @return The estimated number of distinct values added.
+	 */
+
+	public long estimate() {
+		int zeros = 0;
+		double sum = 0;
+		if (registers == null) {
+			// The registers missing from the entries are 0.
+			zeros = REGISTERS - size;
+			sum = zeros;
+			for (int i = 0; i < size; i++)
+				sum += Math.scalb(1.0, -(entries[i] & 0xff));
+		} else {
+			for (byte register : registers) {
+				if (register == 0)
+					zeros++;
+				sum += Math.scalb(1.0, -register);
+			}
+		}
+
+		double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+		// Linear counting is more accurate while many registers are empty.
+		if (estimate <= 2.5 * REGISTERS && zeros > 0)
+			estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+		return Math.round(estimate);
+	}
+
+	public byte[] toBytes() {
+		if (registers != null) {
+			byte[] bytes = new byte[1 + REGISTERS];
+			bytes[0] = DENSE;
+			System.arraycopy(registers, 0, bytes, 1, REGISTERS);
+			return bytes;
+		}
+		byte[] bytes = new byte[1 + 4 * size];
+		bytes[0] = SPARSE;
+		for (int i = 0; i < size; i++) {
+			bytes[1 + 4 * i] = (byte) (entries[i] >>> 24);
+			bytes[2 + 4 * i] = (byte) (entries[i] >>> 16);
+			bytes[3 + 4 * i] = (byte) (entries[i] >>> 8);
+			bytes[4 + 4 * i] = (byte) entries[i];
+		}
+		return bytes;
+	}
+
+	public static HyperLogLog fromBytes(byte[] bytes, int offset, int length) {
+		HyperLogLog sketch = new HyperLogLog();
+		if (bytes[offset] == DENSE) {
+			sketch.registers = Arrays.copyOfRange(bytes, offset + 1, offset
+					+ 1 + REGISTERS);
+			sketch.entries = null;
+			return sketch;
+		}
+		sketch.size = (length - 1) / 4;
+		sketch.entries = new int[Math.max(sketch.size, 4)];
+		for (int i = 0; i < sketch.size; i++) {
+			int p = offset + 1 + 4 * i;
+			sketch.entries[i] = (bytes[p] & 0xff) << 24
+					| (bytes[p + 1] & 0xff) << 16 | (bytes[p + 2] & 0xff) << 8
+					| (bytes[p + 3] & 0xff);
+		}
+		return sketch;
+	}
+
+	public static HyperLogLog fromBytes(byte[] bytes) {
+		return fromBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the bytes, with the finalizer of MurmurHash3 so
+	 * that the leading bits are well mixed.
+	 */
+
+	static long hash(byte[] bytes, int offset, int length) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			h ^= bytes[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,479 @@
+package dnsTools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hadoop.hbase.util.MurmurHash;
+
+/**
+ * A Bloom filter over the rrnames and rdata values loaded into a table, so
+ * a query for a name or an address that was never seen is answered without
+ * reading HBase, see FilteringQueryBackend.
+ *
+ * The keys are the rrname part of the passive-DNS row-keys, in the layout
+ * of the table, and the rdata part of the index row-keys, see
+ * RdataIndex.rdataKey(). The latter start with the rrtype code, so they
+ * never equal a name. Each key sets dnstools.filter.hashes of the
+ * dnstools.filter.bits bits, picked by double hashing of Murmur hashes.
+ *
+ * Filters of the same size are merged with a bitwise or. Each map task of
+ * BulkLoader writes the filter of its split, compressed, and the driver ors
+ * them into a new filter, or into the filter of the previous loads for an
+ * incremental load. A filter is only created by a load starting from an
+ * empty manifest, so it covers everything loaded into the table.
+ * StreamingIngester deletes it, as the rows it writes are not in it.
+ *
+ * File: next to the LoadManifest of the table, a header (magic, version,
+ * layout of the rrnames, number of hashes, number of bits) followed by the
+ * bits, uncompressed so that readers can memory-map it.
+ *
+ */
+
+public class LoadFilter {
+
+	// Configuration key of the size of the filters, in bits. 0 disables
+	// them.
+	public final static String BITS_KEY = "dnstools.filter.bits";
+
+	// 16 MB, about 1% false positives with 14 million distinct names and
+	// rdata values.
+	public final static long DEFAULT_BITS = 1L << 27;
+
+	// 1 GB, which fits in one mapped buffer.
+	public final static long MAX_BITS = 1L << 33;
+
+	// Configuration key of the number of bits set per key.
+	public final static String HASHES_KEY = "dnstools.filter.hashes";
+
+	public final static int DEFAULT_HASHES = 7;
+
+	// Configuration key of the directory the map tasks write their filters
+	// to.
+	public final static String PARTS_KEY = "dnstools.filter.parts";
+
+	// Suffix of the file name of a filter.
+	public final static String SUFFIX = ".filter";
+
+	// "DNSF".
+	private final static int MAGIC = 0x444e5346;
+
+	private final static byte VERSION = 1;
+
+	private final static int HEADER_LENGTH = 18;
+
+	private final static Hash HASH = MurmurHash.getInstance();
+
+	// The bits, from position 0. On the heap while a filter is built, mapped
+	// when it is read by QueryTool.
+	private final ByteBuffer bits;
+	private final long numBits;
+	private final int hashes;
+	private final boolean reversed;
+
+	/**
+	 * Create an empty filter.
+	 *
+	 * @param numBits
+	 *            The size of the filter, rounded up to a whole byte.
+	 *
+	 * @param reversed
+	 *            True if the rrnames are in the reversed layout, see
+	 *            PdnsSchema.isReversed().
+	 */
+
+	public LoadFilter(long numBits, int hashes, boolean reversed) {
+		this(ByteBuffer.allocate(checkSize(numBits, hashes)), hashes, reversed);
+	}
+
+	private LoadFilter(ByteBuffer bits, int hashes, boolean reversed) {
+		this.bits = bits;
+		this.numBits = 8L * bits.capacity();
+		this.hashes = hashes;
+		this.reversed = reversed;
+	}
+
+	private static int checkSize(long numBits, int hashes) {
+		if (numBits <= 0 || numBits > MAX_BITS)
+			throw new IllegalArgumentException("The size of a filter must be"
+					+ " between 1 and " + MAX_BITS + " bits: " + numBits);
+		if (hashes <= 0)
+			throw new IllegalArgumentException(
+					"The number of hashes of a filter must be positive: "
+							+ hashes);
+		return (int) ((numBits + 7) / 8);
+	}
+
+	/**
+	 * @return An empty filter of the size set in the configuration of a
+	 *         load, or null if filters are disabled.
+	 */
+
+	public static LoadFilter create(Configuration conf) {
+		long numBits = conf.getLong(BITS_KEY, DEFAULT_BITS);
+		if (numBits == 0)
+			return null;
+		return new LoadFilter(numBits, conf.getInt(HASHES_KEY,
+				DEFAULT_HASHES), PdnsSchema.isReversed(conf));
+	}
+
+	/**
+	 * @return The file holding the filter of a table.
+	 */
+
+	public static Path path(Configuration conf, String tableName) {
+		return new Path(conf.get(LoadManifest.DIR_KEY,
+				LoadManifest.DEFAULT_DIR), tableName + SUFFIX);
+	}
+
+	public long getNumBits() {
+		return numBits;
+	}
+
+	public int getHashes() {
+		return hashes;
+	}
+
+	public boolean isReversed() {
+		return reversed;
+	}
+
+	public void add(byte[] key, int offset, int length) {
+		int hash1 = HASH.hash(key, offset, length, 0);
+		int hash2 = HASH.hash(key, offset, length, hash1);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash1 & 0xffffffffL) + i * (hash2 & 0xffffffffL))
+					% numBits;
+			int index = (int) (bit >>> 3);
+			bits.put(index, (byte) (bits.get(index) | (1 << (bit & 7))));
+		}
+	}
+
+	/**
+	 * @return False if the key was never added, true if it probably was.
+	 */
+
+	public boolean mightContain(byte[] key, int offset, int length) {
+		int hash1 = HASH.hash(key, offset, length, 0);
+		int hash2 = HASH.hash(key, offset, length, hash1);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash1 & 0xffffffffL) + i * (hash2 & 0xffffffffL))
+					% numBits;
+			if ((bits.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add the key of a row written by BulkLoaderMapper.
+	 *
+	 * @param table
+	 *            The index of the table in BulkLoaderMapper. The rows of
+	 *            the tables of the other sections are not queried through
+	 *            the filter, and left out.
+	 */
+
+	public void addRow(int table, byte[] row) {
+		if (table == BulkLoaderMapper.RRSET_TABLE)
+			add(row, 0, row.length - 3);
+		else if (table == BulkLoaderMapper.RDATA_TABLE)
+			add(row, 0, RdataIndex.rdataKeyLength(row));
+	}
+
+	/**
+	 * @return False if an rrset query can have no result.
+	 *
+	 * @param rrname
+	 *            The rrname without the trailing dot, as in
+	 *            QueryBackend.processRRsetQuery().
+	 */
+
+	public boolean mightHaveRRset(String rrname) {
+		if (rrname.startsWith(PdnsSchema.WILDCARD))
+			return true;
+		byte[] key = PdnsSchema.nameBytes(rrname + ".", reversed);
+		return mightContain(key, 0, key.length);
+	}
+
+	/**
+	 * @return False if an rdata query of HBaseQueryBackend can have no
+	 *         result.
+	 *
+	 * @param rdataType
+	 *            "ip", "dn", an rrtype mnemonic, or "".
+	 */
+
+	public boolean mightHaveRdata(String rdata, String rdataType) {
+		if (rdataType.equals("dn"))
+			rdata = rdata + ".";
+		for (int rrtype : RdataIndex.queryTypes(rdata, rdataType)) {
+			if (rrtype < 0)
+				continue;
+			byte[] key = RdataIndex.rdataKey(rrtype, rdata);
+			if (key != null && mightContain(key, 0, key.length))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Or the bits of a filter of the same size into this one.
+	 */
+
+	public void merge(LoadFilter other) throws IOException {
+		checkCompatible(other.numBits, other.hashes, other.reversed);
+		for (int i = 0; i < bits.capacity(); i++)
+			bits.put(i, (byte) (bits.get(i) | other.bits.get(i)));
+	}
+
+	private void checkCompatible(long numBits, int hashes, boolean reversed)
+			throws IOException {
+		if (numBits != this.numBits || hashes != this.hashes
+				|| reversed != this.reversed)
+			throw new IOException("Filters of " + numBits + " bits and "
+					+ hashes + " hashes cannot be merged with filters of "
+					+ this.numBits + " bits and " + this.hashes + " hashes");
+	}
+
+	private void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeBoolean(reversed);
+		out.writeInt(hashes);
+		out.writeLong(numBits);
+	}
+
+	/**
+	 * Read a header and create an empty filter of its size.
+	 */
+
+	private static LoadFilter readHeader(DataInputStream in, String name)
+			throws IOException {
+		if (in.readInt() != MAGIC || in.readByte() != VERSION)
+			throw new IOException("Not a filter: " + name);
+		boolean reversed = in.readBoolean();
+		int hashes = in.readInt();
+		return new LoadFilter(in.readLong(), hashes, reversed);
+	}
+
+	private void writeBits(OutputStream out) throws IOException {
+		ByteBuffer source = bits.duplicate();
+		source.clear();
+		byte[] buffer = new byte[64 << 10];
+		while (source.hasRemaining()) {
+			int length = Math.min(buffer.length, source.remaining());
+			source.get(buffer, 0, length);
+			out.write(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Or the bits read from a stream into this filter.
+	 */
+
+	private void orBits(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] buffer = new byte[64 << 10];
+		for (int pos = 0; pos < bits.capacity(); pos += buffer.length) {
+			int length = Math.min(buffer.length, bits.capacity() - pos);
+			data.readFully(buffer, 0, length);
+			for (int i = 0; i < length; i++)
+				bits.put(pos + i, (byte) (bits.get(pos + i) | buffer[i]));
+		}
+	}
+
+	/**
+	 * Write the filter to a new file renamed over the old one, so readers
+	 * never see a partial filter.
+	 */
+
+	public void write(FileSystem fs, Path path) throws IOException {
+		Path tmp = path.suffix(".tmp");
+		DataOutputStream out = fs.create(tmp, true);
+		try {
+			writeHeader(out);
+			writeBits(out);
+		} finally {
+			out.close();
+		}
+		// HDFS does not rename over an existing file.
+		fs.delete(path, false);
+		if (!fs.rename(tmp, path))
+			throw new IOException("Could not rename " + tmp + " to " + path);
+	}
+
+	/**
+	 * Read a filter written by write() into the heap.
+	 */
+
+	public static LoadFilter read(FileSystem fs, Path path) throws IOException {
+		DataInputStream in = fs.open(path);
+		try {
+			LoadFilter filter = readHeader(in, path.toString());
+			filter.orBits(in);
+			return filter;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Map a local copy of a filter written by write().
+	 */
+
+	public static LoadFilter map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// The mapping stays valid once the file is closed.
+			ByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buffer.capacity() < HEADER_LENGTH
+					|| buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION)
+				throw new IOException("Not a filter: " + file);
+			boolean reversed = buffer.get(5) != 0;
+			int hashes = buffer.getInt(6);
+			long numBits = buffer.getLong(10);
+			if (numBits != 8L * (buffer.capacity() - HEADER_LENGTH))
+				throw new IOException("Truncated filter: " + file);
+			buffer.position(HEADER_LENGTH);
+			return new LoadFilter(buffer.slice(), hashes, reversed);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the filter of a map task to the directory named by
+	 * dnstools.filter.parts, compressed, as the bits of a split are sparse.
+	 * The file is renamed once complete. Every attempt of a task writes the
+	 * same keys, so the file of a failed or speculative attempt is merged
+	 * harmlessly.
+	 */
+
+	public void writePart(Configuration conf, String attemptId)
+			throws IOException {
+		Path path = new Path(conf.get(PARTS_KEY), attemptId);
+		Path tmp = path.suffix(".tmp");
+		FileSystem fs = path.getFileSystem(conf);
+		DataOutputStream out = fs.create(tmp, true);
+		try {
+			writeHeader(out);
+			DeflaterOutputStream deflater = new DeflaterOutputStream(out,
+					new Deflater(Deflater.BEST_SPEED));
+			writeBits(deflater);
+			deflater.finish();
+		} finally {
+			out.close();
+		}
+		if (!fs.rename(tmp, path))
+			throw new IOException("Could not rename " + tmp + " to " + path);
+	}
+
+	/**
+	 * Or the filters written by the map tasks of a load into this one.
+	 */
+
+	public void mergeParts(Configuration conf) throws IOException {
+		Path dir = new Path(conf.get(PARTS_KEY));
+		FileSystem fs = dir.getFileSystem(conf);
+		if (!fs.exists(dir))
+			return;
+		for (FileStatus status : fs.listStatus(dir)) {
+			// Left by an attempt that did not finish.
+			if (status.getPath().getName().endsWith(".tmp"))
+				continue;
+			DataInputStream in = fs.open(status.getPath());
+			try {
+				LoadFilter part = readHeader(in, status.getPath().toString());
+				checkCompatible(part.numBits, part.hashes, part.reversed);
+				orBits(new InflaterInputStream(in));
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Set up the filter of a load in its job configuration, before it is
+	 * submitted.
+	 *
+	 * @param fresh
+	 *            True if the load starts from an empty manifest, in which
+	 *            case a new filter is built.
+	 *
+	 * @param partsDir
+	 *            The directory the map tasks write their filters to.
+	 *
+	 * @return False if the load does not update a filter: filters are
+	 *         disabled, or the table was loaded without one.
+	 */
+
+	public static boolean configureLoad(Configuration conf, String tableName,
+			boolean fresh, Path partsDir) throws IOException {
+		if (conf.getLong(BITS_KEY, DEFAULT_BITS) == 0)
+			return false;
+		if (!fresh) {
+			// The new keys go into a filter of the size of the existing one.
+			Path path = path(conf, tableName);
+			FileSystem fs = path.getFileSystem(conf);
+			if (!fs.exists(path)) {
+				conf.setLong(BITS_KEY, 0);
+				return false;
+			}
+			DataInputStream in = fs.open(path);
+			try {
+				LoadFilter header = readHeader(in, path.toString());
+				conf.setLong(BITS_KEY, header.numBits);
+				conf.setInt(HASHES_KEY, header.hashes);
+			} finally {
+				in.close();
+			}
+		}
+		conf.set(PARTS_KEY, partsDir.toString());
+		return true;
+	}
+
+	/**
+	 * Merge the filters of the map tasks of a successful load into the
+	 * filter of the table, and delete them.
+	 */
+
+	public static void finishLoad(Configuration conf, String tableName,
+			boolean fresh) throws IOException {
+		Path path = path(conf, tableName);
+		FileSystem fs = path.getFileSystem(conf);
+		LoadFilter filter = fresh ? create(conf) : read(fs, path);
+		filter.mergeParts(conf);
+		filter.write(fs, path);
+		Path parts = new Path(conf.get(PARTS_KEY));
+		parts.getFileSystem(conf).delete(parts, true);
+	}
+
+	/**
+	 * Delete the filter of a table, e.g. when rows are added that are not
+	 * in it.
+	 *
+	 * @return True if the table had a filter.
+	 */
+
+	public static boolean delete(Configuration conf, String tableName)
+			throws IOException {
+		Path path = path(conf, tableName);
+		return path.getFileSystem(conf).delete(path, false);
+	}
+}
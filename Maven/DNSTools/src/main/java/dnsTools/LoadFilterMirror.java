@@ -0,0 +1,121 @@
+package dnsTools;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A local copy of the LoadFilter of a table, memory-mapped so that testing
+ * a name or an address takes microseconds and only the pages it touches are
+ * read. The copy is kept from one QueryTool run to the next, and shared by
+ * the threads of QueryServer.
+ *
+ * The filter in HDFS is checked at most every dnstools.cache.check.interval
+ * milliseconds. The copy is replaced when a load has written a new filter,
+ * and not used once the filter has been deleted.
+ *
+ */
+
+public class LoadFilterMirror {
+
+	private final Configuration conf;
+	private final String tableName;
+	private final File dir;
+	private final long checkInterval;
+
+	// Null if the table has no filter.
+	private LoadFilter filter;
+	private long modificationTime = -1;
+	private long length = -1;
+	private long checkedAt = 0;
+	private boolean checked = false;
+
+	/**
+	 * @param dir
+	 *            The local directory of the copies.
+	 */
+
+	public LoadFilterMirror(Configuration conf, String tableName, File dir)
+			throws IOException {
+		this.conf = conf;
+		this.tableName = tableName;
+		this.dir = dir;
+		this.checkInterval = conf.getLong(QueryCache.CHECK_INTERVAL_KEY,
+				QueryCache.DEFAULT_CHECK_INTERVAL);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+	}
+
+	/**
+	 * @return The current filter of the table, or null if it has none.
+	 */
+
+	public synchronized LoadFilter get() throws IOException {
+		long now = System.currentTimeMillis();
+		if (checked && now - checkedAt < checkInterval)
+			return filter;
+
+		Path path = LoadFilter.path(conf, tableName);
+		FileSystem fs = path.getFileSystem(conf);
+		FileStatus status;
+		try {
+			status = fs.getFileStatus(path);
+		} catch (FileNotFoundException e) {
+			status = null;
+		}
+		checked = true;
+		checkedAt = now;
+
+		if (status == null) {
+			filter = null;
+		} else if (filter == null
+				|| status.getModificationTime() != modificationTime
+				|| status.getLen() != length) {
+			filter = LoadFilter.map(copy(fs, status));
+			modificationTime = status.getModificationTime();
+			length = status.getLen();
+		}
+		return filter;
+	}
+
+	/**
+	 * @return The local copy of the filter, copied again unless it has the
+	 *         size and the modification time of the filter in HDFS.
+	 */
+
+	private File copy(FileSystem fs, FileStatus status) throws IOException {
+		File local = new File(dir, tableName + LoadFilter.SUFFIX);
+		if (local.length() == status.getLen()
+				&& local.lastModified() == status.getModificationTime())
+			return local;
+
+		// Renamed once complete, so a concurrent QueryTool never maps a
+		// partial copy, and a mapped copy is left alone.
+		File tmp = File.createTempFile(local.getName(), ".tmp", dir);
+		try {
+			InputStream in = fs.open(status.getPath());
+			try {
+				Files.copy(in, tmp.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				in.close();
+			}
+			if (!tmp.setLastModified(status.getModificationTime()))
+				throw new IOException("Could not set the time of " + tmp);
+			Files.move(tmp.toPath(), local.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+		return local;
+	}
+}
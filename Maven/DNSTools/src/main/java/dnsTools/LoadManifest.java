@@ -0,0 +1,207 @@
+package dnsTools;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The list of input files already bulk-loaded into a table, kept in HDFS so
+ * an incremental load only reads the files added or replaced since the
+ * last one.
+ *
+ * The manifest is a text file with one fully qualified path per line,
+ * followed by the length and modification time of the file, separated by
+ * tabs, in the directory named by dnstools.manifest.dir
+ * (.dnstools/manifests under the HDFS home directory by default). It is
+ * replaced as a whole by save(), which writes a new file and renames it
+ * over the old one. A file whose length or modification time changed,
+ * e.g. copied again over the same path, is loaded again as a new file, so
+ * log files must not be appended to once they have been loaded. The files
+ * of manifests written before the length and time were kept are
+ * recognised by path only.
+ *
+ */
+
+public class LoadManifest {
+
+	// Configuration key of the directory holding the manifests.
+	public final static String DIR_KEY = "dnstools.manifest.dir";
+
+	public final static String DEFAULT_DIR = ".dnstools/manifests";
+
+	private final FileSystem fs;
+	private final Path path;
+	// The length and modification time of every file by path, null if
+	// not recorded.
+	private final Map<String, String> files = new TreeMap<String, String>();
+
+	private LoadManifest(FileSystem fs, Path path) {
+		this.fs = fs;
+		this.path = path;
+	}
+
+	/**
+	 * Read the manifest of a table, or start an empty one if the table was
+	 * never loaded incrementally.
+	 */
+
+	public static LoadManifest open(Configuration conf, String tableName)
+			throws IOException {
+		Path dir = new Path(conf.get(DIR_KEY, DEFAULT_DIR));
+		FileSystem fs = dir.getFileSystem(conf);
+		LoadManifest manifest = new LoadManifest(fs, fs.makeQualified(new Path(
+				dir, tableName)));
+		// A save() interrupted between its delete and rename leaves only the
+		// new file.
+		Path file = manifest.path;
+		if (!fs.exists(file))
+			file = manifest.path.suffix(".tmp");
+		if (!fs.exists(file))
+			return manifest;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				fs.open(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				int end = line.indexOf('\t');
+				if (end < 0)
+					manifest.files.put(line, null);
+				else
+					manifest.files.put(line.substring(0, end),
+							line.substring(end + 1));
+			}
+		} finally {
+			reader.close();
+		}
+		return manifest;
+	}
+
+	/**
+	 * @return The load generation of a table: the time its manifest was
+	 *         last saved, which BulkLoader does after every load, or 0 if
+	 *         the table has no manifest. Readers caching query results
+	 *         drop them when it changes, see QueryCache.
+	 */
+
+	public static long generation(Configuration conf, String tableName)
+			throws IOException {
+		Path dir = new Path(conf.get(DIR_KEY, DEFAULT_DIR));
+		FileSystem fs = dir.getFileSystem(conf);
+		Path path = new Path(dir, tableName);
+		// A save() in progress may remove either file between the calls.
+		for (Path file : new Path[] { path, path.suffix(".tmp") }) {
+			try {
+				return fs.getFileStatus(file).getModificationTime();
+			} catch (FileNotFoundException e) {
+				continue;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The length and modification time of a file, as kept in the
+	 *         manifest.
+	 */
+
+	private static String version(FileStatus status) {
+		return status.getLen() + "\t" + status.getModificationTime();
+	}
+
+	/**
+	 * @return The files of an input path that are not in the manifest, or
+	 *         changed since they were added. A directory or glob is
+	 *         expanded one level deep, skipping hidden files as
+	 *         FileInputFormat does.
+	 */
+
+	public List<FileStatus> newFiles(Configuration conf, Path input)
+			throws IOException {
+		List<FileStatus> newFiles = new ArrayList<FileStatus>();
+		FileSystem inputFs = input.getFileSystem(conf);
+		FileStatus[] matches = inputFs.globStatus(input);
+		if (matches == null)
+			return newFiles;
+
+		for (FileStatus match : matches) {
+			FileStatus[] statuses = match.isDir() ? inputFs.listStatus(match
+					.getPath()) : new FileStatus[] { match };
+			for (FileStatus status : statuses) {
+				String name = status.getPath().getName();
+				if (status.isDir() || name.startsWith("_")
+						|| name.startsWith("."))
+					continue;
+				Path file = inputFs.makeQualified(status.getPath());
+				String version = files.get(file.toString());
+				if (!files.containsKey(file.toString())
+						|| version != null && !version.equals(version(status)))
+					newFiles.add(new FileStatus(status.getLen(), false,
+							status.getReplication(), status.getBlockSize(),
+							status.getModificationTime(), file));
+			}
+		}
+		return newFiles;
+	}
+
+	/**
+	 * Forget every file, e.g. before a full reload of the table.
+	 */
+
+	public void clear() {
+		files.clear();
+	}
+
+	/**
+	 * @return True if no file was loaded into the table.
+	 */
+
+	public boolean isEmpty() {
+		return files.isEmpty();
+	}
+
+	/**
+	 * Record a file, with the status returned by newFiles().
+	 */
+
+	public void add(FileStatus file) {
+		files.put(file.getPath().toString(), version(file));
+	}
+
+	/**
+	 * Write the manifest back to HDFS.
+	 */
+
+	public void save() throws IOException {
+		Path tmp = path.suffix(".tmp");
+		Writer writer = new OutputStreamWriter(fs.create(tmp, true),
+				StandardCharsets.UTF_8);
+		try {
+			for (Map.Entry<String, String> file : files.entrySet())
+				writer.write(file.getKey()
+						+ (file.getValue() != null ? "\t" + file.getValue()
+								: "") + "\n");
+		} finally {
+			writer.close();
+		}
+		// HDFS does not rename over an existing file.
+		fs.delete(path, false);
+		if (!fs.rename(tmp, path))
+			throw new IOException("Could not rename " + tmp + " to " + path);
+	}
+}
@@ -0,0 +1,177 @@
+package dnsTools;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser for a single line of the DNS log working directly on its UTF-8
+ * bytes. Each line consists of four space or tab separated fields: the
+ * TAI64N timestamp (prefixed by '@'), the log version, the source IP and
+ * the hex-encoded DNS packet.
+ *
+ * The fields are located by byte offset and the packet is hex-decoded into
+ * a buffer owned by the parser, so parsing a line creates no Strings, char
+ * arrays or byte arrays once the buffers are warmed up. A parser instance
+ * is not thread-safe and the decoded packet is only valid until the next
+ * call to parse().
+ *
+ */
+
+public class LogLineParser {
+
+	/**
+	 * Outcome of parsing a line.
+	 */
+	public enum Status {
+		OK, BAD_FIELD_COUNT, BAD_HEX;
+	}
+
+	// Number of fields in each line of text file.
+	public final static int LINE_SEG_FIELDS = 4;
+
+	public final static int FIELD_TIMESTAMP = 0;
+	public final static int FIELD_VERSION = 1;
+	public final static int FIELD_SRC_IP = 2;
+	public final static int FIELD_PACKET = 3;
+
+	// Largest packet that gets a reusable buffer of its own size.
+	private final static int MAX_POOLED_LENGTH = 4096;
+
+	// Value of each hex digit indexed by its ASCII code, -1 if not a digit.
+	private final static byte[] HEX_VALUES = new byte[128];
+
+	static {
+		for (int i = 0; i < HEX_VALUES.length; i++)
+			HEX_VALUES[i] = -1;
+		for (int i = 0; i < 10; i++)
+			HEX_VALUES['0' + i] = (byte) i;
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = (byte) (10 + i);
+			HEX_VALUES['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	private final int[] fieldStart = new int[LINE_SEG_FIELDS];
+	private final int[] fieldEnd = new int[LINE_SEG_FIELDS];
+
+	// Decoded packet buffers indexed by packet length. The DNS Message
+	// parser takes a whole array, so a buffer of the exact packet size is
+	// kept for each length seen.
+	private final byte[][] packetBuffers = new byte[MAX_POOLED_LENGTH + 1][];
+
+	private byte[] line = null;
+	private byte[] packet = null;
+
+	/**
+	 * Parse a line and decode its DNS packet.
+	 *
+	 * @param bytes
+	 *            The buffer holding the line, e.g. Text.getBytes().
+	 *
+	 * @param length
+	 *            The number of valid bytes in the buffer.
+	 *
+	 * @return OK if the line has the expected fields and the packet is valid
+	 *         hex, the failure reason otherwise.
+	 */
+
+	public Status parse(byte[] bytes, int length) {
+		line = bytes;
+		packet = null;
+
+		int field = 0;
+		int pos = 0;
+		while (pos < length) {
+			while (pos < length && isSeparator(bytes[pos]))
+				pos++;
+			if (pos == length)
+				break;
+
+			if (field == LINE_SEG_FIELDS)
+				return Status.BAD_FIELD_COUNT;
+
+			fieldStart[field] = pos;
+			while (pos < length && !isSeparator(bytes[pos]))
+				pos++;
+			fieldEnd[field] = pos;
+			field++;
+		}
+
+		if (field != LINE_SEG_FIELDS)
+			return Status.BAD_FIELD_COUNT;
+
+		return decodePacket() ? Status.OK : Status.BAD_HEX;
+	}
+
+	private static boolean isSeparator(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private boolean decodePacket() {
+		int start = fieldStart[FIELD_PACKET];
+		int hexLength = fieldEnd[FIELD_PACKET] - start;
+		if ((hexLength & 1) != 0)
+			return false;
+
+		int length = hexLength >> 1;
+		byte[] buffer;
+		if (length <= MAX_POOLED_LENGTH) {
+			buffer = packetBuffers[length];
+			if (buffer == null) {
+				buffer = new byte[length];
+				packetBuffers[length] = buffer;
+			}
+		} else {
+			buffer = new byte[length];
+		}
+
+		for (int i = 0, j = start; i < length; i++, j += 2) {
+			int hi = hexValue(line[j]);
+			int lo = hexValue(line[j + 1]);
+			if (hi < 0 || lo < 0)
+				return false;
+			buffer[i] = (byte) ((hi << 4) | lo);
+		}
+
+		packet = buffer;
+		return true;
+	}
+
+	private static int hexValue(byte b) {
+		return b < 0 ? -1 : HEX_VALUES[b];
+	}
+
+	/**
+	 * @return The decoded DNS packet of the last line parsed. The array is
+	 *         exactly as long as the packet and is reused by later calls.
+	 */
+
+	public byte[] getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return The buffer holding the last line parsed.
+	 */
+
+	public byte[] getLine() {
+		return line;
+	}
+
+	public int getFieldStart(int field) {
+		return fieldStart[field];
+	}
+
+	public int getFieldEnd(int field) {
+		return fieldEnd[field];
+	}
+
+	/**
+	 * Return a field of the last line parsed as a String. This allocates and
+	 * is meant for logging and tools, not for the per-record path.
+	 */
+
+	public String getField(int field) {
+		return new String(line, fieldStart[field], fieldEnd[field]
+				- fieldStart[field], StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,201 @@
+package dnsTools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A line of the DNS log in binary form, as written by LogConverter: the
+ * TAI64N timestamp as nanoseconds since the Unix epoch, the log format
+ * version, the source address and port, and the DNS packet as raw bytes
+ * rather than hex. A record takes about half the bytes of its line and the
+ * packet needs no decoding.
+ *
+ * A numeric "address:port" source is kept as the bytes of the address, so
+ * its original text is not kept, see getSourceString(). A source that is not
+ * a numeric "address:port" is kept as its text, with a port of -1.
+ *
+ */
+
+public class LogRecord implements Writable {
+
+	private long timestamp;
+	private int version;
+	private byte[] source;
+	private int port;
+	private byte[] packet;
+
+	public LogRecord() {
+	}
+
+	public LogRecord(LogRecord other) {
+		set(other.timestamp, other.version, other.source.clone(), other.port,
+				other.packet.clone());
+	}
+
+	public void set(long timestamp, int version, byte[] source, int port,
+			byte[] packet) {
+		this.timestamp = timestamp;
+		this.version = version;
+		this.source = source;
+		this.port = port;
+		this.packet = packet;
+	}
+
+	/**
+	 * Fill the record from the fields of a line split by a LogLineParser.
+	 *
+	 * @return False if the timestamp of the line is malformed.
+	 */
+
+	public boolean set(LogLineParser parser) {
+		byte[] line = parser.getLine();
+		long nanos = Tai64n.toNanos(line,
+				parser.getFieldStart(LogLineParser.FIELD_TIMESTAMP),
+				parser.getFieldEnd(LogLineParser.FIELD_TIMESTAMP));
+		if (nanos < 0)
+			return false;
+
+		int version;
+		try {
+			version = Integer.parseInt(parser
+					.getField(LogLineParser.FIELD_VERSION));
+		} catch (NumberFormatException e) {
+			version = -1;
+		}
+
+		String field = parser.getField(LogLineParser.FIELD_SRC_IP);
+		byte[] address = null;
+		int port = -1;
+		int colon = field.lastIndexOf(':');
+		if (colon > 0) {
+			address = parseAddress(field.substring(0, colon));
+			try {
+				port = Integer.parseInt(field.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				address = null;
+			}
+		}
+		if (address == null) {
+			address = field.getBytes(StandardCharsets.UTF_8);
+			port = -1;
+		}
+
+		byte[] decoded = parser.getPacket();
+		set(nanos, version, address, port, Arrays.copyOf(decoded,
+				decoded.length));
+		return true;
+	}
+
+	/**
+	 * @return The bytes of a numeric IPv4 or bracketed IPv6 address, or null.
+	 *         Host names are not resolved.
+	 */
+
+	private static byte[] parseAddress(String address) {
+		boolean ipv6 = address.startsWith("[") && address.endsWith("]");
+		if (ipv6)
+			address = address.substring(1, address.length() - 1);
+		// InetAddress would look up anything but a literal.
+		if (!address.matches(ipv6 ? "[0-9A-Fa-f:.]+"
+				: "[0-9]{1,3}(\\.[0-9]{1,3}){3}"))
+			return null;
+		try {
+			return InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The time of the line in nanoseconds since the Unix epoch.
+	 */
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return The time of the line in milliseconds, the cell version used
+	 *         by PdnsSchema.
+	 */
+
+	public long getTimestampMillis() {
+		return timestamp / 1000000L;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The 4 or 16 address bytes of the source, or its text if the
+	 *         port is -1.
+	 */
+
+	public byte[] getSource() {
+		return source;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public byte[] getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return The source field of the log line, or the canonical form of its
+	 *         address if it is numeric: IPv6 addresses are written in full
+	 *         without "::", as "[2001:db8:0:0:0:0:0:1]:53" for
+	 *         "[2001:db8::1]:53", and IPv4-mapped IPv6 addresses as IPv4
+	 *         without brackets.
+	 */
+
+	public String getSourceString() {
+		if (port < 0)
+			return new String(source, StandardCharsets.UTF_8);
+		try {
+			InetAddress address = InetAddress.getByAddress(source);
+			String host = address.getHostAddress();
+			return (source.length == 16 ? "[" + host + "]" : host) + ":" + port;
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(timestamp);
+		WritableUtils.writeVInt(out, version);
+		WritableUtils.writeVInt(out, source.length);
+		out.write(source);
+		WritableUtils.writeVInt(out, port);
+		WritableUtils.writeVInt(out, packet.length);
+		out.write(packet);
+	}
+
+	/**
+	 * Read a record into new arrays, so the arrays of the previous record
+	 * can still be referenced.
+	 */
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		timestamp = in.readLong();
+		version = WritableUtils.readVInt(in);
+		source = new byte[WritableUtils.readVInt(in)];
+		in.readFully(source);
+		port = WritableUtils.readVInt(in);
+		packet = new byte[WritableUtils.readVInt(in)];
+		in.readFully(packet);
+	}
+}
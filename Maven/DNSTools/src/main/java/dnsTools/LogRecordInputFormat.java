@@ -0,0 +1,14 @@
+package dnsTools;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+/**
+ * Reads the SequenceFiles of LogRecords written by LogConverter. They are
+ * block-compressed and splittable at their sync markers.
+ *
+ */
+
+public class LogRecordInputFormat extends
+		SequenceFileInputFormat<NullWritable, LogRecord> {
+}
@@ -0,0 +1,251 @@
+package dnsTools;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Instrumentation of the bulk-load mapper. Job health is reported through
+ * Hadoop counters: the number of answer records per common rrtype, the
+ * number of lines dropped per parse-failure reason, the number of packets
+ * per answer-count bucket, the number of rrsets extracted from each
+ * section, the number of observations against the number of cells
+ * they were combined into, and the number of rdata left out of the index
+ * because their row-key is too long for HBase. The counter objects are looked up once and
+ * cached, so counting costs no more than an increment per record.
+ *
+ * Records are only logged in debug mode, i.e. when
+ * dnstools.mapper.debug.sample is set to N > 0, in which case one line out
+ * of every N is logged.
+ *
+ */
+
+public class MapperMetrics {
+
+	private static final Log LOG = LogFactory.getLog(MapperMetrics.class);
+
+	// Log one out of every N lines, 0 disables the logging.
+	public final static String DEBUG_SAMPLE_KEY = "dnstools.mapper.debug.sample";
+
+	public final static String GROUP = "HBaseKVMapper";
+	public final static String RRTYPE_GROUP = "HBaseKVMapper RRTYPE";
+	public final static String PARSE_FAILURE_GROUP = "HBaseKVMapper PARSE_FAILURE";
+	public final static String ANSWER_COUNT_GROUP = "HBaseKVMapper ANSWER_COUNT";
+	public final static String SECTION_GROUP = "HBaseKVMapper SECTION_RRSETS";
+
+	// Counter names of the sections, indexed by org.xbill.DNS.Section.
+	private final static String[] SECTION_NAMES = { "QUESTION", "ANSWER",
+			"AUTHORITY", "ADDITIONAL" };
+
+	/**
+	 * Reasons for dropping a line or an rrset.
+	 */
+	public enum ParseFailure {
+		BAD_HEX, BAD_TIMESTAMP, WRONG_FIELD_COUNT, TRUNCATED_PACKET,
+		MALFORMED_PACKET, RRNAME_MISMATCH, RRTYPE_MISMATCH;
+	}
+
+	// The rrtypes counted by name, the others are counted as OTHER_RRTYPE.
+	// Hadoop fails a job with too many counters, so a capture holding every
+	// type code must not add a counter per code.
+	private final static Set<String> NAMED_RRTYPES = new HashSet<String>(
+			Arrays.asList("A", "AAAA", "CNAME", "NS", "MX", "TXT", "PTR",
+					"SOA", "SRV", "NAPTR", "SPF", "DNAME", "DS", "DNSKEY",
+					"RRSIG", "NSEC", "NSEC3", "NSEC3PARAM", "TLSA", "SSHFP",
+					"CAA", "HINFO"));
+
+	public final static String OTHER_RRTYPE = "OTHER";
+
+	// Upper bounds of the answer-count buckets, the last one is open ended.
+	private final static int[] ANSWER_BUCKETS = { 0, 1, 2, 4, 8, 16 };
+
+	/**
+	 * Where the counters come from: the task context in a MR job, or a
+	 * Counters object of their own outside of it.
+	 */
+	private interface CounterSource {
+		Counter getCounter(String group, String name);
+	}
+
+	private final CounterSource source;
+	private final Counter numMsgs;
+	private final Counter parseErrors;
+	private final Counter observations;
+	private final Counter cells;
+	private final Counter oversizedIndexKeys;
+	private final Counter[] parseFailures;
+	private final Counter[] answerCounts;
+	private final Counter[] sectionRRsets;
+	private final Map<String, Counter> rrtypes = new HashMap<String, Counter>();
+
+	private final long sample;
+	private long lines = 0;
+
+	public MapperMetrics(final TaskInputOutputContext<?, ?, ?, ?> context) {
+		this(context.getConfiguration(), new CounterSource() {
+			@Override
+			public Counter getCounter(String group, String name) {
+				return context.getCounter(group, name);
+			}
+		});
+	}
+
+	/**
+	 * Count into the given counters, when parsing outside of a MR task.
+	 */
+
+	public MapperMetrics(Configuration conf, final Counters counters) {
+		this(conf, new CounterSource() {
+			@Override
+			public Counter getCounter(String group, String name) {
+				return counters.findCounter(group, name);
+			}
+		});
+	}
+
+	private MapperMetrics(Configuration conf, CounterSource source) {
+		this.source = source;
+		this.sample = conf.getLong(DEBUG_SAMPLE_KEY, 0);
+
+		numMsgs = source.getCounter(GROUP, "NUM_MSGS");
+		parseErrors = source.getCounter(GROUP, "PARSE_ERRORS");
+		observations = source.getCounter(GROUP, "OBSERVATIONS");
+		cells = source.getCounter(GROUP, "CELLS");
+		oversizedIndexKeys = source.getCounter(GROUP, "OVERSIZED_INDEX_KEYS");
+
+		ParseFailure[] reasons = ParseFailure.values();
+		parseFailures = new Counter[reasons.length];
+		for (ParseFailure reason : reasons)
+			parseFailures[reason.ordinal()] = source.getCounter(
+					PARSE_FAILURE_GROUP, reason.name());
+
+		answerCounts = new Counter[ANSWER_BUCKETS.length + 1];
+		for (int i = 0; i < answerCounts.length; i++)
+			answerCounts[i] = source.getCounter(ANSWER_COUNT_GROUP,
+					bucketName(i));
+
+		sectionRRsets = new Counter[SECTION_NAMES.length];
+		for (int i = 0; i < sectionRRsets.length; i++)
+			sectionRRsets[i] = source.getCounter(SECTION_GROUP,
+					SECTION_NAMES[i]);
+	}
+
+	private static String bucketName(int bucket) {
+		if (bucket == ANSWER_BUCKETS.length)
+			return (ANSWER_BUCKETS[bucket - 1] + 1) + "+";
+		int low = bucket == 0 ? 0 : ANSWER_BUCKETS[bucket - 1] + 1;
+		int high = ANSWER_BUCKETS[bucket];
+		return low == high ? String.valueOf(low) : low + "-" + high;
+	}
+
+	/**
+	 * Count a line or rrset dropped for the given reason. Failures to decode
+	 * the packet are also counted in the PARSE_ERRORS total.
+	 */
+
+	public void parseFailure(ParseFailure reason) {
+		parseFailures[reason.ordinal()].increment(1);
+		switch (reason) {
+		case BAD_HEX:
+		case BAD_TIMESTAMP:
+		case TRUNCATED_PACKET:
+		case MALFORMED_PACKET:
+			parseErrors.increment(1);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Count a resource record of an ANSWER section, under the name of its
+	 * rrtype for the common ones and under OTHER for the rest.
+	 */
+
+	public void answer(String rrtype) {
+		numMsgs.increment(1);
+		if (!NAMED_RRTYPES.contains(rrtype))
+			rrtype = OTHER_RRTYPE;
+
+		Counter counter = rrtypes.get(rrtype);
+		if (counter == null) {
+			counter = source.getCounter(RRTYPE_GROUP, rrtype);
+			rrtypes.put(rrtype, counter);
+		}
+		counter.increment(1);
+	}
+
+	/**
+	 * Count a decoded packet in the bucket of its number of answers.
+	 */
+
+	public void answerCount(int count) {
+		int bucket = 0;
+		while (bucket < ANSWER_BUCKETS.length && count > ANSWER_BUCKETS[bucket])
+			bucket++;
+		answerCounts[bucket].increment(1);
+	}
+
+	/**
+	 * Count an rrset extracted from a section of a packet.
+	 *
+	 * @param section
+	 *            The section, see org.xbill.DNS.Section.
+	 */
+
+	public void rrset(int section) {
+		sectionRRsets[section].increment(1);
+	}
+
+	/**
+	 * Count an observation of a cell of the rrset table or of the index.
+	 */
+
+	public void observation() {
+		observations.increment(1);
+	}
+
+	/**
+	 * Count a cell written to the map output.
+	 */
+
+	public void cell() {
+		cells.increment(1);
+	}
+
+	/**
+	 * Count an rdata not indexed because its index row-key is longer than
+	 * HBase allows.
+	 */
+
+	public void oversizedIndexKey() {
+		oversizedIndexKeys.increment(1);
+	}
+
+	/**
+	 * Called once per input line.
+	 *
+	 * @return True if the line is picked for debug logging.
+	 */
+
+	public boolean sampleLine() {
+		return sample > 0 && lines++ % sample == 0;
+	}
+
+	public boolean isDebugEnabled() {
+		return sample > 0;
+	}
+
+	public void debug(String message) {
+		LOG.info(message);
+	}
+}
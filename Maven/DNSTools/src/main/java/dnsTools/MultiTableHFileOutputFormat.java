@@ -0,0 +1,305 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+
+/**
+ * HFile output for a bulk-load job that writes to several HBase tables at
+ * once. The map output key is the row-key prefixed by one byte holding the
+ * index of the target table in the list given to configureIncrementalLoad().
+ * The value is the KeyValue to write, with the plain row-key.
+ *
+ * The keys are partitioned on the region boundaries of all the tables, so
+ * each reducer writes the HFiles of exactly one region. The HFiles of each
+ * table end up in a sub-directory of the job output named after the table,
+ * ready for LoadIncrementalHFiles. ObservationMergeReducer sorts the cells
+ * of each row and merges those written more than once.
+ *
+ * HFileOutputFormat does the actual writing. Each table gets its own
+ * instance, configured with the compression, bloom filter, block size and
+ * encoding of its column families.
+ *
+ */
+
+public class MultiTableHFileOutputFormat extends
+		FileOutputFormat<ImmutableBytesWritable, KeyValue> {
+
+	// Comma separated names of the output tables, in table index order.
+	public final static String TABLES_KEY = "dnstools.output.tables";
+
+	// Per-family settings HFileOutputFormat reads from the configuration.
+	private final static String COMPRESSION_KEY = "hbase.hfileoutputformat.families.compression";
+	private final static String BLOOM_TYPE_KEY = "hbase.hfileoutputformat.families.bloomtype";
+	private final static String BLOCK_SIZE_KEY = "hbase.mapreduce.hfileoutputformat.blocksize";
+	private final static String ENCODING_KEY = "hbase.mapreduce.hfileoutputformat.families.datablock.encoding";
+
+	private final static String[] FAMILY_KEYS = { COMPRESSION_KEY,
+			BLOOM_TYPE_KEY, BLOCK_SIZE_KEY, ENCODING_KEY };
+
+	/**
+	 * Build the map output key of a row of the given table.
+	 */
+
+	public static ImmutableBytesWritable tableKey(int table, byte[] row) {
+		byte[] key = new byte[row.length + 1];
+		key[0] = (byte) table;
+		System.arraycopy(row, 0, key, 1, row.length);
+		return new ImmutableBytesWritable(key);
+	}
+
+	/**
+	 * @return The directory holding the HFiles of a table.
+	 */
+
+	public static Path getTableOutputPath(Path outputPath, String tableName) {
+		return new Path(outputPath, tableName);
+	}
+
+	/**
+	 * Configure the partitioner, reducer and output format of a bulk-load job
+	 * writing to the given tables, in the same way as
+	 * HFileOutputFormat.configureIncrementalLoad() does for a single table.
+	 */
+
+	public static void configureIncrementalLoad(Job job, List<HTable> tables)
+			throws IOException {
+		configureIncrementalLoad(job, tables, null);
+	}
+
+	/**
+	 * Same as configureIncrementalLoad(job, tables), with only the regions
+	 * holding a sampled row-key of the input getting a partition of their
+	 * own. The regions in between are covered by the partition before them,
+	 * so a small load into a large table does not start a reducer per
+	 * region. An HFile that does end up spanning several regions is split
+	 * by LoadIncrementalHFiles.
+	 *
+	 * @param sampledKeys
+	 *            The sorted sampled row-keys of each table, or null to
+	 *            partition on every region.
+	 */
+
+	public static void configureIncrementalLoad(Job job, List<HTable> tables,
+			List<List<byte[]>> sampledKeys) throws IOException {
+		Configuration conf = job.getConfiguration();
+
+		job.setMapOutputKeyClass(ImmutableBytesWritable.class);
+		job.setMapOutputValueClass(KeyValue.class);
+		job.setOutputKeyClass(ImmutableBytesWritable.class);
+		job.setOutputValueClass(KeyValue.class);
+		job.setReducerClass(ObservationMergeReducer.class);
+		job.setOutputFormatClass(MultiTableHFileOutputFormat.class);
+		job.setPartitionerClass(TotalOrderPartitioner.class);
+
+		// Each reduce attempt commits the HFiles of its table itself, so a
+		// speculative attempt would load the same cells twice.
+		conf.setBoolean("mapred.reduce.tasks.speculative.execution", false);
+
+		StringBuilder names = new StringBuilder();
+		List<ImmutableBytesWritable> splits = new ArrayList<ImmutableBytesWritable>();
+		for (int i = 0; i < tables.size(); i++) {
+			HTable table = tables.get(i);
+			if (i > 0)
+				names.append(',');
+			names.append(table.getTableDescriptor().getNameAsString());
+
+			configureFamilies(table, i, conf);
+
+			byte[][] startKeys = table.getStartKeys();
+			boolean[] touched = touchedRegions(startKeys,
+					sampledKeys == null ? null : sampledKeys.get(i));
+			for (int r = 0; r < startKeys.length; r++) {
+				// The first region of the first table starts the first
+				// partition, every other table starts a new one.
+				if (i == 0 && r == 0)
+					continue;
+				if (r == 0 || touched[r] || touched[r - 1])
+					splits.add(tableKey(i, startKeys[r]));
+			}
+		}
+		conf.set(TABLES_KEY, names.toString());
+		job.setNumReduceTasks(splits.size() + 1);
+
+		Path partitionsPath = new Path(conf.get("hadoop.tmp.dir"),
+				"partitions_" + UUID.randomUUID());
+		FileSystem fs = partitionsPath.getFileSystem(conf);
+		writePartitions(conf, fs, partitionsPath, splits);
+		fs.deleteOnExit(partitionsPath);
+		TotalOrderPartitioner.setPartitionFile(conf, partitionsPath);
+	}
+
+	/**
+	 * @return For each region, whether it holds one of the sorted keys. All
+	 *         regions are marked if the keys are null.
+	 */
+
+	private static boolean[] touchedRegions(byte[][] startKeys,
+			List<byte[]> sortedKeys) {
+		boolean[] touched = new boolean[startKeys.length];
+		if (sortedKeys == null) {
+			Arrays.fill(touched, true);
+			return touched;
+		}
+		int r = 0;
+		for (byte[] key : sortedKeys) {
+			while (r + 1 < startKeys.length
+					&& Bytes.compareTo(key, startKeys[r + 1]) >= 0)
+				r++;
+			touched[r] = true;
+		}
+		return touched;
+	}
+
+	private static void writePartitions(Configuration conf, FileSystem fs,
+			Path partitionsPath, List<ImmutableBytesWritable> splits)
+			throws IOException {
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf,
+				partitionsPath, ImmutableBytesWritable.class,
+				NullWritable.class);
+		try {
+			for (ImmutableBytesWritable split : splits)
+				writer.append(split, NullWritable.get());
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Store the per-family settings of a table under the table index, in the
+	 * format HFileOutputFormat expects.
+	 */
+
+	private static void configureFamilies(HTable table, int index,
+			Configuration conf) throws IOException {
+		StringBuilder[] values = new StringBuilder[FAMILY_KEYS.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = new StringBuilder();
+
+		for (HColumnDescriptor family : table.getTableDescriptor()
+				.getFamilies()) {
+			String[] settings = { family.getCompression().getName(),
+					String.valueOf(family.getBloomFilterType()),
+					String.valueOf(family.getBlocksize()),
+					String.valueOf(family.getDataBlockEncoding()) };
+			for (int i = 0; i < values.length; i++) {
+				if (values[i].length() > 0)
+					values[i].append('&');
+				values[i].append(urlEncode(family.getNameAsString()));
+				values[i].append('=');
+				values[i].append(urlEncode(settings[i]));
+			}
+		}
+
+		for (int i = 0; i < values.length; i++)
+			conf.set(tableSettingKey(index, FAMILY_KEYS[i]),
+					values[i].toString());
+	}
+
+	private static String tableSettingKey(int index, String key) {
+		return "dnstools.output.table." + index + "." + key;
+	}
+
+	private static String urlEncode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Override
+	public RecordWriter<ImmutableBytesWritable, KeyValue> getRecordWriter(
+			final TaskAttemptContext context) throws IOException,
+			InterruptedException {
+		final Configuration conf = context.getConfiguration();
+		final String[] tableNames = conf.getStrings(TABLES_KEY);
+		final Path outputPath = getOutputPath(context);
+
+		return new RecordWriter<ImmutableBytesWritable, KeyValue>() {
+
+			private final TableWriter[] writers = new TableWriter[tableNames.length];
+
+			@Override
+			public void write(ImmutableBytesWritable key, KeyValue kv)
+					throws IOException, InterruptedException {
+				int table = key.get()[key.getOffset()];
+				TableWriter writer = writers[table];
+				if (writer == null) {
+					writer = new TableWriter(context, table, new Path(
+							outputPath, tableNames[table]));
+					writers[table] = writer;
+				}
+				writer.write(new ImmutableBytesWritable(key.get(),
+						key.getOffset() + 1, key.getLength() - 1), kv);
+			}
+
+			@Override
+			public void close(TaskAttemptContext c) throws IOException,
+					InterruptedException {
+				for (TableWriter writer : writers) {
+					if (writer != null)
+						writer.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * HFile writer of one table. Its files are written to a task attempt
+	 * directory under the table directory and moved into place on close.
+	 */
+
+	private static class TableWriter {
+
+		private final TaskAttemptContext context;
+		private final FileOutputCommitter committer;
+		private final RecordWriter<ImmutableBytesWritable, KeyValue> writer;
+
+		TableWriter(TaskAttemptContext jobContext, int table, Path tablePath)
+				throws IOException, InterruptedException {
+			Configuration conf = new Configuration(
+					jobContext.getConfiguration());
+			conf.set("mapred.output.dir", tablePath.toString());
+			for (String key : FAMILY_KEYS)
+				conf.set(key, conf.get(tableSettingKey(table, key), ""));
+
+			context = new TaskAttemptContext(conf,
+					jobContext.getTaskAttemptID());
+			committer = new FileOutputCommitter(tablePath, context);
+			writer = new HFileOutputFormat().getRecordWriter(context);
+		}
+
+		void write(ImmutableBytesWritable row, KeyValue kv)
+				throws IOException, InterruptedException {
+			writer.write(row, kv);
+		}
+
+		void close() throws IOException, InterruptedException {
+			writer.close(context);
+			committer.commitTask(context);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTableInterfaceFactory;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Asynchronous write buffer for several HBase tables. The cells added by
+ * one producer thread are collected into a batch, which is handed over to
+ * a pool of writer threads when it reaches the flush size or when flush()
+ * is called. Each writer has tables of its own, as HTable is not
+ * thread-safe.
+ *
+ * At most maxInFlight batches are being written at any time. When they are
+ * all taken the producer waits in flush(), which pushes back on whatever
+ * feeds it, and the time spent waiting is counted as backpressure. A failed
+ * batch fails the next call of the producer.
+ *
+ */
+
+public class MutationBuffer {
+
+	private final Configuration conf;
+	private final HTableInterfaceFactory tableFactory;
+	private final List<String> tableNames;
+	private final long flushSize;
+	private final int maxInFlight;
+
+	private final ExecutorService writers;
+	private final Semaphore inFlight;
+	private final ThreadLocal<HTableInterface[]> tables = new ThreadLocal<HTableInterface[]>();
+	private final List<HTableInterface> openTables = new ArrayList<HTableInterface>();
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+	// The batch being filled, one list of puts per table.
+	private List<List<Put>> batch;
+	private long batchSize = 0;
+
+	private final AtomicLong cellsWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong batchesWritten = new AtomicLong();
+	private final AtomicLong writeNanos = new AtomicLong();
+	private long backpressureNanos = 0;
+
+	/**
+	 * @param tableNames
+	 *            The names of the tables, indexed as the cells added.
+	 *
+	 * @param flushSize
+	 *            Number of bytes of cells after which the batch is written.
+	 *
+	 * @param maxInFlight
+	 *            Maximum number of batches being written at once.
+	 *
+	 * @param writerThreads
+	 *            Number of writer threads.
+	 */
+
+	public MutationBuffer(Configuration conf,
+			HTableInterfaceFactory tableFactory, List<String> tableNames,
+			long flushSize, int maxInFlight, int writerThreads) {
+		this.conf = conf;
+		this.tableFactory = tableFactory;
+		this.tableNames = tableNames;
+		this.flushSize = flushSize;
+		this.maxInFlight = maxInFlight;
+		this.writers = Executors.newFixedThreadPool(writerThreads);
+		this.inFlight = new Semaphore(maxInFlight);
+		this.batch = newBatch();
+	}
+
+	private List<List<Put>> newBatch() {
+		List<List<Put>> puts = new ArrayList<List<Put>>(tableNames.size());
+		for (int i = 0; i < tableNames.size(); i++)
+			puts.add(new ArrayList<Put>());
+		return puts;
+	}
+
+	/**
+	 * Add a cell to the batch, writing the batch if it is full.
+	 */
+
+	public void add(int table, KeyValue kv) throws IOException,
+			InterruptedException {
+		checkFailure();
+		Put put = new Put(kv.getRow());
+		put.add(kv);
+		batch.get(table).add(put);
+		batchSize += kv.getLength();
+		if (batchSize >= flushSize)
+			flush();
+	}
+
+	/**
+	 * Hand the batch over to a writer, waiting for one of the in-flight
+	 * batches to complete if there are too many.
+	 */
+
+	public void flush() throws IOException, InterruptedException {
+		checkFailure();
+		if (batchSize == 0)
+			return;
+
+		long start = System.nanoTime();
+		inFlight.acquire();
+		backpressureNanos += System.nanoTime() - start;
+
+		final List<List<Put>> puts = batch;
+		final long size = batchSize;
+		batch = newBatch();
+		batchSize = 0;
+		writers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(puts, size);
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				} catch (Throwable e) {
+					// E.g. an IllegalArgumentException for an invalid Put,
+					// which would otherwise drop the batch silently.
+					failure.compareAndSet(null, new IOException(e));
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	private void write(List<List<Put>> puts, long size) throws IOException {
+		long start = System.nanoTime();
+		HTableInterface[] threadTables = tables.get();
+		if (threadTables == null) {
+			threadTables = new HTableInterface[tableNames.size()];
+			for (int i = 0; i < threadTables.length; i++) {
+				threadTables[i] = tableFactory.createHTableInterface(conf,
+						Bytes.toBytes(tableNames.get(i)));
+				// A batch goes out in one flushCommits().
+				threadTables[i].setAutoFlush(false);
+			}
+			synchronized (openTables) {
+				for (HTableInterface table : threadTables)
+					openTables.add(table);
+			}
+			tables.set(threadTables);
+		}
+
+		long cells = 0;
+		for (int i = 0; i < puts.size(); i++) {
+			if (puts.get(i).isEmpty())
+				continue;
+			cells += puts.get(i).size();
+			threadTables[i].put(puts.get(i));
+			threadTables[i].flushCommits();
+		}
+		cellsWritten.addAndGet(cells);
+		bytesWritten.addAndGet(size);
+		batchesWritten.incrementAndGet();
+		writeNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	private void checkFailure() throws IOException {
+		IOException e = failure.get();
+		if (e != null)
+			throw new IOException("A batch failed to be written", e);
+	}
+
+	/**
+	 * Write the batch, wait for all the batches to be written and release
+	 * the tables.
+	 */
+
+	public void close() throws IOException, InterruptedException {
+		try {
+			flush();
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+			checkFailure();
+		} finally {
+			writers.shutdown();
+			writers.awaitTermination(1, TimeUnit.MINUTES);
+			synchronized (openTables) {
+				for (HTableInterface table : openTables)
+					tableFactory.releaseHTableInterface(table);
+				openTables.clear();
+			}
+		}
+	}
+
+	public long getCellsWritten() {
+		return cellsWritten.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getBatchesWritten() {
+		return batchesWritten.get();
+	}
+
+	/**
+	 * @return The total time the writers spent writing batches.
+	 */
+
+	public long getWriteMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(writeNanos.get());
+	}
+
+	/**
+	 * @return The total time the producer waited for an in-flight batch to
+	 *         complete. Only to be called by the producer thread.
+	 */
+
+	public long getBackpressureMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(backpressureNanos);
+	}
+
+	/**
+	 * @return The number of batches being written.
+	 */
+
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+}
@@ -0,0 +1,167 @@
+package dnsTools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Name;
+
+/**
+ * Interning of the domain names and rdata strings that recur in every
+ * packet (google.com., akamai.net., the ultradns name servers...), so a
+ * name seen before is not converted and allocated again for every record.
+ *
+ * Two caches are kept. One maps dnsjava Names to the lower-cased bytes
+ * PdnsSchema.nameBytes() gives: Names compare label by label and ignore
+ * case, so www.Google.com. and www.google.com. share an entry. The other
+ * maps a string to its UTF-8 bytes and back.
+ *
+ * Both are direct-mapped: a name has a single slot, and takes it over from
+ * the name that was there. Their size is fixed, they need no locking, and
+ * the frequent names of skewed traffic keep their slot. Entries are
+ * immutable, so threads may read and replace them concurrently. The
+ * returned arrays are shared and must not be modified.
+ *
+ */
+
+public class NameDictionary {
+
+	// Configuration key of the number of slots of each cache.
+	public final static String SIZE_KEY = "dnstools.names.size";
+
+	public final static int DEFAULT_SIZE = 1 << 16;
+
+	private static volatile NameDictionary instance;
+
+	private static final class NameEntry {
+		final Name name;
+		final boolean reversed;
+		final byte[] bytes;
+
+		NameEntry(Name name, boolean reversed, byte[] bytes) {
+			this.name = name;
+			this.reversed = reversed;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final class StringEntry {
+		final String string;
+		final byte[] bytes;
+
+		StringEntry(String string, byte[] bytes) {
+			this.string = string;
+			this.bytes = bytes;
+		}
+	}
+
+	private final NameEntry[] names;
+	private final StringEntry[] strings;
+	private final int mask;
+
+	/**
+	 * @param size
+	 *            Number of slots of each cache, rounded up to a power of two.
+	 */
+
+	public NameDictionary(int size) {
+		int slots = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+		names = new NameEntry[slots];
+		strings = new StringEntry[slots];
+		mask = slots - 1;
+	}
+
+	/**
+	 * @return The dictionary shared by the parsers and readers of the JVM,
+	 *         sized by dnstools.names.size the first time.
+	 */
+
+	public static NameDictionary getInstance(Configuration conf) {
+		if (instance == null) {
+			synchronized (NameDictionary.class) {
+				if (instance == null)
+					instance = new NameDictionary(conf == null ? DEFAULT_SIZE
+							: conf.getInt(SIZE_KEY, DEFAULT_SIZE));
+			}
+		}
+		return instance;
+	}
+
+	private int slot(int hash) {
+		// Spread the high bits, as HashMap does.
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * @return The row-key form of a domain name, see PdnsSchema.nameBytes().
+	 */
+
+	public byte[] nameBytes(Name name) {
+		return nameBytes(name, false);
+	}
+
+	/**
+	 * @return The row-key form of a domain name in the forward or reversed
+	 *         layout. A job loads a single layout, so both forms do not
+	 *         compete for the slots.
+	 */
+
+	public byte[] nameBytes(Name name, boolean reversed) {
+		int i = slot(name.hashCode());
+		NameEntry entry = names[i];
+		if (entry != null && entry.reversed == reversed
+				&& entry.name.equals(name))
+			return entry.bytes;
+
+		byte[] bytes = PdnsSchema.nameBytes(name.toString(), reversed);
+		names[i] = new NameEntry(name, reversed, bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return The UTF-8 bytes of a string.
+	 */
+
+	public byte[] bytes(String string) {
+		int i = slot(string.hashCode());
+		StringEntry entry = strings[i];
+		if (entry != null && entry.string.equals(string))
+			return entry.bytes;
+
+		byte[] bytes = Bytes.toBytes(string);
+		strings[i] = new StringEntry(string, bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return The string of the UTF-8 bytes of a whole array.
+	 */
+
+	public String string(byte[] bytes) {
+		return string(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return The string of UTF-8 bytes, e.g. the rrname in a row-key.
+	 */
+
+	public String string(byte[] bytes, int offset, int length) {
+		// The hash of an ASCII string is computed from its bytes the way
+		// String.hashCode() does, so both lookups find the same slot.
+		int hash = 0;
+		for (int j = offset; j < offset + length; j++)
+			hash = 31 * hash + (bytes[j] & 0xff);
+		int i = slot(hash);
+		StringEntry entry = strings[i];
+		if (entry != null
+				&& Bytes.equals(entry.bytes, 0, entry.bytes.length, bytes,
+						offset, length))
+			return entry.string;
+
+		byte[] copy = Arrays.copyOfRange(bytes, offset, offset + length);
+		String string = new String(copy, StandardCharsets.UTF_8);
+		strings[i] = new StringEntry(string, copy);
+		return string;
+	}
+}
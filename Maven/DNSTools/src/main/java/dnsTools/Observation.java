@@ -0,0 +1,99 @@
+package dnsTools;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.xbill.DNS.Type;
+
+/**
+ * An rdata set observed for an rrname and rrtype, as stored in one cell of
+ * the table described by PdnsSchema.
+ *
+ */
+
+public class Observation {
+
+	private final String rrname;
+	private final int rrtype;
+	private final byte[] rdata;
+	private final long firstSeen;
+	private final long lastSeen;
+	private final long count;
+
+	public Observation(String rrname, int rrtype, byte[] rdata,
+			long firstSeen, long lastSeen, long count) {
+		this.rrname = rrname;
+		this.rrtype = rrtype;
+		this.rdata = rdata;
+		this.firstSeen = firstSeen;
+		this.lastSeen = lastSeen;
+		this.count = count;
+	}
+
+	/**
+	 * Decode a cell of the passive-DNS table.
+	 */
+
+	public static Observation fromKeyValue(KeyValue kv) {
+		return fromKeyValue(kv, false);
+	}
+
+	/**
+	 * Decode a cell of a passive-DNS table of the given layout.
+	 */
+
+	public static Observation fromKeyValue(KeyValue kv, boolean reversed) {
+		byte[] row = kv.getRow();
+		return new Observation(PdnsSchema.rrname(row, reversed),
+				PdnsSchema.rrtype(row), kv.getQualifier(),
+				PdnsSchema.firstSeen(kv), PdnsSchema.lastSeen(kv),
+				PdnsSchema.count(kv));
+	}
+
+	/**
+	 * Combine the observations of the same rdata set.
+	 */
+
+	public Observation merge(Observation other) {
+		return new Observation(rrname, rrtype, rdata, Math.min(firstSeen,
+				other.firstSeen), Math.max(lastSeen, other.lastSeen), count
+				+ other.count);
+	}
+
+	public String getRRName() {
+		return rrname;
+	}
+
+	public int getRRType() {
+		return rrtype;
+	}
+
+	public String getRRTypeString() {
+		return Type.string(rrtype);
+	}
+
+	/**
+	 * @return The rdata set packed as in the qualifier of the cell, see
+	 *         PdnsSchema.unpackRdata().
+	 */
+
+	public byte[] getPackedRdata() {
+		return rdata;
+	}
+
+	public List<String> getRdata() {
+		return PdnsSchema.unpackRdata(rdata, rrtype);
+	}
+
+	public long getFirstSeen() {
+		return firstSeen;
+	}
+
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
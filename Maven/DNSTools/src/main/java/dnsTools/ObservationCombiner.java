@@ -0,0 +1,163 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+
+/**
+ * In-mapper combining of repeated observations. Passive-DNS logs see the
+ * same rrset over and over, so instead of one cell per log line the
+ * observations of a (table, row, qualifier) in the same hour are collapsed
+ * into a single cell carrying first_seen, last_seen and count, see
+ * PdnsSchema.combinedValue(). As a combined cell never crosses an hour
+ * boundary, a time range selecting it by its last_seen is off by less than
+ * an hour, and a roll-up bucket takes it whole.
+ *
+ * The cells are kept in least recently observed order. When their
+ * estimated size goes over the memory budget the least recently observed
+ * ones are written out, so the names seen all the time stay in the table
+ * while the long tail goes through. flush() writes out the rest at the end
+ * of the task.
+ *
+ */
+
+public class ObservationCombiner {
+
+	/**
+	 * Receives the combined cells as they leave the table.
+	 */
+	public interface Output {
+		void write(int table, KeyValue kv) throws IOException,
+				InterruptedException;
+	}
+
+	// Rough per-cell cost of the map entry, the Cell and the arrays, on top
+	// of the row and qualifier bytes.
+	private final static int ENTRY_OVERHEAD = 200;
+
+	private final long memoryBudget;
+	private final Output output;
+
+	private final LinkedHashMap<Cell, Cell> cells = new LinkedHashMap<Cell, Cell>(
+			1024, 0.75f, true);
+	private long memoryUsed = 0;
+
+	private static final class Cell {
+		final int table;
+		final byte[] row;
+		final byte[] family;
+		final byte[] qualifier;
+		// Start of the hour of the observations.
+		final long hour;
+		final int hash;
+
+		long firstSeen;
+		long lastSeen;
+		long count;
+
+		Cell(int table, byte[] row, byte[] family, byte[] qualifier,
+				long hour) {
+			this.table = table;
+			this.row = row;
+			this.family = family;
+			this.qualifier = qualifier;
+			this.hour = hour;
+			this.hash = 31 * (31 * (31 * table + Arrays.hashCode(row))
+					+ Arrays.hashCode(qualifier)) + (int) (hour ^ (hour >>> 32));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Cell))
+				return false;
+			Cell other = (Cell) o;
+			return table == other.table && hour == other.hour
+					&& Arrays.equals(row, other.row)
+					&& Arrays.equals(qualifier, other.qualifier)
+					&& Arrays.equals(family, other.family);
+		}
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            Estimated number of bytes the cells may take before the
+	 *            least recently observed ones are written out.
+	 *
+	 * @param output
+	 *            Where the combined cells are written.
+	 */
+
+	public ObservationCombiner(long memoryBudget, Output output) {
+		this.memoryBudget = memoryBudget;
+		this.output = output;
+	}
+
+	/**
+	 * Count one observation of a cell.
+	 */
+
+	public void add(int table, byte[] row, byte[] family, byte[] qualifier,
+			long timestamp) throws IOException, InterruptedException {
+		Cell probe = new Cell(table, row, family, qualifier, Rollup.bucket(
+				timestamp, Rollup.HOUR));
+		Cell cell = cells.get(probe);
+		if (cell != null) {
+			cell.firstSeen = Math.min(cell.firstSeen, timestamp);
+			cell.lastSeen = Math.max(cell.lastSeen, timestamp);
+			cell.count++;
+			return;
+		}
+
+		probe.firstSeen = timestamp;
+		probe.lastSeen = timestamp;
+		probe.count = 1;
+		cells.put(probe, probe);
+		memoryUsed += size(probe);
+
+		Iterator<Cell> eldest = cells.keySet().iterator();
+		while (memoryUsed > memoryBudget && eldest.hasNext()) {
+			Cell evicted = eldest.next();
+			eldest.remove();
+			memoryUsed -= size(evicted);
+			write(evicted);
+		}
+	}
+
+	/**
+	 * Write out every cell still in the table.
+	 */
+
+	public void flush() throws IOException, InterruptedException {
+		for (Cell cell : cells.keySet())
+			write(cell);
+		cells.clear();
+		memoryUsed = 0;
+	}
+
+	/**
+	 * @return The number of cells in the table.
+	 */
+
+	public int size() {
+		return cells.size();
+	}
+
+	private static long size(Cell cell) {
+		return ENTRY_OVERHEAD + cell.row.length + cell.qualifier.length;
+	}
+
+	private void write(Cell cell) throws IOException, InterruptedException {
+		byte[] value = cell.count == 1 ? PdnsSchema.SINGLE_OBSERVATION
+				: PdnsSchema.combinedValue(cell.firstSeen, cell.count);
+		output.write(cell.table, new KeyValue(cell.row, cell.family,
+				cell.qualifier, cell.lastSeen, value));
+	}
+}
@@ -0,0 +1,14 @@
+package dnsTools;
+
+import java.io.IOException;
+
+/**
+ * Receives the observations of a query as they are read, so a caller can
+ * print or forward each one without holding the whole result.
+ *
+ */
+
+public interface ObservationHandler {
+
+	void observation(Observation observation) throws IOException;
+}
@@ -0,0 +1,77 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * Sorts the KeyValues of a row for HFileOutputFormat, like
+ * KeyValueSortReducer, and merges the cells that only differ by their
+ * value. KeyValue.COMPARATOR ignores the value, so the cells of the same
+ * rrset, rdata set and millisecond written by two map tasks, or by two log
+ * lines when combining is disabled, would otherwise be reduced to one and
+ * lose the count of the other. The merged cell holds the sum of the counts
+ * and the smallest first_seen, see PdnsSchema.combinedValue(). The cells
+ * merged away are counted in MERGED_CELLS.
+ *
+ */
+
+public class ObservationMergeReducer extends
+		Reducer<ImmutableBytesWritable, KeyValue, ImmutableBytesWritable, KeyValue> {
+
+	public final static String COUNTER_GROUP = "ObservationMergeReducer";
+
+	/**
+	 * @return The cells sorted by KeyValue.COMPARATOR, one per row, family,
+	 *         qualifier and version, with the counts of the equal cells
+	 *         added up.
+	 *
+	 * @param mergedCells
+	 *            Counts the cells merged into another one, or null.
+	 */
+
+	public static List<KeyValue> merge(Iterable<KeyValue> kvs,
+			Counter mergedCells) {
+		// Count and first_seen of each cell.
+		TreeMap<KeyValue, long[]> cells = new TreeMap<KeyValue, long[]>(
+				KeyValue.COMPARATOR);
+		for (KeyValue kv : kvs) {
+			long[] cell = cells.get(kv);
+			if (cell == null) {
+				cells.put(kv.clone(), new long[] { PdnsSchema.count(kv),
+						PdnsSchema.firstSeen(kv) });
+			} else {
+				if (mergedCells != null)
+					mergedCells.increment(1);
+				cell[0] += PdnsSchema.count(kv);
+				cell[1] = Math.min(cell[1], PdnsSchema.firstSeen(kv));
+			}
+		}
+
+		List<KeyValue> merged = new ArrayList<KeyValue>(cells.size());
+		for (Map.Entry<KeyValue, long[]> entry : cells.entrySet()) {
+			KeyValue kv = entry.getKey();
+			long[] cell = entry.getValue();
+			byte[] value = cell[0] == 1 ? PdnsSchema.SINGLE_OBSERVATION
+					: PdnsSchema.combinedValue(cell[1], cell[0]);
+			merged.add(new KeyValue(kv.getRow(), kv.getFamily(), kv
+					.getQualifier(), kv.getTimestamp(), value));
+		}
+		return merged;
+	}
+
+	@Override
+	protected void reduce(ImmutableBytesWritable row, Iterable<KeyValue> kvs,
+			Context context) throws IOException, InterruptedException {
+		for (KeyValue kv : merge(kvs, context.getCounter(COUNTER_GROUP,
+				"MERGED_CELLS")))
+			context.write(row, kv);
+	}
+}
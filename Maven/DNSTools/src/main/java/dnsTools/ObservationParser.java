@@ -0,0 +1,471 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Turns the lines of the DNS log into observations of the cells described
+ * by PdnsSchema and RdataIndex. It parses a line, decodes the embedded DNS
+ * packet and groups the DNS resource records of each section by rrname and
+ * rrtype. Each rrset of the ANSWER section is one observation of the cell
+ * of its rrname, rrtype and rdata set, and one of the index cell of each
+ * rdata, at the time of the log line. The rrsets of the AUTHORITY and
+ * ADDITIONAL sections are observations of the cells of the tables of these
+ * sections, see BulkLoaderMapper. The observations are handed over to a
+ * Sink, which is the MR output in BulkLoaderMapper and HBase mutations in
+ * StreamingIngester. Lines already converted to LogRecords skip the line
+ * splitting and hex decoding.
+ *
+ * The switches dnstools.answer.parser, dnstools.rdata.encoding and
+ * dnstools.sections of BulkLoaderMapper, and the row-key layout of
+ * PdnsSchema, are read from the configuration. An instance is not
+ * thread-safe.
+ *
+ */
+
+public class ObservationParser {
+
+	/**
+	 * Receives the observations of the parsed lines.
+	 */
+	public interface Sink {
+		void observe(int table, byte[] row, byte[] family, byte[] qualifier,
+				long timestamp) throws IOException, InterruptedException;
+	}
+
+	// Mininum numer of fields in a DNS resouce record.
+	private final static int MIN_RR_LENGTH = 4;
+
+	// Fields of a resource record in the text form of the message.
+	private final static int RRNAME_FIELD = 0;
+	private final static int RRTYPE_FIELD = 3;
+	private final static int RDATA_FIELD = 4;
+
+	private final boolean textParser;
+	private final boolean compactRdata;
+	private final boolean allSections;
+	private final boolean reversed;
+	private final MapperMetrics metrics;
+	private final Sink sink;
+
+	// Interned names and rdata of the record path.
+	private final NameDictionary names;
+
+	// Splits input lines and hex-decodes their packets without allocating.
+	private final LogLineParser lineParser = new LogLineParser();
+
+	// The first record and the rdata of each rrset of the current section,
+	// reused from one section to the next.
+	private final List<Record> rrsetRecords = new ArrayList<Record>();
+	private final List<LinkedList<byte[]>> rrsetRdata = new ArrayList<LinkedList<byte[]>>();
+
+	// Whether the current line was picked for debug logging.
+	private boolean sampled = false;
+
+	// Time of the current line in milliseconds.
+	private long timestamp;
+
+	public ObservationParser(Configuration conf, MapperMetrics metrics,
+			Sink sink) {
+		this.textParser = BulkLoaderMapper.ANSWER_PARSER_TEXT.equals(conf.get(
+				BulkLoaderMapper.ANSWER_PARSER_KEY,
+				BulkLoaderMapper.ANSWER_PARSER_RECORD));
+		this.compactRdata = BulkLoaderMapper.RDATA_ENCODING_COMPACT
+				.equals(conf.get(BulkLoaderMapper.RDATA_ENCODING_KEY,
+						BulkLoaderMapper.RDATA_ENCODING_TEXT));
+		this.allSections = BulkLoaderMapper.allSections(conf);
+		this.reversed = PdnsSchema.isReversed(conf);
+		this.metrics = metrics;
+		this.sink = sink;
+		this.names = NameDictionary.getInstance(conf);
+	}
+
+	private Message parsePacket(byte[] decodedPacket) {
+		try {
+			return new Message(decodedPacket);
+		} catch (Exception e) {
+			metrics.parseFailure(isTruncated(decodedPacket)
+					? MapperMetrics.ParseFailure.TRUNCATED_PACKET
+					: MapperMetrics.ParseFailure.MALFORMED_PACKET);
+			return null;
+		}
+	}
+
+	/**
+	 * Walk the records announced by the header of a packet that failed to
+	 * decode, without decoding them.
+	 *
+	 * @return True if the packet ends before the header or one of these
+	 *         records does.
+	 */
+
+	static boolean isTruncated(byte[] packet) {
+		if (packet.length < Header.LENGTH)
+			return true;
+		int pos = Header.LENGTH;
+		for (int section = 0; section < 4; section++) {
+			int count = (packet[4 + 2 * section] & 0xff) << 8
+					| (packet[5 + 2 * section] & 0xff);
+			for (int i = 0; i < count; i++) {
+				pos = skipName(packet, pos);
+				if (pos < 0)
+					return pos == TRUNCATED;
+				// Type and class, then ttl and rdata length but in the
+				// question section.
+				pos += 4;
+				if (section != Section.QUESTION) {
+					if (pos + 6 > packet.length)
+						return true;
+					pos += 6 + ((packet[pos + 4] & 0xff) << 8
+							| (packet[pos + 5] & 0xff));
+				}
+				if (pos > packet.length)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	// Returned by skipName() for a name running past the end of the packet,
+	// or holding an unknown label type.
+	private final static int TRUNCATED = -1;
+	private final static int BAD_LABEL = -2;
+
+	/**
+	 * @return The position after the (possibly compressed) name at pos.
+	 */
+
+	private static int skipName(byte[] packet, int pos) {
+		while (true) {
+			if (pos >= packet.length)
+				return TRUNCATED;
+			int length = packet[pos] & 0xff;
+			if (length == 0)
+				return pos + 1;
+			if ((length & 0xc0) == 0xc0)
+				return pos + 2 > packet.length ? TRUNCATED : pos + 2;
+			if ((length & 0xc0) != 0)
+				return BAD_LABEL;
+			pos += 1 + length;
+		}
+	}
+
+	/**
+	 * Split the text form of the resource records in an ANSWER section into
+	 * their fields and write them to HBase. Nothing is written if the records
+	 * do not all share the same rrname and rrtype.
+	 * 
+	 * @param rrecord_list
+	 *            The resource records as rendered by Message.toString().
+	 */
+
+	private void writeTextAnswer(LinkedList<String> rrecord_list) throws IOException, InterruptedException {
+		
+		if (rrecord_list.isEmpty())
+			return;
+
+		String rrtype = null;
+		String rrname = null;
+		
+		String[] rrFields = null;
+		LinkedList<byte[]> rdata_list = new LinkedList<>();
+		for (String rrecord: rrecord_list) {
+			rrFields = rrecord.trim().split("[ \t]+");
+
+			if (rrFields.length < MIN_RR_LENGTH) {
+				metrics.parseFailure(MapperMetrics.ParseFailure.MALFORMED_PACKET);
+				return;
+			}
+
+			metrics.answer(rrFields[RRTYPE_FIELD]);
+
+			if (rrname != null) {
+				if (!rrFields[RRNAME_FIELD].equals(rrname)) {
+					metrics.parseFailure(MapperMetrics.ParseFailure.RRNAME_MISMATCH);
+					return;
+				}
+			}
+			else
+				rrname = rrFields[RRNAME_FIELD];
+
+			if (rrtype != null) {
+				if (!rrFields[RRTYPE_FIELD].equals(rrtype)) {
+					metrics.parseFailure(MapperMetrics.ParseFailure.RRTYPE_MISMATCH);
+					return;
+				}
+			}
+			else
+				rrtype = rrFields[RRTYPE_FIELD];
+			
+			rdata_list.add(rrFields[RDATA_FIELD].getBytes());
+
+			if (sampled)
+				metrics.debug("answer: " + rrecord);
+		}
+
+		int type = Type.value(rrtype);
+		if (type < 0) {
+			metrics.parseFailure(MapperMetrics.ParseFailure.MALFORMED_PACKET);
+			return;
+		}
+
+		hbase_write(BulkLoaderMapper.RRSET_TABLE, PdnsSchema.nameBytes(rrname,
+				reversed), type, rdata_list);
+	}
+
+	/**
+	 * Write the resource records of a decoded section to HBase without going
+	 * through the text form of the message, one rrset per rrname and rrtype
+	 * in the order they first appear. An ANSWER section with a CNAME chain
+	 * thus gives the rrset of each link.
+	 * 
+	 * Unlike the text path, which keeps only the first whitespace separated
+	 * token of the rdata, the full rdata is stored (e.g. "10 mx.example.com."
+	 * rather than "10" for an MX record).
+	 * 
+	 * @param section
+	 *            The section, see org.xbill.DNS.Section.
+	 * 
+	 * @param records
+	 *            The records of the section.
+	 */
+
+	private void writeSection(int section, Record[] records)
+			throws IOException, InterruptedException {
+
+		if (records.length == 0)
+			return;
+
+		rrsetRecords.clear();
+		rrsetRdata.clear();
+		for (Record record: records) {
+			int type = record.getType();
+			if (section == Section.ANSWER)
+				metrics.answer(Type.string(type));
+			// Pseudo-records of the ADDITIONAL section, not DNS data.
+			if (type == Type.OPT || type == Type.TSIG)
+				continue;
+
+			// There are few rrsets in a section, most often one.
+			int i = 0;
+			while (i < rrsetRecords.size()
+					&& (rrsetRecords.get(i).getType() != type || !rrsetRecords
+							.get(i).getName().equals(record.getName())))
+				i++;
+			if (i == rrsetRecords.size()) {
+				rrsetRecords.add(record);
+				rrsetRdata.add(new LinkedList<byte[]>());
+			}
+			rrsetRdata.get(i).add(names.bytes(record.rdataToString()));
+
+			if (sampled)
+				metrics.debug(Section.longString(section) + ": " + record);
+		}
+
+		int table = section == Section.ANSWER ? BulkLoaderMapper.RRSET_TABLE
+				: section == Section.AUTHORITY ? BulkLoaderMapper.AUTHORITY_TABLE
+						: BulkLoaderMapper.ADDITIONAL_TABLE;
+		for (int i = 0; i < rrsetRecords.size(); i++) {
+			Record first = rrsetRecords.get(i);
+			metrics.rrset(section);
+			hbase_write(table, names.nameBytes(first.getName(), reversed),
+					first.getType(), rrsetRdata.get(i));
+		}
+	}
+
+	/**
+	 * Emit one observation of an rrset: a cell in the row of the rrname and
+	 * rrtype, whose qualifier is the packed rdata set and whose version is
+	 * the time of the current line. Each rdata of an ANSWER rrset also gets a
+	 * cell in the index row of the rdata and rrname, unless that row-key is
+	 * too long for HBase.
+	 * 
+	 * @param table
+	 *            The index of the table of the section in BulkLoaderMapper.
+	 * 
+	 * @param name
+	 *            The rrname, as given by PdnsSchema.nameBytes() for the
+	 *            layout of the tables.
+	 */
+
+	private void hbase_write(int table, byte[] name, int rrtype,
+			LinkedList<byte[]> rdata_list) throws IOException, InterruptedException {
+
+		if (rdata_list.isEmpty())
+			return;
+
+		byte[] row = PdnsSchema.rowKey(name, rrtype);
+		byte[] qualifier = compactRdata ? CompactRdata.pack(rrtype,
+				rdata_list) : PdnsSchema.packRdata(rdata_list);
+		sink.observe(table, row, PdnsSchema.FAMILY, qualifier, timestamp);
+		if (table != BulkLoaderMapper.RRSET_TABLE)
+			return;
+
+		for (byte[] rdata: rdata_list) {
+			byte[] rdataKey = RdataIndex.rdataKey(rrtype, names.string(rdata));
+			if (rdataKey == null)
+				continue;
+
+			byte[] indexRow = RdataIndex.rowKey(rdataKey, name);
+			if (!RdataIndex.fits(indexRow)) {
+				metrics.oversizedIndexKey();
+				continue;
+			}
+
+			sink.observe(BulkLoaderMapper.RDATA_TABLE, indexRow,
+					RdataIndex.FAMILY, RdataIndex.QUALIFIER, timestamp);
+		}
+	}
+
+	private enum ParseState {
+		PARSE_START, ANSWER_START, ANSWER_END;
+	}
+
+	/**
+	 * Parse a line of the input file and decode the embedded DNS packet.
+	 * Hand the observations of every rrset of the decoded packet over to
+	 * the sink: those of the ANSWER section to the rrset table and the
+	 * index, those of the AUTHORITY and ADDITIONAL sections to their own
+	 * tables when dnstools.sections is all.
+	 * 
+	 * @param line
+	 *            The UTF-8 bytes of a single line of the input file, without
+	 *            the line terminator.
+	 * 
+	 * @param length
+	 *            The number of valid bytes in the array.
+	 */
+
+	public void parse(byte[] line, int length) throws IOException,
+			InterruptedException {
+
+		// Locate the space or tab seperated fields of the line and decode
+		// the hex-encoded DNS packet straight from the line buffer.
+		sampled = metrics.sampleLine();
+		LogLineParser.Status status = lineParser.parse(line, length);
+
+		// Skip mal-formed lines.
+		if (status == LogLineParser.Status.BAD_FIELD_COUNT) {
+			metrics.parseFailure(MapperMetrics.ParseFailure.WRONG_FIELD_COUNT);
+			return;
+		}
+
+		if (status == LogLineParser.Status.BAD_HEX) {
+			metrics.parseFailure(MapperMetrics.ParseFailure.BAD_HEX);
+			return;
+		}
+
+		timestamp = Tai64n.toMillis(line,
+				lineParser.getFieldStart(LogLineParser.FIELD_TIMESTAMP),
+				lineParser.getFieldEnd(LogLineParser.FIELD_TIMESTAMP));
+		if (timestamp < 0) {
+			metrics.parseFailure(MapperMetrics.ParseFailure.BAD_TIMESTAMP);
+			return;
+		}
+
+		if (sampled)
+			metrics.debug("line: " + lineParser.getField(LogLineParser.FIELD_TIMESTAMP)
+					+ " " + lineParser.getField(LogLineParser.FIELD_SRC_IP));
+
+		decode(lineParser.getPacket());
+	}
+
+	/**
+	 * Decode the DNS packet of a record converted by LogConverter, and hand
+	 * the observations of its rrsets over to the sink, as parse() does for
+	 * a line.
+	 */
+
+	public void parse(LogRecord record) throws IOException,
+			InterruptedException {
+		sampled = metrics.sampleLine();
+		timestamp = record.getTimestampMillis();
+
+		if (sampled)
+			metrics.debug("record: " + timestamp + " "
+					+ record.getSourceString());
+
+		decode(record.getPacket());
+	}
+
+	private void decode(byte[] decodedPacket) throws IOException,
+			InterruptedException {
+
+		// Decode the DNS packet.
+		Message packet = parsePacket(decodedPacket);
+		if (packet == null)
+			return;
+
+		if (!textParser) {
+			// Every section from the same decoded message.
+			Record[] answers = packet.getSectionArray(Section.ANSWER);
+			metrics.answerCount(answers.length);
+			writeSection(Section.ANSWER, answers);
+			if (allSections) {
+				writeSection(Section.AUTHORITY, packet
+						.getSectionArray(Section.AUTHORITY));
+				writeSection(Section.ADDITIONAL, packet
+						.getSectionArray(Section.ADDITIONAL));
+			}
+			return;
+		}
+
+		ParseState state = ParseState.PARSE_START;
+		LinkedList<String> rrecord_list = null;
+		if (packet != null) {
+
+			StringTokenizer st = new StringTokenizer(packet.toString(), "\n");
+			while (st.hasMoreTokens()) {
+
+				// The resouce record.
+				String rrecord = st.nextToken();
+
+				if (rrecord.trim().equals(""))
+					continue;
+
+				// Parse the resource record looking for the ANSWERS section.
+				// For each resource record in this section emit the
+				// corresponding
+				// key-value pairs.
+				switch (state) {
+				case PARSE_START:
+					if (rrecord.trim().startsWith(";; ANSWERS")) {
+						state = ParseState.ANSWER_START;
+						rrecord_list = new LinkedList<String>();
+					}
+					break;
+
+				case ANSWER_START:
+					if (rrecord.trim().startsWith(";;")) {
+						state = ParseState.ANSWER_END;
+						metrics.answerCount(rrecord_list.size());
+						writeTextAnswer(rrecord_list);
+						break;
+					}
+
+					rrecord_list.add(rrecord);
+					break;
+
+				case ANSWER_END:
+				default:
+					break;
+				}
+
+				if (state == ParseState.ANSWER_END)
+					break;
+
+			}
+
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package dnsTools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The summarized cells PdnsAggregateEndpoint returns for a region: one
+ * (row, qualifier, first_seen, last_seen, count) tuple per column, in scan
+ * order, instead of every version of it.
+ *
+ */
+
+public class ObservationSummaries implements Writable {
+
+	private final List<byte[]> rows = new ArrayList<byte[]>();
+	private final List<byte[]> qualifiers = new ArrayList<byte[]>();
+	private long[] firstSeen = new long[16];
+	private long[] lastSeen = new long[16];
+	private long[] counts = new long[16];
+
+	public void add(byte[] row, byte[] qualifier, long first, long last,
+			long count) {
+		int i = rows.size();
+		if (i == counts.length) {
+			firstSeen = Arrays.copyOf(firstSeen, 2 * i);
+			lastSeen = Arrays.copyOf(lastSeen, 2 * i);
+			counts = Arrays.copyOf(counts, 2 * i);
+		}
+		rows.add(row);
+		qualifiers.add(qualifier);
+		firstSeen[i] = first;
+		lastSeen[i] = last;
+		counts[i] = count;
+	}
+
+	public int size() {
+		return rows.size();
+	}
+
+	public byte[] getRow(int i) {
+		return rows.get(i);
+	}
+
+	public byte[] getQualifier(int i) {
+		return qualifiers.get(i);
+	}
+
+	public long getFirstSeen(int i) {
+		return firstSeen[i];
+	}
+
+	public long getLastSeen(int i) {
+		return lastSeen[i];
+	}
+
+	public long getCount(int i) {
+		return counts[i];
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			Bytes.writeByteArray(out, rows.get(i));
+			Bytes.writeByteArray(out, qualifiers.get(i));
+			WritableUtils.writeVLong(out, firstSeen[i]);
+			WritableUtils.writeVLong(out, lastSeen[i] - firstSeen[i]);
+			WritableUtils.writeVLong(out, counts[i]);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		rows.clear();
+		qualifiers.clear();
+		int size = WritableUtils.readVInt(in);
+		for (int i = 0; i < size; i++) {
+			byte[] row = Bytes.readByteArray(in);
+			byte[] qualifier = Bytes.readByteArray(in);
+			long first = WritableUtils.readVLong(in);
+			long last = first + WritableUtils.readVLong(in);
+			add(row, qualifier, first, last, WritableUtils.readVLong(in));
+		}
+	}
+}
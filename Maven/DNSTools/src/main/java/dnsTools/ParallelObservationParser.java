@@ -0,0 +1,252 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+
+/**
+ * Runs ObservationParser on a pool of threads, for map tasks whose packet
+ * decoding keeps one core busy. Unlike Hadoop's MultithreadedMapper the
+ * lines are handed over in batches, and the observations of each batch are
+ * passed to the sink on the calling thread, in the order of the input
+ * lines. The sink therefore needs no locking and the map output is the
+ * same as with a single thread.
+ *
+ * Each thread has its own parser and counts into counters of its own, as
+ * the task counters are not thread-safe. They are added up by
+ * getCounters() once the input is done.
+ *
+ */
+
+public class ParallelObservationParser {
+
+	/**
+	 * An observation waiting to be passed to the sink.
+	 */
+	private static class Observed {
+		final int table;
+		final byte[] row;
+		final byte[] family;
+		final byte[] qualifier;
+		final long timestamp;
+
+		Observed(int table, byte[] row, byte[] family, byte[] qualifier,
+				long timestamp) {
+			this.table = table;
+			this.row = row;
+			this.family = family;
+			this.qualifier = qualifier;
+			this.timestamp = timestamp;
+		}
+	}
+
+	/**
+	 * A batch of input lines or LogRecords and, once parsed, their
+	 * observations.
+	 */
+	private static class Batch {
+		final Object[] inputs;
+		int size = 0;
+		final List<Observed> observations = new ArrayList<Observed>();
+
+		Batch(int capacity) {
+			inputs = new Object[capacity];
+		}
+	}
+
+	/**
+	 * The parser of a pool thread.
+	 */
+	private class Worker implements ObservationParser.Sink {
+		final Counters counters = new Counters();
+		final ObservationParser parser = new ObservationParser(conf,
+				new MapperMetrics(conf, counters), this);
+		Batch batch;
+
+		void parse(Batch batch) throws IOException, InterruptedException {
+			this.batch = batch;
+			for (int i = 0; i < batch.size; i++) {
+				Object input = batch.inputs[i];
+				if (input instanceof LogRecord) {
+					parser.parse((LogRecord) input);
+				} else {
+					byte[] line = (byte[]) input;
+					parser.parse(line, line.length);
+				}
+			}
+			this.batch = null;
+		}
+
+		@Override
+		public void observe(int table, byte[] row, byte[] family,
+				byte[] qualifier, long timestamp) {
+			batch.observations.add(new Observed(table, row, family,
+					qualifier, timestamp));
+		}
+	}
+
+	private final Configuration conf;
+	private final ObservationParser.Sink sink;
+	private final int batchLines;
+	private final int maxPending;
+
+	private final ExecutorService pool;
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			Worker w = new Worker();
+			synchronized (workers) {
+				workers.add(w);
+			}
+			return w;
+		}
+	};
+
+	// Batches handed over to the pool, oldest first.
+	private final ArrayDeque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+	private Batch batch;
+
+	/**
+	 * @param threads
+	 *            Number of parsing threads.
+	 *
+	 * @param batchLines
+	 *            Number of lines handed over to a thread at once.
+	 *
+	 * @param sink
+	 *            Receives the observations, on the thread calling parse()
+	 *            and flush().
+	 */
+
+	public ParallelObservationParser(Configuration conf, int threads,
+			int batchLines, ObservationParser.Sink sink) {
+		this.conf = conf;
+		this.sink = sink;
+		this.batchLines = batchLines;
+		// Enough batches to keep every thread busy while the oldest one is
+		// passed to the sink.
+		this.maxPending = 2 * threads;
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "observation parser");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.batch = new Batch(batchLines);
+	}
+
+	/**
+	 * Add a line to the current batch. The line is copied.
+	 */
+
+	public void parse(byte[] line, int length) throws IOException,
+			InterruptedException {
+		add(Arrays.copyOf(line, length));
+	}
+
+	/**
+	 * Add a record to the current batch. The record is copied.
+	 */
+
+	public void parse(LogRecord record) throws IOException,
+			InterruptedException {
+		add(new LogRecord(record));
+	}
+
+	private void add(Object input) throws IOException, InterruptedException {
+		batch.inputs[batch.size++] = input;
+		if (batch.size == batchLines)
+			submit();
+	}
+
+	private void submit() throws IOException, InterruptedException {
+		final Batch submitted = batch;
+		batch = new Batch(batchLines);
+		pending.add(pool.submit(new Callable<Batch>() {
+			@Override
+			public Batch call() throws Exception {
+				worker.get().parse(submitted);
+				return submitted;
+			}
+		}));
+
+		// Pass on the batches already parsed, waiting for the oldest one
+		// when too many are queued.
+		while (!pending.isEmpty()
+				&& (pending.size() >= maxPending || pending.peek().isDone()))
+			deliver(pending.poll());
+	}
+
+	private void deliver(Future<Batch> future) throws IOException,
+			InterruptedException {
+		Batch parsed;
+		try {
+			parsed = future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+		for (Observed o : parsed.observations)
+			sink.observe(o.table, o.row, o.family, o.qualifier, o.timestamp);
+	}
+
+	/**
+	 * Parse the lines of the current batch and pass on all the pending
+	 * observations.
+	 */
+
+	public void flush() throws IOException, InterruptedException {
+		if (batch.size > 0)
+			submit();
+		while (!pending.isEmpty())
+			deliver(pending.poll());
+	}
+
+	/**
+	 * Stop the threads. Pending lines are dropped, call flush() first.
+	 */
+
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @return The counters of all the threads added up.
+	 */
+
+	public Counters getCounters() {
+		Counters total = new Counters();
+		synchronized (workers) {
+			for (Worker w : workers) {
+				for (CounterGroup group : w.counters) {
+					for (Counter counter : group)
+						total.findCounter(group.getName(), counter.getName())
+								.increment(counter.getValue());
+				}
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,122 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Region endpoint that computes first_seen, last_seen and count of every
+ * column next to the data, so only one tuple per rdata set (or per rrname
+ * of the reverse index) crosses the wire instead of one cell per
+ * observation.
+ *
+ * The endpoint is loaded per table, e.g. from the hbase shell:
+ *
+ *   alter 'table1', METHOD => 'table_att', 'coprocessor' =>
+ *       'hdfs:///user/hbase/QueryTool-1.0-SNAPSHOT-job.jar|dnsTools.PdnsAggregateEndpoint|1001|'
+ *
+ * and is used by HBaseQueryBackend when the table descriptor has it.
+ *
+ */
+
+public class PdnsAggregateEndpoint extends BaseEndpointCoprocessor implements
+		PdnsAggregateProtocol {
+
+	@Override
+	public ObservationSummaries summarize(Scan scan) throws IOException {
+		InternalScanner scanner = ((RegionCoprocessorEnvironment) getEnvironment())
+				.getRegion().getScanner(scan);
+		ObservationSummaries summaries = new ObservationSummaries();
+		List<KeyValue> kvs = new ArrayList<KeyValue>();
+		try {
+			// The versions of a column are adjacent, possibly split over
+			// several batches.
+			KeyValue column = null;
+			long firstSeen = 0;
+			long lastSeen = 0;
+			long count = 0;
+			boolean more;
+			do {
+				kvs.clear();
+				more = scanner.next(kvs);
+				for (KeyValue kv : kvs) {
+					if (column != null && column.matchingRow(kv)
+							&& column.matchingQualifier(kv)) {
+						firstSeen = Math.min(firstSeen,
+								PdnsSchema.firstSeen(kv));
+						lastSeen = Math.max(lastSeen,
+								PdnsSchema.lastSeen(kv));
+						count += PdnsSchema.count(kv);
+						continue;
+					}
+					if (column != null)
+						summaries.add(column.getRow(), column.getQualifier(),
+								firstSeen, lastSeen, count);
+					column = kv;
+					firstSeen = PdnsSchema.firstSeen(kv);
+					lastSeen = PdnsSchema.lastSeen(kv);
+					count = PdnsSchema.count(kv);
+				}
+			} while (more);
+			if (column != null)
+				summaries.add(column.getRow(), column.getQualifier(),
+						firstSeen, lastSeen, count);
+		} finally {
+			scanner.close();
+		}
+		return summaries;
+	}
+
+	/**
+	 * Run a scan through the endpoint of every region it covers.
+	 *
+	 * @return The non-empty summaries of each region, in row order.
+	 */
+
+	public static List<ObservationSummaries> summarize(HTableInterface table,
+			final Scan scan) throws IOException {
+		Map<byte[], ObservationSummaries> results;
+		try {
+			results = table.coprocessorExec(PdnsAggregateProtocol.class,
+					scan.getStartRow(), scan.getStopRow(),
+					new Batch.Call<PdnsAggregateProtocol, ObservationSummaries>() {
+						@Override
+						public ObservationSummaries call(
+								PdnsAggregateProtocol instance)
+								throws IOException {
+							return instance.summarize(scan);
+						}
+					});
+		} catch (Throwable e) {
+			if (e instanceof IOException)
+				throw (IOException) e;
+			throw new IOException(e);
+		}
+		// The results are keyed by region name, which does not sort like the
+		// start keys when they hold bytes below ','.
+		List<ObservationSummaries> summaries = new ArrayList<ObservationSummaries>();
+		for (ObservationSummaries summary : results.values()) {
+			if (summary.size() > 0)
+				summaries.add(summary);
+		}
+		Collections.sort(summaries, new Comparator<ObservationSummaries>() {
+			@Override
+			public int compare(ObservationSummaries a, ObservationSummaries b) {
+				return Bytes.compareTo(a.getRow(0), b.getRow(0));
+			}
+		});
+		return summaries;
+	}
+}
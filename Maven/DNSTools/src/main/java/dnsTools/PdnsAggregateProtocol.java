@@ -0,0 +1,22 @@
+package dnsTools;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * Server-side first_seen/last_seen/count aggregation of the passive-DNS and
+ * reverse index tables, see PdnsAggregateEndpoint.
+ *
+ */
+
+public interface PdnsAggregateProtocol extends CoprocessorProtocol {
+
+	/**
+	 * Summarize the versions of each column returned by the scan in the
+	 * region.
+	 */
+
+	ObservationSummaries summarize(Scan scan) throws IOException;
+}
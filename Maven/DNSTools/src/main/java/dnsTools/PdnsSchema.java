@@ -0,0 +1,351 @@
+package dnsTools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Layout of the passive-DNS table written by BulkLoader.
+ * 
+ * Row-key: the lower-cased rrname, a 0 byte and the 2-byte rrtype code, so
+ * all rrsets of a name are adjacent and can be read with one prefix scan.
+ * Tables created with the reversed layout (the default, recorded in the
+ * dnstools.rowkey.layout attribute of the table) hold the labels of the
+ * rrname in reverse order, com.google.www. for www.google.com., so all the
+ * names of a zone are adjacent too and "*.google.com" is one prefix scan.
+ * Tables without the attribute use the forward layout.
+ * 
+ * Column: one column per distinct rdata set in family "cf". The qualifier is
+ * the packed rdata set, i.e. a 4-byte count followed by a 4-byte length and
+ * the bytes of each rdata, sorted so that the same set always gives the
+ * same qualifier. Tables loaded with dnstools.rdata.encoding=compact use the
+ * typed encoding of CompactRdata instead; unpackRdata() reads both.
+ * 
+ * Version: each observation of an rrset is a cell whose timestamp is the
+ * TAI64N time of the log line. Later observations add versions instead of
+ * overwriting earlier ones, so first_seen, last_seen and the observation
+ * count of each rdata set are read back with a time-bounded Get or Scan.
+ * The column family must therefore keep all versions, see load_data.sh.
+ * 
+ * HBase keeps one cell per row, column and version, so the observations of
+ * an rdata set in the same millisecond must reach it as one cell. A bulk
+ * load merges them in ObservationMergeReducer, counted in its MERGED_CELLS
+ * counter, whether or not the mapper combines. The cells of two loads
+ * overlapping in time, and the Puts of StreamingIngester, are not merged
+ * with the cells already in the table: a cell written again in the same
+ * millisecond replaces the earlier one and its count. The counts read back
+ * are then a lower bound.
+ * 
+ * Value: empty for a single observation. BulkLoaderMapper combines the
+ * repeated observations of a cell seen by a map task, see
+ * ObservationCombiner, in which case the version is the last_seen of the
+ * observations and the value holds their 8-byte count followed by the
+ * 8-byte first_seen. A time range therefore selects combined cells by
+ * their last_seen; the observations of a combined cell all fall in the hour
+ * of its last_seen. The cells of the roll-up tables (see Rollup) are
+ * stamped with the start of their hour or day and add the 8-byte
+ * last_seen.
+ * 
+ */
+
+public class PdnsSchema {
+
+	public final static byte[] FAMILY = Bytes.toBytes("cf");
+
+	// Separates the rrname from the rrtype in the row-key. It sorts before
+	// every character of a domain name.
+	public final static byte SEPARATOR = 0;
+
+	// Value of a cell holding a single observation.
+	public final static byte[] SINGLE_OBSERVATION = new byte[0];
+
+	// Length of the value of a cell combining several observations.
+	private final static int COMBINED_VALUE_LENGTH = 16;
+
+	// Length of the value of a roll-up cell.
+	private final static int ROLLUP_VALUE_LENGTH = 24;
+
+	// Table attribute, and configuration key of the tables to create,
+	// naming the order of the labels of the rrname in the row-keys.
+	public final static String LAYOUT_KEY = "dnstools.rowkey.layout";
+
+	// www.google.com. in the row-key, as in tables loaded before the
+	// attribute.
+	public final static String LAYOUT_FORWARD = "forward";
+
+	// com.google.www. in the row-key.
+	public final static String LAYOUT_REVERSED = "reversed";
+
+	// Prefix of a wildcard rrname matching the subdomains of a zone.
+	public final static String WILDCARD = "*.";
+
+	/**
+	 * @return True if the tables to load use the reversed layout, the
+	 *         default for new tables.
+	 */
+
+	public static boolean isReversed(Configuration conf) {
+		return LAYOUT_REVERSED.equals(conf.get(LAYOUT_KEY, LAYOUT_REVERSED));
+	}
+
+	/**
+	 * @return The value of the layout attribute.
+	 */
+
+	public static String layout(boolean reversed) {
+		return reversed ? LAYOUT_REVERSED : LAYOUT_FORWARD;
+	}
+
+	/**
+	 * @return True if a table uses the reversed layout.
+	 */
+
+	public static boolean isReversed(HTableDescriptor descriptor) {
+		return LAYOUT_REVERSED.equals(descriptor.getValue(LAYOUT_KEY));
+	}
+
+	/**
+	 * @return The name with its labels in reverse order, e.g.
+	 *         "com.google.www." for "www.google.com.". Escaped dots do not
+	 *         separate labels, and a relative name stays relative.
+	 */
+
+	public static String reverseName(String name) {
+		List<String> labels = new ArrayList<String>();
+		StringBuilder label = new StringBuilder();
+		boolean absolute = false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '\\' && i + 1 < name.length()) {
+				label.append(c).append(name.charAt(++i));
+			} else if (c == '.') {
+				labels.add(label.toString());
+				label.setLength(0);
+				absolute = i == name.length() - 1;
+			} else {
+				label.append(c);
+			}
+		}
+		if (!absolute)
+			labels.add(label.toString());
+
+		StringBuilder reversed = new StringBuilder(name.length());
+		for (int i = labels.size() - 1; i >= 0; i--) {
+			reversed.append(labels.get(i));
+			if (i > 0)
+				reversed.append('.');
+		}
+		if (absolute)
+			reversed.append('.');
+		return reversed.toString();
+	}
+
+	/**
+	 * Normalize an rrname before it is used in a row-key.
+	 */
+
+	public static byte[] nameBytes(String rrname) {
+		return Bytes.toBytes(rrname.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Normalize an rrname, with its labels reversed for the reversed layout.
+	 */
+
+	public static byte[] nameBytes(String rrname, boolean reversed) {
+		return nameBytes(reversed ? reverseName(rrname) : rrname);
+	}
+
+	public static byte[] rowKey(String rrname, int rrtype) {
+		return rowKey(nameBytes(rrname), rrtype);
+	}
+
+	public static byte[] rowKey(String rrname, int rrtype, boolean reversed) {
+		return rowKey(nameBytes(rrname, reversed), rrtype);
+	}
+
+	public static byte[] rowKey(byte[] rrname, int rrtype) {
+		byte[] row = new byte[rrname.length + 3];
+		System.arraycopy(rrname, 0, row, 0, rrname.length);
+		row[rrname.length] = SEPARATOR;
+		row[rrname.length + 1] = (byte) (rrtype >> 8);
+		row[rrname.length + 2] = (byte) rrtype;
+		return row;
+	}
+
+	/**
+	 * @return The prefix shared by the row-keys of all rrtypes of a name.
+	 */
+
+	public static byte[] rowPrefix(String rrname) {
+		return Bytes.add(nameBytes(rrname), new byte[] { SEPARATOR });
+	}
+
+	public static byte[] rowPrefix(String rrname, boolean reversed) {
+		return Bytes.add(nameBytes(rrname, reversed), new byte[] { SEPARATOR });
+	}
+
+	/**
+	 * @return The first row-key of the subdomains of a zone in a table with
+	 *         the reversed layout, e.g. for "google.com.": "com.google."
+	 *         followed by a byte above the separator, which skips the rows
+	 *         of the zone's own name. The prefix scan stops at
+	 *         stopRow(subdomainPrefix(zone)).
+	 */
+
+	public static byte[] subdomainStartRow(String zone) {
+		return Bytes.add(subdomainPrefix(zone), new byte[] { SEPARATOR + 1 });
+	}
+
+	/**
+	 * @return The prefix of the row-keys of the subdomains of a zone in a
+	 *         table with the reversed layout, e.g. "com.google.".
+	 */
+
+	public static byte[] subdomainPrefix(String zone) {
+		if (!zone.endsWith("."))
+			zone = zone + ".";
+		return zone.equals(".") ? new byte[0] : nameBytes(zone, true);
+	}
+
+	/**
+	 * @return The smallest row-key greater than all keys with the prefix,
+	 *         for use as the stop row of a prefix scan.
+	 */
+
+	public static byte[] stopRow(byte[] prefix) {
+		byte[] stop = Arrays.copyOf(prefix, prefix.length);
+		for (int i = stop.length - 1; i >= 0; i--) {
+			if (stop[i] != (byte) 0xff) {
+				stop[i]++;
+				return Bytes.head(stop, i + 1);
+			}
+		}
+		// All 0xff, scan to the end of the table.
+		return new byte[0];
+	}
+
+	public static String rrname(byte[] row) {
+		// Interned, as the readers decode it from every cell of a row.
+		return NameDictionary.getInstance(null).string(row, 0, row.length - 3);
+	}
+
+	public static String rrname(byte[] row, boolean reversed) {
+		return reversed ? reverseName(rrname(row)) : rrname(row);
+	}
+
+	public static int rrtype(byte[] row) {
+		return ((row[row.length - 2] & 0xff) << 8) | (row[row.length - 1] & 0xff);
+	}
+
+	/**
+	 * @return The value of a cell combining count observations, the first
+	 *         of which was at firstSeen.
+	 */
+
+	public static byte[] combinedValue(long firstSeen, long count) {
+		byte[] value = new byte[COMBINED_VALUE_LENGTH];
+		Bytes.putLong(value, Bytes.putLong(value, 0, count), firstSeen);
+		return value;
+	}
+
+	/**
+	 * @return The value of a roll-up cell combining count observations seen
+	 *         from firstSeen to lastSeen.
+	 */
+
+	public static byte[] rollupValue(long firstSeen, long lastSeen, long count) {
+		byte[] value = new byte[ROLLUP_VALUE_LENGTH];
+		Bytes.putLong(value, Bytes.putLong(value, Bytes.putLong(value, 0,
+				count), firstSeen), lastSeen);
+		return value;
+	}
+
+	/**
+	 * @return The number of observations in a cell.
+	 */
+
+	public static long count(KeyValue kv) {
+		if (kv.getValueLength() < COMBINED_VALUE_LENGTH)
+			return 1;
+		return Bytes.toLong(kv.getBuffer(), kv.getValueOffset());
+	}
+
+	/**
+	 * @return The first_seen of the observations in a cell.
+	 */
+
+	public static long firstSeen(KeyValue kv) {
+		if (kv.getValueLength() < COMBINED_VALUE_LENGTH)
+			return kv.getTimestamp();
+		return Bytes.toLong(kv.getBuffer(), kv.getValueOffset() + 8);
+	}
+
+	/**
+	 * @return The last_seen of the observations in a cell, its version
+	 *         unless it is a roll-up cell.
+	 */
+
+	public static long lastSeen(KeyValue kv) {
+		if (kv.getValueLength() < ROLLUP_VALUE_LENGTH)
+			return kv.getTimestamp();
+		return Bytes.toLong(kv.getBuffer(), kv.getValueOffset() + 16);
+	}
+
+	/**
+	 * Pack an rdata set as a 4-byte count followed by a 4-byte length and the
+	 * bytes of each rdata. The list is sorted in place.
+	 */
+
+	public static byte[] packRdata(List<byte[]> rdata_list) {
+		Collections.sort(rdata_list, Bytes.BYTES_COMPARATOR);
+
+		int total_len = 0;
+		for (byte[] rdata_: rdata_list) {
+			total_len += rdata_.length;
+		}
+		byte[] rdata_byte_array = new byte[4 * (1 + rdata_list.size()) + total_len];
+		int pos = Bytes.putInt(rdata_byte_array, 0, rdata_list.size());
+		for (byte[] rdata_: rdata_list) {
+			pos = Bytes.putInt(rdata_byte_array, pos, rdata_.length);
+			pos = Bytes.putBytes(rdata_byte_array, pos, rdata_, 0, rdata_.length);
+		}
+		return rdata_byte_array;
+	}
+
+	/**
+	 * Unpack the qualifier of a cell of the given rrtype, whether it was
+	 * packed by packRdata() or by CompactRdata.pack().
+	 */
+
+	public static List<String> unpackRdata(byte[] packed, int rrtype) {
+		if (CompactRdata.isCompact(packed))
+			return CompactRdata.unpack(packed, rrtype);
+		return unpackRdata(packed);
+	}
+
+	/**
+	 * Unpack an rdata set packed by packRdata().
+	 */
+
+	public static List<String> unpackRdata(byte[] packed) {
+		int count = Bytes.toInt(packed, 0);
+		List<String> rdata_list = new ArrayList<String>(count);
+		int pos = 4;
+		for (int i = 0; i < count; i++) {
+			int length = Bytes.toInt(packed, pos);
+			pos += 4;
+			rdata_list.add(new String(packed, pos, length, StandardCharsets.UTF_8));
+			pos += length;
+		}
+		return rdata_list;
+	}
+}
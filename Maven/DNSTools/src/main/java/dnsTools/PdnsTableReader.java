@@ -0,0 +1,312 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.RegexStringComparator;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Type;
+
+/**
+ * Reads the observations of an rrname from the passive-DNS table. Only the
+ * versions inside the requested time range are returned and the number of
+ * versions read per rdata set is bounded, so a lookup is a single Get, or a
+ * short prefix scan over the rrtypes of the name.
+ *
+ * In a table with the reversed layout, "*.google.com." reads the subdomains
+ * of google.com with one bounded prefix scan, the rows of other rrtypes
+ * being skipped in the region servers when an rrtype is given.
+ *
+ */
+
+public class PdnsTableReader {
+
+	// Number of rows fetched per scanner round trip.
+	private final static int SCANNER_CACHING = 100;
+
+	// Maximum number of cells per Result of a streaming scan, so a row with
+	// many versions is not materialized at once.
+	private final static int SCANNER_BATCH = 1000;
+
+	private final HTableInterface table;
+	private final long minTime;
+	private final long maxTime;
+	private final int maxVersions;
+	private final boolean reversed;
+
+	/**
+	 * @param table
+	 *            The table written by BulkLoader.
+	 *
+	 * @param minTime
+	 *            Start of the time range in milliseconds, inclusive.
+	 *
+	 * @param maxTime
+	 *            End of the time range in milliseconds, exclusive.
+	 *
+	 * @param maxVersions
+	 *            Maximum number of observations read per rdata set.
+	 */
+
+	public PdnsTableReader(HTableInterface table, long minTime, long maxTime,
+			int maxVersions) {
+		this(table, minTime, maxTime, maxVersions, false);
+	}
+
+	/**
+	 * @param reversed
+	 *            True if the table uses the reversed row-key layout, see
+	 *            PdnsSchema.isReversed().
+	 */
+
+	public PdnsTableReader(HTableInterface table, long minTime, long maxTime,
+			int maxVersions, boolean reversed) {
+		this.table = table;
+		this.minTime = minTime;
+		this.maxTime = maxTime;
+		this.maxVersions = maxVersions;
+		this.reversed = reversed;
+	}
+
+	/**
+	 * Read the observations of an rrset.
+	 *
+	 * @param rrname
+	 *            The fully qualified rrname, e.g. "www.google.com.", or
+	 *            "*." and a zone for all its subdomains.
+	 *
+	 * @param rrtype
+	 *            The rrtype mnemonic, or "" for all rrtypes of the name.
+	 */
+
+	public List<Observation> getRRset(String rrname, String rrtype)
+			throws IOException {
+		List<Observation> observations = new ArrayList<Observation>();
+
+		if (!rrtype.equals("") && !rrname.startsWith(PdnsSchema.WILDCARD)) {
+			int type = Type.value(rrtype);
+			if (type < 0)
+				throw new IllegalArgumentException("Unknown rrtype: " + rrtype);
+
+			Get get = new Get(PdnsSchema.rowKey(rrname, type, reversed));
+			get.addFamily(PdnsSchema.FAMILY);
+			get.setTimeRange(minTime, maxTime);
+			get.setMaxVersions(maxVersions);
+			addObservations(table.get(get), observations);
+			return observations;
+		}
+
+		ResultScanner scanner = table.getScanner(rrsetScan(rrname, rrtype));
+		try {
+			for (Result result : scanner)
+				addObservations(result, observations);
+		} finally {
+			scanner.close();
+		}
+		return observations;
+	}
+
+	/**
+	 * Read the rdata sets of many rrsets of known rrtype with a single
+	 * multi-get, which the client sends as one request per region server.
+	 * The versions of each cell are combined as by scanRRset(). A Get is not
+	 * read in batches, so the number of rows per call should be bounded.
+	 *
+	 * @param rows
+	 *            The row-keys of the rrsets, see PdnsSchema.rowKey().
+	 *
+	 * @return The observations of each row, in the order of the rows.
+	 */
+
+	public List<List<Observation>> getRRsets(List<byte[]> rows)
+			throws IOException {
+		List<Get> gets = new ArrayList<Get>(rows.size());
+		for (byte[] row : rows) {
+			Get get = new Get(row);
+			get.addFamily(PdnsSchema.FAMILY);
+			get.setTimeRange(minTime, maxTime);
+			get.setMaxVersions(maxVersions);
+			gets.add(get);
+		}
+
+		Result[] results = table.get(gets);
+		List<List<Observation>> rrsets = new ArrayList<List<Observation>>(
+				results.length);
+		for (Result result : results) {
+			List<Observation> observations = new ArrayList<Observation>();
+			if (result != null && !result.isEmpty()) {
+				for (KeyValue kv : result.raw())
+					merge(Observation.fromKeyValue(kv, reversed), observations);
+			}
+			rrsets.add(observations);
+		}
+		return rrsets;
+	}
+
+	/**
+	 * Add an observation to a list, merging it with the last one if it is
+	 * another version of the same cell.
+	 */
+
+	private static void merge(Observation observation,
+			List<Observation> observations) {
+		int last = observations.size() - 1;
+		if (last >= 0) {
+			Observation current = observations.get(last);
+			if (current.getRRType() == observation.getRRType()
+					&& Arrays.equals(current.getPackedRdata(),
+							observation.getPackedRdata())) {
+				observations.set(last, current.merge(observation));
+				return;
+			}
+		}
+		observations.add(observation);
+	}
+
+	/**
+	 * Stream the rdata sets of an rrset. All the versions of a cell inside
+	 * the time range are combined into one observation with its
+	 * first_seen, last_seen and count, handed over as soon as it is
+	 * complete. The cells are read in batches, so memory use does not grow
+	 * with the number of versions.
+	 *
+	 * @param rrname
+	 *            The fully qualified rrname, e.g. "www.google.com.", or
+	 *            "*." and a zone for all its subdomains, which needs the
+	 *            reversed layout.
+	 *
+	 * @param rrtype
+	 *            The rrtype mnemonic, or "" for all rrtypes of the name.
+	 */
+
+	public void scanRRset(String rrname, String rrtype,
+			ObservationHandler handler) throws IOException {
+		ResultScanner scanner = table.getScanner(rrsetScan(rrname, rrtype));
+		try {
+			// The versions of a cell are adjacent, possibly split over
+			// several batches.
+			Observation current = null;
+			for (Result result : scanner) {
+				if (result.isEmpty())
+					continue;
+				for (KeyValue kv : result.raw()) {
+					Observation observation = Observation.fromKeyValue(kv,
+							reversed);
+					if (current != null
+							&& current.getRRName().equals(observation.getRRName())
+							&& current.getRRType() == observation.getRRType()
+							&& Arrays.equals(current.getPackedRdata(),
+									observation.getPackedRdata())) {
+						current = current.merge(observation);
+						continue;
+					}
+					if (current != null)
+						handler.observation(current);
+					current = observation;
+				}
+			}
+			if (current != null)
+				handler.observation(current);
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Same as scanRRset(), but the versions are combined by
+	 * PdnsAggregateEndpoint in the region servers, so only one tuple per
+	 * rdata set is sent back. The table must have the endpoint loaded.
+	 */
+
+	public void summarizeRRset(String rrname, String rrtype,
+			ObservationHandler handler) throws IOException {
+		for (ObservationSummaries summaries : PdnsAggregateEndpoint.summarize(
+				table, rrsetScan(rrname, rrtype))) {
+			for (int i = 0; i < summaries.size(); i++) {
+				byte[] row = summaries.getRow(i);
+				handler.observation(new Observation(PdnsSchema.rrname(row,
+						reversed),
+						PdnsSchema.rrtype(row), summaries.getQualifier(i),
+						summaries.getFirstSeen(i), summaries.getLastSeen(i),
+						summaries.getCount(i)));
+			}
+		}
+	}
+
+	private Scan rrsetScan(String rrname, String rrtype) throws IOException {
+		int type = -1;
+		if (!rrtype.equals("")) {
+			type = Type.value(rrtype);
+			if (type < 0)
+				throw new IllegalArgumentException("Unknown rrtype: " + rrtype);
+		}
+
+		byte[] startRow;
+		byte[] stopRow;
+		Filter filter = null;
+		if (rrname.startsWith(PdnsSchema.WILDCARD)) {
+			if (!reversed)
+				throw new IllegalArgumentException(
+						"Wildcard queries need a table loaded with reversed row-keys: "
+								+ rrname);
+			// The subdomains of the zone are adjacent, whatever their depth.
+			String zone = rrname.substring(PdnsSchema.WILDCARD.length());
+			startRow = PdnsSchema.subdomainStartRow(zone);
+			stopRow = PdnsSchema.stopRow(PdnsSchema.subdomainPrefix(zone));
+			if (type >= 0)
+				filter = rrtypeFilter(type);
+		} else if (type >= 0) {
+			startRow = PdnsSchema.rowKey(rrname, type, reversed);
+			stopRow = Bytes.add(startRow, new byte[] { 0 });
+		} else {
+			startRow = PdnsSchema.rowPrefix(rrname, reversed);
+			stopRow = PdnsSchema.stopRow(startRow);
+		}
+
+		Scan scan = new Scan(startRow, stopRow);
+		if (filter != null)
+			scan.setFilter(filter);
+		scan.addFamily(PdnsSchema.FAMILY);
+		scan.setTimeRange(minTime, maxTime);
+		scan.setMaxVersions(maxVersions);
+		scan.setCaching(SCANNER_CACHING);
+		scan.setBatch(SCANNER_BATCH);
+		return scan;
+	}
+
+	/**
+	 * Select the rows of an rrtype in the region servers: the row-keys that
+	 * end with the separator and the rrtype code.
+	 */
+
+	private static Filter rrtypeFilter(int rrtype) {
+		byte[] suffix = { PdnsSchema.SEPARATOR, (byte) (rrtype >> 8),
+				(byte) rrtype };
+		// Each byte maps to one character in ISO-8859-1.
+		RegexStringComparator comparator = new RegexStringComparator(
+				Pattern.quote(new String(suffix, StandardCharsets.ISO_8859_1))
+						+ "\\z");
+		comparator.setCharset(StandardCharsets.ISO_8859_1);
+		return new RowFilter(CompareFilter.CompareOp.EQUAL, comparator);
+	}
+
+	private void addObservations(Result result, List<Observation> observations) {
+		if (result.isEmpty())
+			return;
+		for (KeyValue kv : result.raw())
+			observations.add(Observation.fromKeyValue(kv, reversed));
+	}
+}
@@ -0,0 +1,50 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * A store QueryTool and QueryServer run their queries against. Each query
+ * prints one JSON line per result. An instance holds open connections and
+ * is not thread-safe, so concurrent callers each use their own.
+ *
+ */
+
+public interface QueryBackend {
+
+	/**
+	 * Opens a backend, so a wrapper can put it off until a query needs it.
+	 */
+
+	interface Opener {
+		QueryBackend open() throws IOException;
+	}
+
+	/**
+	 * Print one line per rdata set seen for the rrname.
+	 *
+	 * @param rrname
+	 *            The rrname without the trailing dot.
+	 *
+	 * @param rrtype
+	 *            The rrtype mnemonic, or "" for all rrtypes of the name.
+	 */
+
+	void processRRsetQuery(String rrname, String rrtype, PrintStream out)
+			throws IOException;
+
+	/**
+	 * Print one line per rrname seen with the rdata.
+	 *
+	 * @param rdata
+	 *            The rdata to look up.
+	 *
+	 * @param rdataType
+	 *            "ip", "dn", an rrtype mnemonic, or "".
+	 */
+
+	void processRdataQuery(String rdata, String rdataType, PrintStream out)
+			throws IOException;
+
+	void close() throws IOException;
+}
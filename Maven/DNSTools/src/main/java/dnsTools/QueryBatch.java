@@ -0,0 +1,320 @@
+package dnsTools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Type;
+
+/**
+ * Runs the queries of a file in one QueryTool invocation, e.g. the
+ * indicators of a threat-intel feed. The queries are sorted by the row-key
+ * they read and cut into chunks of neighbouring keys. Each chunk is run on
+ * a pool of threads, one HBaseQueryBackend per thread, so the rrsets of
+ * known rrtype in a chunk are read with a single multi-get (see
+ * HBaseQueryBackend.processBatch()).
+ *
+ * The results are printed as JSON lines in key order, not in the order of
+ * the file; every line holds the rrname or rdata it answers. At most two
+ * chunks per thread are held in memory.
+ *
+ */
+
+public class QueryBatch {
+
+	// Default number of queries per chunk.
+	public final static int DEFAULT_CHUNK_SIZE = 256;
+
+	/**
+	 * A query of the batch and the row-key it is sorted by.
+	 */
+
+	public static class Query implements Comparable<Query> {
+		private final boolean rrset;
+		private final String query;
+		private final String type;
+		private final byte[] key;
+
+		/**
+		 * @param rrset
+		 *            True for an rrset query, false for an rdata query.
+		 *
+		 * @param type
+		 *            The rrtype of an rrset query, or the rdata type of an
+		 *            rdata query, as given to QueryTool.
+		 *
+		 * @param reversed
+		 *            True if the tables use the reversed row-key layout.
+		 */
+
+		public Query(boolean rrset, String query, String type, boolean reversed) {
+			this.rrset = rrset;
+			this.query = query;
+			this.type = type;
+			this.key = rrset ? rrsetKey(query, type, reversed) : rdataKey(
+					query, type);
+		}
+
+		public Query(boolean rrset, String query, String type) {
+			this(rrset, query, type, false);
+		}
+
+		/**
+		 * Parse a line of a batch file: "[rrset|rdata] <query> [<type>]",
+		 * separated by white space.
+		 *
+		 * @param rrset
+		 *            The kind of query of a line that does not start with
+		 *            rrset or rdata.
+		 *
+		 * @param type
+		 *            The type of a line that has none.
+		 *
+		 * @param reversed
+		 *            True if the tables use the reversed row-key layout.
+		 *
+		 * @return The query, or null for an empty line or a '#' comment.
+		 */
+
+		public static Query parse(String line, boolean rrset, String type,
+				boolean reversed) {
+			line = line.trim();
+			if (line.equals("") || line.startsWith("#"))
+				return null;
+
+			String[] fields = line.split("\\s+");
+			int i = 0;
+			if (fields.length > 1 && fields[0].equals("rrset")) {
+				rrset = true;
+				i++;
+			} else if (fields.length > 1 && fields[0].equals("rdata")) {
+				rrset = false;
+				i++;
+			}
+			if (fields.length - i > 2)
+				throw new IllegalArgumentException("Malformed query: " + line);
+			return new Query(rrset, fields[i],
+					fields.length - i == 2 ? fields[i + 1] : type, reversed);
+		}
+
+		private static byte[] rrsetKey(String rrname, String rrtype,
+				boolean reversed) {
+			int type = rrtype.equals("") ? 0 : Type.value(rrtype);
+			if (type < 0)
+				throw new IllegalArgumentException("Unknown rrtype: " + rrtype);
+			if (rrname.startsWith(PdnsSchema.WILDCARD))
+				return reversed ? PdnsSchema.subdomainStartRow(rrname
+						.substring(PdnsSchema.WILDCARD.length())) : Bytes
+						.toBytes(rrname);
+			if (rrtype.equals(""))
+				return PdnsSchema.rowPrefix(rrname + ".", reversed);
+			return PdnsSchema.rowKey(rrname + ".", type, reversed);
+		}
+
+		/**
+		 * The key of the reverse index, or of the first rrtype an untyped
+		 * rdata is looked up in. Rdata the index cannot hold sort by their
+		 * text.
+		 */
+
+		private static byte[] rdataKey(String rdata, String rdataType) {
+			byte[] key = null;
+			if (rdataType.equals("ip") || rdataType.equals("")) {
+				key = RdataIndex.rdataKey(rdata.indexOf(':') >= 0 ? Type.AAAA
+						: Type.A, rdata);
+			} else if (rdataType.equals("dn")) {
+				key = RdataIndex.rdataKey(Type.NS, rdata + ".");
+			} else {
+				int type = Type.value(rdataType);
+				if (type < 0)
+					throw new IllegalArgumentException("Unknown rrtype: "
+							+ rdataType);
+				key = RdataIndex.rdataKey(type, rdata);
+			}
+			return key != null ? key : Bytes.toBytes(rdata);
+		}
+
+		public boolean isRRset() {
+			return rrset;
+		}
+
+		public String getQuery() {
+			return query;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return True for an rrset query of a single rrtype, which is read
+		 *         with a Get.
+		 */
+
+		public boolean isGet() {
+			return rrset && !type.equals("")
+					&& !query.startsWith(PdnsSchema.WILDCARD);
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		/**
+		 * The rrset queries, which read the passive-DNS table, sort before
+		 * the rdata queries, which read the reverse index.
+		 */
+
+		@Override
+		public int compareTo(Query other) {
+			if (rrset != other.rrset)
+				return rrset ? -1 : 1;
+			return Bytes.compareTo(key, other.key);
+		}
+	}
+
+	private final BlockingQueue<HBaseQueryBackend> backends;
+	private final ExecutorService pool;
+	private final int chunkSize;
+	private final int maxPending;
+
+	/**
+	 * @param backends
+	 *            One backend per thread.
+	 *
+	 * @param chunkSize
+	 *            Number of queries run by a thread at once.
+	 */
+
+	public QueryBatch(List<HBaseQueryBackend> backends, int chunkSize) {
+		int threads = backends.size();
+		this.backends = new ArrayBlockingQueue<HBaseQueryBackend>(threads,
+				false, backends);
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.chunkSize = chunkSize;
+		this.maxPending = 2 * threads;
+	}
+
+	/**
+	 * Read the queries of a batch file. Malformed lines are reported on the
+	 * standard error and skipped.
+	 *
+	 * @param rrset
+	 *            The kind of query of the lines that do not give it.
+	 *
+	 * @param type
+	 *            The type of the lines that do not give one.
+	 *
+	 * @param reversed
+	 *            True if the tables use the reversed row-key layout.
+	 */
+
+	public static List<Query> read(BufferedReader in, boolean rrset,
+			String type, boolean reversed) throws IOException {
+		List<Query> queries = new ArrayList<Query>();
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			try {
+				Query query = Query.parse(line, rrset, type, reversed);
+				if (query != null)
+					queries.add(query);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Skipping line " + lineNumber + ": "
+						+ e.getMessage());
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * Run the queries and write their results to the stream, in key order.
+	 * The list is sorted in place.
+	 */
+
+	public void run(List<Query> queries, OutputStream out) throws IOException,
+			InterruptedException {
+		Collections.sort(queries);
+
+		ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		int start = 0;
+		while (start < queries.size()) {
+			// Queries of the same kind in a chunk, so each one reads a
+			// single table.
+			int end = Math.min(start + chunkSize, queries.size());
+			for (int i = start + 1; i < end; i++) {
+				if (queries.get(i).isRRset() != queries.get(start).isRRset()) {
+					end = i;
+					break;
+				}
+			}
+			final List<Query> chunk = queries.subList(start, end);
+			start = end;
+
+			pending.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					PrintStream chunkOut = new PrintStream(buffer, false,
+							"UTF-8");
+					HBaseQueryBackend backend = backends.take();
+					try {
+						backend.processBatch(chunk, chunkOut);
+					} finally {
+						backends.add(backend);
+					}
+					chunkOut.flush();
+					return buffer.toByteArray();
+				}
+			}));
+
+			while (!pending.isEmpty()
+					&& (pending.size() >= maxPending || pending.peek().isDone()))
+				out.write(result(pending.poll()));
+		}
+		while (!pending.isEmpty())
+			out.write(result(pending.poll()));
+		out.flush();
+	}
+
+	private static byte[] result(Future<byte[]> future) throws IOException,
+			InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Stop the threads and close the backends.
+	 */
+
+	public void close() throws IOException {
+		pool.shutdownNow();
+		for (HBaseQueryBackend backend : backends)
+			backend.close();
+	}
+}
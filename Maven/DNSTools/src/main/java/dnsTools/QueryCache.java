@@ -0,0 +1,317 @@
+package dnsTools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Results of recent queries, so an analyst or a script repeating a lookup
+ * does not pay for another HBase scan. The results are kept
+ * in memory, least recently used first out, and optionally in a local
+ * directory so they survive from one QueryTool run to the next. A cache
+ * may be shared by the threads of QueryServer.
+ *
+ * Every result is stored with the load generation of the table (see
+ * LoadManifest.generation()), and is dropped once BulkLoader has loaded the
+ * table again. Rows written by StreamingIngester do not change the
+ * generation, so results also expire after dnstools.cache.ttl seconds.
+ *
+ * The generation is read from HDFS at most every
+ * dnstools.cache.check.interval milliseconds. The manifest directory must
+ * be the one BulkLoader writes to, so dnstools.manifest.dir should be an
+ * absolute path when the tool is run by other users than the loader.
+ *
+ */
+
+public class QueryCache {
+
+	// Configuration key of the heap used by the results, in bytes.
+	public final static String MEMORY_KEY = "dnstools.cache.memory";
+
+	public final static long DEFAULT_MEMORY = 64L << 20;
+
+	// Configuration key of the time a result is kept, in seconds.
+	public final static String TTL_KEY = "dnstools.cache.ttl";
+
+	public final static long DEFAULT_TTL = 3600;
+
+	// Configuration key of the time between two reads of the generation, in
+	// milliseconds.
+	public final static String CHECK_INTERVAL_KEY = "dnstools.cache.check.interval";
+
+	public final static long DEFAULT_CHECK_INTERVAL = 10000;
+
+	// Largest result kept, so a single lookup of a popular name or address
+	// does not flush the cache.
+	public final static int MAX_RESULT_SIZE = 1 << 20;
+
+	// Name of the file recording the generation of the results on disk.
+	private final static String GENERATION_FILE = "generation";
+
+	private static class Entry {
+		final long generation;
+		final long storedAt;
+		final byte[] result;
+
+		Entry(long generation, long storedAt, byte[] result) {
+			this.generation = generation;
+			this.storedAt = storedAt;
+			this.result = result;
+		}
+	}
+
+	private final Configuration conf;
+	private final String tableName;
+	private final File dir;
+	private final long memoryBudget;
+	private final long ttl;
+	private final long checkInterval;
+
+	// Least recently used first.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long memory = 0;
+
+	private long generation = -1;
+	private long checkedAt = 0;
+
+	/**
+	 * @param tableName
+	 *            The table the queries read, whose load generation the
+	 *            results depend on.
+	 *
+	 * @param dir
+	 *            The directory of the results kept on disk, or null to keep
+	 *            them in memory only.
+	 */
+
+	public QueryCache(Configuration conf, String tableName, File dir)
+			throws IOException {
+		this.conf = conf;
+		this.tableName = tableName;
+		this.dir = dir;
+		this.memoryBudget = conf.getLong(MEMORY_KEY, DEFAULT_MEMORY);
+		this.ttl = conf.getLong(TTL_KEY, DEFAULT_TTL) * 1000;
+		this.checkInterval = conf.getLong(CHECK_INTERVAL_KEY,
+				DEFAULT_CHECK_INTERVAL);
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+	}
+
+	/**
+	 * @return The key of a query.
+	 *
+	 * @param kind
+	 *            "rrset" or "rdata".
+	 */
+
+	public static String key(String kind, String type, String query) {
+		return kind + "\t" + type + "\t" + query;
+	}
+
+	/**
+	 * @return The stored result of a query, or null.
+	 */
+
+	public byte[] get(String key) throws IOException {
+		long current = generation();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && valid(entry, current, now))
+				return entry.result;
+		}
+
+		Entry entry = read(key);
+		if (entry == null)
+			return null;
+		if (!valid(entry, current, now)) {
+			file(key).delete();
+			return null;
+		}
+		remember(key, entry);
+		return entry.result;
+	}
+
+	/**
+	 * Store the result of a query. Results larger than MAX_RESULT_SIZE are
+	 * not kept.
+	 */
+
+	public void put(String key, byte[] result) throws IOException {
+		if (result.length > MAX_RESULT_SIZE)
+			return;
+		Entry entry = new Entry(generation(), System.currentTimeMillis(),
+				result);
+		remember(key, entry);
+		write(key, entry);
+	}
+
+	private boolean valid(Entry entry, long current, long now) {
+		return entry.generation == current && now - entry.storedAt < ttl;
+	}
+
+	private synchronized void remember(String key, Entry entry) {
+		Entry old = entries.put(key, entry);
+		if (old != null)
+			memory -= size(key, old);
+		memory += size(key, entry);
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (memory > memoryBudget && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			memory -= size(eldest.getKey(), eldest.getValue());
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return The estimated heap of an entry.
+	 */
+
+	private static long size(String key, Entry entry) {
+		return 2 * key.length() + entry.result.length + 96;
+	}
+
+	/**
+	 * @return The current load generation of the table. The results of
+	 *         older generations are dropped when it changes.
+	 */
+
+	private long generation() throws IOException {
+		synchronized (this) {
+			if (generation >= 0
+					&& System.currentTimeMillis() - checkedAt < checkInterval)
+				return generation;
+		}
+
+		long current = LoadManifest.generation(conf, tableName);
+		synchronized (this) {
+			checkedAt = System.currentTimeMillis();
+			if (current != generation) {
+				entries.clear();
+				memory = 0;
+				if (dir != null)
+					clearDir(current);
+				generation = current;
+			}
+			return generation;
+		}
+	}
+
+	/**
+	 * Delete the results on disk if they were stored for another
+	 * generation.
+	 */
+
+	private void clearDir(long current) throws IOException {
+		File marker = new File(dir, GENERATION_FILE);
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(marker));
+			try {
+				if (in.readLong() == current)
+					return;
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			// A new directory.
+		} catch (EOFException e) {
+			// Interrupted while written.
+		}
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(marker));
+		try {
+			out.writeLong(current);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return The file of a result, named by a digest of its key.
+	 */
+
+	private File file(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+					key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest)
+				name.append(String.format("%02x", b & 0xff));
+			return new File(dir, name.toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private Entry read(String key) throws IOException {
+		if (dir == null)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					file(key)));
+			try {
+				// Keys with the same digest are not expected, but cost
+				// nothing to tell apart.
+				if (!in.readUTF().equals(key))
+					return null;
+				long generation = in.readLong();
+				long storedAt = in.readLong();
+				byte[] result = new byte[in.readInt()];
+				in.readFully(result);
+				return new Entry(generation, storedAt, result);
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Write a result to a new file renamed over the old one, so other
+	 * processes never read a partial result.
+	 */
+
+	private void write(String key, Entry entry) throws IOException {
+		if (dir == null)
+			return;
+		File file = file(key);
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			out.writeUTF(key);
+			out.writeLong(entry.generation);
+			out.writeLong(entry.storedAt);
+			out.writeInt(entry.result.length);
+			out.write(entry.result);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package dnsTools;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Load generator for QueryServer. It sends the queries read from a file,
+ * one per line, from a number of concurrent clients, and reports the
+ * throughput and the p50/p99 latency of the requests.
+ *
+ */
+
+public class QueryLoadGenerator {
+
+	private static class OptionsParser {
+
+		@Option(name = "--url", usage = "query endpoint, e.g. http://localhost:8053/rrset.", metaVar = "<url>")
+		private String url = "http://localhost:8053/rrset";
+
+		@Option(name = "--type", usage = "rrset or rdata type sent with every query.", metaVar = "<sting>")
+		private String type = "";
+
+		@Option(name = "--queries", usage = "file with one query string per line.", metaVar = "<file>", required = true)
+		private String queries;
+
+		@Option(name = "--clients", usage = "number of concurrent clients.", metaVar = "<int>")
+		private int clients = 16;
+
+		@Option(name = "--requests", usage = "total number of requests.", metaVar = "<int>")
+		private int requests = 10000;
+	}
+
+	private static List<String> readQueries(String path) throws IOException {
+		List<String> queries = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(path), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.equals(""))
+					queries.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return queries;
+	}
+
+	/**
+	 * Send one request and read the whole response.
+	 *
+	 * @return True if the server answered 200.
+	 */
+
+	private static boolean request(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url)
+				.openConnection();
+		int status = connection.getResponseCode();
+		InputStream in = status == 200 ? connection.getInputStream()
+				: connection.getErrorStream();
+		if (in != null) {
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) >= 0)
+				;
+			in.close();
+		}
+		return status == 200;
+	}
+
+	/**
+	 * @return The latency at the given percentile of the sorted latencies.
+	 */
+
+	static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	public static void main(String[] args) throws Exception {
+		OptionsParser options = new OptionsParser();
+		CmdLineParser parser = new CmdLineParser(options);
+		parser.setUsageWidth(120);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println("java dnsTools.QueryLoadGenerator [options...]");
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+
+		final List<String> urls = new ArrayList<String>();
+		for (String query : readQueries(options.queries))
+			urls.add(options.url + "?query=" + URLEncoder.encode(query, "UTF-8")
+					+ "&type=" + URLEncoder.encode(options.type, "UTF-8"));
+		if (urls.isEmpty()) {
+			System.err.println("No queries in " + options.queries);
+			System.exit(1);
+		}
+
+		final int requests = options.requests;
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+
+		ExecutorService clients = Executors.newFixedThreadPool(options.clients);
+		long start = System.nanoTime();
+		for (int i = 0; i < options.clients; i++) {
+			clients.execute(new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < requests) {
+						long t0 = System.nanoTime();
+						try {
+							if (!request(urls.get(i % urls.size())))
+								errors.incrementAndGet();
+						} catch (IOException e) {
+							errors.incrementAndGet();
+						}
+						latencies[i] = System.nanoTime() - t0;
+					}
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Arrays.sort(latencies);
+		System.out.println(String.format("requests: %d, errors: %d, %.1f req/s",
+				requests, errors.get(), requests / seconds));
+		System.out.println(String.format("p50: %.2f ms, p99: %.2f ms",
+				percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6));
+	}
+}
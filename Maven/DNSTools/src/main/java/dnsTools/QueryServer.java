@@ -0,0 +1,321 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running query server. It answers the queries of QueryTool over HTTP,
+ * so the JVM and the HBase connections are set up once instead of once per
+ * query:
+ *
+ *   GET /rrset?query=google.com&type=A
+ *   GET /rdata?query=173.194.41.200&type=ip
+ *
+ * The response is the JSON lines QueryTool prints. Queries run on a fixed
+ * pool of worker threads, each borrowing one of as many pooled backends.
+ * Requests that find the work queue full get 503 instead of piling up.
+ *
+ * The queries are not authenticated, so the server only listens on the
+ * loopback interface, like StreamingIngester.
+ *
+ */
+
+public class QueryServer {
+
+	// The name of the hbase tabled created using bulk-load operation.
+	private final static String hbaseTableName = "table1";
+
+	static {
+		// Responses are small, so Nagle's algorithm would hold the body back
+		// until the client acknowledges the headers.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	// Time stop() waits for the queued and running queries.
+	private final static long STOP_TIMEOUT_SECONDS = 30;
+
+	private final List<QueryBackend> pool;
+	private final BlockingQueue<QueryBackend> backends;
+	private final ThreadPoolExecutor executor;
+	private final HttpServer server;
+
+	/**
+	 * Command line parser class from args4j package
+	 * used to parse the command line arguments.
+	 *
+	 */
+
+	private static class OptionsParser {
+
+		@Option(name = "--port", usage = "port to listen on.", metaVar = "<int>")
+		private int port = 8053;
+
+		@Option(name = "--threads", usage = "number of worker threads and pooled connections.", metaVar = "<int>")
+		private int threads = 16;
+
+		@Option(name = "--queue", usage = "number of requests waiting for a worker.", metaVar = "<int>")
+		private int queue = 256;
+
+		@Option(name = "--backend", usage = "hbase (direct Get/Scan), the only backend.", metaVar = "<sting>")
+		private String backend = "hbase";
+
+		@Option(name = "--aggregate", usage = "compute first_seen/last_seen/count on the server (HBase endpoint) or on the client.", metaVar = "<server|client>")
+		private String aggregate = "server";
+
+		@Option(name = "--cache", usage = "answer repeated queries from memory until the table is loaded again.")
+		private boolean cache;
+
+		@Option(name = "--filter", usage = "answer the queries for names and rdata never loaded from the filter written by BulkLoader.")
+		private boolean filter;
+	}
+
+	/**
+	 * @param backends
+	 *            The pooled backends, one per worker thread.
+	 *
+	 * @param queue
+	 *            The number of requests that may wait for a worker.
+	 */
+
+	public QueryServer(int port, List<QueryBackend> backends, int queue)
+			throws IOException {
+		int threads = backends.size();
+		pool = new ArrayList<QueryBackend>(backends);
+		this.backends = new ArrayBlockingQueue<QueryBackend>(threads, false,
+				backends);
+
+		executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue));
+
+		server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/rrset", new QueryHandler(true));
+		server.createContext("/rdata", new QueryHandler(false));
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @return The port the server listens on, chosen by the system if 0 was
+	 *         given.
+	 */
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Refuse new requests with 503, let the queued and running queries
+	 * finish, then close every pooled backend, including those borrowed by
+	 * the workers.
+	 */
+
+	public void stop() throws IOException {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS,
+					TimeUnit.SECONDS))
+				executor.shutdownNow();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		server.stop(0);
+		for (QueryBackend backend : pool)
+			backend.close();
+	}
+
+	/**
+	 * Hands each request over to the worker pool. The handler itself runs on
+	 * the HTTP dispatcher thread, so it must not block.
+	 */
+
+	private class QueryHandler implements HttpHandler {
+
+		private final boolean rrset;
+
+		QueryHandler(boolean rrset) {
+			this.rrset = rrset;
+		}
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						process(exchange, rrset);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				respond(exchange, 503, executor.isShutdown() ? "Server stopping\n"
+						: "Server busy\n");
+			}
+		}
+	}
+
+	private void process(HttpExchange exchange, boolean rrset) {
+		try {
+			Map<String, String> params = parseQuery(exchange.getRequestURI()
+					.getRawQuery());
+			String query = params.get("query");
+			String type = params.containsKey("type") ? params.get("type") : "";
+			if (query == null || query.equals("")) {
+				respond(exchange, 400, "No query string was given.\n");
+				return;
+			}
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(buffer, false, "UTF-8");
+
+			QueryBackend backend = backends.take();
+			try {
+				if (rrset)
+					backend.processRRsetQuery(query, type, out);
+				else
+					backend.processRdataQuery(query, type, out);
+			} finally {
+				backends.put(backend);
+			}
+
+			out.flush();
+			respond(exchange, 200, buffer.toByteArray());
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, e.getMessage() + "\n");
+		} catch (Exception e) {
+			respond(exchange, 500, "Message: " + e.getMessage() + "\n");
+		}
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery)
+			throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (rawQuery == null)
+			return params;
+
+		for (String param : rawQuery.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq < 0)
+				continue;
+			params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+					URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static void respond(HttpExchange exchange, int status,
+			String body) {
+		try {
+			respond(exchange, status, body.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) {
+		try {
+			exchange.getResponseHeaders().set("Content-Type",
+					"application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, body.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		} catch (IOException e) {
+			// The client went away.
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		OptionsParser options = new OptionsParser();
+		CmdLineParser parser = new CmdLineParser(options);
+		parser.setUsageWidth(120);
+
+		try {
+			parser.parseArgument(args);
+
+			if (options.backend.equals("hive"))
+				throw new CmdLineException(parser, QueryTool.HIVE_UNSUPPORTED);
+
+			if (!options.backend.equals("hbase"))
+				throw new CmdLineException(parser,
+						"--backend must be hbase.\n");
+
+			if (!options.aggregate.equals("server")
+					&& !options.aggregate.equals("client"))
+				throw new CmdLineException(parser,
+						"--aggregate must be server or client.\n");
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println("java dnsTools.QueryServer [options...]");
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+
+		// One cache shared by the workers, in memory only.
+		QueryCache cache = options.cache ? new QueryCache(
+				HBaseConfiguration.create(), hbaseTableName, null) : null;
+
+		// One mapped filter shared by the workers.
+		LoadFilterMirror filter = options.filter ? new LoadFilterMirror(
+				HBaseConfiguration.create(), hbaseTableName, new File(
+						System.getProperty("user.home"), ".dnstools/filters"))
+				: null;
+
+		List<QueryBackend> backends = new ArrayList<QueryBackend>();
+		for (int i = 0; i < options.threads; i++) {
+			QueryBackend backend = HBaseQueryBackend.open(HBaseConfiguration
+					.create(), hbaseTableName, options.aggregate.equals("server"));
+			if (cache != null)
+				backend = new CachingQueryBackend(cache, backend);
+			if (filter != null)
+				backend = new FilteringQueryBackend(filter, backend);
+			backends.add(backend);
+		}
+
+		final QueryServer server = new QueryServer(options.port, backends,
+				options.queue);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.stop();
+				} catch (IOException e) {
+					System.err.println("Message: " + e.getMessage());
+				}
+			}
+		});
+		server.start();
+		System.out.println("Listening on port " + server.getPort()
+				+ " of the loopback interface");
+	}
+}
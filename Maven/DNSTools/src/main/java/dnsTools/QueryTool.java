@@ -1,41 +1,51 @@
 package dnsTools;
 
-import java.sql.ResultSet;
-import java.sql.Statement;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Collections;
-import java.util.Map;
-import java.util.Comparator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 /**
  * The main query class. This class parses the command line arguments, 
- * connents to the hive server, performs the request query and outputs
- * the formatted results to the standard output.
+ * runs the requested query against HBase, and outputs the formatted results
+ * to the standard output.
+ * 
+ * The queries are run with direct HBase Get and Scan calls, see
+ * HBaseQueryBackend. The Hive path used before it is no longer supported:
+ * its external table could not map the tables BulkLoader writes, so
+ * --backend hive fails with HIVE_UNSUPPORTED.
+ * 
+ * --from and --to select the observations of a time range, read from the
+ * hourly or daily roll-up tables when the range falls on their buckets.
+ * 
+ * --cardinality prints the estimated number of distinct rdata values of an
+ * rrname, or of distinct rrnames of an rdata value, from the sketches
+ * written by SketchJob.
  * 
  */
 
 public class QueryTool {
 
-	// The name of the external hive table.
-	private final String hiveTableName = "hive_table";
-	
+	// Why --backend hive is refused.
+	final static String HIVE_UNSUPPORTED = "--backend hive is unsupported for tables loaded by BulkLoader:"
+			+ " a Hive external table cannot map their row-keys, packed rdata qualifiers"
+			+ " and one cell version per observation. Use --backend hbase.\n";
+
 	// The name of the hbase tabled created using bulk-load operation.
 	private final String hbaseTableName = "table1";
 
-	private static String driverName = "org.apache.hive.jdbc.HiveDriver";
 	private OptionsParser optionsParser = null;
-	private Connection connection = null;
-	private Statement stmt = null;
 	
 	/**
 	 * Command line parser class from args4j package
@@ -57,243 +67,203 @@ public class QueryTool {
 		@Option(name = "--rdata_type", usage = "response data type.", metaVar = "<sting>")
 		private String rdata_type = "";
 
-		@Option(name = "--query", usage = "string to query.", metaVar = "<sting>")
+		@Option(name = "--query", usage = "string to query, *.<zone> for the rrsets of all the subdomains of a zone.", metaVar = "<sting>")
 		private String query = "";
 
+		@Option(name = "--backend", usage = "hbase (direct Get/Scan), the only backend.", metaVar = "<sting>")
+		private String backend = "hbase";
+
+		@Option(name = "--aggregate", usage = "compute first_seen/last_seen/count on the server (HBase endpoint) or on the client.", metaVar = "<server|client>")
+		private String aggregate = "server";
+
+		@Option(name = "--batch", usage = "file with one query per line, \"[rrset|rdata] <query> [<type>]\", or - for the standard input.", metaVar = "<file>")
+		private String batch = "";
+
+		@Option(name = "--threads", usage = "number of threads and connections running a batch.", metaVar = "<int>")
+		private int threads = 8;
+
+		@Option(name = "--batch_size", usage = "number of queries run by a thread at once.", metaVar = "<int>")
+		private int batch_size = QueryBatch.DEFAULT_CHUNK_SIZE;
+
+		@Option(name = "--cache", usage = "answer repeated queries from a local cache, dropped when the table is loaded again.")
+		private boolean cache;
+
+		@Option(name = "--cache_dir", usage = "directory of the cache (~/.dnstools/cache by default).", metaVar = "<dir>")
+		private String cache_dir = "";
+
+		@Option(name = "--filter", usage = "answer the queries for names and rdata never loaded from the filter written by BulkLoader.")
+		private boolean filter;
+
+		@Option(name = "--from", usage = "only the observations from this time on, in milliseconds or as 2014-10-02[T13[:05:00]] in UTC.", metaVar = "<time>")
+		private String from = "";
+
+		@Option(name = "--to", usage = "only the observations before this time.", metaVar = "<time>")
+		private String to = "";
+
+		@Option(name = "--cardinality", usage = "print the estimated number of distinct rdata of the rrname, or of distinct rrnames of the rdata.")
+		private boolean cardinality;
+
+	}
+
+	// Time range given by --from and --to.
+	private long minTime = 0;
+	private long maxTime = Long.MAX_VALUE;
+
+	private HBaseQueryBackend openHBaseBackend(Configuration conf)
+			throws IOException {
+		HBaseQueryBackend backend = HBaseQueryBackend.open(conf,
+				hbaseTableName, optionsParser.aggregate.equals("server"));
+		backend.setTimeRange(minTime, maxTime);
+		return backend;
 	}
 
 	/**
-	 * Compare two linked-list of strings element-by-elemnt.
-	 * 
-	 * @param l1, l2
-	 *            The linked-lists to be compared.
-	 *            
-	 * @return The value 0 if the two linked-lists have the same length and are
-	 *          equal element-by-element, and non-zero otherwise.
+	 * Run the query on the selected backend and print its results.
 	 */
-	
-	private static int compareLists(LinkedList<String> l1, LinkedList<String> l2) {
-		
-		if (l1 == null && l2 == null)
-			return 0;
-		if (l1 == null) 
-			return -1;
-		if (l2 == null)
-			return 1;
-		
-		int sizeDiff = l1.size() - l2.size();
-		if (sizeDiff != 0) {
-			return sizeDiff;
-		}
-		Iterator<String> it1 = l1.iterator();
-		Iterator<String> it2 = l2.iterator();
-		while (it1.hasNext()) {
-			String item1 = it1.next();
-			String item2 = it2.next();
-			if (!item1.equals(item2)) {
-				return item1.compareTo(item2);
-			}
+
+	private void processQuery(QueryBackend backend) throws IOException {
+		if (optionsParser.rdata) {
+			backend.processRdataQuery(optionsParser.query,
+					optionsParser.rdata_type, System.out);
+		} else if (optionsParser.rrset) {
+			backend.processRRsetQuery(optionsParser.query,
+					optionsParser.rrset_type, System.out);
 		}
-		return 0;
 	}
-	
+
 	/**
-	 * Sort a the input map<key, value> based on its values.
-	 * 
-	 * @param map
-	 *            The map that is to be sorted. 
-	 *            
-	 * @return A linked-list of <key, value> pairs found in the input
-	 *         map sorted by values.
+	 * Print the estimated distinct count of the query from its sketch.
 	 */
-	
-	private static LinkedList sortMapByValue(
-			HashMap<String, LinkedList<String>> map) {
 
-		// Sort the String linked-list that is mapped to each key.
-		for (String key : map.keySet()) {
-			LinkedList<String> strList = map.get(key);
-			Collections.sort(strList);
+	private void processCardinalityQuery() throws IOException {
+		HBaseQueryBackend backend = openHBaseBackend(HBaseConfiguration
+				.create());
+		try {
+			if (optionsParser.rdata)
+				backend.processRdataCardinalityQuery(optionsParser.query,
+						optionsParser.rdata_type, System.out);
+			else
+				backend.processRRsetCardinalityQuery(optionsParser.query,
+						optionsParser.rrset_type, System.out);
+		} finally {
+			backend.close();
 		}
+	}
 
-		// List of <key, value> pairs found in map.
-		LinkedList list = new LinkedList(map.entrySet());
-		
-		// Sort the list using the given comparator which sorts on values.
-		Collections.sort(list, new Comparator() {
-			public int compare(Object o1, Object o2) {
-				LinkedList<String> strList1 = ((Map.Entry<String, LinkedList<String>>) o1)
-						.getValue();
-				LinkedList<String> strList2 = ((Map.Entry<String, LinkedList<String>>) o2)
-						.getValue();
-				
-				return compareLists(strList1, strList2);
-			}
-		});
-
-		return list;
+	private QueryBackend openBackend() throws IOException {
+		return openHBaseBackend(HBaseConfiguration.create());
 	}
 
 	/**
-	 * Add input <key, value> pairs to a hashmap to obtain a 
-	 * map of the form <key, linked-list values>.
-	 * 
-	 * @param key, value
-	 *            The input <key, value> pair. 
-	 *            
-	 * @param map
-	 *            The map where the resulting <key, linked-list values>
-	 *            pairs are stored.  
+	 * Wrap the backend in a QueryCache kept in --cache_dir. The backend is
+	 * only opened if the query is not in the cache.
 	 */
-	
-	private static void addToMap(HashMap<String, LinkedList<String>> map,
-			String key, String val) {
-		LinkedList<String> l = new LinkedList<String>();
-		if (map.get(key) == null) {
-			l.add(val);
-			map.put(key, l);
-		} else {
-			map.get(key).add(val);
-		}
+
+	private QueryBackend openCachingBackend() throws IOException {
+		File dir = optionsParser.cache_dir.equals("") ? new File(
+				System.getProperty("user.home"), ".dnstools/cache")
+				: new File(optionsParser.cache_dir);
+		// The backends and aggregation modes do not print their results
+		// the same way, so each has its own results.
+		dir = new File(dir, hbaseTableName + "." + optionsParser.backend + "."
+				+ optionsParser.aggregate);
+		// Nor do the time ranges.
+		if (minTime != 0 || maxTime != Long.MAX_VALUE)
+			dir = new File(dir.getPath() + "." + minTime + "-" + maxTime);
+		QueryCache cache = new QueryCache(HBaseConfiguration.create(),
+				hbaseTableName, dir);
+		return new CachingQueryBackend(cache, new QueryBackend.Opener() {
+			@Override
+			public QueryBackend open() throws IOException {
+				return openBackend();
+			}
+		});
 	}
 
 	/**
-	 * Process a query on the resource record data set. 
+	 * @return The filter of the table, copied to ~/.dnstools/filters.
 	 */
 
-	private void processRRsetQuery() throws SQLException {
-		String rrname = optionsParser.query;
-		String rrtype = optionsParser.rrset_type;
-
-		String sql = "select * from "
-				+ hiveTableName
-				+ String.format(" where rrtype = '%s' and rrname = '%s'",
-						rrtype, rrname + ".");
-		System.out.println("Running query: " + sql);
-		ResultSet queryRes = stmt.executeQuery(sql);
-
-		HashMap<String, LinkedList<String>> resultHash = new HashMap<String, LinkedList<String>>();
-		while (queryRes.next()) {
-			String resTimeStamp = queryRes.getString(2);
-			String resRRName = queryRes.getString(3);
-			String resRRType = queryRes.getString(4);
-			String resRData = queryRes.getString(5);
-
-			System.out.println(resTimeStamp + "\t" + resRRName + "\t" + resRRType + "\t" + resRData);
-
-			// Group the results by timestamp field.
-			addToMap(resultHash, resTimeStamp, resRData);
-		}
+	private LoadFilterMirror openFilter() throws IOException {
+		return new LoadFilterMirror(HBaseConfiguration.create(),
+				hbaseTableName, new File(System.getProperty("user.home"),
+						".dnstools/filters"));
+	}
 
-		LinkedList<Map.Entry<String, LinkedList<String>>> sortedList = sortMapByValue(resultHash);
-
-		System.out.println("\n\nQuery results:\n");
-		// Lump the records in the sorted list that only differ in the timestamp field.
-		LinkedList<String> prevList = null;
-		LinkedList<String> currList = null;
-		String currKey = null;
-		String prevKey = null;
-		int count = 0;
-		String firstSeen = "";
-		String lastSeen = "";
-		for (Map.Entry<String, LinkedList<String>> me : sortedList) {
-			currList = me.getValue();
-			currKey = me.getKey();
-			
-			if (prevList == null) {
-				prevKey = currKey;
-				prevList = currList;
-				continue;
-			}
-			
-			if (firstSeen.compareTo(prevKey) > 0 || firstSeen.equals("")) {
-				firstSeen = prevKey;
-			}
-			if (lastSeen.compareTo(prevKey) < 0) {
-				lastSeen = prevKey;
-			}
-			count++;
-
-			if (compareLists(prevList, currList) != 0) {
-				System.out.println(String.format("{\"rrname\":\"%s\" ,\"rrtype\":\"%s\","
-						+ " \"first_seen\":%s, \"count\":%d , \"last_seen\":%s, \"rdata\":\"%s\"}",
-							rrname, rrtype, firstSeen, count, lastSeen, prevList));
-					count = 0;
-					firstSeen = "";
-					lastSeen = "";
-			}
-			
-			prevKey = currKey;
-			prevList = currList;
-		}
+	/**
+	 * Wrap the backend, or its cache, in a FilteringQueryBackend. Neither is
+	 * opened if the filter answers the query.
+	 */
 
-		if (firstSeen.compareTo(prevKey) > 0 || firstSeen.equals("")) {
-			firstSeen = prevKey;
-		}
-		if (lastSeen.compareTo(prevKey) < 0) {
-			lastSeen = prevKey;
-		}
-		count++;
-		System.out.println(String.format("{\"rrname\":\"%s\" ,\"rrtype\":\"%s\","
-				+ " \"first_seen\":%s, \"count\":%d, \"last_seen\":%s, \"rdata\":\"%s\"}",
-				rrname, rrtype, firstSeen, count, lastSeen, prevList));
+	private QueryBackend openFilteringBackend() throws IOException {
+		return new FilteringQueryBackend(openFilter(),
+				new QueryBackend.Opener() {
+					@Override
+					public QueryBackend open() throws IOException {
+						return optionsParser.cache ? openCachingBackend()
+								: openBackend();
+					}
+				});
 	}
 
 	/**
-	 * Process a query on the response data. 
+	 * Run the queries of the --batch file with one backend per thread, and
+	 * report the throughput on the standard error.
 	 */
 
-	private void processRdataQuery() throws SQLException {
-		String rdata = optionsParser.query;
-		String rrtype = optionsParser.rdata_type;
-		
-		String rrtypeCondition = String.format(" where rdata = '%s'", rdata); 
-		if (rrtype.equals("ip")) {
-			rrtype = "A";
-		} else if (rrtype.equals("dn")) {
-			rrtype = "NS";
-			rrtypeCondition = String.format(" where rdata = '%s'", rdata + ".");
-		}
-		
-		String sql = "select * from " + hiveTableName
-				+ rrtypeCondition;
-
-		System.out.println("Running query: " + sql);
-		ResultSet queryRes = stmt.executeQuery(sql);
-		HashMap<String, LinkedList<String>> resultHash = new HashMap<String, LinkedList<String>>();
-		while (queryRes.next()) {
-			String resTimeStamp = queryRes.getString(2);
-			String resRRName = queryRes.getString(3);
-			String resRRType = queryRes.getString(4);
-			String resRData = queryRes.getString(5);
-
-			System.out.println(resTimeStamp + "\t" + resRRName
-					+ "\t" + resRRType + "\t" + resRData);
-			
-			// Group the results by rrname field.
-			addToMap(resultHash, resRRName, resTimeStamp);
-		}
-
-		System.out.println("\n\nQuery results:\n");
-		for (String rrname : resultHash.keySet()) {
+	private void processBatch() throws IOException {
+		List<HBaseQueryBackend> backends = new ArrayList<HBaseQueryBackend>();
+		Configuration conf = HBaseConfiguration.create();
+		for (int i = 0; i < optionsParser.threads; i++)
+			backends.add(openHBaseBackend(conf));
 
-			LinkedList<String> list = resultHash.get(rrname);
-			Collections.sort(list);
+		// The queries are keyed in the row-key layout of the tables.
+		InputStream in = optionsParser.batch.equals("-") ? System.in
+				: new FileInputStream(optionsParser.batch);
+		List<QueryBatch.Query> queries;
+		try {
+			queries = QueryBatch.read(new BufferedReader(new InputStreamReader(
+					in, "UTF-8")), !optionsParser.rdata,
+					optionsParser.rdata ? optionsParser.rdata_type
+							: optionsParser.rrset_type, backends.get(0)
+							.isReversed());
+		} finally {
+			in.close();
+		}
 
-			System.out.println(String.format(
-					"{\"rdata\":\"%s\", \"rrname\":\"%s\" ,\"rrtype\":\"%s\", \"first_seen\":%s,"
-							+ " \"count\":%d, \"last_seen\":%s}", rdata,
-					rrname, rrtype, list.peekFirst(), list.size(),
-					list.peekLast()));
+		long start = System.nanoTime();
+		int total = queries.size();
+		// The queries the filter answers have no results to print.
+		if (optionsParser.filter) {
+			LoadFilter filter = openFilter().get();
+			List<QueryBatch.Query> selected = new ArrayList<QueryBatch.Query>();
+			for (QueryBatch.Query query : queries) {
+				if (filter == null
+						|| (query.isRRset() ? filter.mightHaveRRset(query
+								.getQuery()) : filter.mightHaveRdata(
+								query.getQuery(), query.getType())))
+					selected.add(query);
+			}
+			queries = selected;
 		}
 
+		QueryBatch batch = new QueryBatch(backends, optionsParser.batch_size);
+		try {
+			batch.run(queries, System.out);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			batch.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.println(String.format(
+				"%d lookups in %.1f s (%.0f lookups/s), %d answered by the filter",
+				total, seconds, total / seconds, total - queries.size()));
 	}
 
 	/**
 	 * Process the input query. First parse the command line arguments.
-	 * If proper argument are given, connect to the hiverserver create a 
-	 * hive external table based on the hbase data. Then perform the query
-	 * give by the input arguements. 
+	 * If proper argument are given, run the query with direct HBase calls.
 	 */
 	
 	private void processQuery(String[] args) {
@@ -307,14 +277,51 @@ public class QueryTool {
 			// Parse the command line arguments.
 			parser.parseArgument(args);
 
+			if (optionsParser.backend.equals("hive"))
+				throw new CmdLineException(parser, HIVE_UNSUPPORTED);
+
+			if (!optionsParser.backend.equals("hbase"))
+				throw new CmdLineException(parser,
+						"--backend must be hbase.\n");
+
 			if (optionsParser.rrset && optionsParser.rdata)
 				throw new CmdLineException(parser,
 						"--rrset and --rdata flags cannot both be set.\n");
 
-			if (optionsParser.query.equals(""))
+			if (optionsParser.query.equals("")
+					&& optionsParser.batch.equals(""))
 				throw new CmdLineException(parser,
 						"No query string was given.\n");
 
+			try {
+				if (!optionsParser.from.equals(""))
+					minTime = Rollup.parseTime(optionsParser.from);
+				if (!optionsParser.to.equals(""))
+					maxTime = Rollup.parseTime(optionsParser.to);
+			} catch (IllegalArgumentException e) {
+				throw new CmdLineException(parser, e.getMessage() + "\n");
+			}
+			if (minTime >= maxTime)
+				throw new CmdLineException(parser,
+						"--from must be before --to.\n");
+
+			if (optionsParser.cardinality
+					&& (!optionsParser.batch.equals("")
+							|| !optionsParser.from.equals("")
+							|| !optionsParser.to.equals("")
+							|| optionsParser.query.startsWith(PdnsSchema.WILDCARD)))
+				throw new CmdLineException(parser,
+						"--cardinality needs a single name or rdata, over all the loads.\n");
+
+			if (optionsParser.threads < 1 || optionsParser.batch_size < 1)
+				throw new CmdLineException(parser,
+						"--threads and --batch_size must be positive.\n");
+
+			if (!optionsParser.aggregate.equals("server")
+					&& !optionsParser.aggregate.equals("client"))
+				throw new CmdLineException(parser,
+						"--aggregate must be server or client.\n");
+
 		} catch (CmdLineException e) {
 			// Print the command usage if there is a problem 
 			// in the command line arguments.
@@ -326,37 +333,46 @@ public class QueryTool {
 			// Print an example use of the command.
 			System.err
 					.println("  Example: java hbase-pdns --rrset --rrset_type A --query google.com");
+			System.err
+					.println("           java hbase-pdns --rrset --batch indicators.txt > results.json");
+			System.err
+					.println("           java hbase-pdns --rrset --query google.com --from 2014-10-01 --to 2014-10-08");
+			System.err
+					.println("           java hbase-pdns --rdata --rdata_type ip --query 8.8.8.8 --cardinality");
 			return;
 		}
 
 		try {
-			Class.forName(driverName);
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
+			if (!optionsParser.batch.equals("")) {
+				processBatch();
+				return;
+			}
 
-		try {
-			// Connect to hiveserver2 server.
-			connection = DriverManager.getConnection(
-					"jdbc:hive2://localhost:10000/default", "amir", "");
-
-			stmt = connection.createStatement();
-
-			// Create an external table in hive containing the hbase table 
-			// created using bulk-load operation.
-			stmt.execute("CREATE EXTERNAL TABLE IF NOT EXISTS "+ hiveTableName + "(key int, ts string, rrname string, rrtype string, rdata string) "
-					+ "STORED BY 'org.apache.hadoop.hive.hbase.HBaseStorageHandler'"
-					+ " WITH SERDEPROPERTIES ('hbase.columns.mapping' = 'cf1:ts,cf2:rrname,cf2:rrtype,cf3:rdata') "
-					+ "TBLPROPERTIES(\"hbase.table.name\" = \"" + hbaseTableName + "\")");
-
-			if (optionsParser.rdata) {
-				processRdataQuery();
-			} else if (optionsParser.rrset) {
-				processRRsetQuery();
+			// The sketches answer in one read, so neither the cache nor the
+			// filter is used.
+			if (optionsParser.cardinality) {
+				processCardinalityQuery();
+				return;
+			}
+
+			QueryBackend backend;
+			if (optionsParser.filter) {
+				backend = openFilteringBackend();
+			} else if (optionsParser.cache) {
+				backend = openCachingBackend();
+			} else {
+				backend = openBackend();
 			}
+			System.out.println("\n\nQuery results:\n");
 
-		} catch (SQLException e) {
+			try {
+				processQuery(backend);
+			} finally {
+				backend.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Message: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
 			System.err.println("Message: " + e.getMessage());
 		}
 	}
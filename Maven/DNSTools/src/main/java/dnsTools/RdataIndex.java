@@ -0,0 +1,139 @@
+package dnsTools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Type;
+
+/**
+ * Layout of the reverse (rdata to rrname) index table written by BulkLoader
+ * next to the passive-DNS table.
+ *
+ * Row-key: the 2-byte rrtype, the rdata and the lower-cased rrname that
+ * pointed at it. A and AAAA rdata is stored as the raw 4 or 16 address
+ * bytes, so addresses sort numerically. Any other rdata is stored as
+ * lower-cased text followed by a 0 byte. All the names seen for an rdata are
+ * therefore found with one prefix scan. The rrname is in the layout of the
+ * passive-DNS table, see PdnsSchema.
+ *
+ * Column: a single column in family "cf" with one version per observation,
+ * stamped with the time of the log line.
+ *
+ * The text of a TXT or other rdata can make a row-key longer than HBase
+ * allows; such rdata are not indexed, see fits().
+ *
+ */
+
+public class RdataIndex {
+
+	// Suffix appended to the passive-DNS table name to get the index name.
+	public final static String TABLE_SUFFIX = "_rdata";
+
+	// Configuration key overriding the name of the index table.
+	public final static String TABLE_KEY = "dnstools.rdata.table";
+
+	public final static byte[] FAMILY = PdnsSchema.FAMILY;
+	public final static byte[] QUALIFIER = new byte[0];
+
+	public static String tableName(String pdnsTableName) {
+		return pdnsTableName + TABLE_SUFFIX;
+	}
+
+	/**
+	 * Encode the rdata part of an index row-key.
+	 *
+	 * @return The row prefix shared by all the names seen for the rdata, or
+	 *         null if an A or AAAA rdata is not a valid address.
+	 */
+
+	public static byte[] rdataKey(int rrtype, String rdata) {
+		byte[] value;
+		switch (rrtype) {
+		case Type.A:
+			value = Address.toByteArray(rdata, Address.IPv4);
+			break;
+		case Type.AAAA:
+			value = Address.toByteArray(rdata, Address.IPv6);
+			break;
+		default:
+			byte[] text = rdata.toLowerCase(Locale.ROOT).getBytes(
+					StandardCharsets.UTF_8);
+			value = Bytes.add(text, new byte[] { PdnsSchema.SEPARATOR });
+			break;
+		}
+		if (value == null)
+			return null;
+
+		return Bytes.add(new byte[] { (byte) (rrtype >> 8), (byte) rrtype },
+				value);
+	}
+
+	/**
+	 * @return The length of the rdata part of an index row-key.
+	 */
+
+	public static int rdataKeyLength(byte[] row) {
+		int rrtype = ((row[0] & 0xff) << 8) | (row[1] & 0xff);
+		if (rrtype == Type.A)
+			return 2 + 4;
+		if (rrtype == Type.AAAA)
+			return 2 + 16;
+		for (int i = 2; i < row.length; i++) {
+			if (row[i] == PdnsSchema.SEPARATOR)
+				return i + 1;
+		}
+		return row.length;
+	}
+
+	/**
+	 * @return The rrtypes an rdata query looks the rdata up in, -1 for an
+	 *         unknown mnemonic.
+	 *
+	 * @param rdataType
+	 *            "ip", "dn", an rrtype mnemonic, or "" for the rrtypes whose
+	 *            rdata is an address or a name.
+	 */
+
+	public static int[] queryTypes(String rdata, String rdataType) {
+		if (rdataType.equals("ip"))
+			return new int[] { rdata.indexOf(':') >= 0 ? Type.AAAA : Type.A };
+		if (rdataType.equals("dn"))
+			return new int[] { Type.NS };
+		if (rdataType.equals(""))
+			return new int[] { Type.A, Type.AAAA, Type.NS, Type.CNAME,
+					Type.PTR };
+		return new int[] { Type.value(rdataType) };
+	}
+
+	public static byte[] rowKey(byte[] rdataKey, byte[] rrname) {
+		return Bytes.add(rdataKey, rrname);
+	}
+
+	/**
+	 * @return False if the index row-key is longer than HBase allows, in
+	 *         which case writing it would fail the whole map task or
+	 *         streaming batch.
+	 */
+
+	public static boolean fits(byte[] row) {
+		return row.length <= HConstants.MAX_ROW_LENGTH;
+	}
+
+	/**
+	 * @return The rrname of an index row-key with the given rdata prefix.
+	 */
+
+	public static String rrname(byte[] row, int rdataKeyLength) {
+		return NameDictionary.getInstance(null).string(row, rdataKeyLength,
+				row.length - rdataKeyLength);
+	}
+
+	public static String rrname(byte[] row, int rdataKeyLength,
+			boolean reversed) {
+		String rrname = rrname(row, rdataKeyLength);
+		return reversed ? PdnsSchema.reverseName(rrname) : rrname;
+	}
+}
@@ -0,0 +1,186 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Finds the rrnames that pointed at an rdata with a prefix scan of the
+ * reverse index table. Each index row is summarized into a single
+ * observation as it is read, so only one batch of cells is held in memory
+ * at a time.
+ *
+ */
+
+public class RdataIndexReader {
+
+	// Number of rows fetched per scanner round trip.
+	private final static int SCANNER_CACHING = 1000;
+
+	// Maximum number of cells per Result.
+	private final static int SCANNER_BATCH = 1000;
+
+	private final HTableInterface table;
+	private final long minTime;
+	private final long maxTime;
+	private final int maxVersions;
+	private final boolean reversed;
+
+	/**
+	 * @param table
+	 *            The index table written by BulkLoader.
+	 *
+	 * @param minTime
+	 *            Start of the time range in milliseconds, inclusive.
+	 *
+	 * @param maxTime
+	 *            End of the time range in milliseconds, exclusive.
+	 *
+	 * @param maxVersions
+	 *            Maximum number of observations read per rrname.
+	 */
+
+	public RdataIndexReader(HTableInterface table, long minTime, long maxTime,
+			int maxVersions) {
+		this(table, minTime, maxTime, maxVersions, false);
+	}
+
+	/**
+	 * @param reversed
+	 *            True if the rrnames of the index use the reversed row-key
+	 *            layout, see PdnsSchema.isReversed().
+	 */
+
+	public RdataIndexReader(HTableInterface table, long minTime, long maxTime,
+			int maxVersions, boolean reversed) {
+		this.table = table;
+		this.minTime = minTime;
+		this.maxTime = maxTime;
+		this.maxVersions = maxVersions;
+		this.reversed = reversed;
+	}
+
+	/**
+	 * Read the rrnames seen with an rdata.
+	 *
+	 * @param rrtype
+	 *            The rrtype of the records holding the rdata.
+	 *
+	 * @param rdata
+	 *            The rdata, e.g. "192.0.2.1" or "ns1.example.com.".
+	 *
+	 * @return One observation per rrname with its first_seen, last_seen and
+	 *         count, or an empty list if the rdata is not valid for the
+	 *         rrtype.
+	 */
+
+	public List<Observation> getNames(int rrtype, String rdata)
+			throws IOException {
+		final List<Observation> observations = new ArrayList<Observation>();
+		scanNames(rrtype, rdata, new ObservationHandler() {
+			@Override
+			public void observation(Observation observation) {
+				observations.add(observation);
+			}
+		});
+		return observations;
+	}
+
+	/**
+	 * Stream the rrnames seen with an rdata, each handed over as soon as
+	 * all its versions have been read. The cells are read in batches, so
+	 * memory use does not grow with the number of versions of a row.
+	 */
+
+	public void scanNames(int rrtype, String rdata, ObservationHandler handler)
+			throws IOException {
+		byte[] prefix = RdataIndex.rdataKey(rrtype, rdata);
+		if (prefix == null)
+			return;
+		byte[] packedRdata = packRdata(rdata);
+
+		ResultScanner scanner = table.getScanner(indexScan(prefix));
+		try {
+			// A row may be split over several batches.
+			byte[] row = null;
+			long firstSeen = 0;
+			long lastSeen = 0;
+			long count = 0;
+			for (Result result : scanner) {
+				if (result.isEmpty())
+					continue;
+
+				if (row != null && !Bytes.equals(row, result.getRow())) {
+					handler.observation(new Observation(RdataIndex.rrname(row,
+							prefix.length, reversed), rrtype, packedRdata, firstSeen,
+							lastSeen, count));
+					row = null;
+				}
+				if (row == null) {
+					row = result.getRow();
+					firstSeen = Long.MAX_VALUE;
+					lastSeen = Long.MIN_VALUE;
+					count = 0;
+				}
+				for (KeyValue kv : result.raw()) {
+					firstSeen = Math.min(firstSeen, PdnsSchema.firstSeen(kv));
+					lastSeen = Math.max(lastSeen,
+							PdnsSchema.lastSeen(kv));
+					count += PdnsSchema.count(kv);
+				}
+			}
+			if (row != null)
+				handler.observation(new Observation(RdataIndex.rrname(row,
+						prefix.length, reversed), rrtype, packedRdata, firstSeen,
+						lastSeen, count));
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Same as scanNames(), but the versions are combined by
+	 * PdnsAggregateEndpoint in the region servers, so only one tuple per
+	 * rrname is sent back. The table must have the endpoint loaded.
+	 */
+
+	public void summarizeNames(int rrtype, String rdata,
+			ObservationHandler handler) throws IOException {
+		byte[] prefix = RdataIndex.rdataKey(rrtype, rdata);
+		if (prefix == null)
+			return;
+		byte[] packedRdata = packRdata(rdata);
+
+		for (ObservationSummaries summaries : PdnsAggregateEndpoint.summarize(
+				table, indexScan(prefix))) {
+			for (int i = 0; i < summaries.size(); i++)
+				handler.observation(new Observation(RdataIndex.rrname(
+						summaries.getRow(i), prefix.length, reversed), rrtype,
+						packedRdata, summaries.getFirstSeen(i), summaries
+								.getLastSeen(i), summaries.getCount(i)));
+		}
+	}
+
+	private Scan indexScan(byte[] prefix) throws IOException {
+		Scan scan = new Scan(prefix, PdnsSchema.stopRow(prefix));
+		scan.addFamily(RdataIndex.FAMILY);
+		scan.setTimeRange(minTime, maxTime);
+		scan.setMaxVersions(maxVersions);
+		scan.setCaching(SCANNER_CACHING);
+		scan.setBatch(SCANNER_BATCH);
+		return scan;
+	}
+
+	private static byte[] packRdata(String rdata) {
+		List<byte[]> rdata_list = new ArrayList<byte[]>();
+		rdata_list.add(Bytes.toBytes(rdata));
+		return PdnsSchema.packRdata(rdata_list);
+	}
+}
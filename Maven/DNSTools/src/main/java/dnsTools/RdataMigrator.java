@@ -0,0 +1,160 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Rewrites the qualifiers of a passive-DNS table loaded with the text
+ * encoding of PdnsSchema.packRdata() into the compact encoding of
+ * CompactRdata, so the same rdata set is not split over two columns once
+ * BulkLoader runs with dnstools.rdata.encoding=compact.
+ * args[0]: HBase table name
+ *
+ * Every version of a text column is copied to the compact column with the
+ * same timestamp and value, and the copied versions are deleted in the same
+ * atomic row mutation. Only those versions are deleted: a column-wide
+ * delete marker would also hide text cells of older days loaded after the
+ * migration. A copy landing on a compact cell of the same timestamp is
+ * merged with it, adding the counts and keeping the smaller first_seen, as
+ * ObservationMergeReducer does. Columns already in the compact encoding
+ * are left alone, so the migration can be run again after a failure.
+ *
+ */
+
+public class RdataMigrator {
+
+	// Rows fetched per scanner round trip. Whole rows are read so that a
+	// column is only deleted after all its versions were copied.
+	private final static int SCANNER_CACHING = 100;
+
+	// Number of copied cells after which the row mutations are written.
+	private final static int FLUSH_CELLS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = HBaseConfiguration.create();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+		if (args.length != 1) {
+			System.err.println("java dnsTools.RdataMigrator <table>");
+			System.exit(1);
+		}
+
+		long[] counts = run(conf, args[0]);
+		System.out.println("Migrated " + counts[0] + " columns, " + counts[1]
+				+ " cells.");
+	}
+
+	/**
+	 * Migrate the text columns of a table.
+	 *
+	 * @return The number of text columns and of cells migrated.
+	 */
+
+	public static long[] run(Configuration conf, String tableName)
+			throws IOException, InterruptedException {
+		HTable table = new HTable(conf, tableName);
+
+		Scan scan = new Scan();
+		scan.addFamily(PdnsSchema.FAMILY);
+		scan.setMaxVersions();
+		scan.setCaching(SCANNER_CACHING);
+		scan.setCacheBlocks(false);
+
+		List<RowMutations> mutations = new ArrayList<RowMutations>();
+		long[] counts = new long[2];
+		long pending = 0;
+		ResultScanner scanner = table.getScanner(scan);
+		try {
+			for (Result result : scanner) {
+				RowMutations mutation = migrate(result, counts);
+				if (mutation == null)
+					continue;
+
+				mutations.add(mutation);
+				if (counts[1] - pending >= FLUSH_CELLS) {
+					table.batch(mutations);
+					mutations.clear();
+					pending = counts[1];
+				}
+			}
+			if (!mutations.isEmpty())
+				table.batch(mutations);
+		} finally {
+			scanner.close();
+			table.close();
+		}
+		return counts;
+	}
+
+	/**
+	 * @return The copies of the text cells of a row to the compact columns
+	 *         and the deletes of the versions copied, or null if the row has
+	 *         no text column.
+	 *
+	 * @param counts
+	 *            The number of text columns and of cells migrated, updated.
+	 */
+
+	static RowMutations migrate(Result result, long[] counts)
+			throws IOException {
+		byte[] row = result.getRow();
+		int rrtype = PdnsSchema.rrtype(row);
+		TreeSet<KeyValue> copies = new TreeSet<KeyValue>(KeyValue.COMPARATOR);
+		List<KeyValue> cells = new ArrayList<KeyValue>();
+		Delete delete = null;
+		byte[] legacy = null;
+		byte[] compact = null;
+		for (KeyValue kv : result.raw()) {
+			byte[] qualifier = kv.getQualifier();
+			if (CompactRdata.isCompact(qualifier))
+				continue;
+
+			if (legacy == null || !Bytes.equals(legacy, qualifier)) {
+				legacy = qualifier;
+				LinkedList<byte[]> rdata_list = new LinkedList<byte[]>();
+				for (String rdata : PdnsSchema.unpackRdata(qualifier))
+					rdata_list.add(Bytes.toBytes(rdata));
+				compact = CompactRdata.pack(rrtype, rdata_list);
+				counts[0]++;
+			}
+			if (delete == null)
+				delete = new Delete(row);
+			delete.deleteColumn(PdnsSchema.FAMILY, qualifier, kv.getTimestamp());
+			KeyValue copy = new KeyValue(row, PdnsSchema.FAMILY, compact,
+					kv.getTimestamp(), kv.getValue());
+			copies.add(copy);
+			cells.add(copy);
+			counts[1]++;
+		}
+		if (delete == null)
+			return null;
+
+		// The compact cells a copy would overwrite are merged with it.
+		for (KeyValue kv : result.raw())
+			if (CompactRdata.isCompact(kv.getQualifier()) && copies.contains(kv))
+				cells.add(kv);
+
+		Put put = new Put(row);
+		for (KeyValue kv : ObservationMergeReducer.merge(cells, null))
+			put.add(kv);
+		RowMutations mutation = new RowMutations(row);
+		mutation.add(put);
+		mutation.add(delete);
+		return mutation;
+	}
+}
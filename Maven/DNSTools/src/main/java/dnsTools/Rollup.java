@@ -0,0 +1,104 @@
+package dnsTools;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.apache.hadoop.hbase.KeyValue;
+
+/**
+ * Layout of the hourly and daily roll-up tables written by RollupJob next
+ * to the passive-DNS table.
+ *
+ * Row-key and column: as in the passive-DNS table, see PdnsSchema, so an
+ * rrset is read from a roll-up table with the same Gets and scans.
+ *
+ * Version: one cell per rdata set and hour (or day) in which it was seen,
+ * stamped with the start of the hour (or day) in UTC. Its value holds the
+ * count, first_seen and last_seen of the observations whose version falls
+ * in that bucket, see PdnsSchema.rollupValue(). A time range whose ends
+ * fall on bucket boundaries therefore selects the same observations from
+ * a roll-up table as from the passive-DNS table, in fewer cells.
+ *
+ */
+
+public class Rollup {
+
+	public final static long HOUR = 3600 * 1000L;
+
+	public final static long DAY = 24 * HOUR;
+
+	// The granularities of the roll-up tables, coarsest first.
+	public final static long[] GRANULARITIES = { DAY, HOUR };
+
+	/**
+	 * @return The name of the roll-up table of the given granularity.
+	 */
+
+	public static String tableName(String pdnsTableName, long granularity) {
+		return pdnsTableName + (granularity == DAY ? "_daily" : "_hourly");
+	}
+
+	/**
+	 * @return The start of the bucket holding a time.
+	 */
+
+	public static long bucket(long time, long granularity) {
+		long bucket = time - time % granularity;
+		return time < 0 && bucket != time ? bucket - granularity : bucket;
+	}
+
+	/**
+	 * @return True if all the observations of a cell of the passive-DNS
+	 *         table fall in the bucket of its version. Combined cells
+	 *         written before ObservationCombiner kept to one hour may not.
+	 */
+
+	public static boolean fits(KeyValue kv, long granularity) {
+		return bucket(PdnsSchema.firstSeen(kv), granularity) == bucket(kv
+				.getTimestamp(), granularity);
+	}
+
+	/**
+	 * @return True if a time range of the passive-DNS table can be read
+	 *         from the roll-up table of the given granularity: both ends are
+	 *         open or fall on bucket boundaries.
+	 */
+
+	public static boolean covers(long granularity, long minTime, long maxTime) {
+		return (minTime == 0 || minTime % granularity == 0)
+				&& (maxTime == Long.MAX_VALUE || maxTime % granularity == 0);
+	}
+
+	/**
+	 * Parse a time given on the command line: milliseconds since the epoch,
+	 * or a UTC date, 2014-10-02, with an optional hour, 2014-10-02T13, and
+	 * minutes and seconds, 2014-10-02T13:05:00.
+	 *
+	 * @return The time in milliseconds.
+	 */
+
+	public static long parseTime(String time) {
+		if (time.matches("\\d+"))
+			return Long.parseLong(time);
+
+		String pattern;
+		if (time.matches("\\d{4}-\\d{2}-\\d{2}"))
+			pattern = "yyyy-MM-dd";
+		else if (time.matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}"))
+			pattern = "yyyy-MM-dd'T'HH";
+		else if (time.matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}"))
+			pattern = "yyyy-MM-dd'T'HH:mm:ss";
+		else
+			throw new IllegalArgumentException("Not a time: " + time);
+
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		format.setLenient(false);
+		try {
+			return format.parse(time).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Not a time: " + time);
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.MultiTableOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.mapreduce.TableMapper;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.regionserver.TimeRangeTracker;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Writables;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Builds the hourly and daily roll-up tables of a passive-DNS table, see
+ * Rollup, with a map-only job scanning the cells of a time range.
+ * args[0]: HBase table name
+ * args[1], args[2]: optional start and end of the time range, see
+ * Rollup.parseTime(). The whole table by default.
+ *
+ * The range is widened to whole days, and every bucket in it is computed
+ * again from all its cells and written over the previous version of the
+ * bucket, so the job can be run again over the same range. BulkLoader runs
+ * it after each load over the time range of the new cells. The rows written
+ * by StreamingIngester reach the roll-ups with the next run covering their
+ * time. A successful run moves the RollupWatermark of the table to the end
+ * of the range when the range starts by it.
+ *
+ * A cell whose observations span two buckets, which only combined cells
+ * loaded before they were kept to one hour can do, is left out of the
+ * roll-up of that granularity and counted in the SPANNING_CELLS counter,
+ * as its count cannot be split between the buckets.
+ *
+ * The roll-up tables are created when missing, split like the passive-DNS
+ * table and in its row-key layout.
+ *
+ */
+
+public class RollupJob {
+
+	// Configuration key enabling the roll-ups of BulkLoader.
+	public final static String ENABLED_KEY = "dnstools.rollup";
+
+	// Configuration key of the passive-DNS table, whose roll-up tables the
+	// mapper writes.
+	private final static String TABLE_KEY = "dnstools.rollup.table";
+
+	// Counter group of the mapper.
+	private final static String COUNTER_GROUP = "RollupMapper";
+
+	// Number of rows fetched per scanner round trip.
+	private final static int SCANNER_CACHING = 500;
+
+	// Maximum number of cells per Result, so a row with many versions is
+	// not materialized at once.
+	private final static int SCANNER_BATCH = 1000;
+
+	/**
+	 * A column of a roll-up table and the start of one of its buckets.
+	 */
+
+	private static class Bucket {
+		final byte[] qualifier;
+		final long time;
+
+		Bucket(byte[] qualifier, long time) {
+			this.qualifier = qualifier;
+			this.time = time;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			Bucket other = (Bucket) o;
+			return time == other.time && Bytes.equals(qualifier, other.qualifier);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Bytes.hashCode(qualifier) + (int) (time ^ (time >>> 32));
+		}
+	}
+
+	/**
+	 * Combines the cells of each row of the passive-DNS table into buckets,
+	 * and writes the buckets of the row to each roll-up table with one Put.
+	 * The Results of a row are adjacent, so the row is written when the
+	 * next one starts.
+	 */
+
+	public static class RollupMapper extends
+			TableMapper<ImmutableBytesWritable, Writable> {
+
+		private final List<ImmutableBytesWritable> tables = new ArrayList<ImmutableBytesWritable>();
+
+		// Count, first_seen and last_seen of each bucket of the current row,
+		// by granularity.
+		private final List<Map<Bucket, long[]>> buckets = new ArrayList<Map<Bucket, long[]>>();
+
+		private byte[] row = null;
+
+		@Override
+		protected void setup(Context context) {
+			String tableName = context.getConfiguration().get(TABLE_KEY);
+			for (long granularity : Rollup.GRANULARITIES) {
+				tables.add(new ImmutableBytesWritable(Bytes.toBytes(Rollup
+						.tableName(tableName, granularity))));
+				buckets.add(new HashMap<Bucket, long[]>());
+			}
+		}
+
+		@Override
+		protected void map(ImmutableBytesWritable key, Result result,
+				Context context) throws IOException, InterruptedException {
+			if (row != null && !Bytes.equals(row, result.getRow()))
+				flush(context);
+			row = result.getRow();
+
+			for (KeyValue kv : result.raw()) {
+				long count = PdnsSchema.count(kv);
+				long firstSeen = PdnsSchema.firstSeen(kv);
+				long lastSeen = PdnsSchema.lastSeen(kv);
+				for (int i = 0; i < Rollup.GRANULARITIES.length; i++) {
+					if (!Rollup.fits(kv, Rollup.GRANULARITIES[i])) {
+						context.getCounter(COUNTER_GROUP, "SPANNING_CELLS")
+								.increment(1);
+						continue;
+					}
+					Bucket bucket = new Bucket(kv.getQualifier(), Rollup.bucket(
+							kv.getTimestamp(), Rollup.GRANULARITIES[i]));
+					long[] summary = buckets.get(i).get(bucket);
+					if (summary == null) {
+						buckets.get(i).put(bucket,
+								new long[] { count, firstSeen, lastSeen });
+					} else {
+						summary[0] += count;
+						summary[1] = Math.min(summary[1], firstSeen);
+						summary[2] = Math.max(summary[2], lastSeen);
+					}
+				}
+			}
+		}
+
+		private void flush(Context context) throws IOException,
+				InterruptedException {
+			for (int i = 0; i < tables.size(); i++) {
+				Put put = new Put(row);
+				for (Map.Entry<Bucket, long[]> entry : buckets.get(i).entrySet()) {
+					long[] summary = entry.getValue();
+					put.add(PdnsSchema.FAMILY, entry.getKey().qualifier, entry
+							.getKey().time, PdnsSchema.rollupValue(summary[1],
+							summary[2], summary[0]));
+				}
+				buckets.get(i).clear();
+				if (!put.isEmpty())
+					context.write(tables.get(i), put);
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException,
+				InterruptedException {
+			if (row != null)
+				flush(context);
+		}
+	}
+
+	/**
+	 * @return True if the roll-up tables of a passive-DNS table exist.
+	 */
+
+	public static boolean exists(Configuration conf, String tableName)
+			throws IOException {
+		HBaseAdmin admin = new HBaseAdmin(conf);
+		try {
+			for (long granularity : Rollup.GRANULARITIES) {
+				if (!admin.tableExists(Rollup.tableName(tableName, granularity)))
+					return false;
+			}
+			return true;
+		} finally {
+			admin.close();
+		}
+	}
+
+	/**
+	 * @return The smallest and largest version of the cells of the HFiles
+	 *         of a table written by a bulk-load job, or null if there are
+	 *         none or a file does not record them.
+	 *
+	 * @param dir
+	 *            The directory holding a sub-directory of HFiles per
+	 *            family.
+	 */
+
+	public static long[] timeRange(Configuration conf, Path dir)
+			throws IOException {
+		FileSystem fs = dir.getFileSystem(conf);
+		if (!fs.exists(dir))
+			return null;
+		// The files are read once, so they are not cached.
+		Configuration noCache = new Configuration(conf);
+		noCache.setFloat("hfile.block.cache.size", 0);
+		CacheConfig cacheConf = new CacheConfig(noCache);
+
+		long[] range = null;
+		for (FileStatus family : fs.listStatus(dir)) {
+			if (!family.isDir() || family.getPath().getName().startsWith("_"))
+				continue;
+			for (FileStatus file : fs.listStatus(family.getPath())) {
+				HFile.Reader reader = HFile.createReader(fs, file.getPath(),
+						cacheConf);
+				try {
+					byte[] value = reader.loadFileInfo().get(
+							StoreFile.TIMERANGE_KEY);
+					if (value == null)
+						return null;
+					TimeRangeTracker tracker = new TimeRangeTracker();
+					Writables.copyWritable(value, tracker);
+					if (range == null)
+						range = new long[] { Long.MAX_VALUE, Long.MIN_VALUE };
+					range[0] = Math.min(range[0], tracker.getMinimumTimestamp());
+					range[1] = Math.max(range[1], tracker.getMaximumTimestamp());
+				} finally {
+					reader.close(false);
+				}
+			}
+		}
+		return range;
+	}
+
+	/**
+	 * Create the missing roll-up tables of a passive-DNS table, with the
+	 * region boundaries and the layout of the latter.
+	 */
+
+	private static void createTables(Configuration conf, String tableName)
+			throws IOException {
+		TableSplitter.configureLayout(conf, tableName);
+		HTable table = new HTable(conf, tableName);
+		List<byte[]> startKeys = new ArrayList<byte[]>();
+		try {
+			for (byte[] key : table.getStartKeys()) {
+				if (key.length > 0)
+					startKeys.add(key);
+			}
+		} finally {
+			table.close();
+		}
+		for (long granularity : Rollup.GRANULARITIES)
+			TableSplitter.createTables(conf, Collections.singletonList(Rollup
+					.tableName(tableName, granularity)), Collections
+					.singletonList(startKeys));
+	}
+
+	/**
+	 * Compute the buckets of a time range again.
+	 *
+	 * @param minTime
+	 *            Start of the time range in milliseconds, inclusive.
+	 *
+	 * @param maxTime
+	 *            End of the time range in milliseconds, exclusive, or
+	 *            Long.MAX_VALUE.
+	 *
+	 * @return False if the job failed.
+	 */
+
+	public static boolean run(Configuration conf, String tableName,
+			long minTime, long maxTime) throws IOException,
+			InterruptedException, ClassNotFoundException {
+		createTables(conf, tableName);
+
+		// Whole days, which are also whole hours.
+		minTime = Rollup.bucket(minTime, Rollup.DAY);
+		if (maxTime < Long.MAX_VALUE - Rollup.DAY)
+			maxTime = Rollup.bucket(maxTime - 1, Rollup.DAY) + Rollup.DAY;
+
+		// Read before the scan, which misses the cells written after it.
+		RollupWatermark watermark = RollupWatermark.open(conf, tableName);
+		long recorded = watermark.getRecorded();
+
+		Job job = new Job(conf, "Roll-up of " + tableName);
+		job.setJarByClass(RollupJob.class);
+		job.getConfiguration().set(TABLE_KEY, tableName);
+
+		Scan scan = new Scan();
+		scan.addFamily(PdnsSchema.FAMILY);
+		scan.setTimeRange(Math.max(minTime, 0), maxTime);
+		scan.setMaxVersions();
+		scan.setCaching(SCANNER_CACHING);
+		scan.setBatch(SCANNER_BATCH);
+		scan.setCacheBlocks(false);
+		TableMapReduceUtil.initTableMapperJob(tableName, scan,
+				RollupMapper.class, ImmutableBytesWritable.class, Put.class,
+				job);
+		job.setOutputFormatClass(MultiTableOutputFormat.class);
+		job.setNumReduceTasks(0);
+		if (!job.waitForCompletion(true))
+			return false;
+		watermark.rolledUp(recorded, minTime, maxTime);
+		return true;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = HBaseConfiguration.create();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+		if (args.length != 1 && args.length != 3) {
+			System.err.println("java dnsTools.RollupJob <table> [<from> <to>]");
+			System.exit(1);
+		}
+
+		long minTime = 0;
+		long maxTime = Long.MAX_VALUE;
+		if (args.length == 3) {
+			minTime = Rollup.parseTime(args[1]);
+			maxTime = Rollup.parseTime(args[2]);
+		}
+		System.exit(run(conf, args[0], minTime, maxTime) ? 0 : 1);
+	}
+}
@@ -0,0 +1,235 @@
+package dnsTools;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The time before which the roll-up tables of a passive-DNS table hold
+ * every cell of the table, so HBaseQueryBackend only reads the time ranges
+ * ending by then from them.
+ *
+ * The watermark is the earlier of the time recorded in the file
+ * <table>.rollup of the manifest directory (see LoadManifest) and of the
+ * times in <table>.rollup.writers, one file per running StreamingIngester
+ * holding the earliest hour it wrote to. RollupJob moves the recorded time
+ * to the end of its range when the range starts by then. BulkLoader moves
+ * it back to the start of the new cells when it skips or fails the
+ * roll-ups, and so does an ingester when it stops, so the rows written
+ * since wait for the next RollupJob run covering their time.
+ *
+ * Without a recorded time, e.g. for tables loaded before it was kept, the
+ * watermark is 0 and the roll-ups are not read until RollupJob is run over
+ * the whole table. The file of an ingester that was killed is left behind
+ * and must be deleted once RollupJob has been run over its time.
+ *
+ */
+
+public class RollupWatermark {
+
+	private final FileSystem fs;
+	private final Path path;
+	private final Path writers;
+
+	private RollupWatermark(FileSystem fs, Path path) {
+		this.fs = fs;
+		this.path = path;
+		this.writers = path.suffix(".writers");
+	}
+
+	public static RollupWatermark open(Configuration conf, String tableName)
+			throws IOException {
+		Path dir = new Path(conf.get(LoadManifest.DIR_KEY,
+				LoadManifest.DEFAULT_DIR));
+		FileSystem fs = dir.getFileSystem(conf);
+		return new RollupWatermark(fs, fs.makeQualified(new Path(dir,
+				tableName + ".rollup")));
+	}
+
+	/**
+	 * @return The time in milliseconds before which every cell of the table
+	 *         is in its roll-up tables.
+	 */
+
+	public long get() throws IOException {
+		return Math.min(getRecorded(), getWriters());
+	}
+
+	/**
+	 * @return The recorded time, without the running writers, or 0.
+	 */
+
+	long getRecorded() throws IOException {
+		// A set() in progress may remove either file between the calls.
+		for (Path file : new Path[] { path, path.suffix(".tmp") }) {
+			try {
+				return read(file);
+			} catch (FileNotFoundException e) {
+				continue;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The earliest time of the running writers, or Long.MAX_VALUE.
+	 */
+
+	private long getWriters() throws IOException {
+		long time = Long.MAX_VALUE;
+		FileStatus[] statuses = fs.exists(writers) ? fs.listStatus(writers)
+				: null;
+		if (statuses == null)
+			return time;
+		for (FileStatus status : statuses) {
+			try {
+				time = Math.min(time, read(status.getPath()));
+			} catch (FileNotFoundException e) {
+				// The writer stopped, after lowering the recorded time.
+				continue;
+			} catch (IOException e) {
+				// A new file still being written, the old one is read.
+				if (!status.getPath().getName().endsWith(".tmp"))
+					throw e;
+			}
+		}
+		return time;
+	}
+
+	private long read(Path file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				fs.open(file), StandardCharsets.UTF_8));
+		try {
+			String line = reader.readLine();
+			if (line == null)
+				throw new IOException("Empty roll-up watermark " + file);
+			return Long.parseLong(line.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad roll-up watermark " + file, e);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void write(Path file, long time) throws IOException {
+		Path tmp = file.suffix(".tmp");
+		Writer writer = new OutputStreamWriter(fs.create(tmp, true),
+				StandardCharsets.UTF_8);
+		try {
+			writer.write(time + "\n");
+		} finally {
+			writer.close();
+		}
+		// HDFS does not rename over an existing file.
+		fs.delete(file, false);
+		if (!fs.rename(tmp, file))
+			throw new IOException("Could not rename " + tmp + " to " + file);
+	}
+
+	/**
+	 * Record an earlier time, before which the cells are in the roll-ups.
+	 */
+
+	public void lower(long time) throws IOException {
+		long recorded = getRecorded();
+		if (time < recorded)
+			write(path, time);
+	}
+
+	/**
+	 * Record the start of the cells of a load into an empty table.
+	 */
+
+	public void start(long time) throws IOException {
+		if (!fs.exists(path) && !fs.exists(path.suffix(".tmp")))
+			write(path, time);
+		else
+			lower(time);
+	}
+
+	/**
+	 * Record a successful RollupJob run.
+	 *
+	 * @param recorded
+	 *            The recorded time read before the job started.
+	 *
+	 * @param minTime
+	 *            Start of the time range of the job, inclusive.
+	 *
+	 * @param maxTime
+	 *            End of the time range of the job, exclusive.
+	 */
+
+	public void rolledUp(long recorded, long minTime, long maxTime)
+			throws IOException {
+		long time = minTime <= recorded ? Math.max(recorded, maxTime)
+				: recorded;
+		// Lowered during the job by cells it may not have read.
+		long current = getRecorded();
+		if (current < recorded)
+			time = Math.min(time, current);
+		// A writer stopping now lowers the recorded time after reading it,
+		// and may write it before this.
+		time = Math.min(time, getWriters());
+		if (time != current)
+			write(path, time);
+	}
+
+	/**
+	 * Hold the watermark at the earliest time a StreamingIngester writes,
+	 * until it closes the returned writer.
+	 */
+
+	public Watermark register() throws IOException {
+		return new Watermark(new Path(writers, UUID.randomUUID().toString()));
+	}
+
+	/**
+	 * The earliest time written by one writer.
+	 */
+
+	public class Watermark {
+
+		private final Path file;
+		private long time = Long.MAX_VALUE;
+
+		private Watermark(Path file) {
+			this.file = file;
+		}
+
+		/**
+		 * Call before writing a cell, with its version.
+		 */
+
+		public void lower(long timestamp) throws IOException {
+			if (timestamp >= time)
+				return;
+			// The roll-ups are only read from bucket boundaries on, so the
+			// file is written at most once an hour as time goes by.
+			time = Rollup.bucket(timestamp, Rollup.HOUR);
+			write(file, time);
+		}
+
+		/**
+		 * Lower the recorded time to the earliest time written, as the
+		 * cells are not rolled up, and drop the writer.
+		 */
+
+		public void close() throws IOException {
+			if (time == Long.MAX_VALUE)
+				return;
+			RollupWatermark.this.lower(time);
+			fs.delete(file, false);
+		}
+	}
+}
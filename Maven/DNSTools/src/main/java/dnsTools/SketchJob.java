@@ -0,0 +1,486 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.mapreduce.HRegionPartitioner;
+import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.mapreduce.TableMapper;
+import org.apache.hadoop.hbase.mapreduce.TableOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableReducer;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.xbill.DNS.Type;
+
+/**
+ * Builds the HyperLogLog sketches of a passive-DNS table: for each rrset,
+ * the number of distinct rdata values it was seen with, and for each rdata
+ * value in the reverse index, the number of distinct rrnames seen with it.
+ * args[0]: HBase table name
+ * args[1], args[2]: optional start and end of the time range, see
+ * Rollup.parseTime(). The whole table by default.
+ *
+ * The job scans the rows of both tables with a cell in the time range, and
+ * merges the sketches it computes into the stored ones, so running it
+ * again over the same range changes nothing. BulkLoader runs it after each
+ * load over the time range of the new cells. The rows written by
+ * StreamingIngester reach the sketches with the next run covering their
+ * time.
+ *
+ * Sketch table, args[0] + "_sketch":
+ * Row-key: 'n' followed by the row-key of an rrset, or 'r' followed by the
+ * rdata part of an index row-key, see RdataIndex.rdataKey().
+ * Column: a single cell of a single version holding HyperLogLog.toBytes().
+ *
+ */
+
+public class SketchJob {
+
+	// Suffix appended to the passive-DNS table name to get the sketch table.
+	public final static String TABLE_SUFFIX = "_sketch";
+
+	// Configuration key enabling the sketches of BulkLoader.
+	public final static String ENABLED_KEY = "dnstools.sketch";
+
+	public final static byte[] FAMILY = PdnsSchema.FAMILY;
+	public final static byte[] QUALIFIER = new byte[0];
+
+	// First byte of the row-key of the sketch of an rrset.
+	public final static byte RRSET = 'n';
+
+	// First byte of the row-key of the sketch of an rdata value.
+	public final static byte RDATA = 'r';
+
+	// Configuration key of the reverse index, which the mapper reads in
+	// the same job as the passive-DNS table.
+	private final static String INDEX_TABLE_KEY = "dnstools.sketch.index.table";
+
+	// Configuration key telling the reducer to read the stored sketches.
+	private final static String MERGE_KEY = "dnstools.sketch.merge";
+
+	// Number of rows fetched per scanner round trip.
+	private final static int SCANNER_CACHING = 500;
+
+	// Maximum number of cells per Result.
+	private final static int SCANNER_BATCH = 1000;
+
+	// Number of stored sketches the reducer reads with one multi-get.
+	private final static int GET_BATCH = 1000;
+
+	public static String tableName(String pdnsTableName) {
+		return pdnsTableName + TABLE_SUFFIX;
+	}
+
+	/**
+	 * @return The row-key of the sketch of an rrset, given its row-key in
+	 *         the passive-DNS table.
+	 */
+
+	public static byte[] rrsetRow(byte[] row) {
+		return Bytes.add(new byte[] { RRSET }, row);
+	}
+
+	/**
+	 * @return The row-key of the sketch of an rdata value, given the rdata
+	 *         part of its index row-keys.
+	 */
+
+	public static byte[] rdataRow(byte[] rdataKey) {
+		return Bytes.add(new byte[] { RDATA }, rdataKey);
+	}
+
+	/**
+	 * Computes a sketch per row of the passive-DNS table, over the rdata of
+	 * its qualifiers, and a sketch per rdata value of the reverse index, over
+	 * the rrnames that follow it in the row-keys. The rows of an rdata value,
+	 * and the Results of a row, are adjacent, so a sketch is written when
+	 * the next one starts. Only the sketches of the first and last keys of a
+	 * split are partial, and merged by the reducer.
+	 */
+
+	public static class SketchMapper extends
+			TableMapper<ImmutableBytesWritable, ImmutableBytesWritable> {
+
+		private boolean index;
+
+		private byte[] key = null;
+		private HyperLogLog sketch = null;
+
+		@Override
+		protected void setup(Context context) {
+			TableSplit split = (TableSplit) context.getInputSplit();
+			index = Bytes.toString(split.getTableName()).equals(
+					context.getConfiguration().get(INDEX_TABLE_KEY));
+		}
+
+		@Override
+		protected void map(ImmutableBytesWritable row, Result result,
+				Context context) throws IOException, InterruptedException {
+			byte[] bytes = result.getRow();
+			int length = index ? RdataIndex.rdataKeyLength(bytes)
+					: bytes.length;
+			if (key == null || !Bytes.equals(key, 0, key.length, bytes, 0, length)) {
+				write(context);
+				key = Bytes.head(bytes, length);
+				sketch = new HyperLogLog();
+			}
+
+			if (index) {
+				sketch.add(bytes, length, bytes.length - length);
+				return;
+			}
+			int rrtype = PdnsSchema.rrtype(bytes);
+			for (KeyValue kv : result.raw()) {
+				for (String rdata : PdnsSchema.unpackRdata(kv.getQualifier(),
+						rrtype))
+					sketch.add(Bytes.toBytes(rdata));
+			}
+		}
+
+		private void write(Context context) throws IOException,
+				InterruptedException {
+			if (key == null)
+				return;
+			context.write(new ImmutableBytesWritable(index ? rdataRow(key)
+					: rrsetRow(key)), new ImmutableBytesWritable(sketch
+					.toBytes()));
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException,
+				InterruptedException {
+			write(context);
+		}
+	}
+
+	private static HyperLogLog merge(Iterable<ImmutableBytesWritable> values) {
+		HyperLogLog sketch = new HyperLogLog();
+		for (ImmutableBytesWritable value : values)
+			sketch.merge(HyperLogLog.fromBytes(value.get(), value.getOffset(),
+					value.getLength()));
+		return sketch;
+	}
+
+	/**
+	 * Merges the partial sketches of a key in the map tasks.
+	 */
+
+	public static class SketchCombiner
+			extends
+			Reducer<ImmutableBytesWritable, ImmutableBytesWritable, ImmutableBytesWritable, ImmutableBytesWritable> {
+
+		@Override
+		protected void reduce(ImmutableBytesWritable key,
+				Iterable<ImmutableBytesWritable> values, Context context)
+				throws IOException, InterruptedException {
+			context.write(key, new ImmutableBytesWritable(merge(values)
+					.toBytes()));
+		}
+	}
+
+	/**
+	 * Merges the sketches of a key with the stored one, read in batches,
+	 * and writes the result over it.
+	 */
+
+	public static class SketchReducer extends
+			TableReducer<ImmutableBytesWritable, ImmutableBytesWritable, ImmutableBytesWritable> {
+
+		// Null if the sketch table was just created.
+		private HTable table;
+
+		private final List<byte[]> rows = new ArrayList<byte[]>();
+		private final List<HyperLogLog> sketches = new ArrayList<HyperLogLog>();
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			Configuration conf = context.getConfiguration();
+			table = conf.getBoolean(MERGE_KEY, true) ? new HTable(conf,
+					conf.get(TableOutputFormat.OUTPUT_TABLE)) : null;
+		}
+
+		@Override
+		protected void reduce(ImmutableBytesWritable key,
+				Iterable<ImmutableBytesWritable> values, Context context)
+				throws IOException, InterruptedException {
+			rows.add(key.copyBytes());
+			sketches.add(merge(values));
+			if (rows.size() == GET_BATCH)
+				flush(context);
+		}
+
+		private void flush(Context context) throws IOException,
+				InterruptedException {
+			if (table != null) {
+				List<Get> gets = new ArrayList<Get>(rows.size());
+				for (byte[] row : rows)
+					gets.add(new Get(row).addColumn(FAMILY, QUALIFIER));
+				Result[] stored = table.get(gets);
+				for (int i = 0; i < stored.length; i++) {
+					byte[] value = stored[i].getValue(FAMILY, QUALIFIER);
+					if (value != null)
+						sketches.get(i).merge(HyperLogLog.fromBytes(value));
+				}
+			}
+			for (int i = 0; i < rows.size(); i++) {
+				Put put = new Put(rows.get(i));
+				put.add(FAMILY, QUALIFIER, sketches.get(i).toBytes());
+				context.write(new ImmutableBytesWritable(rows.get(i)), put);
+			}
+			rows.clear();
+			sketches.clear();
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException,
+				InterruptedException {
+			flush(context);
+			if (table != null)
+				table.close();
+		}
+	}
+
+	/**
+	 * @return True if the sketch table of a passive-DNS table exists.
+	 */
+
+	public static boolean exists(Configuration conf, String tableName)
+			throws IOException {
+		HBaseAdmin admin = new HBaseAdmin(conf);
+		try {
+			return admin.tableExists(tableName(tableName));
+		} finally {
+			admin.close();
+		}
+	}
+
+	/**
+	 * Create the sketch table if it is missing, split at the region
+	 * boundaries of the tables it summarizes and in their layout. A single
+	 * version is kept, as each sketch holds all the previous ones.
+	 *
+	 * @return True if the table was created.
+	 */
+
+	private static boolean createTable(Configuration conf, String tableName,
+			String indexTableName) throws IOException {
+		HBaseAdmin admin = new HBaseAdmin(conf);
+		try {
+			String name = tableName(tableName);
+			if (admin.tableExists(name))
+				return false;
+
+			List<byte[]> splits = new ArrayList<byte[]>();
+			splits.add(new byte[] { RDATA });
+			addSplits(conf, tableName, RRSET, splits);
+			addSplits(conf, indexTableName, RDATA, splits);
+
+			HColumnDescriptor family = new HColumnDescriptor(FAMILY);
+			family.setMaxVersions(1);
+			family.setCompressionType(Compression
+					.getCompressionAlgorithmByName(conf.get(
+							TableSplitter.COMPRESSION_KEY,
+							TableSplitter.DEFAULT_COMPRESSION)));
+			family.setBloomFilterType(StoreFile.BloomType.ROW);
+
+			HTableDescriptor descriptor = new HTableDescriptor(name);
+			descriptor.addFamily(family);
+			descriptor.setValue(PdnsSchema.LAYOUT_KEY,
+					PdnsSchema.layout(PdnsSchema.isReversed(conf)));
+			admin.createTable(descriptor, splits.toArray(new byte[0][]));
+			return true;
+		} finally {
+			admin.close();
+		}
+	}
+
+	private static void addSplits(Configuration conf, String tableName,
+			byte kind, List<byte[]> splits) throws IOException {
+		HTable table = new HTable(conf, tableName);
+		try {
+			for (byte[] key : table.getStartKeys()) {
+				if (key.length > 0)
+					splits.add(Bytes.add(new byte[] { kind }, key));
+			}
+		} finally {
+			table.close();
+		}
+	}
+
+	private static Scan scan(String tableName, long minTime, long maxTime)
+			throws IOException {
+		Scan scan = new Scan();
+		scan.addFamily(PdnsSchema.FAMILY);
+		scan.setTimeRange(minTime, maxTime);
+		// The rows and qualifiers are enough.
+		scan.setFilter(new KeyOnlyFilter());
+		scan.setCaching(SCANNER_CACHING);
+		scan.setBatch(SCANNER_BATCH);
+		scan.setCacheBlocks(false);
+		scan.setAttribute(Scan.SCAN_ATTRIBUTES_TABLE_NAME, Bytes
+				.toBytes(tableName));
+		return scan;
+	}
+
+	/**
+	 * Add the rows with a cell in a time range to the sketches.
+	 *
+	 * @param minTime
+	 *            Start of the time range in milliseconds, inclusive.
+	 *
+	 * @param maxTime
+	 *            End of the time range in milliseconds, exclusive, or
+	 *            Long.MAX_VALUE.
+	 *
+	 * @return False if the job failed.
+	 */
+
+	public static boolean run(Configuration conf, String tableName,
+			long minTime, long maxTime) throws IOException,
+			InterruptedException, ClassNotFoundException {
+		String indexTableName = conf.get(RdataIndex.TABLE_KEY,
+				RdataIndex.tableName(tableName));
+		TableSplitter.configureLayout(conf, tableName);
+		boolean created = createTable(conf, tableName, indexTableName);
+
+		Job job = new Job(conf, "Sketches of " + tableName);
+		job.setJarByClass(SketchJob.class);
+		job.getConfiguration().set(INDEX_TABLE_KEY, indexTableName);
+		job.getConfiguration().setBoolean(MERGE_KEY, !created);
+
+		List<Scan> scans = new ArrayList<Scan>();
+		scans.add(scan(tableName, minTime, maxTime));
+		HBaseAdmin admin = new HBaseAdmin(conf);
+		try {
+			if (admin.tableExists(indexTableName))
+				scans.add(scan(indexTableName, minTime, maxTime));
+		} finally {
+			admin.close();
+		}
+		TableMapReduceUtil.initTableMapperJob(scans, SketchMapper.class,
+				ImmutableBytesWritable.class, ImmutableBytesWritable.class,
+				job);
+		job.setCombinerClass(SketchCombiner.class);
+		TableMapReduceUtil.initTableReducerJob(tableName(tableName),
+				SketchReducer.class, job, HRegionPartitioner.class);
+		// Reduce attempts read the sketches they overwrite.
+		job.getConfiguration().setBoolean(
+				"mapred.reduce.tasks.speculative.execution", false);
+		return job.waitForCompletion(true);
+	}
+
+	/**
+	 * @return The estimated number of distinct rdata values of an rrname,
+	 *         over the given rrtype or all of them, or -1 if it has no
+	 *         sketch.
+	 *
+	 * @param table
+	 *            The sketch table.
+	 *
+	 * @param rrname
+	 *            The fully qualified rrname.
+	 *
+	 * @param rrtype
+	 *            The rrtype mnemonic, or "" for all rrtypes of the name.
+	 */
+
+	public static long rdataCount(HTableInterface table, String rrname,
+			String rrtype, boolean reversed) throws IOException {
+		if (!rrtype.equals("")) {
+			byte[] row = rrsetRow(PdnsSchema.rowKey(rrname, Type
+					.value(rrtype), reversed));
+			HyperLogLog sketch = merge(null, table.get(
+					new Get(row).addColumn(FAMILY, QUALIFIER)).getValue(
+					FAMILY, QUALIFIER));
+			return sketch == null ? -1 : sketch.estimate();
+		}
+
+		byte[] prefix = rrsetRow(PdnsSchema.rowPrefix(rrname, reversed));
+		Scan scan = new Scan(prefix, PdnsSchema.stopRow(prefix));
+		scan.addColumn(FAMILY, QUALIFIER);
+		HyperLogLog merged = null;
+		ResultScanner scanner = table.getScanner(scan);
+		try {
+			for (Result result : scanner)
+				merged = merge(merged, result.getValue(FAMILY, QUALIFIER));
+		} finally {
+			scanner.close();
+		}
+		return merged == null ? -1 : merged.estimate();
+	}
+
+	/**
+	 * @return The estimated number of distinct rrnames seen with an rdata
+	 *         value, over the given rrtypes, or -1 if it has no sketch.
+	 *
+	 * @param table
+	 *            The sketch table.
+	 *
+	 * @param rrtypes
+	 *            See RdataIndex.queryTypes(), -1 are skipped.
+	 */
+
+	public static long rrnameCount(HTableInterface table, String rdata,
+			int[] rrtypes) throws IOException {
+		List<Get> gets = new ArrayList<Get>();
+		for (int type : rrtypes) {
+			byte[] rdataKey = type < 0 ? null : RdataIndex.rdataKey(type,
+					rdata);
+			if (rdataKey != null)
+				gets.add(new Get(rdataRow(rdataKey)).addColumn(FAMILY,
+						QUALIFIER));
+		}
+		HyperLogLog merged = null;
+		for (Result result : table.get(gets))
+			merged = merge(merged, result.getValue(FAMILY, QUALIFIER));
+		return merged == null ? -1 : merged.estimate();
+	}
+
+	private static HyperLogLog merge(HyperLogLog sketch, byte[] value) {
+		if (value == null)
+			return sketch;
+		HyperLogLog other = HyperLogLog.fromBytes(value);
+		if (sketch == null)
+			return other;
+		sketch.merge(other);
+		return sketch;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = HBaseConfiguration.create();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+		if (args.length != 1 && args.length != 3) {
+			System.err.println("java dnsTools.SketchJob <table> [<from> <to>]");
+			System.exit(1);
+		}
+
+		long minTime = 0;
+		long maxTime = Long.MAX_VALUE;
+		if (args.length == 3) {
+			minTime = Rollup.parseTime(args[1]);
+			maxTime = Rollup.parseTime(args[2]);
+		}
+		System.exit(run(conf, args[0], minTime, maxTime) ? 0 : 1);
+	}
+}
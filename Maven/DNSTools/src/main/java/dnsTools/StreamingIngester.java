@@ -0,0 +1,576 @@
+package dnsTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableFactory;
+import org.apache.hadoop.hbase.client.HTableInterfaceFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Near-real-time ingest path next to BulkLoader. Log lines are read as they
+ * are written, from files being appended to, from a pipe or from clients
+ * connecting to a local port, and written to the same tables and in the
+ * same layout as the bulk-load, through ObservationParser. Observations are
+ * combined by ObservationCombiner and written with Puts by a MutationBuffer.
+ * A Put of a cell already in the table at the same millisecond replaces
+ * it, so the observations of an rdata set in the same millisecond that are
+ * not combined before they are written are counted once, see PdnsSchema.
+ *
+ * The parsed cells are written at the latest after dnstools.ingest.latency
+ * milliseconds, or as soon as dnstools.ingest.flush.size bytes of them are
+ * buffered. At most dnstools.ingest.max.inflight batches are written at
+ * once by dnstools.ingest.writers threads. When HBase does not keep up the
+ * ingest thread waits for the writers, the queue of read lines fills up and
+ * the sources stop reading.
+ *
+ * Throughput and backpressure are logged every dnstools.ingest.report
+ * seconds. The parse counters of MapperMetrics are kept in getCounters().
+ *
+ * The LoadFilter of the table is deleted on start, as the rows written
+ * here are not in it. Nor are they in the roll-up tables (see Rollup) and
+ * the sketches until RollupJob and SketchJob are run over their time
+ * range, or a bulk load covers the same days. Meanwhile the earliest hour
+ * written holds down the RollupWatermark of the table, see
+ * setRollupWatermark(), so queries read that time from the passive-DNS
+ * table.
+ *
+ */
+
+public class StreamingIngester {
+
+	private static final Log LOG = LogFactory.getLog(StreamingIngester.class);
+
+	// Configuration key of the bytes of cells after which a batch is written.
+	public final static String FLUSH_SIZE_KEY = "dnstools.ingest.flush.size";
+
+	public final static long DEFAULT_FLUSH_SIZE = 2L << 20;
+
+	// Configuration key of the longest time a cell is buffered, in ms.
+	public final static String LATENCY_KEY = "dnstools.ingest.latency";
+
+	public final static long DEFAULT_LATENCY = 1000;
+
+	// Configuration key of the number of batches written at once.
+	public final static String MAX_INFLIGHT_KEY = "dnstools.ingest.max.inflight";
+
+	public final static int DEFAULT_MAX_INFLIGHT = 4;
+
+	// Configuration key of the number of writer threads.
+	public final static String WRITERS_KEY = "dnstools.ingest.writers";
+
+	public final static int DEFAULT_WRITERS = 2;
+
+	// Configuration key of the number of read lines waiting to be parsed.
+	public final static String QUEUE_KEY = "dnstools.ingest.queue";
+
+	public final static int DEFAULT_QUEUE = 10000;
+
+	// Configuration key of the memory budget of the combiner, in bytes, 0
+	// disables combining.
+	public final static String COMBINE_MEMORY_KEY = "dnstools.ingest.combine.memory";
+
+	public final static long DEFAULT_COMBINE_MEMORY = 4L << 20;
+
+	// Configuration key of the interval between reports, in seconds, 0
+	// disables them.
+	public final static String REPORT_KEY = "dnstools.ingest.report";
+
+	public final static int DEFAULT_REPORT = 10;
+
+	// Wait between two reads of a file that has not grown, in ms.
+	private final static long TAIL_POLL = 200;
+
+	private final long latency;
+	private final long reportInterval;
+
+	private final BlockingQueue<byte[]> lines;
+	private final Counters counters = new Counters();
+	private final MapperMetrics metrics;
+	private final ObservationParser parser;
+	private final ObservationCombiner combiner;
+	private final MutationBuffer buffer;
+	private RollupWatermark.Watermark watermark;
+
+	// Sources still reading, the ingest ends when there are none left.
+	private final AtomicInteger activeSources = new AtomicInteger();
+	private final List<Thread> sources = new ArrayList<Thread>();
+	private final List<ServerSocket> listeners = new ArrayList<ServerSocket>();
+	private final AtomicReference<IOException> sourceFailure = new AtomicReference<IOException>();
+	private volatile boolean stopped = false;
+
+	private long linesParsed = 0;
+
+	/**
+	 * @param tableNames
+	 *            The names of the output tables, indexed as in
+	 *            BulkLoaderMapper, see BulkLoaderMapper.outputTables().
+	 */
+
+	public StreamingIngester(Configuration conf,
+			HTableInterfaceFactory tableFactory, List<String> tableNames) {
+		latency = conf.getLong(LATENCY_KEY, DEFAULT_LATENCY);
+		reportInterval = TimeUnit.SECONDS.toMillis(conf.getInt(REPORT_KEY,
+				DEFAULT_REPORT));
+		lines = new ArrayBlockingQueue<byte[]>(conf.getInt(QUEUE_KEY,
+				DEFAULT_QUEUE));
+		buffer = new MutationBuffer(conf, tableFactory, tableNames,
+				conf.getLong(FLUSH_SIZE_KEY, DEFAULT_FLUSH_SIZE), conf.getInt(
+						MAX_INFLIGHT_KEY, DEFAULT_MAX_INFLIGHT), conf.getInt(
+						WRITERS_KEY, DEFAULT_WRITERS));
+
+		long combineMemory = conf.getLong(COMBINE_MEMORY_KEY,
+				DEFAULT_COMBINE_MEMORY);
+		combiner = combineMemory > 0 ? new ObservationCombiner(combineMemory,
+				new ObservationCombiner.Output() {
+					@Override
+					public void write(int table, KeyValue kv)
+							throws IOException, InterruptedException {
+						StreamingIngester.this.write(table, kv);
+					}
+				}) : null;
+
+		metrics = new MapperMetrics(conf, counters);
+		parser = new ObservationParser(conf, metrics,
+				new ObservationParser.Sink() {
+					@Override
+					public void observe(int table, byte[] row, byte[] family,
+							byte[] qualifier, long timestamp)
+							throws IOException, InterruptedException {
+						metrics.observation();
+						if (watermark != null)
+							watermark.lower(timestamp);
+						if (combiner != null)
+							combiner.add(table, row, family, qualifier,
+									timestamp);
+						else
+							write(table, new KeyValue(row, family,
+									qualifier, timestamp,
+									PdnsSchema.SINGLE_OBSERVATION));
+					}
+				});
+	}
+
+	/**
+	 * Record the versions written in a watermark of the roll-ups, before
+	 * the cells are written. It is closed by the caller after run().
+	 */
+
+	public void setRollupWatermark(RollupWatermark.Watermark watermark) {
+		this.watermark = watermark;
+	}
+
+	private void write(int table, KeyValue kv) throws IOException,
+			InterruptedException {
+		metrics.cell();
+		buffer.add(table, kv);
+	}
+
+	/**
+	 * Read the lines of a stream, e.g. standard input, until it ends.
+	 */
+
+	public void addStream(final String name, final InputStream in) {
+		startSource("stream " + name, new SourceReader() {
+			@Override
+			public void read() throws IOException, InterruptedException {
+				readLines(in);
+			}
+		});
+	}
+
+	/**
+	 * Follow a file as it is appended to, like tail -F. It is read from the
+	 * start, or only from its current end with fromEnd, and read again from
+	 * the start when it is truncated or replaced by log rotation. Only
+	 * complete lines are parsed.
+	 */
+
+	public void addFile(final File file, final boolean fromEnd) {
+		startSource("file " + file, new SourceReader() {
+			@Override
+			public void read() throws IOException, InterruptedException {
+				tail(file, fromEnd);
+			}
+		});
+	}
+
+	/**
+	 * Accept connections on a port of the loopback interface and read the
+	 * lines each client sends until it disconnects.
+	 */
+
+	public void listen(int port) throws IOException {
+		final ServerSocket server = new ServerSocket(port, 50,
+				InetAddress.getLoopbackAddress());
+		synchronized (listeners) {
+			listeners.add(server);
+		}
+		startSource("port " + port, new SourceReader() {
+			@Override
+			public void read() throws IOException, InterruptedException {
+				while (!stopped) {
+					final Socket client;
+					try {
+						client = server.accept();
+					} catch (IOException e) {
+						if (stopped)
+							return;
+						throw e;
+					}
+					Thread reader = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								readLines(client.getInputStream());
+							} catch (IOException e) {
+								LOG.warn("Connection from "
+										+ client.getRemoteSocketAddress()
+										+ " failed: " + e.getMessage());
+							} catch (InterruptedException e) {
+								// Stopped.
+							} finally {
+								try {
+									client.close();
+								} catch (IOException e) {
+									// Already gone.
+								}
+							}
+						}
+					}, "ingest client " + client.getRemoteSocketAddress());
+					reader.setDaemon(true);
+					reader.start();
+				}
+			}
+		});
+	}
+
+	private interface SourceReader {
+		void read() throws IOException, InterruptedException;
+	}
+
+	private void startSource(final String name, final SourceReader source) {
+		activeSources.incrementAndGet();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					source.read();
+				} catch (IOException e) {
+					sourceFailure.compareAndSet(null, new IOException(
+							"Reading " + name + " failed", e));
+				} catch (InterruptedException e) {
+					// Stopped.
+				} finally {
+					activeSources.decrementAndGet();
+				}
+			}
+		}, "ingest " + name);
+		thread.setDaemon(true);
+		synchronized (sources) {
+			sources.add(thread);
+		}
+		thread.start();
+	}
+
+	private void readLines(InputStream in) throws IOException,
+			InterruptedException {
+		LineReader reader = new LineReader(in);
+		Text line = new Text();
+		while (!stopped && reader.readLine(line) > 0)
+			lines.put(Arrays.copyOf(line.getBytes(), line.getLength()));
+	}
+
+	private void tail(File file, boolean fromEnd) throws IOException,
+			InterruptedException {
+		byte[] chunk = new byte[64 << 10];
+		Text partial = new Text();
+		RandomAccessFile in = null;
+		Object fileKey = null;
+		long position = 0;
+		try {
+			while (!stopped) {
+				if (in == null) {
+					if (!file.exists()) {
+						Thread.sleep(TAIL_POLL);
+						continue;
+					}
+					in = new RandomAccessFile(file, "r");
+					fileKey = fileKey(file);
+					position = fromEnd ? in.length() : 0;
+					fromEnd = false;
+					partial.clear();
+				}
+
+				if (in.length() < position) {
+					// Truncated, read it again from the start.
+					position = 0;
+					partial.clear();
+				}
+				in.seek(position);
+				int n = in.read(chunk);
+				if (n <= 0) {
+					// At the end of the open file, which log rotation may have
+					// replaced with a new one.
+					Object key = file.exists() ? fileKey(file) : null;
+					if (key != null && !key.equals(fileKey)) {
+						in.close();
+						in = null;
+					} else {
+						Thread.sleep(TAIL_POLL);
+					}
+					continue;
+				}
+				position += n;
+
+				int start = 0;
+				for (int i = 0; i < n; i++) {
+					if (chunk[i] != '\n')
+						continue;
+					partial.append(chunk, start, i - start);
+					int length = partial.getLength();
+					if (length > 0 && partial.getBytes()[length - 1] == '\r')
+						length--;
+					lines.put(Arrays.copyOf(partial.getBytes(), length));
+					partial.clear();
+					start = i + 1;
+				}
+				partial.append(chunk, start, n - start);
+			}
+		} finally {
+			if (in != null)
+				in.close();
+		}
+	}
+
+	/**
+	 * @return The identity of the file a path names, e.g. its inode, or null
+	 *         where the file system has none.
+	 */
+
+	private static Object fileKey(File file) throws IOException {
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class)
+				.fileKey();
+	}
+
+	/**
+	 * Parse the read lines and write their observations, until stop() is
+	 * called or all the sources have ended.
+	 */
+
+	public void run() throws IOException, InterruptedException {
+		long now = System.currentTimeMillis();
+		long deadline = now + latency;
+		long nextReport = now + reportInterval;
+		long lastReport = now;
+		long reportedLines = 0;
+		long reportedCells = 0;
+		try {
+			while (!stopped) {
+				IOException failure = sourceFailure.get();
+				if (failure != null)
+					throw failure;
+
+				byte[] line = lines.poll(Math.max(deadline - now, 0),
+						TimeUnit.MILLISECONDS);
+				if (line != null) {
+					parser.parse(line, line.length);
+					linesParsed++;
+				} else if (activeSources.get() == 0 && lines.isEmpty()) {
+					break;
+				}
+
+				now = System.currentTimeMillis();
+				if (now >= deadline) {
+					flush();
+					deadline = now + latency;
+				}
+				if (reportInterval > 0 && now >= nextReport) {
+					LOG.info(report(now - lastReport, linesParsed
+							- reportedLines, buffer.getCellsWritten()
+							- reportedCells));
+					lastReport = now;
+					reportedLines = linesParsed;
+					reportedCells = buffer.getCellsWritten();
+					nextReport = now + reportInterval;
+				}
+			}
+			flush();
+		} finally {
+			buffer.close();
+		}
+		LOG.info("Ingested " + linesParsed + " lines, " + getObservations()
+				+ " observations, " + buffer.getCellsWritten() + " cells in "
+				+ buffer.getBatchesWritten() + " batches, backpressure "
+				+ buffer.getBackpressureMillis() + " ms");
+	}
+
+	private void flush() throws IOException, InterruptedException {
+		if (combiner != null)
+			combiner.flush();
+		buffer.flush();
+	}
+
+	private String report(long millis, long newLines, long newCells) {
+		double seconds = Math.max(millis, 1) / 1000.0;
+		return String.format("lines/s=%.0f cells/s=%.0f batches=%d "
+				+ "in_flight=%d backpressure_ms=%d write_ms=%d queue=%d",
+				newLines / seconds, newCells / seconds,
+				buffer.getBatchesWritten(), buffer.getInFlight(),
+				buffer.getBackpressureMillis(), buffer.getWriteMillis(),
+				lines.size());
+	}
+
+	/**
+	 * Stop reading. run() writes what was read and returns.
+	 */
+
+	public void stop() {
+		stopped = true;
+		synchronized (listeners) {
+			for (ServerSocket server : listeners) {
+				try {
+					server.close();
+				} catch (IOException e) {
+					// Closing anyway.
+				}
+			}
+		}
+		synchronized (sources) {
+			for (Thread source : sources)
+				source.interrupt();
+		}
+	}
+
+	public long getLinesParsed() {
+		return linesParsed;
+	}
+
+	public long getObservations() {
+		return counters.findCounter(MapperMetrics.GROUP, "OBSERVATIONS")
+				.getValue();
+	}
+
+	public MutationBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return The parse counters of MapperMetrics.
+	 */
+
+	public Counters getCounters() {
+		return counters;
+	}
+
+	/**
+	 * Command line parser class from args4j package
+	 * used to parse the command line arguments.
+	 *
+	 */
+
+	private static class OptionsParser {
+
+		@Option(name = "--table", usage = "HBase table to write to, the index goes to <table>_rdata.", metaVar = "<string>")
+		private String table = "table1";
+
+		@Option(name = "--file", usage = "log file to follow, may be repeated.", metaVar = "<path>")
+		private List<File> files = new ArrayList<File>();
+
+		@Option(name = "--from-end", usage = "only read what is appended to the files from now on.")
+		private boolean fromEnd = false;
+
+		@Option(name = "--port", usage = "local port to accept log lines on.", metaVar = "<int>")
+		private int port = 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = HBaseConfiguration.create();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		OptionsParser options = new OptionsParser();
+		CmdLineParser parser = new CmdLineParser(options);
+		parser.setUsageWidth(120);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println("java dnsTools.StreamingIngester [options...]");
+			System.err.println("Reads standard input without --file or --port.");
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+
+		List<String> tableNames = BulkLoaderMapper.outputTables(conf,
+				options.table);
+
+		// The rows written from now on are not in the filter of the loads.
+		if (LoadFilter.delete(conf, options.table))
+			System.err.println("Deleted the filter of " + options.table);
+
+		// Write the row-keys of an existing table in its own layout.
+		TableSplitter.configureLayout(conf, options.table);
+
+		// Tables that were never bulk-loaded are created with one region.
+		List<List<byte[]>> noKeys = new ArrayList<List<byte[]>>();
+		for (int i = 0; i < tableNames.size(); i++)
+			noKeys.add(new ArrayList<byte[]>());
+		TableSplitter.createTables(conf, tableNames, noKeys);
+
+		final StreamingIngester ingester = new StreamingIngester(conf,
+				new HTableFactory(), tableNames);
+		RollupWatermark.Watermark watermark = RollupWatermark.open(conf,
+				options.table).register();
+		ingester.setRollupWatermark(watermark);
+		for (File file : options.files)
+			ingester.addFile(file, options.fromEnd);
+		if (options.port > 0)
+			ingester.listen(options.port);
+		if (options.files.isEmpty() && options.port == 0)
+			ingester.addStream("stdin", System.in);
+
+		final Thread main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				ingester.stop();
+				try {
+					main.join();
+				} catch (InterruptedException e) {
+					// Exiting anyway.
+				}
+			}
+		});
+		try {
+			ingester.run();
+		} finally {
+			watermark.close();
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Coprocessor;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.util.LineReader;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Sampling pre-pass of BulkLoader that creates the output tables pre-split.
+ * A table created with a single region gets a single reducer from
+ * MultiTableHFileOutputFormat, so the whole reduce phase would run on one
+ * node.
+ *
+ * Lines, or LogRecords of a binary input, are read at random offsets of the
+ * input splits and turned into the row-keys the mapper would write to each
+ * table. The split points of a table are the quantiles of its sampled keys,
+ * so every region, and therefore every reducer, gets about the same share
+ * of the key-values.
+ *
+ * Only tables that do not exist yet are created, with all versions kept,
+ * the row-key layout of the load as an attribute, compression and a row
+ * bloom filter on the tables of rrsets, which are read with Gets. The
+ * reverse index is only read with prefix scans, which do not use bloom
+ * filters. The rrset and index tables also get PdnsAggregateEndpoint when
+ * dnstools.coprocessor.jar names its jar.
+ *
+ */
+
+public class TableSplitter {
+
+	private static final Log LOG = LogFactory.getLog(TableSplitter.class);
+
+	// Configuration key of the number of lines sampled.
+	public final static String SAMPLES_KEY = "dnstools.presplit.samples";
+
+	public final static int DEFAULT_SAMPLES = 10000;
+
+	// Configuration key of the number of regions of a new table. By default
+	// two per live region server.
+	public final static String REGIONS_KEY = "dnstools.presplit.regions";
+
+	private final static int REGIONS_PER_SERVER = 2;
+
+	// Configuration key of the compression of a new table, e.g. gz or
+	// snappy.
+	public final static String COMPRESSION_KEY = "dnstools.table.compression";
+
+	public final static String DEFAULT_COMPRESSION = "gz";
+
+	// Configuration key of the jar holding PdnsAggregateEndpoint, e.g. on
+	// HDFS. When set, the endpoint is loaded on the new rrset and index
+	// tables, so a full reload keeps the server-side aggregation.
+	public final static String COPROCESSOR_JAR_KEY = "dnstools.coprocessor.jar";
+
+	// Consecutive lines read at each sampled offset.
+	private final static int LINES_PER_OFFSET = 100;
+
+	/**
+	 * Create the output tables that do not exist yet.
+	 *
+	 * @param tableNames
+	 *            The names of the output tables, indexed as in
+	 *            BulkLoaderMapper.
+	 *
+	 * @param keys
+	 *            The sampled row-keys of each table, see sampleRowKeys().
+	 */
+
+	public static void createTables(Configuration conf,
+			List<String> tableNames, List<List<byte[]>> keys)
+			throws IOException {
+		HBaseAdmin admin = new HBaseAdmin(conf);
+		try {
+			for (int table = 0; table < tableNames.size(); table++) {
+				String name = tableNames.get(table);
+				if (admin.tableExists(name))
+					continue;
+
+				int regions = conf.getInt(REGIONS_KEY, REGIONS_PER_SERVER
+						* admin.getClusterStatus().getServersSize());
+				byte[][] splits = splitKeys(keys.get(table), regions);
+
+				HTableDescriptor descriptor = descriptor(conf, name, table);
+				if (splits.length == 0)
+					admin.createTable(descriptor);
+				else
+					admin.createTable(descriptor, splits);
+				LOG.info("Created table " + name + " with "
+						+ (splits.length + 1) + " regions from "
+						+ keys.get(table).size() + " sampled keys");
+			}
+		} finally {
+			admin.close();
+		}
+	}
+
+	/**
+	 * @return The descriptor of a new output table.
+	 *
+	 * @param table
+	 *            The index of the table in BulkLoaderMapper.
+	 */
+
+	static HTableDescriptor descriptor(Configuration conf, String name,
+			int table) throws IOException {
+		HColumnDescriptor family = new HColumnDescriptor(PdnsSchema.FAMILY);
+		family.setMaxVersions(Integer.MAX_VALUE);
+		family.setCompressionType(Compression
+				.getCompressionAlgorithmByName(conf.get(COMPRESSION_KEY,
+						DEFAULT_COMPRESSION)));
+		family.setBloomFilterType(table == BulkLoaderMapper.RDATA_TABLE
+				? StoreFile.BloomType.NONE : StoreFile.BloomType.ROW);
+
+		HTableDescriptor descriptor = new HTableDescriptor(name);
+		descriptor.addFamily(family);
+		descriptor.setValue(PdnsSchema.LAYOUT_KEY,
+				PdnsSchema.layout(PdnsSchema.isReversed(conf)));
+
+		// The tables HBaseQueryBackend aggregates on the server.
+		String jar = conf.get(COPROCESSOR_JAR_KEY);
+		if (jar != null
+				&& (table == BulkLoaderMapper.RRSET_TABLE
+						|| table == BulkLoaderMapper.RDATA_TABLE))
+			descriptor.addCoprocessor(PdnsAggregateEndpoint.class.getName(),
+					new Path(jar), Coprocessor.PRIORITY_USER, null);
+		return descriptor;
+	}
+
+	/**
+	 * Set the row-key layout of the load in the configuration: the layout of
+	 * the passive-DNS table if it exists, so an incremental load writes the
+	 * keys it already holds, or dnstools.rowkey.layout (reversed by default)
+	 * for the tables createTables() makes.
+	 */
+
+	public static void configureLayout(Configuration conf, String tableName)
+			throws IOException {
+		HBaseAdmin admin = new HBaseAdmin(conf);
+		try {
+			boolean reversed = admin.tableExists(tableName) ? PdnsSchema
+					.isReversed(admin.getTableDescriptor(Bytes
+							.toBytes(tableName))) : PdnsSchema.isReversed(conf);
+			conf.set(PdnsSchema.LAYOUT_KEY, PdnsSchema.layout(reversed));
+		} finally {
+			admin.close();
+		}
+	}
+
+	/**
+	 * @return The split points dividing the sorted keys into the given
+	 *         number of regions of about the same number of keys. There are
+	 *         fewer if the keys have too few distinct values.
+	 */
+
+	public static byte[][] splitKeys(List<byte[]> sortedKeys, int regions) {
+		List<byte[]> splits = new ArrayList<byte[]>();
+		for (int i = 1; i < regions && !sortedKeys.isEmpty(); i++) {
+			byte[] key = sortedKeys.get((int) ((long) i * sortedKeys.size()
+					/ regions));
+			if (splits.isEmpty()
+					|| Bytes.compareTo(key, splits.get(splits.size() - 1)) > 0)
+				splits.add(key);
+		}
+		return splits.toArray(new byte[splits.size()][]);
+	}
+
+	/**
+	 * Sample the row-keys of the output tables, reading as many lines as
+	 * dnstools.presplit.samples says.
+	 */
+
+	public static List<List<byte[]>> sampleRowKeys(JobContext job)
+			throws IOException, InterruptedException {
+		return sampleRowKeys(job, job.getConfiguration().getInt(SAMPLES_KEY,
+				DEFAULT_SAMPLES));
+	}
+
+	/**
+	 * Sample the row-keys of the output tables.
+	 *
+	 * @return The sorted sampled row-keys of each table, indexed as in
+	 *         BulkLoaderMapper.
+	 */
+
+	public static List<List<byte[]>> sampleRowKeys(JobContext job, int samples)
+			throws IOException, InterruptedException {
+		Configuration conf = job.getConfiguration();
+		boolean binary = BulkLoader.INPUT_FORMAT_BINARY.equals(conf.get(
+				BulkLoader.INPUT_FORMAT_KEY, BulkLoader.INPUT_FORMAT_TEXT));
+		boolean reversed = PdnsSchema.isReversed(conf);
+		FileInputFormat<?, ?> format = binary ? new LogRecordInputFormat()
+				: new TextInputFormat();
+		List<InputSplit> splits = format.getSplits(job);
+
+		// Pick the offsets uniformly over the bytes of all the splits.
+		long[] ends = new long[splits.size()];
+		long total = 0;
+		for (int i = 0; i < splits.size(); i++) {
+			total += splits.get(i).getLength();
+			ends[i] = total;
+		}
+		int offsets = (samples + LINES_PER_OFFSET - 1) / LINES_PER_OFFSET;
+		long[] positions = new long[offsets];
+		Random random = new Random(0);
+		for (int i = 0; i < offsets; i++)
+			positions[i] = (long) (random.nextDouble() * total);
+		Arrays.sort(positions);
+
+		// One list per output table, see BulkLoaderMapper.outputTables().
+		List<List<byte[]>> keys = new ArrayList<List<byte[]>>();
+		int tables = BulkLoaderMapper.allSections(conf) ? 4 : 2;
+		for (int i = 0; i < tables; i++)
+			keys.add(new ArrayList<byte[]>());
+
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+		LogLineParser parser = new LogLineParser();
+		Text line = new Text();
+		int next = 0;
+		for (int i = 0; i < splits.size() && next < offsets; i++) {
+			FileSplit split = (FileSplit) splits.get(i);
+			long start = ends[i] - split.getLength();
+			int count = 0;
+			while (next < offsets && positions[next] < ends[i]) {
+				next++;
+				count++;
+			}
+			if (count == 0)
+				continue;
+
+			Path path = split.getPath();
+			FileSystem fs = path.getFileSystem(conf);
+			if (binary) {
+				SequenceFile.Reader reader = new SequenceFile.Reader(fs, path,
+						conf);
+				try {
+					for (int j = next - count; j < next; j++) {
+						reader.sync(split.getStart() + positions[j] - start);
+						readKeys(reader, LINES_PER_OFFSET, reversed, keys);
+					}
+				} finally {
+					reader.close();
+				}
+				continue;
+			}
+			CompressionCodec codec = codecs.getCodec(path);
+			FSDataInputStream file = fs.open(path);
+			try {
+				if (codec != null) {
+					// A compressed file is a single split read from its start.
+					InputStream in = codec.createInputStream(file);
+					readKeys(new LineReader(in, conf), false, count
+							* LINES_PER_OFFSET, parser, line, reversed, keys);
+					continue;
+				}
+				for (int j = next - count; j < next; j++) {
+					long offset = split.getStart() + positions[j] - start;
+					file.seek(offset);
+					readKeys(new LineReader(file, conf), offset != 0,
+							LINES_PER_OFFSET, parser, line, reversed, keys);
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		for (List<byte[]> tableKeys : keys)
+			Collections.sort(tableKeys, Bytes.BYTES_COMPARATOR);
+		return keys;
+	}
+
+	private static void readKeys(LineReader reader, boolean skipFirst,
+			int lines, LogLineParser parser, Text line, boolean reversed,
+			List<List<byte[]>> keys) throws IOException {
+		// An offset inside a line gives only the end of it.
+		if (skipFirst && reader.readLine(line) == 0)
+			return;
+		for (int i = 0; i < lines && reader.readLine(line) > 0; i++) {
+			if (parser.parse(line.getBytes(), line.getLength()) == LogLineParser.Status.OK)
+				addRowKeys(parser.getPacket(), reversed, keys);
+		}
+	}
+
+	private static void readKeys(SequenceFile.Reader reader, int records,
+			boolean reversed, List<List<byte[]>> keys) throws IOException {
+		NullWritable key = NullWritable.get();
+		LogRecord record = new LogRecord();
+		for (int i = 0; i < records && reader.next(key, record); i++)
+			addRowKeys(record.getPacket(), reversed, keys);
+	}
+
+	/**
+	 * Add the row-keys BulkLoaderMapper writes for the DNS packet of a line.
+	 * The keys of the AUTHORITY and ADDITIONAL sections are added when keys
+	 * holds a list for their tables.
+	 */
+
+	private static void addRowKeys(byte[] packet, boolean reversed,
+			List<List<byte[]>> keys) {
+		Message message;
+		try {
+			message = new Message(packet);
+		} catch (Exception e) {
+			return;
+		}
+
+		for (Record answer : addRrsetKeys(message
+				.getSectionArray(Section.ANSWER), reversed, keys
+				.get(BulkLoaderMapper.RRSET_TABLE))) {
+			byte[] rdataKey = RdataIndex.rdataKey(answer.getType(),
+					answer.rdataToString());
+			if (rdataKey == null)
+				continue;
+
+			byte[] indexRow = RdataIndex.rowKey(rdataKey, PdnsSchema
+					.nameBytes(answer.getName().toString(), reversed));
+			if (RdataIndex.fits(indexRow))
+				keys.get(BulkLoaderMapper.RDATA_TABLE).add(indexRow);
+		}
+		if (keys.size() > BulkLoaderMapper.AUTHORITY_TABLE) {
+			addRrsetKeys(message.getSectionArray(Section.AUTHORITY), reversed,
+					keys.get(BulkLoaderMapper.AUTHORITY_TABLE));
+			addRrsetKeys(message.getSectionArray(Section.ADDITIONAL),
+					reversed, keys.get(BulkLoaderMapper.ADDITIONAL_TABLE));
+		}
+	}
+
+	/**
+	 * Add the row-key of each rrset of a section, once per rrname and
+	 * rrtype.
+	 *
+	 * @return The records of the section, without the OPT and TSIG
+	 *         pseudo-records.
+	 */
+
+	private static List<Record> addRrsetKeys(Record[] records,
+			boolean reversed, List<byte[]> keys) {
+		List<Record> rrsets = new ArrayList<Record>();
+		List<Record> data = new ArrayList<Record>(records.length);
+		for (Record record : records) {
+			if (record.getType() == Type.OPT || record.getType() == Type.TSIG)
+				continue;
+			data.add(record);
+			boolean seen = false;
+			for (Record rrset : rrsets)
+				seen |= rrset.getType() == record.getType()
+						&& rrset.getName().equals(record.getName());
+			if (seen)
+				continue;
+			rrsets.add(record);
+			keys.add(PdnsSchema.rowKey(PdnsSchema.nameBytes(record.getName()
+					.toString(), reversed), record.getType()));
+		}
+		return data;
+	}
+}
@@ -0,0 +1,89 @@
+package dnsTools;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder for the TAI64N timestamps at the start of each log line, e.g.
+ * "@400000005092d1271791ddec": 16 hex digits of TAI64 label (2^62 plus the
+ * TAI seconds) followed by 8 hex digits of nanoseconds.
+ *
+ */
+
+public class Tai64n {
+
+	// TAI64 label of the Unix epoch, TAI being 10 seconds ahead of UTC in
+	// 1970 as assumed by daemontools' tai64nlocal.
+	private final static long EPOCH_LABEL = 0x400000000000000AL;
+
+	private final static int SECONDS_DIGITS = 16;
+	private final static int NANOS_DIGITS = 8;
+
+	/**
+	 * Decode a TAI64N timestamp to milliseconds since the Unix epoch.
+	 *
+	 * @param bytes
+	 *            Buffer holding the timestamp.
+	 *
+	 * @param start
+	 *            Offset of the timestamp, with or without the leading '@'.
+	 *
+	 * @param end
+	 *            Offset just past the timestamp.
+	 *
+	 * @return The time in milliseconds, or -1 if the timestamp is malformed
+	 *         or does not fit in a long.
+	 */
+
+	public static long toMillis(byte[] bytes, int start, int end) {
+		if (start < end && bytes[start] == '@')
+			start++;
+		if (end - start != SECONDS_DIGITS + NANOS_DIGITS)
+			return -1;
+
+		long label = parseHex(bytes, start, start + SECONDS_DIGITS);
+		long nanos = parseHex(bytes, start + SECONDS_DIGITS, end);
+		if (label < EPOCH_LABEL || nanos < 0 || nanos > 999999999L
+				|| label - EPOCH_LABEL >= Long.MAX_VALUE / 1000)
+			return -1;
+
+		return (label - EPOCH_LABEL) * 1000 + nanos / 1000000;
+	}
+
+	/**
+	 * Decode a TAI64N timestamp to nanoseconds since the Unix epoch.
+	 *
+	 * @return The time in nanoseconds, or -1 if the timestamp is malformed
+	 *         or past 2262.
+	 */
+
+	public static long toNanos(byte[] bytes, int start, int end) {
+		if (start < end && bytes[start] == '@')
+			start++;
+		if (end - start != SECONDS_DIGITS + NANOS_DIGITS)
+			return -1;
+
+		long label = parseHex(bytes, start, start + SECONDS_DIGITS);
+		long nanos = parseHex(bytes, start + SECONDS_DIGITS, end);
+		if (label < EPOCH_LABEL || nanos < 0 || nanos > 999999999L
+				|| label - EPOCH_LABEL >= Long.MAX_VALUE / 1000000000L)
+			return -1;
+
+		return (label - EPOCH_LABEL) * 1000000000L + nanos;
+	}
+
+	public static long toMillis(String timestamp) {
+		byte[] bytes = timestamp.getBytes(StandardCharsets.US_ASCII);
+		return toMillis(bytes, 0, bytes.length);
+	}
+
+	private static long parseHex(byte[] bytes, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(bytes[i], 16);
+			if (digit < 0)
+				return -1;
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,78 @@
+package dnsTools;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for the distinct count sketches.
+ */
+public class HyperLogLogTest
+    extends TestCase
+{
+    public HyperLogLogTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( HyperLogLogTest.class );
+    }
+
+    private static HyperLogLog sketch( int from, int to )
+    {
+        HyperLogLog sketch = new HyperLogLog();
+        for ( int i = from; i < to; i++ )
+        {
+            sketch.add( Bytes.toBytes( "host" + i + ".example.com." ) );
+        }
+        return sketch;
+    }
+
+    private static void assertClose( long expected, long estimate )
+    {
+        assertTrue( estimate + " for " + expected, Math.abs( estimate - expected ) <= 0.03 * expected );
+    }
+
+    /**
+     * Small sets are counted almost exactly from the sparse form, repeated
+     * values are not counted again, and large sets are within a few
+     * percent.
+     */
+    public void testEstimate()
+    {
+        assertEquals( 0, new HyperLogLog().estimate() );
+        HyperLogLog three = sketch( 0, 3 );
+        three.add( Bytes.toBytes( "host1.example.com." ) );
+        assertEquals( 3, three.estimate() );
+        assertEquals( 1 + 3 * 4, three.toBytes().length );
+
+        assertClose( 1000, sketch( 0, 1000 ).estimate() );
+        assertClose( 20000, sketch( 0, 20000 ).estimate() );
+        assertClose( 1000000, sketch( 0, 1000000 ).estimate() );
+    }
+
+    /**
+     * Merging gives the count of the union, whatever the forms of the
+     * sketches, and survives serialization.
+     */
+    public void testMerge()
+    {
+        HyperLogLog merged = sketch( 0, 1500 );
+        merged.merge( sketch( 1000, 2000 ) );
+        assertClose( 2000, merged.estimate() );
+
+        HyperLogLog large = HyperLogLog.fromBytes( sketch( 0, 50000 ).toBytes() );
+        large.merge( HyperLogLog.fromBytes( sketch( 40000, 60000 ).toBytes() ) );
+        large.merge( sketch( 59000, 61000 ) );
+        assertClose( 61000, large.estimate() );
+        assertEquals( large.estimate(), HyperLogLog.fromBytes( large.toBytes() ).estimate() );
+
+        HyperLogLog sparse = sketch( 0, 10 );
+        sparse.merge( sketch( 0, 50000 ) );
+        assertClose( 50000, sparse.estimate() );
+    }
+}
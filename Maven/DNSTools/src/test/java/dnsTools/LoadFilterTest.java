@@ -0,0 +1,122 @@
+package dnsTools;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.xbill.DNS.Type;
+
+/**
+ * Unit test for the filters of the loads, on the local file system.
+ */
+public class LoadFilterTest
+    extends TestCase
+{
+    private File tmp;
+    private Configuration conf;
+
+    public LoadFilterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LoadFilterTest.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "loadfilter" ).toFile();
+        conf = new Configuration();
+        conf.set( "fs.default.name", "file:///" );
+        conf.set( LoadManifest.DIR_KEY, new File( tmp, "manifests" ).getPath() );
+        conf.setLong( LoadFilter.BITS_KEY, 1 << 16 );
+        conf.setLong( QueryCache.CHECK_INTERVAL_KEY, 0 );
+    }
+
+    protected void tearDown()
+    {
+        delete( tmp );
+    }
+
+    private static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                delete( f );
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Run the filter side of a load whose map tasks each see one of the
+     * rrsets.
+     */
+    private void load( boolean fresh, String... rrsets )
+        throws Exception
+    {
+        Configuration job = new Configuration( conf );
+        assertTrue( LoadFilter.configureLoad( job, "table1", fresh, new Path( tmp.getPath(), "output/_filter" ) ) );
+        for ( int i = 0; i < rrsets.length; i++ )
+        {
+            String[] rrset = rrsets[i].split( " " );
+            LoadFilter task = LoadFilter.create( job );
+            task.addRow( BulkLoaderMapper.RRSET_TABLE, PdnsSchema.rowKey( rrset[0], Type.A, true ) );
+            task.addRow( BulkLoaderMapper.RDATA_TABLE,
+                RdataIndex.rowKey( RdataIndex.rdataKey( Type.A, rrset[1] ), PdnsSchema.nameBytes( rrset[0], true ) ) );
+            task.writePart( job, "attempt_" + i );
+        }
+        LoadFilter.finishLoad( job, "table1", fresh );
+    }
+
+    /**
+     * The filters of the map tasks and of an incremental load are merged,
+     * and a never loaded name or address is answered from the local copy.
+     */
+    public void testMergedLoads()
+        throws Exception
+    {
+        load( true, "www.google.com. 10.0.0.1", "ns1.google.com. 10.0.0.2" );
+        LoadFilterMirror mirror = new LoadFilterMirror( conf, "table1", new File( tmp, "local" ) );
+        LoadFilter filter = mirror.get();
+        assertTrue( filter.mightHaveRRset( "www.google.com" ) );
+        assertTrue( filter.mightHaveRRset( "NS1.google.com" ) );
+        assertTrue( filter.mightHaveRRset( "*.evil.com" ) );
+        assertFalse( filter.mightHaveRRset( "www.evil.com" ) );
+        assertTrue( filter.mightHaveRdata( "10.0.0.2", "ip" ) );
+        assertTrue( filter.mightHaveRdata( "10.0.0.2", "" ) );
+        assertFalse( filter.mightHaveRdata( "10.0.0.3", "ip" ) );
+        assertFalse( filter.mightHaveRdata( "not an address", "ip" ) );
+
+        load( false, "www.evil.com. 10.0.0.3" );
+        filter = mirror.get();
+        assertTrue( filter.mightHaveRRset( "www.google.com" ) );
+        assertTrue( filter.mightHaveRRset( "www.evil.com" ) );
+        assertTrue( filter.mightHaveRdata( "10.0.0.3", "ip" ) );
+
+        int falsePositives = 0;
+        for ( int i = 0; i < 10000; i++ )
+        {
+            if ( filter.mightHaveRRset( "host" + i + ".example.com" ) )
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue( "" + falsePositives, falsePositives < 10 );
+
+        // The streaming ingester writes rows that are not in the filter.
+        assertTrue( LoadFilter.delete( conf, "table1" ) );
+        assertNull( mirror.get() );
+    }
+}
@@ -0,0 +1,148 @@
+package dnsTools;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the manifest of the files loaded into a table, on the local
+ * file system.
+ */
+public class LoadManifestTest
+    extends TestCase
+{
+    private File tmp;
+    private Configuration conf;
+
+    public LoadManifestTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LoadManifestTest.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "loadmanifest" ).toFile();
+        conf = new Configuration();
+        conf.set( "fs.default.name", "file:///" );
+        conf.set( LoadManifest.DIR_KEY, new File( tmp, "manifests" ).getPath() );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileSystem.getLocal( conf ).delete( new Path( tmp.toURI() ), true );
+    }
+
+    private Path input( String name )
+        throws Exception
+    {
+        File file = new File( new File( tmp, "input" ), name );
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        return new Path( file.toURI() );
+    }
+
+    /**
+     * The files added and saved are not new to the manifest read back, the
+     * others and the hidden files are skipped or listed as new.
+     */
+    public void testSaveAndDiff()
+        throws Exception
+    {
+        Path day1 = input( "dns_2014-10-01.log" );
+        Path day2 = input( "dns_2014-10-02.log" );
+        input( "_SUCCESS" );
+        input( ".dns_2014-10-03.log.crc" );
+        Path dir = day1.getParent();
+
+        LoadManifest manifest = LoadManifest.open( conf, "pdns" );
+        assertTrue( manifest.isEmpty() );
+        assertEquals( 0, LoadManifest.generation( conf, "pdns" ) );
+        List<FileStatus> newFiles = manifest.newFiles( conf, dir );
+        assertEquals( 2, newFiles.size() );
+
+        for ( FileStatus file : newFiles )
+        {
+            if ( file.getPath().getName().equals( day1.getName() ) )
+            {
+                manifest.add( file );
+            }
+        }
+        manifest.save();
+        assertTrue( LoadManifest.generation( conf, "pdns" ) > 0 );
+
+        LoadManifest reopened = LoadManifest.open( conf, "pdns" );
+        assertFalse( reopened.isEmpty() );
+        newFiles = reopened.newFiles( conf, dir );
+        assertEquals( 1, newFiles.size() );
+        assertEquals( day2.getName(), newFiles.get( 0 ).getPath().getName() );
+
+        reopened.clear();
+        assertEquals( 2, reopened.newFiles( conf, dir ).size() );
+        assertTrue( LoadManifest.open( conf, "other" ).isEmpty() );
+    }
+
+    /**
+     * A save interrupted after deleting the manifest leaves the new one
+     * under its temporary name, which is read instead.
+     */
+    public void testInterruptedSave()
+        throws Exception
+    {
+        Path day1 = input( "dns_2014-10-01.log" );
+        LoadManifest manifest = LoadManifest.open( conf, "pdns" );
+        manifest.add( manifest.newFiles( conf, day1 ).get( 0 ) );
+        manifest.save();
+
+        FileSystem fs = FileSystem.getLocal( conf );
+        Path saved = new Path( new File( new File( tmp, "manifests" ), "pdns" ).toURI() );
+        assertTrue( fs.rename( saved, saved.suffix( ".tmp" ) ) );
+
+        assertEquals( 0, LoadManifest.open( conf, "pdns" ).newFiles( conf, day1.getParent() ).size() );
+        assertTrue( LoadManifest.generation( conf, "pdns" ) > 0 );
+    }
+
+    /**
+     * A file copied again over the same path with other contents is new,
+     * and a file recorded by path only, by an older manifest, is not.
+     */
+    public void testReplacedFile()
+        throws Exception
+    {
+        Path day1 = input( "dns_2014-10-01.log" );
+        LoadManifest manifest = LoadManifest.open( conf, "pdns" );
+        manifest.add( manifest.newFiles( conf, day1 ).get( 0 ) );
+        manifest.save();
+        assertEquals( 0, LoadManifest.open( conf, "pdns" ).newFiles( conf, day1 ).size() );
+
+        File file = new File( day1.toUri() );
+        FileWriter writer = new FileWriter( file );
+        writer.write( "@400000005092d1271791ddec 1 204.74.108.1:53 00ff\n" );
+        writer.close();
+        assertEquals( 1, LoadManifest.open( conf, "pdns" ).newFiles( conf, day1 ).size() );
+
+        FileSystem fs = FileSystem.getLocal( conf );
+        Path saved = new Path( new File( new File( tmp, "manifests" ), "pdns" ).toURI() );
+        FSDataOutputStream old = fs.create( saved, true );
+        old.write( ( fs.makeQualified( day1 ) + "\n" ).getBytes( "UTF-8" ) );
+        old.close();
+        assertEquals( 0, LoadManifest.open( conf, "pdns" ).newFiles( conf, day1 ).size() );
+    }
+}
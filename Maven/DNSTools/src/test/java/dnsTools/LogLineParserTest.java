@@ -0,0 +1,80 @@
+package dnsTools;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Unit test for LogLineParser.
+ */
+public class LogLineParserTest 
+    extends TestCase
+{
+    public LogLineParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LogLineParserTest.class );
+    }
+
+    private static LogLineParser.Status parse( LogLineParser parser, String line )
+    {
+        byte[] bytes = line.getBytes( StandardCharsets.UTF_8 );
+        return parser.parse( bytes, bytes.length );
+    }
+
+    /**
+     * Every line of the sample log gives the same fields and packet as the
+     * regex split and commons-codec decoding.
+     */
+    public void testMatchesSplitAndDecodeHex() throws Exception
+    {
+        LogLineParser parser = new LogLineParser();
+        BufferedReader reader = new BufferedReader( new InputStreamReader(
+            getClass().getResourceAsStream( "/dns.log" ), StandardCharsets.UTF_8 ) );
+        int parsed = 0;
+        String line;
+        while ( ( line = reader.readLine() ) != null )
+        {
+            String[] lineSegs = line.split( "[ \t]+" );
+            LogLineParser.Status status = parse( parser, line );
+            if ( lineSegs.length != LogLineParser.LINE_SEG_FIELDS )
+            {
+                assertEquals( LogLineParser.Status.BAD_FIELD_COUNT, status );
+                continue;
+            }
+
+            assertEquals( LogLineParser.Status.OK, status );
+            for ( int i = 0; i < lineSegs.length; i++ )
+            {
+                assertEquals( lineSegs[i], parser.getField( i ) );
+            }
+            byte[] expected = Hex.decodeHex( lineSegs[3].toCharArray() );
+            assertTrue( Arrays.equals( expected, parser.getPacket() ) );
+            parsed++;
+        }
+        reader.close();
+        assertTrue( parsed > 0 );
+    }
+
+    public void testMalformedLines()
+    {
+        LogLineParser parser = new LogLineParser();
+        assertEquals( LogLineParser.Status.BAD_FIELD_COUNT, parse( parser, "@4000 1 1.2.3.4:53" ) );
+        assertEquals( LogLineParser.Status.BAD_FIELD_COUNT, parse( parser, "@4000 1 1.2.3.4:53 00ff extra" ) );
+        assertEquals( LogLineParser.Status.BAD_HEX, parse( parser, "@4000 1 1.2.3.4:53 00f" ) );
+        assertEquals( LogLineParser.Status.BAD_HEX, parse( parser, "@4000 1 1.2.3.4:53 00fg" ) );
+        assertEquals( LogLineParser.Status.OK, parse( parser, "@4000\t1  1.2.3.4:53 00fF " ) );
+        assertTrue( Arrays.equals( new byte[] { 0, (byte) 0xff }, parser.getPacket() ) );
+    }
+}
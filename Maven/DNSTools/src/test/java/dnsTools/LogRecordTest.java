@@ -0,0 +1,94 @@
+package dnsTools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Unit test for LogRecord.
+ */
+public class LogRecordTest
+    extends TestCase
+{
+    public LogRecordTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LogRecordTest.class );
+    }
+
+    private static LogRecord record( String line )
+    {
+        LogLineParser parser = new LogLineParser();
+        byte[] bytes = line.getBytes( StandardCharsets.UTF_8 );
+        assertEquals( LogLineParser.Status.OK, parser.parse( bytes, bytes.length ) );
+        LogRecord record = new LogRecord();
+        assertTrue( record.set( parser ) );
+        return record;
+    }
+
+    /**
+     * A line converted to a LogRecord keeps its fields through a write and
+     * read.
+     */
+    public void testRoundTrip() throws Exception
+    {
+        LogRecord record = record( "@400000005092d1271791ddec 1 204.74.108.1:53 00ff" );
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        record.write( out );
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset( out.getData(), out.getLength() );
+        LogRecord read = new LogRecord();
+        read.readFields( in );
+
+        assertEquals( Tai64n.toMillis( "@400000005092d1271791ddec" ), read.getTimestampMillis() );
+        assertEquals( 1, read.getVersion() );
+        assertEquals( "204.74.108.1:53", read.getSourceString() );
+        assertEquals( 4, read.getSource().length );
+        assertEquals( 53, read.getPort() );
+        assertTrue( Arrays.equals( new byte[] { 0, (byte) 0xff }, read.getPacket() ) );
+    }
+
+    /**
+     * A numeric source comes back in its canonical form, any other source
+     * as its text.
+     */
+    public void testSourceString()
+    {
+        LogRecord record = record( "@400000005092d1271791ddec 1 [2001:db8::1]:53 00ff" );
+        assertEquals( 16, record.getSource().length );
+        assertEquals( "[2001:db8:0:0:0:0:0:1]:53", record.getSourceString() );
+
+        record = record( "@400000005092d1271791ddec 1 [::ffff:1.2.3.4]:53 00ff" );
+        assertEquals( 4, record.getSource().length );
+        assertEquals( "1.2.3.4:53", record.getSourceString() );
+
+        record = record( "@400000005092d1271791ddec 1 resolver 00ff" );
+        assertEquals( -1, record.getPort() );
+        assertEquals( "resolver", record.getSourceString() );
+
+        record = record( "@400000005092d1271791ddec 1 1.2.3.4:dns 00ff" );
+        assertEquals( "1.2.3.4:dns", record.getSourceString() );
+    }
+
+    /**
+     * A line with a malformed timestamp gives no record.
+     */
+    public void testBadTimestamp()
+    {
+        LogLineParser parser = new LogLineParser();
+        byte[] bytes = "@4000 1 1.2.3.4:53 00ff".getBytes( StandardCharsets.UTF_8 );
+        assertEquals( LogLineParser.Status.OK, parser.parse( bytes, bytes.length ) );
+        assertFalse( new LogRecord().set( parser ) );
+    }
+}
@@ -0,0 +1,83 @@
+package dnsTools;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTableInterfaceFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the failure handling of the asynchronous write buffer.
+ */
+public class MutationBufferTest
+    extends TestCase
+{
+    public MutationBufferTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MutationBufferTest.class );
+    }
+
+    /**
+     * Tables whose put() throws an unchecked exception.
+     */
+    private static class FailingTableFactory implements HTableInterfaceFactory
+    {
+        public HTableInterface createHTableInterface( Configuration config, byte[] tableName )
+        {
+            return (HTableInterface) Proxy.newProxyInstance( getClass().getClassLoader(),
+                new Class<?>[] { HTableInterface.class }, new InvocationHandler()
+                {
+                    public Object invoke( Object proxy, Method method, Object[] args )
+                    {
+                        if ( method.getName().equals( "put" ) )
+                        {
+                            throw new IllegalArgumentException( "No columns to insert" );
+                        }
+                        return null;
+                    }
+                } );
+        }
+
+        public void releaseHTableInterface( HTableInterface table )
+        {
+        }
+    }
+
+    /**
+     * A batch failing with a RuntimeException fails the next call instead
+     * of being dropped.
+     */
+    public void testRuntimeExceptionFailsClose()
+        throws Exception
+    {
+        MutationBuffer buffer = new MutationBuffer( new Configuration(), new FailingTableFactory(),
+            Collections.singletonList( "pdns" ), 1 << 20, 1, 1 );
+        byte[] row = Bytes.toBytes( "row" );
+        buffer.add( 0, new KeyValue( row, PdnsSchema.FAMILY, Bytes.toBytes( "q" ), 1L, PdnsSchema.SINGLE_OBSERVATION ) );
+        try
+        {
+            buffer.close();
+            fail();
+        }
+        catch ( IOException e )
+        {
+            assertTrue( e.getCause().getCause() instanceof IllegalArgumentException );
+        }
+        assertEquals( 0, buffer.getCellsWritten() );
+    }
+}
@@ -0,0 +1,132 @@
+package dnsTools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the in-mapper combining of repeated observations.
+ */
+public class ObservationCombinerTest
+    extends TestCase
+{
+    public ObservationCombinerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ObservationCombinerTest.class );
+    }
+
+    /**
+     * Combine the observations of a few cells and add up the cells written
+     * out per qualifier as "first_seen last_seen count".
+     */
+    private static Map<String, String> combine( long memoryBudget, int[] written )
+        throws Exception
+    {
+        final Map<String, long[]> totals = new HashMap<String, long[]>();
+        final int[] cells = new int[1];
+        ObservationCombiner combiner = new ObservationCombiner( memoryBudget,
+            new ObservationCombiner.Output()
+            {
+                public void write( int table, KeyValue kv )
+                {
+                    cells[0]++;
+                    String key = table + " " + Bytes.toString( kv.getQualifier() );
+                    long[] total = totals.get( key );
+                    if ( total == null )
+                    {
+                        total = new long[] { Long.MAX_VALUE, Long.MIN_VALUE, 0 };
+                        totals.put( key, total );
+                    }
+                    total[0] = Math.min( total[0], PdnsSchema.firstSeen( kv ) );
+                    total[1] = Math.max( total[1], kv.getTimestamp() );
+                    total[2] += PdnsSchema.count( kv );
+                }
+            } );
+
+        byte[] row = Bytes.toBytes( "row" );
+        for ( long ts = 10; ts < 60; ts++ )
+        {
+            combiner.add( 0, row, PdnsSchema.FAMILY, Bytes.toBytes( "q" + ( ts % 5 ) ), ts );
+        }
+        combiner.add( 1, row, PdnsSchema.FAMILY, Bytes.toBytes( "q0" ), 5 );
+        combiner.flush();
+        assertEquals( 0, combiner.size() );
+        written[0] = cells[0];
+
+        Map<String, String> results = new HashMap<String, String>();
+        for ( Map.Entry<String, long[]> entry : totals.entrySet() )
+        {
+            long[] total = entry.getValue();
+            results.put( entry.getKey(), total[0] + " " + total[1] + " " + total[2] );
+        }
+        return results;
+    }
+
+    /**
+     * With enough memory every cell is written once, and running out of it
+     * only writes more cells with the same totals.
+     */
+    public void testCombine()
+        throws Exception
+    {
+        int[] written = new int[1];
+        Map<String, String> combined = combine( Long.MAX_VALUE, written );
+        assertEquals( 6, written[0] );
+        assertEquals( "10 55 10", combined.get( "0 q0" ) );
+        assertEquals( "14 59 10", combined.get( "0 q4" ) );
+        assertEquals( "5 5 1", combined.get( "1 q0" ) );
+
+        Map<String, String> evicted = combine( 500, written );
+        assertTrue( written[0] > 6 );
+        assertEquals( combined, evicted );
+    }
+
+    /**
+     * The observations of a cell in two different hours give two cells,
+     * each stamped and counted within its own hour.
+     */
+    public void testHourBoundary()
+        throws Exception
+    {
+        final List<KeyValue> cells = new ArrayList<KeyValue>();
+        ObservationCombiner combiner = new ObservationCombiner( Long.MAX_VALUE,
+            new ObservationCombiner.Output()
+            {
+                public void write( int table, KeyValue kv )
+                {
+                    cells.add( kv );
+                }
+            } );
+
+        byte[] row = Bytes.toBytes( "row" );
+        byte[] qualifier = Bytes.toBytes( "q" );
+        long hour = 100 * Rollup.HOUR;
+        combiner.add( 0, row, PdnsSchema.FAMILY, qualifier, hour - 2 );
+        combiner.add( 0, row, PdnsSchema.FAMILY, qualifier, hour - 1 );
+        combiner.add( 0, row, PdnsSchema.FAMILY, qualifier, hour );
+        combiner.add( 0, row, PdnsSchema.FAMILY, qualifier, hour + 5 );
+        combiner.add( 0, row, PdnsSchema.FAMILY, qualifier, hour + 7 );
+        combiner.flush();
+
+        assertEquals( 2, cells.size() );
+        assertEquals( hour - 1, cells.get( 0 ).getTimestamp() );
+        assertEquals( hour - 2, PdnsSchema.firstSeen( cells.get( 0 ) ) );
+        assertEquals( 2, PdnsSchema.count( cells.get( 0 ) ) );
+        assertEquals( hour + 7, cells.get( 1 ).getTimestamp() );
+        assertEquals( hour, PdnsSchema.firstSeen( cells.get( 1 ) ) );
+        assertEquals( 3, PdnsSchema.count( cells.get( 1 ) ) );
+    }
+}
@@ -0,0 +1,64 @@
+package dnsTools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the merging of the cells of a row in the bulk-load reducer.
+ */
+public class ObservationMergeReducerTest
+    extends TestCase
+{
+    public ObservationMergeReducerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ObservationMergeReducerTest.class );
+    }
+
+    /**
+     * The outputs of two map tasks for the same cell and millisecond are
+     * merged into one cell holding both counts, the other cells are kept
+     * in order.
+     */
+    public void testMergeSameTimestamp()
+    {
+        byte[] row = Bytes.toBytes( "row" );
+        byte[] qualifier = Bytes.toBytes( "rdata" );
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        // First map task: three observations combined, the first at 400.
+        kvs.add( new KeyValue( row, PdnsSchema.FAMILY, qualifier, 1000L, PdnsSchema.combinedValue( 400L, 3 ) ) );
+        kvs.add( new KeyValue( row, PdnsSchema.FAMILY, Bytes.toBytes( "other" ), 1000L,
+            PdnsSchema.SINGLE_OBSERVATION ) );
+        // Second map task: a single observation in the same millisecond.
+        kvs.add( new KeyValue( row, PdnsSchema.FAMILY, qualifier, 1000L, PdnsSchema.SINGLE_OBSERVATION ) );
+        kvs.add( new KeyValue( row, PdnsSchema.FAMILY, qualifier, 900L, PdnsSchema.SINGLE_OBSERVATION ) );
+
+        List<KeyValue> merged = ObservationMergeReducer.merge( kvs, null );
+        assertEquals( 3, merged.size() );
+
+        KeyValue other = merged.get( 0 );
+        assertEquals( "other", Bytes.toString( other.getQualifier() ) );
+        assertEquals( 1, PdnsSchema.count( other ) );
+
+        KeyValue combined = merged.get( 1 );
+        assertEquals( 1000L, combined.getTimestamp() );
+        assertEquals( 4, PdnsSchema.count( combined ) );
+        assertEquals( 400L, PdnsSchema.firstSeen( combined ) );
+
+        KeyValue single = merged.get( 2 );
+        assertEquals( 900L, single.getTimestamp() );
+        assertEquals( 1, PdnsSchema.count( single ) );
+        assertEquals( 0, single.getValueLength() );
+    }
+}
@@ -0,0 +1,229 @@
+package dnsTools;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counters;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the extraction of the rrsets of every section of a packet.
+ */
+public class ObservationParserTest
+    extends TestCase
+{
+    public ObservationParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ObservationParserTest.class );
+    }
+
+    /**
+     * Keeps the table and row-key of the observations it receives.
+     */
+    private static class Recorder implements ObservationParser.Sink
+    {
+        final List<Integer> tables = new ArrayList<Integer>();
+        final List<String> rows = new ArrayList<String>();
+
+        public void observe( int table, byte[] row, byte[] family, byte[] qualifier, long timestamp )
+        {
+            tables.add( table );
+            if ( table != BulkLoaderMapper.RDATA_TABLE )
+            {
+                rows.add( table + " " + PdnsSchema.rrname( row, true ) + " " + Type.string( PdnsSchema.rrtype( row ) ) );
+            }
+        }
+    }
+
+    /**
+     * A response with a CNAME chain in its ANSWER section, an NS record in
+     * its AUTHORITY section, and the address of the name server and an OPT
+     * record in its ADDITIONAL section.
+     */
+    private byte[] packet()
+        throws Exception
+    {
+        Name www = Name.fromString( "www.example.com." );
+        Name cdn = Name.fromString( "cdn.example.net." );
+        Name ns = Name.fromString( "ns1.example.net." );
+        Message message = new Message( 1 );
+        message.getHeader().setFlag( Flags.QR );
+        message.addRecord( Record.newRecord( www, Type.A, DClass.IN ), Section.QUESTION );
+        message.addRecord( new CNAMERecord( www, DClass.IN, 300, cdn ), Section.ANSWER );
+        message.addRecord( new ARecord( cdn, DClass.IN, 60, InetAddress.getByAddress( new byte[] { 10, 0, 0, 1 } ) ), Section.ANSWER );
+        message.addRecord( new ARecord( cdn, DClass.IN, 60, InetAddress.getByAddress( new byte[] { 10, 0, 0, 2 } ) ), Section.ANSWER );
+        message.addRecord( new NSRecord( Name.fromString( "example.net." ), DClass.IN, 3600, ns ),
+            Section.AUTHORITY );
+        message.addRecord( new ARecord( ns, DClass.IN, 3600, InetAddress.getByAddress( new byte[] { 10, 0, 0, 53 } ) ), Section.ADDITIONAL );
+        message.addRecord( new OPTRecord( 4096, 0, 0 ), Section.ADDITIONAL );
+        return message.toWire();
+    }
+
+    /**
+     * A log line holding a packet.
+     */
+    private byte[] line( byte[] packet )
+    {
+        StringBuilder hex = new StringBuilder();
+        for ( byte b : packet )
+        {
+            hex.append( String.format( "%02x", b & 0xff ) );
+        }
+        return ( "@400000005092d1271791ddec 1 204.74.108.1:53 " + hex ).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private Recorder parse( Configuration conf, Counters counters )
+        throws Exception
+    {
+        return parse( conf, counters, packet() );
+    }
+
+    private Recorder parse( Configuration conf, Counters counters, byte[] packet )
+        throws Exception
+    {
+        Recorder recorder = new Recorder();
+        ObservationParser parser = new ObservationParser( conf, new MapperMetrics( conf, counters ), recorder );
+        byte[] line = line( packet );
+        parser.parse( line, line.length );
+        return recorder;
+    }
+
+    /**
+     * Each link of the CNAME chain is an rrset of its own, and the records
+     * of the AUTHORITY and ADDITIONAL sections go to their tables.
+     */
+    public void testAllSections()
+        throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.set( BulkLoaderMapper.SECTIONS_KEY, BulkLoaderMapper.SECTIONS_ALL );
+        Counters counters = new Counters();
+        Recorder recorder = parse( conf, counters );
+
+        List<String> expected = new ArrayList<String>();
+        expected.add( BulkLoaderMapper.RRSET_TABLE + " www.example.com. CNAME" );
+        expected.add( BulkLoaderMapper.RRSET_TABLE + " cdn.example.net. A" );
+        expected.add( BulkLoaderMapper.AUTHORITY_TABLE + " example.net. NS" );
+        expected.add( BulkLoaderMapper.ADDITIONAL_TABLE + " ns1.example.net. A" );
+        assertEquals( expected, recorder.rows );
+        assertTrue( recorder.tables.contains( BulkLoaderMapper.RDATA_TABLE ) );
+
+        assertEquals( 2, counters.findCounter( MapperMetrics.SECTION_GROUP, "ANSWER" ).getValue() );
+        assertEquals( 1, counters.findCounter( MapperMetrics.SECTION_GROUP, "AUTHORITY" ).getValue() );
+        assertEquals( 1, counters.findCounter( MapperMetrics.SECTION_GROUP, "ADDITIONAL" ).getValue() );
+    }
+
+    /**
+     * By default only the ANSWER section is loaded.
+     */
+    public void testAnswerOnly()
+        throws Exception
+    {
+        Recorder recorder = parse( new Configuration(), new Counters() );
+
+        assertEquals( 2, recorder.rows.size() );
+        assertFalse( recorder.tables.contains( BulkLoaderMapper.AUTHORITY_TABLE ) );
+        assertFalse( recorder.tables.contains( BulkLoaderMapper.ADDITIONAL_TABLE ) );
+    }
+
+    /**
+     * A packet that ends inside one of its records is truncated, one with
+     * an unknown label type is malformed.
+     */
+    public void testDecodeFailures()
+        throws Exception
+    {
+        byte[] packet = packet();
+        assertFalse( ObservationParser.isTruncated( packet ) );
+        assertTrue( ObservationParser.isTruncated( Arrays.copyOf( packet, 5 ) ) );
+
+        byte[] truncated = Arrays.copyOf( packet, packet.length - 3 );
+        assertTrue( ObservationParser.isTruncated( truncated ) );
+
+        // The length of the first label of the question name.
+        byte[] malformed = packet.clone();
+        malformed[Header.LENGTH] = (byte) 0x80;
+        assertFalse( ObservationParser.isTruncated( malformed ) );
+
+        Configuration conf = new Configuration();
+        Counters counters = new Counters();
+        ObservationParser parser = new ObservationParser( conf, new MapperMetrics( conf, counters ), new Recorder() );
+        for ( byte[] bad : new byte[][] { truncated, malformed } )
+        {
+            byte[] line = line( bad );
+            parser.parse( line, line.length );
+        }
+        assertEquals( 1, counters.findCounter( MapperMetrics.PARSE_FAILURE_GROUP, "TRUNCATED_PACKET" ).getValue() );
+        assertEquals( 1, counters.findCounter( MapperMetrics.PARSE_FAILURE_GROUP, "MALFORMED_PACKET" ).getValue() );
+        assertEquals( 2, counters.findCounter( MapperMetrics.GROUP, "PARSE_ERRORS" ).getValue() );
+    }
+
+    /**
+     * The common rrtypes get a counter each, the others share one.
+     */
+    public void testRRtypeCounters()
+        throws Exception
+    {
+        Counters counters = new Counters();
+        MapperMetrics metrics = new MapperMetrics( new Configuration(), counters );
+        metrics.answer( "A" );
+        metrics.answer( "A" );
+        metrics.answer( "TYPE65280" );
+        metrics.answer( "TYPE65281" );
+        assertEquals( 2, counters.findCounter( MapperMetrics.RRTYPE_GROUP, "A" ).getValue() );
+        assertEquals( 2, counters.findCounter( MapperMetrics.RRTYPE_GROUP, MapperMetrics.OTHER_RRTYPE ).getValue() );
+        assertEquals( 2, counters.getGroup( MapperMetrics.RRTYPE_GROUP ).size() );
+    }
+
+    /**
+     * A TXT rdata whose index row-key would be longer than HBase allows is
+     * left out of the index, and its rrset is still written.
+     */
+    public void testOversizedIndexKey()
+        throws Exception
+    {
+        Name name = Name.fromString( "big.example.com." );
+        List<String> strings = new ArrayList<String>();
+        char[] chars = new char[255];
+        Arrays.fill( chars, 'x' );
+        for ( int i = 0; i < 130; i++ )
+        {
+            strings.add( new String( chars ) );
+        }
+        Message message = new Message( 1 );
+        message.getHeader().setFlag( Flags.QR );
+        message.addRecord( Record.newRecord( name, Type.TXT, DClass.IN ), Section.QUESTION );
+        message.addRecord( new TXTRecord( name, DClass.IN, 300, strings ), Section.ANSWER );
+
+        Counters counters = new Counters();
+        Recorder recorder = parse( new Configuration(), counters, message.toWire() );
+        assertEquals( Arrays.asList( BulkLoaderMapper.RRSET_TABLE + " big.example.com. TXT" ), recorder.rows );
+        assertFalse( recorder.tables.contains( BulkLoaderMapper.RDATA_TABLE ) );
+        assertEquals( 1, counters.findCounter( MapperMetrics.GROUP, "OVERSIZED_INDEX_KEYS" ).getValue() );
+    }
+}
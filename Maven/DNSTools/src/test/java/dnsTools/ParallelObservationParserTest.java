@@ -0,0 +1,102 @@
+package dnsTools;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Counters;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the multithreaded packet decoding of the bulk-load mapper.
+ */
+public class ParallelObservationParserTest
+    extends TestCase
+{
+    public ParallelObservationParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ParallelObservationParserTest.class );
+    }
+
+    /**
+     * Appends the observations it receives as text.
+     */
+    private static class Recorder implements ObservationParser.Sink
+    {
+        final List<String> observations = new ArrayList<String>();
+
+        public void observe( int table, byte[] row, byte[] family, byte[] qualifier, long timestamp )
+        {
+            observations.add( table + " " + Bytes.toStringBinary( row ) + " "
+                + Bytes.toStringBinary( qualifier ) + " " + timestamp );
+        }
+    }
+
+    /**
+     * The sample log, repeated so that there are more batches than threads.
+     */
+    private List<byte[]> lines()
+        throws Exception
+    {
+        List<byte[]> lines = new ArrayList<byte[]>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            BufferedReader reader = new BufferedReader( new InputStreamReader(
+                getClass().getResourceAsStream( "/dns.log" ), StandardCharsets.UTF_8 ) );
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                lines.add( line.getBytes( StandardCharsets.UTF_8 ) );
+            }
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * The observations come out in the same order, with the same counts, as
+     * from a single ObservationParser.
+     */
+    public void testSameOrderAsSingleThread()
+        throws Exception
+    {
+        Configuration conf = new Configuration();
+        List<byte[]> lines = lines();
+
+        Recorder expected = new Recorder();
+        Counters expectedCounters = new Counters();
+        ObservationParser parser = new ObservationParser( conf, new MapperMetrics( conf, expectedCounters ), expected );
+        for ( byte[] line : lines )
+        {
+            parser.parse( line, line.length );
+        }
+
+        Recorder actual = new Recorder();
+        ParallelObservationParser parallelParser = new ParallelObservationParser( conf, 4, 7, actual );
+        for ( byte[] line : lines )
+        {
+            parallelParser.parse( line, line.length );
+        }
+        parallelParser.flush();
+        parallelParser.close();
+
+        assertFalse( expected.observations.isEmpty() );
+        assertEquals( expected.observations, actual.observations );
+        assertEquals( expectedCounters.findCounter( MapperMetrics.GROUP, "NUM_MSGS" ).getValue(),
+            parallelParser.getCounters().findCounter( MapperMetrics.GROUP, "NUM_MSGS" ).getValue() );
+        assertEquals( expectedCounters.findCounter( MapperMetrics.GROUP, "PARSE_ERRORS" ).getValue(),
+            parallelParser.getCounters().findCounter( MapperMetrics.GROUP, "PARSE_ERRORS" ).getValue() );
+    }
+}
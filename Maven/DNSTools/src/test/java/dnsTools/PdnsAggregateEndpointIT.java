@@ -0,0 +1,88 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTable;
+import org.xbill.DNS.Type;
+
+/**
+ * Integration test of the server-side aggregation on an in-process HBase
+ * minicluster. Run with the integration-tests profile.
+ */
+public class PdnsAggregateEndpointIT 
+    extends TestCase
+{
+    private HTable table;
+
+    public static Test suite()
+    {
+        return PdnsMiniCluster.suite( PdnsAggregateEndpointIT.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        HTableDescriptor desc = PdnsMiniCluster.descriptor( "pdns", false );
+        desc.addCoprocessor( PdnsAggregateEndpoint.class.getName() );
+        // Split inside the rows of www.google.com. so the scan covers two regions.
+        table = PdnsMiniCluster.createTable( desc, PdnsSchema.rowKey( "www.google.com.", Type.MX ) );
+
+        put( "www.google.com.", Type.A, new String[] { "173.194.41.200", "173.194.41.198" }, 100, 110, 120 );
+        put( "www.google.com.", Type.A, new String[] { "173.194.41.199" }, 105 );
+        put( "www.google.com.", Type.NS, new String[] { "ns1.google.com." }, 90, 200 );
+        put( "www.google.com.au.", Type.A, new String[] { "173.194.41.200" }, 130 );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        table.close();
+        PdnsMiniCluster.deleteTables();
+    }
+
+    private void put( String rrname, int rrtype, String[] rdata, long... timestamps )
+        throws Exception
+    {
+        PdnsMiniCluster.put( table, PdnsSchema.rowKey( rrname, rrtype ), rdata, timestamps );
+    }
+
+    private String query( boolean aggregateOnServer, boolean rrset, String query, String type )
+        throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream( buffer, true, "UTF-8" );
+        HBaseQueryBackend backend = new HBaseQueryBackend( table, null, aggregateOnServer );
+        if ( rrset )
+        {
+            backend.processRRsetQuery( query, type, out );
+        }
+        else
+        {
+            backend.processRdataQuery( query, type, out );
+        }
+        return buffer.toString( "UTF-8" );
+    }
+
+    /**
+     * The endpoint gives the same summaries as aggregating the cells on the
+     * client.
+     */
+    public void testServerAggregationMatchesClient()
+        throws Exception
+    {
+        String rrsets = query( true, true, "www.google.com", "" );
+        assertEquals( query( false, true, "www.google.com", "" ), rrsets );
+        assertTrue( rrsets.contains( "\"rrtype\":\"A\", \"first_seen\":100, \"count\":3, \"last_seen\":120" ) );
+        assertTrue( rrsets.contains( "\"rrtype\":\"NS\", \"first_seen\":90, \"count\":2, \"last_seen\":200" ) );
+
+        String names = query( true, false, "173.194.41.200", "ip" );
+        assertEquals( query( false, false, "173.194.41.200", "ip" ), names );
+        assertTrue( names.contains( "\"rrname\":\"www.google.com.\" ,\"rrtype\":\"A\", \"first_seen\":100, \"count\":3" ) );
+        assertTrue( names.contains( "\"rrname\":\"www.google.com.au.\"" ) );
+    }
+}
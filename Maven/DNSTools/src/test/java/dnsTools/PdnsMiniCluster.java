@@ -0,0 +1,161 @@
+package dnsTools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.extensions.TestSetup;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * In-process HBase minicluster shared by the tests of an integration test
+ * suite, with the helpers writing and counting passive-DNS cells. The
+ * cluster is started once before the first test of the suite and stopped
+ * after the last one; the tests drop their tables with deleteTables() in
+ * tearDown(). MR jobs run with the local job runner.
+ */
+public class PdnsMiniCluster
+{
+    private static HBaseTestingUtility util;
+
+    private PdnsMiniCluster()
+    {
+    }
+
+    /**
+     * @return The tests of an integration test class, run on one cluster.
+     */
+    public static Test suite( Class<?> testClass )
+    {
+        return new TestSetup( new TestSuite( testClass ) )
+        {
+            protected void setUp()
+                throws Exception
+            {
+                util = new HBaseTestingUtility();
+                util.startMiniCluster();
+                util.getConfiguration().set( "mapred.job.tracker", "local" );
+            }
+
+            protected void tearDown()
+                throws Exception
+            {
+                util.shutdownMiniCluster();
+                util = null;
+            }
+        };
+    }
+
+    public static Configuration getConfiguration()
+    {
+        return util.getConfiguration();
+    }
+
+    /**
+     * @return The descriptor of a passive-DNS table keeping all versions,
+     *         in the reversed or the forward row-key layout.
+     */
+    public static HTableDescriptor descriptor( String name, boolean reversed )
+    {
+        HTableDescriptor desc = new HTableDescriptor( name );
+        desc.addFamily( new HColumnDescriptor( PdnsSchema.FAMILY ).setMaxVersions( Integer.MAX_VALUE ) );
+        if ( reversed )
+        {
+            desc.setValue( PdnsSchema.LAYOUT_KEY, PdnsSchema.LAYOUT_REVERSED );
+        }
+        return desc;
+    }
+
+    public static HTable createTable( HTableDescriptor desc, byte[]... splits )
+        throws Exception
+    {
+        HBaseAdmin admin = util.getHBaseAdmin();
+        if ( splits.length == 0 )
+        {
+            admin.createTable( desc );
+        }
+        else
+        {
+            admin.createTable( desc, splits );
+        }
+        return new HTable( util.getConfiguration(), desc.getName() );
+    }
+
+    public static HTable createTable( String name, boolean reversed )
+        throws Exception
+    {
+        return createTable( descriptor( name, reversed ) );
+    }
+
+    /**
+     * Drop every table, so the next test starts from an empty cluster.
+     */
+    public static void deleteTables()
+        throws Exception
+    {
+        HBaseAdmin admin = util.getHBaseAdmin();
+        for ( HTableDescriptor desc : admin.listTables() )
+        {
+            admin.disableTable( desc.getName() );
+            admin.deleteTable( desc.getName() );
+        }
+    }
+
+    /**
+     * Write one single observation of an rdata set per timestamp in a row
+     * of a passive-DNS table.
+     */
+    public static void put( HTableInterface table, byte[] row, String[] rdata, long... timestamps )
+        throws Exception
+    {
+        List<byte[]> rdata_list = new ArrayList<byte[]>();
+        for ( String r : rdata )
+        {
+            rdata_list.add( Bytes.toBytes( r ) );
+        }
+        byte[] qualifier = PdnsSchema.packRdata( rdata_list );
+        for ( long ts : timestamps )
+        {
+            Put put = new Put( row );
+            put.add( PdnsSchema.FAMILY, qualifier, ts, PdnsSchema.SINGLE_OBSERVATION );
+            table.put( put );
+        }
+    }
+
+    /**
+     * @return The number of observations in the cells of a table.
+     */
+    public static long countObservations( String tableName )
+        throws Exception
+    {
+        HTable table = new HTable( util.getConfiguration(), tableName );
+        Scan scan = new Scan();
+        scan.setMaxVersions();
+        ResultScanner scanner = table.getScanner( scan );
+        long count = 0;
+        for ( Result result : scanner )
+        {
+            for ( KeyValue kv : result.raw() )
+            {
+                count += PdnsSchema.count( kv );
+            }
+        }
+        scanner.close();
+        table.close();
+        return count;
+    }
+}
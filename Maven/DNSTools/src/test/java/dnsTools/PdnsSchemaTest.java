@@ -0,0 +1,194 @@
+package dnsTools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Type;
+
+/**
+ * Unit test for the passive-DNS table layout.
+ */
+public class PdnsSchemaTest 
+    extends TestCase
+{
+    public PdnsSchemaTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PdnsSchemaTest.class );
+    }
+
+    public void testRowKey()
+    {
+        byte[] row = PdnsSchema.rowKey( "WWW.Google.com.", Type.AAAA );
+        assertEquals( "www.google.com.", PdnsSchema.rrname( row ) );
+        assertEquals( Type.AAAA, PdnsSchema.rrtype( row ) );
+        assertTrue( Bytes.startsWith( row, PdnsSchema.rowPrefix( "www.google.com." ) ) );
+        assertFalse( Bytes.startsWith( PdnsSchema.rowKey( "www.google.com.au.", Type.A ),
+            PdnsSchema.rowPrefix( "www.google.com." ) ) );
+    }
+
+    /**
+     * The same rdata set gives the same qualifier whatever the order of the
+     * records in the answer.
+     */
+    public void testPackRdataIsOrderIndependent()
+    {
+        List<byte[]> first = new ArrayList<byte[]>();
+        first.add( Bytes.toBytes( "173.194.41.200" ) );
+        first.add( Bytes.toBytes( "173.194.41.198" ) );
+        List<byte[]> second = new ArrayList<byte[]>();
+        second.add( Bytes.toBytes( "173.194.41.198" ) );
+        second.add( Bytes.toBytes( "173.194.41.200" ) );
+
+        byte[] packed = PdnsSchema.packRdata( first );
+        assertTrue( Arrays.equals( packed, PdnsSchema.packRdata( second ) ) );
+        assertEquals( Arrays.asList( "173.194.41.198", "173.194.41.200" ),
+            PdnsSchema.unpackRdata( packed ) );
+    }
+
+    /**
+     * The compact encoding decodes back to the same text, whatever the
+     * rrtype, and tables loaded either way are read the same.
+     */
+    public void testCompactRdata()
+    {
+        String[][] sets = {
+            { "173.194.41.200", "173.194.41.198" },
+            { "2a00:1450:400c:c05:0:0:0:69" },
+            { "ns1.google.com.", "ns2.google.com." },
+            { "10 aspmx.l.google.com.", "20 alt1.aspmx.l.google.com." },
+            { "\"v=spf1 include:_spf.google.com ~all\"" },
+        };
+        int[] types = { Type.A, Type.AAAA, Type.NS, Type.MX, Type.TXT };
+
+        for ( int i = 0; i < sets.length; i++ )
+        {
+            List<byte[]> rdata_list = new ArrayList<byte[]>();
+            for ( int j = sets[i].length - 1; j >= 0; j-- )
+            {
+                rdata_list.add( Bytes.toBytes( sets[i][j] ) );
+            }
+            byte[] compact = CompactRdata.pack( types[i], rdata_list );
+            byte[] text = PdnsSchema.packRdata( rdata_list );
+            assertTrue( CompactRdata.isCompact( compact ) );
+            assertFalse( CompactRdata.isCompact( text ) );
+            assertTrue( compact.length < text.length );
+
+            List<String> expected = new ArrayList<String>( Arrays.asList( sets[i] ) );
+            List<String> decoded = new ArrayList<String>( PdnsSchema.unpackRdata( compact, types[i] ) );
+            Collections.sort( expected );
+            Collections.sort( decoded );
+            assertEquals( expected, decoded );
+            assertEquals( PdnsSchema.unpackRdata( text ), PdnsSchema.unpackRdata( text, types[i] ) );
+        }
+
+        // A set is encoded the same whatever the order of its rdata.
+        List<byte[]> reversed = new ArrayList<byte[]>();
+        reversed.add( Bytes.toBytes( "173.194.41.198" ) );
+        reversed.add( Bytes.toBytes( "173.194.41.200" ) );
+        List<byte[]> ordered = new ArrayList<byte[]>( reversed );
+        Collections.reverse( ordered );
+        assertTrue( Arrays.equals( CompactRdata.pack( Type.A, reversed ),
+            CompactRdata.pack( Type.A, ordered ) ) );
+
+        // Rdata that does not parse as the rrtype is kept as text.
+        assertEquals( Arrays.asList( "not.an.address" ), CompactRdata.unpack(
+            CompactRdata.pack( Type.A, Arrays.asList( Bytes.toBytes( "not.an.address" ) ) ), Type.A ) );
+    }
+
+    /**
+     * Addresses sort numerically in the reverse index and the rrname is
+     * recovered from the row-key.
+     */
+    public void testRdataIndexKey()
+    {
+        byte[] low = RdataIndex.rdataKey( Type.A, "9.0.0.1" );
+        byte[] high = RdataIndex.rdataKey( Type.A, "10.0.0.1" );
+        assertEquals( 6, low.length );
+        assertTrue( Bytes.compareTo( low, high ) < 0 );
+        assertNull( RdataIndex.rdataKey( Type.A, "not.an.address" ) );
+
+        byte[] prefix = RdataIndex.rdataKey( Type.NS, "NS1.Google.com." );
+        byte[] row = RdataIndex.rowKey( prefix, PdnsSchema.nameBytes( "google.com." ) );
+        assertTrue( Bytes.startsWith( row, prefix ) );
+        assertEquals( "google.com.", RdataIndex.rrname( row, prefix.length ) );
+    }
+
+    /**
+     * Names differing only in case share one canonical array, and a string
+     * read back from its bytes is the interned one.
+     */
+    public void testNameDictionary() throws Exception
+    {
+        NameDictionary names = new NameDictionary( 16 );
+        byte[] first = names.nameBytes( org.xbill.DNS.Name.fromString( "WWW.Google.com." ) );
+        assertEquals( "www.google.com.", Bytes.toString( first ) );
+        assertSame( first, names.nameBytes( org.xbill.DNS.Name.fromString( "www.google.COM." ) ) );
+
+        byte[] bytes = names.bytes( "ns1.google.com." );
+        String string = names.string( Bytes.add( Bytes.toBytes( "x" ), bytes ), 1, bytes.length );
+        assertEquals( "ns1.google.com.", string );
+        assertSame( string, names.string( Bytes.toBytes( "ns1.google.com." ) ) );
+    }
+
+    /**
+     * The reversed layout keeps the subdomains of a zone between its start
+     * and stop rows, but not the zone itself or a sibling sharing a prefix.
+     */
+    public void testReversedRowKey()
+    {
+        assertEquals( "com.google.www.", PdnsSchema.reverseName( "www.google.com." ) );
+        assertEquals( "www.google.com.", PdnsSchema.reverseName( "com.google.www." ) );
+        assertEquals( "com.a\\.b", PdnsSchema.reverseName( "a\\.b.com" ) );
+        assertEquals( ".", PdnsSchema.reverseName( "." ) );
+        assertEquals( "www.google.com.", PdnsSchema.rrname( PdnsSchema.rowKey( "WWW.google.com.", Type.A, true ), true ) );
+
+        byte[] start = PdnsSchema.subdomainStartRow( "google.com" );
+        byte[] stop = PdnsSchema.stopRow( PdnsSchema.subdomainPrefix( "google.com." ) );
+        String[] inside = { "www.google.com.", "a.b.google.com.", "-.google.com." };
+        String[] outside = { "google.com.", "googlex.com.", "www.google.co.", "www.google.com.au." };
+        for ( String name : inside )
+        {
+            byte[] row = PdnsSchema.rowKey( name, Type.A, true );
+            assertTrue( name, Bytes.compareTo( start, row ) <= 0 && Bytes.compareTo( row, stop ) < 0 );
+        }
+        for ( String name : outside )
+        {
+            byte[] row = PdnsSchema.rowKey( name, Type.A, true );
+            assertFalse( name, Bytes.compareTo( start, row ) <= 0 && Bytes.compareTo( row, stop ) < 0 );
+        }
+    }
+
+    public void testTai64n()
+    {
+        // 0x5092d127 - 10 seconds = 2012-11-01 19:44:29 UTC.
+        assertEquals( 1351799069000L + 0x1791ddec / 1000000,
+            Tai64n.toMillis( "@400000005092d1271791ddec" ) );
+        assertEquals( -1, Tai64n.toMillis( "00000005092d1271791af0c" ) );
+        assertEquals( -1, Tai64n.toMillis( "@400000005092d127ffffffff" ) );
+    }
+
+    /**
+     * A label too far in the future for milliseconds in a long is rejected
+     * instead of wrapping around.
+     */
+    public void testTai64nOverflow()
+    {
+        assertEquals( -1, Tai64n.toMillis( "@7fffffffffffffff00000000" ) );
+        long last = 0x400000000000000AL + Long.MAX_VALUE / 1000;
+        assertEquals( -1, Tai64n.toMillis( "@" + Long.toHexString( last ) + "00000000" ) );
+        assertEquals( ( last - 1 - 0x400000000000000AL ) * 1000,
+            Tai64n.toMillis( "@" + Long.toHexString( last - 1 ) + "00000000" ) );
+    }
+}
@@ -0,0 +1,122 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.xbill.DNS.Type;
+
+/**
+ * Integration test of QueryTool's batch mode on an in-process HBase
+ * minicluster. Run with the integration-tests profile.
+ */
+public class QueryBatchIT
+    extends TestCase
+{
+    private static final int NAMES = 2000;
+
+    private HTable table;
+
+    public static Test suite()
+    {
+        return PdnsMiniCluster.suite( QueryBatchIT.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        table = PdnsMiniCluster.createTable( PdnsMiniCluster.descriptor( "pdns", false ),
+            PdnsSchema.rowPrefix( "host1000.example.com." ) );
+        table.setAutoFlush( false );
+
+        for ( int i = 0; i < NAMES; i++ )
+        {
+            String rrname = "host" + i + ".example.com.";
+            put( rrname, Type.A, "10.0." + ( i / 256 ) + "." + ( i % 256 ), 100 + i, 200 + i );
+            put( rrname, Type.NS, "ns1.example.com.", 100 );
+        }
+        table.flushCommits();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        table.close();
+        PdnsMiniCluster.deleteTables();
+    }
+
+    private void put( String rrname, int rrtype, String rdata, long... timestamps )
+        throws Exception
+    {
+        PdnsMiniCluster.put( table, PdnsSchema.rowKey( rrname, rrtype ), new String[] { rdata }, timestamps );
+    }
+
+    private static List<String> lines( ByteArrayOutputStream buffer )
+        throws Exception
+    {
+        List<String> lines = new ArrayList<String>( Arrays.asList( buffer.toString( "UTF-8" ).split( "\n" ) ) );
+        Collections.sort( lines );
+        return lines;
+    }
+
+    /**
+     * A batch prints the same lines as the queries run one by one, with the
+     * typed rrsets read by multi-gets.
+     */
+    public void testBatchMatchesSingleQueries()
+        throws Exception
+    {
+        List<QueryBatch.Query> queries = new ArrayList<QueryBatch.Query>();
+        for ( int i = NAMES - 1; i >= 0; i-- )
+        {
+            queries.add( new QueryBatch.Query( true, "host" + i + ".example.com", i % 4 == 0 ? "" : "A" ) );
+        }
+        queries.add( QueryBatch.Query.parse( "rrset missing.example.com A", false, "", false ) );
+        queries.add( QueryBatch.Query.parse( "rdata 10.0.0.1 ip", true, "", false ) );
+
+        HBaseQueryBackend single = new HBaseQueryBackend( table, null, false );
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream( expected, true, "UTF-8" );
+        long start = System.nanoTime();
+        for ( QueryBatch.Query query : queries )
+        {
+            if ( query.isRRset() )
+            {
+                single.processRRsetQuery( query.getQuery(), query.getType(), out );
+            }
+            else
+            {
+                single.processRdataQuery( query.getQuery(), query.getType(), out );
+            }
+        }
+        double singleSeconds = ( System.nanoTime() - start ) / 1e9;
+
+        List<HBaseQueryBackend> backends = new ArrayList<HBaseQueryBackend>();
+        for ( int i = 0; i < 4; i++ )
+        {
+            backends.add( new HBaseQueryBackend( new HTable( PdnsMiniCluster.getConfiguration(), "pdns" ), null, false ) );
+        }
+        QueryBatch batch = new QueryBatch( backends, 128 );
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        start = System.nanoTime();
+        batch.run( queries, actual );
+        double batchSeconds = ( System.nanoTime() - start ) / 1e9;
+        batch.close();
+
+        System.out.println( String.format( "%d lookups: %.0f lookups/s one by one, %.0f lookups/s batched",
+            queries.size(), queries.size() / singleSeconds, queries.size() / batchSeconds ) );
+
+        List<String> lines = lines( actual );
+        assertEquals( lines( expected ), lines );
+        // Two A versions per name, NS for the untyped queries, one rdata hit.
+        assertEquals( NAMES + NAMES / 4 + 1, lines.size() );
+        assertTrue( actual.toString( "UTF-8" ).startsWith( "{\"rrname\":\"host0.example.com\"" ) );
+    }
+}
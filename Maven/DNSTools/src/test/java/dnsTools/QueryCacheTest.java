@@ -0,0 +1,139 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Unit test for the query result cache, on the local file system.
+ */
+public class QueryCacheTest
+    extends TestCase
+{
+    private File tmp;
+    private Configuration conf;
+
+    /**
+     * A backend printing one line per query and counting them.
+     */
+    private static class CountingBackend implements QueryBackend
+    {
+        int queries = 0;
+
+        public void processRRsetQuery( String rrname, String rrtype, PrintStream out )
+        {
+            queries++;
+            out.println( "{\"rrname\":\"" + rrname + "\" ,\"rrtype\":\"" + rrtype + "\"}" );
+        }
+
+        public void processRdataQuery( String rdata, String rdataType, PrintStream out )
+        {
+            queries++;
+            out.println( "{\"rdata\":\"" + rdata + "\"}" );
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    public QueryCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( QueryCacheTest.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "querycache" ).toFile();
+        conf = new Configuration();
+        conf.set( "fs.default.name", "file:///" );
+        conf.set( LoadManifest.DIR_KEY, new File( tmp, "manifests" ).getPath() );
+        conf.setLong( QueryCache.CHECK_INTERVAL_KEY, 0 );
+    }
+
+    protected void tearDown()
+    {
+        delete( tmp );
+    }
+
+    private static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                delete( f );
+            }
+        }
+        file.delete();
+    }
+
+    private static String rrset( QueryBackend backend, String rrname )
+        throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream( buffer, true, "UTF-8" );
+        backend.processRRsetQuery( rrname, "A", out );
+        return buffer.toString( "UTF-8" );
+    }
+
+    /**
+     * Repeated queries are answered from memory, then from disk after a
+     * restart without opening the backend, until the table is loaded again.
+     */
+    public void testCacheIsDroppedByNewLoad()
+        throws Exception
+    {
+        File dir = new File( tmp, "cache" );
+        CountingBackend counting = new CountingBackend();
+        QueryBackend backend = new CachingQueryBackend( new QueryCache( conf, "table1", dir ), counting );
+
+        String result = rrset( backend, "www.google.com" );
+        assertEquals( result, rrset( backend, "www.google.com" ) );
+        assertEquals( 1, counting.queries );
+        rrset( backend, "www.google.com.au" );
+        assertEquals( 2, counting.queries );
+
+        QueryBackend restarted = new CachingQueryBackend( new QueryCache( conf, "table1", dir ),
+            new QueryBackend.Opener()
+            {
+                public QueryBackend open()
+                {
+                    throw new AssertionError( "The backend was opened on a cached query." );
+                }
+            } );
+        assertEquals( result, rrset( restarted, "www.google.com" ) );
+
+        // BulkLoader saves the manifest at the end of every load.
+        LoadManifest.open( conf, "table1" ).save();
+        assertEquals( result, rrset( backend, "www.google.com" ) );
+        assertEquals( 3, counting.queries );
+        assertEquals( 2, dir.list().length );
+    }
+
+    public void testResultsExpire()
+        throws Exception
+    {
+        conf.setLong( QueryCache.TTL_KEY, 0 );
+        CountingBackend counting = new CountingBackend();
+        QueryBackend backend = new CachingQueryBackend( new QueryCache( conf, "table1", null ), counting );
+        rrset( backend, "www.google.com" );
+        rrset( backend, "www.google.com" );
+        assertEquals( 2, counting.queries );
+    }
+}
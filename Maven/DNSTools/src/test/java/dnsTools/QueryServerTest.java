@@ -0,0 +1,253 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the request handling of QueryServer, with backends that
+ * need no HBase.
+ */
+public class QueryServerTest
+    extends TestCase
+{
+    /**
+     * A backend printing one line per query. Its queries wait for the
+     * release latch, if any.
+     */
+    private static class StubBackend implements QueryBackend
+    {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release;
+        volatile int closed = 0;
+
+        StubBackend( CountDownLatch release )
+        {
+            this.release = release;
+        }
+
+        private void await()
+            throws IOException
+        {
+            started.countDown();
+            if ( release != null )
+            {
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException( e );
+                }
+            }
+            if ( closed > 0 )
+            {
+                throw new IOException( "closed" );
+            }
+        }
+
+        public void processRRsetQuery( String rrname, String rrtype, PrintStream out )
+            throws IOException
+        {
+            await();
+            out.println( "{\"rrname\":\"" + rrname + "\" ,\"rrtype\":\"" + rrtype + "\"}" );
+        }
+
+        public void processRdataQuery( String rdata, String rdataType, PrintStream out )
+            throws IOException
+        {
+            await();
+            out.println( "{\"rdata\":\"" + rdata + "\"}" );
+        }
+
+        public void close()
+        {
+            closed++;
+        }
+    }
+
+    /**
+     * Sends a request in its own thread and keeps its status.
+     */
+    private class Request
+        extends Thread
+    {
+        final String path;
+        volatile int status;
+
+        Request( String path )
+        {
+            this.path = path;
+            start();
+        }
+
+        public void run()
+        {
+            try
+            {
+                status = get( path );
+            }
+            catch ( Exception e )
+            {
+                status = -1;
+            }
+        }
+    }
+
+    private QueryServer server;
+    private String body;
+
+    public QueryServerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( QueryServerTest.class );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        if ( server != null )
+        {
+            server.stop();
+        }
+    }
+
+    private QueryServer start( int queue, QueryBackend... backends )
+        throws Exception
+    {
+        server = new QueryServer( 0, Arrays.asList( backends ), queue );
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return The status of a GET on the server, with the body in body.
+     */
+    private int get( String path )
+        throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( "http://127.0.0.1:" + server.getPort()
+            + path ).openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] bytes = new byte[4096];
+        int n;
+        while ( ( n = in.read( bytes ) ) > 0 )
+        {
+            buffer.write( bytes, 0, n );
+        }
+        in.close();
+        body = buffer.toString( "UTF-8" );
+        return status;
+    }
+
+    /**
+     * The queries are answered with the lines of the backend, and a request
+     * without a query gets 400.
+     */
+    public void testQueries()
+        throws Exception
+    {
+        StubBackend backend = new StubBackend( null );
+        start( 4, backend );
+
+        assertEquals( 200, get( "/rrset?query=www.example.com&type=A" ) );
+        assertEquals( "{\"rrname\":\"www.example.com\" ,\"rrtype\":\"A\"}\n", body );
+        assertEquals( 200, get( "/rdata?query=10.0.0.1&type=ip" ) );
+        assertEquals( "{\"rdata\":\"10.0.0.1\"}\n", body );
+        assertEquals( 400, get( "/rrset?type=A" ) );
+        assertEquals( 0, backend.closed );
+    }
+
+    /**
+     * With the worker busy and the queue full, a request gets 503.
+     */
+    public void testQueueFull()
+        throws Exception
+    {
+        CountDownLatch release = new CountDownLatch( 1 );
+        StubBackend backend = new StubBackend( release );
+        start( 1, backend );
+
+        Request running = new Request( "/rrset?query=a.example.com" );
+        assertTrue( backend.started.await( 10, TimeUnit.SECONDS ) );
+        // One of the two waits in the queue, the other finds it full.
+        Request first = new Request( "/rrset?query=b.example.com" );
+        Request second = new Request( "/rrset?query=c.example.com" );
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( first.status == 0 && second.status == 0 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        release.countDown();
+        for ( Request request : new Request[] { running, first, second } )
+        {
+            request.join( 10000 );
+        }
+
+        List<Integer> statuses = new ArrayList<Integer>( Arrays.asList( running.status, first.status,
+            second.status ) );
+        Collections.sort( statuses );
+        assertEquals( Arrays.asList( 200, 200, 503 ), statuses );
+    }
+
+    /**
+     * stop() lets a running query finish before it closes the backend the
+     * query borrowed.
+     */
+    public void testStop()
+        throws Exception
+    {
+        CountDownLatch release = new CountDownLatch( 1 );
+        StubBackend backend = new StubBackend( release );
+        start( 1, backend );
+
+        Request running = new Request( "/rrset?query=a.example.com" );
+        assertTrue( backend.started.await( 10, TimeUnit.SECONDS ) );
+        Thread stopping = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    server.stop();
+                }
+                catch ( Exception e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+        };
+        stopping.start();
+        stopping.join( 200 );
+        assertTrue( stopping.isAlive() );
+        assertEquals( 0, backend.closed );
+
+        release.countDown();
+        stopping.join( 10000 );
+        running.join( 10000 );
+        assertFalse( stopping.isAlive() );
+        assertEquals( 200, running.status );
+        assertEquals( 1, backend.closed );
+        server = null;
+    }
+}
@@ -0,0 +1,82 @@
+package dnsTools;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.xbill.DNS.Type;
+
+/**
+ * Integration test of RdataMigrator on an in-process HBase minicluster.
+ * Run with the integration-tests profile.
+ */
+public class RdataMigratorIT
+    extends TestCase
+{
+    private static final byte[] ROW = PdnsSchema.rowKey( "www.example.com.", Type.A );
+
+    private HTable table;
+
+    public static Test suite()
+    {
+        return PdnsMiniCluster.suite( RdataMigratorIT.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        table = PdnsMiniCluster.createTable( "pdns", false );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        table.close();
+        PdnsMiniCluster.deleteTables();
+    }
+
+    private Result row()
+        throws Exception
+    {
+        Get get = new Get( ROW );
+        get.setMaxVersions();
+        return table.get( get );
+    }
+
+    /**
+     * The migrated cells keep their counts, and text cells of an older day
+     * loaded after the migration stay visible.
+     */
+    public void testMigrate()
+        throws Exception
+    {
+        String[] rdata = { "10.0.0.1" };
+        PdnsMiniCluster.put( table, ROW, rdata, 1000, 2000 );
+
+        long[] counts = RdataMigrator.run( PdnsMiniCluster.getConfiguration(), "pdns" );
+        assertEquals( 1, counts[0] );
+        assertEquals( 2, counts[1] );
+        Result result = row();
+        assertEquals( 2, result.size() );
+        for ( KeyValue kv : result.raw() )
+        {
+            assertTrue( CompactRdata.isCompact( kv.getQualifier() ) );
+        }
+
+        // An incremental load of an older day, still text encoded. Text
+        // columns sort before the compact ones.
+        PdnsMiniCluster.put( table, ROW, rdata, 500 );
+        result = row();
+        assertEquals( 3, result.size() );
+        assertFalse( CompactRdata.isCompact( result.raw()[0].getQualifier() ) );
+        assertEquals( 500L, result.raw()[0].getTimestamp() );
+
+        // Running again migrates only the new cell.
+        counts = RdataMigrator.run( PdnsMiniCluster.getConfiguration(), "pdns" );
+        assertEquals( 1, counts[1] );
+        assertEquals( 3, row().size() );
+    }
+}
@@ -0,0 +1,115 @@
+package dnsTools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Type;
+
+/**
+ * Unit test for the rewriting of a row by RdataMigrator.
+ */
+public class RdataMigratorTest
+    extends TestCase
+{
+    private static final byte[] ROW = PdnsSchema.rowKey( "www.example.com.", Type.A );
+
+    public RdataMigratorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RdataMigratorTest.class );
+    }
+
+    private static List<byte[]> rdata( String... rdata )
+    {
+        List<byte[]> rdata_list = new ArrayList<byte[]>();
+        for ( String r : rdata )
+        {
+            rdata_list.add( Bytes.toBytes( r ) );
+        }
+        return rdata_list;
+    }
+
+    private static Result result( KeyValue... kvs )
+    {
+        Arrays.sort( kvs, KeyValue.COMPARATOR );
+        return new Result( kvs );
+    }
+
+    /**
+     * The text versions are copied to the compact column, the copy landing
+     * on an existing compact cell is merged with it, and only the versions
+     * copied are deleted.
+     */
+    public void testMigrateRow()
+        throws Exception
+    {
+        byte[] text = PdnsSchema.packRdata( rdata( "10.0.0.1" ) );
+        byte[] compact = CompactRdata.pack( Type.A, rdata( "10.0.0.1" ) );
+        Result result = result(
+            new KeyValue( ROW, PdnsSchema.FAMILY, text, 2000L, PdnsSchema.SINGLE_OBSERVATION ),
+            new KeyValue( ROW, PdnsSchema.FAMILY, text, 1000L, PdnsSchema.combinedValue( 500L, 3 ) ),
+            new KeyValue( ROW, PdnsSchema.FAMILY, compact, 2000L, PdnsSchema.combinedValue( 1500L, 2 ) ),
+            new KeyValue( ROW, PdnsSchema.FAMILY, compact, 3000L, PdnsSchema.SINGLE_OBSERVATION ) );
+
+        long[] counts = new long[2];
+        RowMutations mutation = RdataMigrator.migrate( result, counts );
+        assertEquals( 1, counts[0] );
+        assertEquals( 2, counts[1] );
+
+        List<Mutation> mutations = mutation.getMutations();
+        assertEquals( 2, mutations.size() );
+        List<KeyValue> copies = ( (Put) mutations.get( 0 ) ).getFamilyMap().get( PdnsSchema.FAMILY );
+        assertEquals( 2, copies.size() );
+        for ( KeyValue kv : copies )
+        {
+            assertTrue( Bytes.equals( compact, kv.getQualifier() ) );
+        }
+        assertEquals( 2000L, copies.get( 0 ).getTimestamp() );
+        assertEquals( 3, PdnsSchema.count( copies.get( 0 ) ) );
+        assertEquals( 1500L, PdnsSchema.firstSeen( copies.get( 0 ) ) );
+        assertEquals( 1000L, copies.get( 1 ).getTimestamp() );
+        assertEquals( 3, PdnsSchema.count( copies.get( 1 ) ) );
+        assertEquals( 500L, PdnsSchema.firstSeen( copies.get( 1 ) ) );
+
+        List<KeyValue> deletes = ( (Delete) mutations.get( 1 ) ).getFamilyMap().get( PdnsSchema.FAMILY );
+        assertEquals( 2, deletes.size() );
+        for ( KeyValue kv : deletes )
+        {
+            assertTrue( Bytes.equals( text, kv.getQualifier() ) );
+            // A delete of one version, not of every version up to now.
+            assertEquals( KeyValue.Type.Delete.getCode(), kv.getType() );
+        }
+        assertEquals( 2000L, deletes.get( 0 ).getTimestamp() );
+        assertEquals( 1000L, deletes.get( 1 ).getTimestamp() );
+    }
+
+    /**
+     * A row with compact columns only is left alone.
+     */
+    public void testCompactRow()
+        throws Exception
+    {
+        byte[] compact = CompactRdata.pack( Type.A, rdata( "10.0.0.1" ) );
+        long[] counts = new long[2];
+        assertNull( RdataMigrator.migrate(
+            result( new KeyValue( ROW, PdnsSchema.FAMILY, compact, 1000L, PdnsSchema.SINGLE_OBSERVATION ) ),
+            counts ) );
+        assertEquals( 0, counts[1] );
+    }
+}
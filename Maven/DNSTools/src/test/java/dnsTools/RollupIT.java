@@ -0,0 +1,151 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.xbill.DNS.Type;
+
+/**
+ * Integration test of RollupJob and of the time ranges read from the
+ * roll-up tables, on an in-process HBase minicluster with the local job
+ * runner. Run with the integration-tests profile.
+ */
+public class RollupIT
+    extends TestCase
+{
+    private final static long DAY = Rollup.parseTime( "2014-10-02" );
+
+    private HTable table;
+
+    public static Test suite()
+    {
+        return PdnsMiniCluster.suite( RollupIT.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        table = PdnsMiniCluster.createTable( "pdns", true );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        table.close();
+        PdnsMiniCluster.deleteTables();
+        Path dir = new Path( LoadManifest.DEFAULT_DIR );
+        dir.getFileSystem( PdnsMiniCluster.getConfiguration() ).delete( dir, true );
+    }
+
+    private void put( String rrname, String rdata, long time )
+        throws Exception
+    {
+        PdnsMiniCluster.put( table, PdnsSchema.rowKey( rrname, Type.A, true ), new String[] { rdata }, time );
+    }
+
+    private static String query( QueryBackend backend, long minTime, long maxTime )
+        throws Exception
+    {
+        ((HBaseQueryBackend) backend).setTimeRange( minTime, maxTime );
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        backend.processRRsetQuery( "www.example.com", "A", new PrintStream( buffer, true, "UTF-8" ) );
+        return buffer.toString( "UTF-8" );
+    }
+
+    private static String query( long minTime, long maxTime )
+        throws Exception
+    {
+        HBaseQueryBackend backend = HBaseQueryBackend.open( PdnsMiniCluster.getConfiguration(), "pdns", false );
+        try
+        {
+            return query( backend, minTime, maxTime );
+        }
+        finally
+        {
+            backend.close();
+        }
+    }
+
+    /**
+     * The roll-ups of a range falling on whole hours or days give the same
+     * results as the observations, and running the job again over the same
+     * days rewrites their buckets.
+     */
+    public void testRollups()
+        throws Exception
+    {
+        put( "www.example.com.", "10.0.0.1", DAY + 1000 );
+        put( "www.example.com.", "10.0.0.1", DAY + 2000 );
+        put( "www.example.com.", "10.0.0.1", DAY + Rollup.HOUR + 5 );
+        put( "www.example.com.", "10.0.0.1", DAY + Rollup.DAY + 7 );
+        put( "www.example.com.", "10.0.0.2", DAY + 3 * Rollup.HOUR );
+        put( "other.example.com.", "10.0.0.3", DAY + 10 );
+
+        // As a load into an empty table.
+        RollupWatermark.open( PdnsMiniCluster.getConfiguration(), "pdns" ).start( DAY );
+        assertTrue( RollupJob.run( PdnsMiniCluster.getConfiguration(), "pdns", DAY, DAY + 2 * Rollup.DAY ) );
+        assertTrue( RollupJob.exists( PdnsMiniCluster.getConfiguration(), "pdns" ) );
+        HTable daily = new HTable( PdnsMiniCluster.getConfiguration(), Rollup.tableName( "pdns", Rollup.DAY ) );
+        assertTrue( PdnsSchema.isReversed( daily.getTableDescriptor() ) );
+        daily.close();
+
+        HBaseQueryBackend rollups = HBaseQueryBackend.open( PdnsMiniCluster.getConfiguration(), "pdns", false );
+        HBaseQueryBackend observations = HBaseQueryBackend.open( PdnsMiniCluster.getConfiguration(), "pdns", false );
+        observations.setRollupTables( new HTableInterface[Rollup.GRANULARITIES.length], 0 );
+
+        long[][] ranges = { { DAY, DAY + Rollup.DAY }, { DAY, DAY + 2 * Rollup.DAY }, { DAY, DAY + Rollup.HOUR },
+            { DAY + Rollup.HOUR, DAY + 4 * Rollup.HOUR }, { DAY + Rollup.DAY, Long.MAX_VALUE } };
+        for ( long[] range : ranges )
+        {
+            assertEquals( query( observations, range[0], range[1] ), query( rollups, range[0], range[1] ) );
+        }
+        String day = query( rollups, DAY, DAY + Rollup.DAY );
+        assertTrue( day, day.contains( "\"first_seen\":" + ( DAY + 1000 ) + ", \"count\":3, \"last_seen\":"
+            + ( DAY + Rollup.HOUR + 5 ) ) );
+        assertTrue( day, day.contains( "10.0.0.2" ) );
+
+        put( "www.example.com.", "10.0.0.1", DAY + 3000 );
+        assertTrue( RollupJob.run( PdnsMiniCluster.getConfiguration(), "pdns", DAY + 3000, DAY + 3001 ) );
+        day = query( rollups, DAY, DAY + Rollup.DAY );
+        assertTrue( day, day.contains( "\"count\":4" ) );
+        assertEquals( query( observations, DAY, DAY + Rollup.DAY ), day );
+
+        rollups.close();
+        observations.close();
+    }
+
+    /**
+     * The cells written after the roll-ups, as by StreamingIngester, are
+     * read from the passive-DNS table until RollupJob is run over them.
+     */
+    public void testWatermark()
+        throws Exception
+    {
+        put( "www.example.com.", "10.0.0.1", DAY + 1000 );
+        RollupWatermark watermark = RollupWatermark.open( PdnsMiniCluster.getConfiguration(), "pdns" );
+        watermark.start( DAY );
+        assertTrue( RollupJob.run( PdnsMiniCluster.getConfiguration(), "pdns", DAY, DAY + 1 ) );
+        assertEquals( DAY + Rollup.DAY, watermark.get() );
+
+        RollupWatermark.Watermark writer = watermark.register();
+        writer.lower( DAY + 2000 );
+        put( "www.example.com.", "10.0.0.1", DAY + 2000 );
+        assertEquals( DAY, watermark.get() );
+        assertTrue( query( DAY, DAY + Rollup.DAY ).contains( "\"count\":2" ) );
+
+        // The ingester stops, its cells still wait for the roll-ups.
+        writer.close();
+        assertEquals( DAY, watermark.get() );
+        assertTrue( query( DAY, DAY + Rollup.DAY ).contains( "\"count\":2" ) );
+
+        assertTrue( RollupJob.run( PdnsMiniCluster.getConfiguration(), "pdns", DAY, DAY + 1 ) );
+        assertEquals( DAY + Rollup.DAY, watermark.get() );
+        assertTrue( query( DAY, DAY + Rollup.DAY ).contains( "\"count\":2" ) );
+    }
+}
@@ -0,0 +1,105 @@
+package dnsTools;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for the buckets and times of the roll-up tables.
+ */
+public class RollupTest
+    extends TestCase
+{
+    public RollupTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RollupTest.class );
+    }
+
+    public void testParseTime()
+    {
+        assertEquals( 1412208000000L, Rollup.parseTime( "2014-10-02" ) );
+        assertEquals( 1412208000000L + 13 * Rollup.HOUR, Rollup.parseTime( "2014-10-02T13" ) );
+        assertEquals( 1412208000000L + 13 * Rollup.HOUR + 305000, Rollup.parseTime( "2014-10-02T13:05:05" ) );
+        assertEquals( 1412208000123L, Rollup.parseTime( "1412208000123" ) );
+        try
+        {
+            Rollup.parseTime( "2014-13-02" );
+            fail();
+        }
+        catch ( IllegalArgumentException e )
+        {
+        }
+    }
+
+    /**
+     * A range is read from the coarsest table whose buckets fall on its
+     * ends.
+     */
+    public void testBuckets()
+    {
+        long day = Rollup.parseTime( "2014-10-02" );
+        assertEquals( day, Rollup.bucket( day + Rollup.DAY - 1, Rollup.DAY ) );
+        assertEquals( day + 13 * Rollup.HOUR, Rollup.bucket( Rollup.parseTime( "2014-10-02T13:05:05" ), Rollup.HOUR ) );
+        assertEquals( -Rollup.HOUR, Rollup.bucket( -1, Rollup.HOUR ) );
+
+        assertTrue( Rollup.covers( Rollup.DAY, day, day + Rollup.DAY ) );
+        assertTrue( Rollup.covers( Rollup.DAY, 0, Long.MAX_VALUE ) );
+        assertFalse( Rollup.covers( Rollup.DAY, day, day + Rollup.HOUR ) );
+        assertTrue( Rollup.covers( Rollup.HOUR, day, day + Rollup.HOUR ) );
+        assertFalse( Rollup.covers( Rollup.HOUR, day + 1, Long.MAX_VALUE ) );
+        assertEquals( "pdns_daily", Rollup.tableName( "pdns", Rollup.DAY ) );
+        assertEquals( "pdns_hourly", Rollup.tableName( "pdns", Rollup.HOUR ) );
+    }
+
+    /**
+     * A roll-up cell keeps its last_seen in its value, the other cells in
+     * their version.
+     */
+    public void testRollupValue()
+    {
+        byte[] row = Bytes.toBytes( "row" );
+        byte[] qualifier = Bytes.toBytes( "rdata" );
+        KeyValue rollup = new KeyValue( row, PdnsSchema.FAMILY, qualifier, 3600000L,
+            PdnsSchema.rollupValue( 3600100L, 3600900L, 7 ) );
+        assertEquals( 7, PdnsSchema.count( rollup ) );
+        assertEquals( 3600100L, PdnsSchema.firstSeen( rollup ) );
+        assertEquals( 3600900L, PdnsSchema.lastSeen( rollup ) );
+
+        KeyValue single = new KeyValue( row, PdnsSchema.FAMILY, qualifier, 3600500L, PdnsSchema.SINGLE_OBSERVATION );
+        assertEquals( 1, PdnsSchema.count( single ) );
+        assertEquals( 3600500L, PdnsSchema.firstSeen( single ) );
+        assertEquals( 3600500L, PdnsSchema.lastSeen( single ) );
+    }
+
+    /**
+     * A combined cell fits a bucket only if its first_seen falls in the
+     * bucket of its version.
+     */
+    public void testCombinedCellFits()
+    {
+        byte[] row = Bytes.toBytes( "row" );
+        byte[] qualifier = Bytes.toBytes( "rdata" );
+        long day = Rollup.parseTime( "2014-10-02" );
+        KeyValue withinHour = new KeyValue( row, PdnsSchema.FAMILY, qualifier, day + 13 * Rollup.HOUR + 900,
+            PdnsSchema.combinedValue( day + 13 * Rollup.HOUR + 100, 5 ) );
+        assertTrue( Rollup.fits( withinHour, Rollup.HOUR ) );
+        assertTrue( Rollup.fits( withinHour, Rollup.DAY ) );
+
+        KeyValue spanningHours = new KeyValue( row, PdnsSchema.FAMILY, qualifier, day + 13 * Rollup.HOUR + 900,
+            PdnsSchema.combinedValue( day + 12 * Rollup.HOUR, 5 ) );
+        assertFalse( Rollup.fits( spanningHours, Rollup.HOUR ) );
+        assertTrue( Rollup.fits( spanningHours, Rollup.DAY ) );
+
+        KeyValue spanningDays = new KeyValue( row, PdnsSchema.FAMILY, qualifier, day + 900,
+            PdnsSchema.combinedValue( day - 1, 2 ) );
+        assertFalse( Rollup.fits( spanningDays, Rollup.DAY ) );
+    }
+}
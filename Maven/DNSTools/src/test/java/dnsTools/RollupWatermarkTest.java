@@ -0,0 +1,123 @@
+package dnsTools;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the watermark of the roll-up tables, on the local file
+ * system.
+ */
+public class RollupWatermarkTest
+    extends TestCase
+{
+    private final static long DAY = Rollup.DAY;
+
+    private File tmp;
+    private Configuration conf;
+
+    public RollupWatermarkTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RollupWatermarkTest.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "rollupwatermark" ).toFile();
+        conf = new Configuration();
+        conf.set( "fs.default.name", "file:///" );
+        conf.set( LoadManifest.DIR_KEY, new File( tmp, "manifests" ).getPath() );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileSystem.getLocal( conf ).delete( new Path( tmp.toURI() ), true );
+    }
+
+    /**
+     * A run starting by the watermark moves it to its end, a run leaving a
+     * gap or a skipped roll-up does not, and the whole table moves it past
+     * any time.
+     */
+    public void testRolledUp()
+        throws Exception
+    {
+        RollupWatermark watermark = RollupWatermark.open( conf, "pdns" );
+        assertEquals( 0, watermark.get() );
+        watermark.rolledUp( watermark.getRecorded(), DAY, 2 * DAY );
+        assertEquals( 0, watermark.get() );
+
+        watermark.start( DAY );
+        watermark.rolledUp( watermark.getRecorded(), DAY, 3 * DAY );
+        assertEquals( 3 * DAY, RollupWatermark.open( conf, "pdns" ).get() );
+        watermark.rolledUp( watermark.getRecorded(), 5 * DAY, 6 * DAY );
+        assertEquals( 3 * DAY, watermark.get() );
+
+        watermark.lower( 2 * DAY );
+        watermark.lower( 4 * DAY );
+        assertEquals( 2 * DAY, watermark.get() );
+        watermark.rolledUp( watermark.getRecorded(), 0, Long.MAX_VALUE );
+        assertEquals( Long.MAX_VALUE, watermark.get() );
+        assertEquals( 0, RollupWatermark.open( conf, "other" ).get() );
+    }
+
+    /**
+     * A load lowering the watermark while a job runs keeps it there, as the
+     * job may have missed its cells.
+     */
+    public void testLoweredDuringJob()
+        throws Exception
+    {
+        RollupWatermark watermark = RollupWatermark.open( conf, "pdns" );
+        watermark.start( DAY );
+        long recorded = watermark.getRecorded();
+        watermark.lower( DAY + Rollup.HOUR );
+        assertEquals( DAY, watermark.get() );
+
+        watermark.lower( DAY - Rollup.HOUR );
+        watermark.rolledUp( recorded, DAY, 3 * DAY );
+        assertEquals( DAY - Rollup.HOUR, watermark.get() );
+    }
+
+    /**
+     * A running writer holds the watermark at the hour of the earliest
+     * time it wrote, and leaves it there when it is closed.
+     */
+    public void testWriters()
+        throws Exception
+    {
+        RollupWatermark watermark = RollupWatermark.open( conf, "pdns" );
+        watermark.start( 10 * DAY );
+        RollupWatermark.Watermark writer = watermark.register();
+        RollupWatermark.Watermark idle = watermark.register();
+        assertEquals( 10 * DAY, watermark.get() );
+
+        writer.lower( 2 * DAY + 5000 );
+        writer.lower( 3 * DAY );
+        assertEquals( 2 * DAY, watermark.get() );
+        assertEquals( 10 * DAY, watermark.getRecorded() );
+
+        // The writer keeps writing after the run.
+        watermark.rolledUp( watermark.getRecorded(), 0, Long.MAX_VALUE );
+        assertEquals( 2 * DAY, watermark.get() );
+
+        writer.close();
+        idle.close();
+        assertEquals( 2 * DAY, watermark.getRecorded() );
+        assertEquals( 2 * DAY, RollupWatermark.open( conf, "pdns" ).get() );
+    }
+}
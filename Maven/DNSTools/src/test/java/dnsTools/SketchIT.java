@@ -0,0 +1,120 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.xbill.DNS.Type;
+
+/**
+ * Integration test of SketchJob and of the cardinality queries, on an
+ * in-process HBase minicluster with the local job runner. Run with the
+ * integration-tests profile.
+ */
+public class SketchIT
+    extends TestCase
+{
+    private HTable table;
+    private HTable index;
+
+    public static Test suite()
+    {
+        return PdnsMiniCluster.suite( SketchIT.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        table = PdnsMiniCluster.createTable( "pdns", true );
+        index = PdnsMiniCluster.createTable( "pdns_rdata", true );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        table.close();
+        index.close();
+        PdnsMiniCluster.deleteTables();
+    }
+
+    /**
+     * Write an rrset and its index rows as BulkLoader would.
+     */
+    private void put( String rrname, int rrtype, long time, String... rdata )
+        throws Exception
+    {
+        List<byte[]> values = new ArrayList<byte[]>();
+        for ( String value : rdata )
+        {
+            values.add( Bytes.toBytes( value ) );
+            Put put = new Put( RdataIndex.rowKey( RdataIndex.rdataKey( rrtype, value ),
+                PdnsSchema.nameBytes( rrname, true ) ) );
+            put.add( RdataIndex.FAMILY, RdataIndex.QUALIFIER, time, PdnsSchema.SINGLE_OBSERVATION );
+            index.put( put );
+        }
+        Put put = new Put( PdnsSchema.rowKey( rrname, rrtype, true ) );
+        put.add( PdnsSchema.FAMILY, PdnsSchema.packRdata( values ), time, PdnsSchema.SINGLE_OBSERVATION );
+        table.put( put );
+    }
+
+    private static String rdataCount( HBaseQueryBackend backend, String rdata )
+        throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        backend.processRdataCardinalityQuery( rdata, "ip", new PrintStream( buffer, true, "UTF-8" ) );
+        return buffer.toString( "UTF-8" ).trim();
+    }
+
+    private static String rrsetCount( HBaseQueryBackend backend, String rrname, String rrtype )
+        throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        backend.processRRsetCardinalityQuery( rrname, rrtype, new PrintStream( buffer, true, "UTF-8" ) );
+        return buffer.toString( "UTF-8" ).trim();
+    }
+
+    /**
+     * The sketches count the names of an address and the addresses of a
+     * name, and a run over a later range adds to them.
+     */
+    public void testSketches()
+        throws Exception
+    {
+        for ( int i = 0; i < 300; i++ )
+        {
+            put( "host" + i + ".shared.com.", Type.A, 1000, "10.0.0.1" );
+        }
+        put( "www.example.com.", Type.A, 1000, "10.0.0.2", "10.0.0.3" );
+        put( "www.example.com.", Type.A, 2000, "10.0.0.3", "10.0.0.4" );
+        put( "www.example.com.", Type.AAAA, 2000, "::1" );
+
+        assertTrue( SketchJob.run( PdnsMiniCluster.getConfiguration(), "pdns", 0, 3000 ) );
+        assertTrue( SketchJob.exists( PdnsMiniCluster.getConfiguration(), "pdns" ) );
+        HBaseQueryBackend backend = HBaseQueryBackend.open( PdnsMiniCluster.getConfiguration(), "pdns", false );
+        assertEquals( "{\"rdata\":\"10.0.0.1\", \"distinct_rrnames\":300}", rdataCount( backend, "10.0.0.1" ) );
+        assertEquals( "{\"rdata\":\"10.0.0.3\", \"distinct_rrnames\":1}", rdataCount( backend, "10.0.0.3" ) );
+        assertEquals( "", rdataCount( backend, "10.0.0.9" ) );
+        assertEquals( "{\"rrname\":\"www.example.com\" ,\"rrtype\":\"A\", \"distinct_rdata\":3}",
+            rrsetCount( backend, "www.example.com", "A" ) );
+        assertEquals( "{\"rrname\":\"www.example.com\" ,\"rrtype\":\"\", \"distinct_rdata\":4}",
+            rrsetCount( backend, "www.example.com", "" ) );
+        assertEquals( "", rrsetCount( backend, "example.com", "" ) );
+
+        // An incremental load over later days, run twice.
+        for ( int i = 200; i < 400; i++ )
+        {
+            put( "host" + i + ".shared.com.", Type.A, 5000, "10.0.0.1" );
+        }
+        assertTrue( SketchJob.run( PdnsMiniCluster.getConfiguration(), "pdns", 5000, 6000 ) );
+        assertTrue( SketchJob.run( PdnsMiniCluster.getConfiguration(), "pdns", 5000, 6000 ) );
+        assertEquals( "{\"rdata\":\"10.0.0.1\", \"distinct_rrnames\":400}", rdataCount( backend, "10.0.0.1" ) );
+        backend.close();
+    }
+}
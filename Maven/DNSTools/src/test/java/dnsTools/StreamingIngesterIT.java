@@ -0,0 +1,72 @@
+package dnsTools;
+
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableFactory;
+
+/**
+ * Integration test of the streaming ingest path on an in-process HBase
+ * minicluster. Run with the integration-tests profile.
+ */
+public class StreamingIngesterIT 
+    extends TestCase
+{
+    public static Test suite()
+    {
+        return PdnsMiniCluster.suite( StreamingIngesterIT.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        for ( String name : new String[] { "pdns", "pdns_rdata", "pdns_authority", "pdns_additional" } )
+        {
+            PdnsMiniCluster.createTable( name, false ).close();
+        }
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        PdnsMiniCluster.deleteTables();
+    }
+
+    /**
+     * Every observation of the sample log is written, in batches small
+     * enough that several are in flight.
+     */
+    public void testIngestStream()
+        throws Exception
+    {
+        Configuration conf = new Configuration( PdnsMiniCluster.getConfiguration() );
+        conf.setLong( StreamingIngester.FLUSH_SIZE_KEY, 1024 );
+        conf.setInt( StreamingIngester.MAX_INFLIGHT_KEY, 2 );
+        conf.setLong( StreamingIngester.COMBINE_MEMORY_KEY, 0 );
+        conf.set( BulkLoaderMapper.SECTIONS_KEY, BulkLoaderMapper.SECTIONS_ALL );
+
+        List<String> tableNames = BulkLoaderMapper.outputTables( conf, "pdns" );
+        StreamingIngester ingester = new StreamingIngester( conf, new HTableFactory(), tableNames );
+        ingester.addStream( "dns.log", getClass().getResourceAsStream( "/dns.log" ) );
+        ingester.run();
+
+        long observations = ingester.getObservations();
+        assertTrue( observations > 0 );
+        assertTrue( ingester.getBuffer().getBatchesWritten() > 1 );
+        assertEquals( ingester.getCounters().findCounter( MapperMetrics.GROUP, "CELLS" ).getValue(), ingester.getBuffer().getCellsWritten() );
+        // Repeated rrsets of the other sections in the same millisecond are
+        // the same cell, so only those of the ANSWER section add up exactly.
+        long sections = 0;
+        for ( String section : new String[] { "AUTHORITY", "ADDITIONAL" } )
+        {
+            sections += ingester.getCounters().findCounter( MapperMetrics.SECTION_GROUP, section ).getValue();
+        }
+        long authority = PdnsMiniCluster.countObservations( tableNames.get( BulkLoaderMapper.AUTHORITY_TABLE ) );
+        assertTrue( authority > 0 );
+        assertTrue( authority + PdnsMiniCluster.countObservations( tableNames.get( BulkLoaderMapper.ADDITIONAL_TABLE ) ) <= sections );
+        assertEquals( observations - sections, PdnsMiniCluster.countObservations( "pdns" ) + PdnsMiniCluster.countObservations( "pdns_rdata" ) );
+    }
+}
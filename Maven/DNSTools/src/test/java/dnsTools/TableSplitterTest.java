@@ -0,0 +1,151 @@
+package dnsTools;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the split points of the pre-split tables, on the local file
+ * system.
+ */
+public class TableSplitterTest
+    extends TestCase
+{
+    public TableSplitterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TableSplitterTest.class );
+    }
+
+    private static List<byte[]> keys( String... keys )
+    {
+        List<byte[]> list = new ArrayList<byte[]>();
+        for ( String key : keys )
+        {
+            list.add( Bytes.toBytes( key ) );
+        }
+        return list;
+    }
+
+    private static String toString( byte[][] splits )
+    {
+        StringBuilder s = new StringBuilder();
+        for ( byte[] split : splits )
+        {
+            s.append( s.length() == 0 ? "" : "," ).append( Bytes.toString( split ) );
+        }
+        return s.toString();
+    }
+
+    /**
+     * The split points are the quantiles of the sorted keys.
+     */
+    public void testSplitKeys()
+    {
+        List<byte[]> sorted = keys( "a", "b", "c", "d", "e", "f", "g", "h" );
+        assertEquals( "c,e,g", toString( TableSplitter.splitKeys( sorted, 4 ) ) );
+        assertEquals( "", toString( TableSplitter.splitKeys( sorted, 1 ) ) );
+    }
+
+    /**
+     * A repeated key is a split point once, so there are fewer regions.
+     */
+    public void testSplitKeysDuplicates()
+    {
+        List<byte[]> sorted = keys( "a", "b", "b", "b", "b", "b", "b", "c" );
+        assertEquals( "b", toString( TableSplitter.splitKeys( sorted, 4 ) ) );
+    }
+
+    /**
+     * With fewer keys than regions, each distinct key is a split point
+     * once, the first region holding the keys below the smallest one, and
+     * no keys give no split points.
+     */
+    public void testSplitKeysFewKeys()
+    {
+        assertEquals( "a,b", toString( TableSplitter.splitKeys( keys( "a", "b" ), 10 ) ) );
+        assertEquals( "a", toString( TableSplitter.splitKeys( keys( "a" ), 10 ) ) );
+        assertEquals( "", toString( TableSplitter.splitKeys( keys(), 10 ) ) );
+    }
+
+    /**
+     * The sampled row-keys of the sample log are sorted, one list per
+     * output table.
+     */
+    public void testSampleRowKeys()
+        throws Exception
+    {
+        File tmp = Files.createTempDirectory( "tablesplitter" ).toFile();
+        File log = new File( tmp, "dns.log" );
+        InputStream in = getClass().getResourceAsStream( "/dns.log" );
+        Files.copy( in, log.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        in.close();
+        try
+        {
+            Configuration conf = new Configuration();
+            conf.set( "fs.default.name", "file:///" );
+            Job job = new Job( conf );
+            FileInputFormat.addInputPath( job, new Path( log.toURI() ) );
+
+            List<List<byte[]>> keys = TableSplitter.sampleRowKeys( job, 1000 );
+            assertEquals( 2, keys.size() );
+            for ( List<byte[]> tableKeys : keys )
+            {
+                assertFalse( tableKeys.isEmpty() );
+                for ( int i = 1; i < tableKeys.size(); i++ )
+                {
+                    assertTrue( Bytes.compareTo( tableKeys.get( i - 1 ), tableKeys.get( i ) ) <= 0 );
+                }
+            }
+
+            job.getConfiguration().set( BulkLoaderMapper.SECTIONS_KEY, BulkLoaderMapper.SECTIONS_ALL );
+            keys = TableSplitter.sampleRowKeys( job, 1000 );
+            assertEquals( 4, keys.size() );
+            assertFalse( keys.get( BulkLoaderMapper.AUTHORITY_TABLE ).isEmpty() );
+        }
+        finally
+        {
+            log.delete();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * The rrset and index tables get the aggregation endpoint from the jar
+     * named in the configuration, the other tables do not.
+     */
+    public void testDescriptorCoprocessor()
+        throws Exception
+    {
+        String endpoint = PdnsAggregateEndpoint.class.getName();
+        Configuration conf = new Configuration();
+        assertFalse( TableSplitter.descriptor( conf, "pdns", BulkLoaderMapper.RRSET_TABLE ).hasCoprocessor( endpoint ) );
+
+        conf.set( TableSplitter.COPROCESSOR_JAR_KEY, "/tmp/dnstools/QueryTool.jar" );
+        HTableDescriptor rrset = TableSplitter.descriptor( conf, "pdns", BulkLoaderMapper.RRSET_TABLE );
+        assertTrue( rrset.hasCoprocessor( endpoint ) );
+        assertTrue( rrset.getValue( "coprocessor$1" ).startsWith( "/tmp/dnstools/QueryTool.jar|" + endpoint + "|" ) );
+        assertTrue( TableSplitter.descriptor( conf, "pdns_rdata", BulkLoaderMapper.RDATA_TABLE ).hasCoprocessor(
+            endpoint ) );
+        assertFalse( TableSplitter.descriptor( conf, "pdns_authority", BulkLoaderMapper.AUTHORITY_TABLE ).hasCoprocessor(
+            endpoint ) );
+    }
+}
@@ -0,0 +1,93 @@
+package dnsTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.xbill.DNS.Type;
+
+/**
+ * Integration test of wildcard rrset queries on a table with the reversed
+ * row-key layout, on an in-process HBase minicluster. Run with the
+ * integration-tests profile.
+ */
+public class WildcardQueryIT
+    extends TestCase
+{
+    private HTable table;
+
+    public static Test suite()
+    {
+        return PdnsMiniCluster.suite( WildcardQueryIT.class );
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        table = PdnsMiniCluster.createTable( "pdns", true );
+
+        put( "example.com.", Type.A, "10.0.0.1" );
+        put( "www.example.com.", Type.A, "10.0.0.2" );
+        put( "www.example.com.", Type.AAAA, "::2" );
+        put( "a.b.example.com.", Type.A, "10.0.0.3" );
+        put( "www.example.co.", Type.A, "10.0.0.4" );
+        put( "www.example.com.au.", Type.A, "10.0.0.5" );
+        put( "www.examplex.com.", Type.A, "10.0.0.6" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        table.close();
+        PdnsMiniCluster.deleteTables();
+    }
+
+    private void put( String rrname, int rrtype, String rdata )
+        throws Exception
+    {
+        PdnsMiniCluster.put( table, PdnsSchema.rowKey( rrname, rrtype, true ), new String[] { rdata }, 100 );
+    }
+
+    private List<String> rrnames( QueryBackend backend, String rrname, String rrtype )
+        throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        backend.processRRsetQuery( rrname, rrtype, new PrintStream( buffer, true, "UTF-8" ) );
+        List<String> rrnames = new ArrayList<String>();
+        for ( String line : buffer.toString( "UTF-8" ).split( "\n" ) )
+        {
+            if ( line.startsWith( "{\"rrname\":\"" ) )
+            {
+                rrnames.add( line.substring( 11, line.indexOf( '"', 11 ) ) + " " + line.contains( "AAAA" ) );
+            }
+        }
+        Collections.sort( rrnames );
+        return rrnames;
+    }
+
+    /**
+     * "*.example.com" returns the subdomains of every depth but not the zone
+     * itself or names sharing a prefix, and an rrtype is filtered in the
+     * region server.
+     */
+    public void testWildcardScan()
+        throws Exception
+    {
+        HBaseQueryBackend backend = HBaseQueryBackend.open( PdnsMiniCluster.getConfiguration(), "pdns", false );
+        assertTrue( backend.isReversed() );
+
+        assertEquals( Arrays.asList( "a.b.example.com false", "www.example.com false", "www.example.com true" ),
+            rrnames( backend, "*.example.com", "" ) );
+        assertEquals( Arrays.asList( "a.b.example.com false", "www.example.com false" ),
+            rrnames( backend, "*.example.com", "A" ) );
+        assertEquals( Arrays.asList( "www.example.com true" ), rrnames( backend, "*.example.com", "AAAA" ) );
+        assertEquals( Arrays.asList( "www.example.com false" ), rrnames( backend, "www.example.com", "A" ) );
+    }
+}
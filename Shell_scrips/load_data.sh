@@ -1,7 +1,15 @@
 #!/bin/bash
 
+# With --incremental the tables are kept and only input files that were
+# not loaded before, or changed since, are added to them.
+incremental=false
+if [ "$1" == "--incremental" ]; then
+    incremental=true
+    shift
+fi
+
 if [ "$#" -ne 3 ]; then
-    echo "usage: $0 <local_input_file> <hdfs_output_file> <hbase_table_name>"
+    echo "usage: $0 [--incremental] <local_input_file> <hdfs_output_file> <hbase_table_name>"
     exit 1
 fi
 
@@ -16,13 +24,30 @@ if [ $? -ne 0 ]; then
     exit 1
 fi
 
-# Check if input file already exists
-# If so, delete the old file and copy the new one
-hadoop fs -ls /tmp/$input_file &> /dev/null
-if [ $? -eq 0 ]; then
-    hadoop fs -rmr /tmp/$input_file
+# Copy a local file to HDFS unless its copy is newer. The manifest of the
+# table keeps the length and modification time of the loaded copies, so an
+# incremental load skips the unchanged files and loads the replaced ones.
+copy_if_newer() {
+    local local_time=$(( $(stat -c %Y "$1") * 1000 ))
+    local hdfs_time=$(hadoop fs -stat %Y "$2" 2> /dev/null)
+    if [ -n "$hdfs_time" ] && [ "$hdfs_time" -ge "$local_time" ]; then
+        return
+    fi
+    hadoop fs -rmr "$2" &> /dev/null
+    hadoop fs -copyFromLocal "$1" "$2" &> /dev/null
+}
+
+# A full load copies the input again, without the files deleted since.
+if [ "$incremental" == "false" ]; then
+    hadoop fs -rmr /tmp/$input_file &> /dev/null
+fi
+if [ -d "$input_file" ]; then
+    find "$input_file" -type f | while read -r file; do
+        copy_if_newer "$file" "/tmp/$file"
+    done
+else
+    copy_if_newer "$input_file" "/tmp/$input_file"
 fi
-hadoop fs -copyFromLocal $input_file /tmp/$input_file &> /dev/null
 
 # Check if output file already exists
 # If so, delete the file
@@ -31,11 +56,28 @@ if [ $? -eq 0 ]; then
     hadoop fs -rmr $output_file
 fi
 
-echo -e "disable '$table_name'\n" "drop '$table_name'\n" "create '$table_name', 'cf'\n" | hbase shell
+# Drop the table, its reverse (rdata to rrname) index, the tables of the
+# AUTHORITY and ADDITIONAL sections, roll-ups and sketches.
+# BulkLoader creates them again, pre-split from a sample of the input and
+# keeping all versions of the column family.
+if [ "$incremental" == "false" ]; then
+    for name in $table_name ${table_name}_rdata ${table_name}_authority ${table_name}_additional \
+            ${table_name}_hourly ${table_name}_daily ${table_name}_sketch; do
+        echo -e "disable '$name'\n" "drop '$name'\n" | hbase shell
+    done
+fi
 
 # Path to jar produce by Maven.
 path_to_jar=../Maven/DNSTools/target/QueryTool-1.0-SNAPSHOT-job.jar
 
+# Copy the jar to HDFS, so the region servers load PdnsAggregateEndpoint
+# from it on the tables BulkLoader creates.
+coprocessor_jar=/tmp/dnstools/QueryTool-1.0-SNAPSHOT-job.jar
+hadoop fs -mkdir /tmp/dnstools &> /dev/null
+hadoop fs -rmr $coprocessor_jar &> /dev/null
+hadoop fs -copyFromLocal "$path_to_jar" $coprocessor_jar
+
 # Run map-reduce job to bulk-load data from input_file to HBase
-hadoop jar "$path_to_jar" dnsTools.BulkLoader /tmp/$input_file $output_file $table_name
+hadoop jar "$path_to_jar" dnsTools.BulkLoader -Ddnstools.incremental=$incremental \
+    -Ddnstools.coprocessor.jar=$coprocessor_jar /tmp/$input_file $output_file $table_name
 